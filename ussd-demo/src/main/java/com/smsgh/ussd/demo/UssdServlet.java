@@ -17,6 +17,27 @@ import javax.servlet.http.HttpServletResponse;
  * @author Aaron Baffour-Awuah
  */
 public class UssdServlet extends HttpServlet {
+    
+    private Ussd ussd;
+    
+    /**
+     * Sets up the Ussd instance shared by all requests, and warms it up
+     * so that the first app users do not wait on class loading and route
+     * resolution.
+     * 
+     * @throws ServletException 
+     */
+    @Override
+    public void init() throws ServletException {
+        ussd = new Ussd()
+                .controllerPackages(new String[]{"com.smsgh.ussd.demo"})
+                .initiationController("controllers.Main")
+                .initiationAction("start")
+                .maxAutoDialDepth(Integer.MAX_VALUE)
+                .warmUpSession("*714#", "2")
+                .warmUpSession("*714#", "0");
+        ussd.warmUp();
+    }
    
     /**
      * Handles ussd requests from request parsing to response sending.
@@ -45,11 +66,6 @@ public class UssdServlet extends HttpServlet {
     @Override
     protected void service(HttpServletRequest req, HttpServletResponse resp) 
             throws ServletException, IOException {
-        Ussd ussd = new Ussd()
-                .controllerPackages(new String[]{"com.smsgh.ussd.demo"})
-                .initiationController("controllers.Main")
-                .initiationAction("start")
-                .maxAutoDialDepth(Integer.MAX_VALUE);        
         ussd.service(req, resp);
     }    
 }
@@ -0,0 +1,65 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+/**
+ * Creates the controller of a route and invokes the route's action on it.
+ * The framework dispatches through reflection by default; route tables
+ * generated at build time by the ussd-processor module supply dispatchers
+ * which call constructors and actions directly instead.
+ *
+ * @author Aaron Baffour-Awuah
+ * @see RouteTable
+ */
+public abstract class ActionDispatcher {
+    private final Class<? extends UssdController> controllerClass;
+
+    /**
+     * Creates a dispatcher for an action of a controller class.
+     *
+     * @param controllerClass controller class.
+     *
+     * @exception java.lang.IllegalArgumentException if controllerClass is
+     * null.
+     */
+    protected ActionDispatcher(
+            Class<? extends UssdController> controllerClass) {
+        if (controllerClass == null) {
+            throw new IllegalArgumentException("\"controllerClass\" argument "
+                    + "cannot be null");
+        }
+        this.controllerClass = controllerClass;
+    }
+
+    /**
+     * Gets the controller class whose action is dispatched.
+     *
+     * @return controller class.
+     */
+    public Class<? extends UssdController> getControllerClass() {
+        return controllerClass;
+    }
+
+    /**
+     * Creates a new controller.
+     *
+     * @return new instance of controller class.
+     *
+     * @exception java.lang.RuntimeException with the exception thrown by the
+     * constructor, or if controller class cannot be instantiated.
+     */
+    public abstract UssdController newController();
+
+    /**
+     * Invokes the action on a controller.
+     *
+     * @param controller controller created by {@link #newController()}.
+     *
+     * @return the value returned by the action.
+     *
+     * @exception java.lang.RuntimeException with the exception thrown by the
+     * action, which is wrapped if it is a checked exception.
+     */
+    public abstract Object invoke(UssdController controller);
+}
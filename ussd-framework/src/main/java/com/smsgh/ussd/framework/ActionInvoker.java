@@ -0,0 +1,145 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Dispatches the actions of routes which are not in a generated
+ * {@link RouteTable}, through reflection. Everything reflection needs is
+ * looked up once, when the route is resolved: the no-arg constructor is
+ * used directly instead of through Class.newInstance(), which repeats its
+ * access checks on every call, and both the constructor and the action
+ * have their access checks suppressed once they have been found to be
+ * public, so that each call goes straight to the reflection accessors the
+ * JVM generates for frequently used members.
+ * <p>
+ * Errors are reported with the same messages as before routes were
+ * cached, and at the same point: a controller which cannot be created
+ * fails each time an instance is asked for. Controllers which are not
+ * public are still created through Class.newInstance(), exactly as
+ * before.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class ActionInvoker extends ActionDispatcher {
+    private final Constructor<? extends UssdController> constructor;
+    private final Method action;
+
+    /**
+     * Creates an invoker for an action of a controller class.
+     *
+     * @param controllerClass controller class.
+     * @param action public no-arg action method of controllerClass.
+     */
+    ActionInvoker(Class<? extends UssdController> controllerClass,
+            Method action) {
+        super(controllerClass);
+        this.constructor = findConstructor(controllerClass);
+        this.action = action;
+        suppressAccessChecks(action);
+    }
+
+    /**
+     * Finds the public no-arg constructor of a public, concrete class.
+     *
+     * @return constructor, or null if instances have to be created through
+     * Class.newInstance(), which then either succeeds because of the
+     * package controllerClass is in, or reports what is wrong.
+     */
+    private static <T> Constructor<T> findConstructor(Class<T> cls) {
+        int modifiers = cls.getModifiers();
+        if (!Modifier.isPublic(modifiers) ||
+                Modifier.isAbstract(modifiers) || cls.isInterface()) {
+            return null;
+        }
+        Constructor<T> constructor;
+        try {
+            constructor = cls.getConstructor();
+        }
+        catch (NoSuchMethodException ex) {
+            return null;
+        }
+        suppressAccessChecks(constructor);
+        return constructor;
+    }
+
+    private static void suppressAccessChecks(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        }
+        catch (SecurityException ex) {
+            // Calls still work, only with access checks.
+        }
+    }
+
+    /**
+     * Creates a new controller.
+     *
+     * @return new instance of controller class.
+     *
+     * @exception java.lang.RuntimeException if controller class is not a
+     * public class having a public no-arg constructor, or with the
+     * exception thrown by the constructor.
+     */
+    @Override
+    public UssdController newController() {
+        Class<? extends UssdController> controllerClass =
+                getControllerClass();
+        try {
+            if (constructor == null) {
+                return controllerClass.newInstance();
+            }
+            return constructor.newInstance();
+        }
+        catch (InvocationTargetException ex) {
+            throw unwrap(ex);
+        }
+        catch (IllegalAccessException ex) {
+            throw new RuntimeException(String.format("Failed to create "
+                    + "instance of class \"%s\". Is class a public class having a "
+                    + "public no-arg constructor?", controllerClass.getName()));
+        }
+        catch (InstantiationException ex) {
+            throw new RuntimeException(String.format("Failed to create "
+                    + "instance of class \"%s\". Is class a public class having a "
+                    + "public no-arg constructor?", controllerClass.getName()));
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public Object invoke(UssdController controller) {
+        try {
+            return action.invoke(controller);
+        }
+        catch (InvocationTargetException ex) {
+            throw unwrap(ex);
+        }
+        catch (IllegalAccessException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static RuntimeException unwrap(InvocationTargetException ex) {
+        // InvocationTargetException doesn't have
+        // any interesting message. Thus pull out
+        // the exception it wraps and throw that
+        // instead.
+        Throwable t = ex.getTargetException();
+        if (t instanceof RuntimeException) {
+            return (RuntimeException)t;
+        }
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
+        return new RuntimeException(t);
+    }
+}
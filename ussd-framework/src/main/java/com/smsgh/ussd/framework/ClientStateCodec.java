@@ -0,0 +1,469 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encodes ussd sessions into the ClientState field, which the SMSGH USSD
+ * API sends back with the next request of a session, so that sessions
+ * need not be kept in a session store. Enabled with
+ * {@link Ussd#clientStateCodec(ClientStateCodec)}.
+ * <p>
+ * The next route and the data bag of a session are encoded compactly,
+ * deflated if that makes them smaller, and signed with HMAC-SHA256 over
+ * the session id and mobile number of the request as well, so that the
+ * state cannot be forged, altered, or moved to another session. The state
+ * also carries the time it was issued, and is rejected once older than
+ * the session timeout.
+ * <p>
+ * A session whose state is longer than the maximum length once encoded is
+ * kept in the session store instead, for the rest of the session; its
+ * ClientState then only says so.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ClientStateCodec {
+
+    /**
+     * The default maximum length of the ClientState field.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 2048;
+
+    /**
+     * The minimum length in bytes of the secret used for signing.
+     */
+    public static final int MIN_SECRET_LENGTH = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // Header: format version and flags.
+    private static final int VERSION = 1;
+    private static final int FLAG_IN_STORE = 1;
+    private static final int FLAG_DEFLATED = 2;
+
+    // Length of truncated signature in bytes.
+    private static final int MAC_LENGTH = 16;
+
+    // Bodies shorter than this are not worth deflating.
+    private static final int MIN_DEFLATE_LENGTH = 64;
+
+    private static final char[] BASE64_DIGITS = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ" +
+            "abcdefghijklmnopqrstuvwxyz0123456789-_").toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64_DIGITS.length; i++) {
+            BASE64_VALUES[BASE64_DIGITS[i]] = i;
+        }
+    }
+
+    /**
+     * Session decoded from ClientState.
+     */
+    static class State {
+        private final boolean inStore;
+        private final String nextRoute;
+        private final Map<String, String> dataBag;
+
+        State(boolean inStore, String nextRoute,
+                Map<String, String> dataBag) {
+            this.inStore = inStore;
+            this.nextRoute = nextRoute;
+            this.dataBag = dataBag;
+        }
+
+        /**
+         * Tells whether the session is kept in the session store rather
+         * than in ClientState.
+         */
+        boolean isInStore() {
+            return inStore;
+        }
+
+        String getNextRoute() {
+            return nextRoute;
+        }
+
+        Map<String, String> getDataBag() {
+            return dataBag;
+        }
+    }
+
+    private final SecretKeySpec key;
+    private final int maxLength;
+    private final int timeoutInMillis;
+    private final Clock clock;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    /**
+     * Creates a new codec with the default maximum length, which rejects
+     * states older than {@link Ussd#SESSION_TIMEOUT_MILLIS}.
+     *
+     * @param secret key for signing states, which must be the same on all
+     * nodes serving the ussd application, and kept secret.
+     *
+     * @exception java.lang.IllegalArgumentException if secret is null or
+     * shorter than {@link #MIN_SECRET_LENGTH} bytes.
+     */
+    public ClientStateCodec(byte[] secret) {
+        this(secret, DEFAULT_MAX_LENGTH, Ussd.SESSION_TIMEOUT_MILLIS,
+                Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new codec.
+     *
+     * @param secret key for signing states, which must be the same on all
+     * nodes serving the ussd application, and kept secret.
+     * @param maxLength maximum length of ClientState, beyond which sessions
+     * are kept in the session store.
+     * @param timeoutInMillis time after which a state is rejected.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException if secret is null or
+     * shorter than {@link #MIN_SECRET_LENGTH} bytes, if maxLength or
+     * timeoutInMillis is not positive, or if clock is null.
+     */
+    public ClientStateCodec(byte[] secret, int maxLength,
+            int timeoutInMillis, Clock clock) {
+        if (secret == null || secret.length < MIN_SECRET_LENGTH) {
+            throw new IllegalArgumentException("\"secret\" argument must "
+                    + "have at least " + MIN_SECRET_LENGTH + " bytes.");
+        }
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("\"maxLength\" argument "
+                    + "must be positive. Received " + maxLength);
+        }
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        this.key = new SecretKeySpec(secret.clone(), MAC_ALGORITHM);
+        this.maxLength = maxLength;
+        this.timeoutInMillis = timeoutInMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the maximum length of ClientState.
+     * @return maximum length.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Encodes a session into ClientState.
+     *
+     * @param request request whose session is being encoded.
+     * @param nextRoute next route of session.
+     * @param dataBag all the contents of the session's data bag.
+     * @return encoded state, or null if it would be longer than the
+     * maximum length.
+     */
+    String encode(UssdRequest request, String nextRoute,
+            Map<String, String> dataBag) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarLong(body, clock.currentTimeMillis());
+        writeString(body, nextRoute);
+        writeVarLong(body, dataBag.size());
+        for (Map.Entry<String, String> entry : dataBag.entrySet()) {
+            writeString(body, entry.getKey());
+            writeString(body, entry.getValue());
+        }
+        byte[] bytes = body.toByteArray();
+        int flags = 0;
+        if (bytes.length >= MIN_DEFLATE_LENGTH) {
+            byte[] deflated = deflate(bytes);
+            if (deflated.length < bytes.length) {
+                bytes = deflated;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        // Base64 takes 4 characters for every 3 bytes.
+        int length = 2 + bytes.length + MAC_LENGTH;
+        if ((length * 4 + 2) / 3 > maxLength) {
+            return null;
+        }
+        return seal(request, flags, bytes);
+    }
+
+    /**
+     * Encodes the fact that a session is kept in the session store.
+     *
+     * @param request request of the session.
+     * @return encoded state.
+     */
+    String encodeInStore(UssdRequest request) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarLong(body, clock.currentTimeMillis());
+        return seal(request, FLAG_IN_STORE, body.toByteArray());
+    }
+
+    /**
+     * Decodes the ClientState of a request.
+     *
+     * @param request request with ClientState.
+     * @return decoded state, or null if request has no ClientState.
+     *
+     * @exception SessionNotFoundException if state is malformed, has not
+     * been signed for the request's session, or has expired.
+     */
+    State decode(UssdRequest request) {
+        String clientState = request.getClientState();
+        if (clientState == null || clientState.isEmpty()) {
+            return null;
+        }
+        byte[] sealed = decodeBase64(clientState);
+        if (sealed == null || sealed.length < 2 + MAC_LENGTH ||
+                sealed[0] != VERSION) {
+            throw new SessionNotFoundException("ClientState is malformed.");
+        }
+        int bodyLength = sealed.length - MAC_LENGTH;
+        byte[] expected = sign(request, sealed, bodyLength);
+        byte[] actual = Arrays.copyOfRange(sealed, bodyLength,
+                sealed.length);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new SessionNotFoundException("ClientState was not signed "
+                    + "for this session.");
+        }
+
+        int flags = sealed[1];
+        byte[] body = Arrays.copyOfRange(sealed, 2, bodyLength);
+        if ((flags & FLAG_DEFLATED) != 0) {
+            body = inflate(body);
+        }
+        int[] offset = { 0 };
+        try {
+            long issuedAt = readVarLong(body, offset);
+            if (clock.currentTimeMillis() - issuedAt >= timeoutInMillis) {
+                throw new SessionNotFoundException("ClientState has "
+                        + "expired.");
+            }
+            if ((flags & FLAG_IN_STORE) != 0) {
+                return new State(true, null, null);
+            }
+            String nextRoute = readString(body, offset);
+            long count = readVarLong(body, offset);
+            Map<String, String> dataBag = new LinkedHashMap<String, String>();
+            for (long i = 0; i < count; i++) {
+                String name = readString(body, offset);
+                dataBag.put(name, readString(body, offset));
+            }
+            return new State(false, nextRoute, dataBag);
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new SessionNotFoundException("ClientState is malformed.");
+        }
+    }
+
+    private String seal(UssdRequest request, int flags, byte[] body) {
+        byte[] sealed = new byte[2 + body.length + MAC_LENGTH];
+        sealed[0] = VERSION;
+        sealed[1] = (byte)flags;
+        System.arraycopy(body, 0, sealed, 2, body.length);
+        byte[] mac = sign(request, sealed, 2 + body.length);
+        System.arraycopy(mac, 0, sealed, 2 + body.length, MAC_LENGTH);
+        return encodeBase64(sealed);
+    }
+
+    /**
+     * Signs the session id and mobile of a request, followed by the
+     * encoded state.
+     * @return truncated signature.
+     */
+    private byte[] sign(UssdRequest request, byte[] state, int length) {
+        Mac mac = macs.get();
+        if (mac == null) {
+            try {
+                mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+            }
+            catch (GeneralSecurityException ex) {
+                throw new FrameworkException("Could not set up " +
+                        MAC_ALGORITHM + " for ClientState.", ex);
+            }
+            macs.set(mac);
+        }
+        ByteArrayOutputStream identity = new ByteArrayOutputStream();
+        writeString(identity, request.getSessionId());
+        writeString(identity, request.getMobile());
+        mac.update(identity.toByteArray());
+        mac.update(state, 0, length);
+        return Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    bytes.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater(true);
+        try {
+            // Extra byte needed by inflater in nowrap mode.
+            inflater.setInput(Arrays.copyOf(bytes, bytes.length + 1));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    bytes.length * 3);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() ||
+                        inflater.needsDictionary())) {
+                    throw new SessionNotFoundException("ClientState is "
+                            + "malformed.");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException ex) {
+            throw new SessionNotFoundException("ClientState is malformed.");
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    // Strings are written as their UTF-8 length plus one, or zero for
+    // null, followed by their UTF-8 bytes.
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        if (s == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] in, int[] offset) {
+        long length = readVarLong(in, offset) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.length - offset[0]) {
+            throw new ArrayIndexOutOfBoundsException((int)Math.min(length,
+                    Integer.MAX_VALUE));
+        }
+        String s = new String(in, offset[0], (int)length, UTF8);
+        offset[0] += (int)length;
+        return s;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static long readVarLong(byte[] in, int[] offset) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in[offset[0]++];
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ArrayIndexOutOfBoundsException(offset[0]);
+    }
+
+    // URL-safe base64 without padding, so that ClientState needs no
+    // escaping anywhere.
+
+    private static String encodeBase64(byte[] bytes) {
+        StringBuilder out = new StringBuilder((bytes.length * 4 + 2) / 3);
+        int i = 0;
+        for (; i + 3 <= bytes.length; i += 3) {
+            int n = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) |
+                    (bytes[i + 2] & 0xff);
+            out.append(BASE64_DIGITS[n >>> 18])
+                    .append(BASE64_DIGITS[(n >>> 12) & 0x3f])
+                    .append(BASE64_DIGITS[(n >>> 6) & 0x3f])
+                    .append(BASE64_DIGITS[n & 0x3f]);
+        }
+        int remaining = bytes.length - i;
+        if (remaining == 1) {
+            int n = (bytes[i] & 0xff) << 16;
+            out.append(BASE64_DIGITS[n >>> 18])
+                    .append(BASE64_DIGITS[(n >>> 12) & 0x3f]);
+        }
+        else if (remaining == 2) {
+            int n = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8);
+            out.append(BASE64_DIGITS[n >>> 18])
+                    .append(BASE64_DIGITS[(n >>> 12) & 0x3f])
+                    .append(BASE64_DIGITS[(n >>> 6) & 0x3f]);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return decoded bytes, or null if s is not valid base64.
+     */
+    private static byte[] decodeBase64(String s) {
+        if (s.length() % 4 == 1) {
+            return null;
+        }
+        byte[] out = new byte[s.length() * 3 / 4];
+        int bits = 0;
+        int bitCount = 0;
+        int j = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[j++] = (byte)(bits >>> bitCount);
+            }
+        }
+        // Leftover bits must be zero, so that every state has exactly one
+        // encoding.
+        if ((bits & ((1 << bitCount) - 1)) != 0) {
+            return null;
+        }
+        return out;
+    }
+}
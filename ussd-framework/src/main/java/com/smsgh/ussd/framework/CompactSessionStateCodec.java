@@ -0,0 +1,511 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The default session state codec, which writes a compact, versioned
+ * format about half the length of the JSON of
+ * {@link JsonSessionStateCodec}, and reads and writes it without
+ * reflection. Reads that JSON as well, so that sessions written by
+ * earlier framework versions, or with the JSON codec, carry on.
+ * <p>
+ * Encoded values start with {@value #PREFIX}, the format version and a
+ * letter for the kind of value, followed by the fields of the value in a
+ * fixed order. Since the data bag holds strings, the format is made of
+ * characters rather than bytes, which spares it the expansion of a
+ * binary-to-text encoding:
+ * <ul>
+ *  <li>a string is its length, ':' and its characters; or '-' if null;
+ *  or '@', the index of an identical string written before, and ';'
+ *  <li>a number is its decimal digits followed by ';'
+ *  <li>a list or map is its size followed by its elements; or '-' if
+ *  null
+ *  <li>an object in a list is '+' followed by its fields; or '-' if null
+ * </ul>
+ * Back-references keep strings repeated across menu items and options,
+ * e.g. controller names and option values, from being written twice.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class CompactSessionStateCodec implements SessionStateCodec {
+
+    /**
+     * The characters starting values in the compact format.
+     */
+    public static final String PREFIX = "~";
+
+    /**
+     * The version of the format written.
+     */
+    public static final int VERSION = 1;
+
+    private static final char MENU = 'M';
+    private static final char FORM = 'F';
+    private static final char MAP = 'D';
+
+    private static final JsonSessionStateCodec JSON =
+            new JsonSessionStateCodec();
+
+    /**
+     * Creates a new instance.
+     */
+    public CompactSessionStateCodec() {
+    }
+
+    /**
+     * Determines whether a value is in the compact format.
+     *
+     * @param repr encoded value. May be null.
+     *
+     * @return true if value starts with {@link #PREFIX}.
+     */
+    public static boolean isCompact(String repr) {
+        return repr != null && repr.startsWith(PREFIX);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String encodeMenu(UssdMenu menu) {
+        Writer out = new Writer(MENU);
+        if (menu == null) {
+            return out.writeNull().toString();
+        }
+        out.writeObject();
+        out.writeString(menu.getHeader());
+        out.writeString(menu.getFooter());
+        out.writeString(menu.getMessage());
+        List<UssdMenuItem> items = menu.getItems();
+        if (out.writeSize(items)) {
+            for (UssdMenuItem item : items) {
+                if (item == null) {
+                    out.writeNull();
+                    continue;
+                }
+                out.writeObject();
+                out.writeString(item.getIndex());
+                out.writeString(item.getDisplay());
+                out.writeString(item.getAction());
+                out.writeString(item.getController());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public UssdMenu decodeMenu(String repr) {
+        if (!isCompact(repr)) {
+            return JSON.decodeMenu(repr);
+        }
+        return decodeCompactMenu(repr);
+    }
+
+    static UssdMenu decodeCompactMenu(String repr) {
+        Reader in = new Reader(repr, MENU);
+        try {
+            if (!in.readObject()) {
+                return in.end(null);
+            }
+            UssdMenu menu = new UssdMenu();
+            menu.header(in.readString());
+            menu.footer(in.readString());
+            menu.message(in.readString());
+            int size = in.readSize();
+            if (size != -1) {
+                ArrayList<UssdMenuItem> items = new ArrayList<UssdMenuItem>(
+                        size);
+                for (int i = 0; i < size; i++) {
+                    if (!in.readObject()) {
+                        items.add(null);
+                        continue;
+                    }
+                    String index = in.readString();
+                    String display = in.readString();
+                    String action = in.readString();
+                    String controller = in.readString();
+                    items.add(new UssdMenuItem(index, display, action,
+                            controller));
+                }
+                menu.items(items);
+            }
+            return in.end(menu);
+        }
+        catch (IllegalArgumentException ex) {
+            throw in.error(ex);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String encodeForm(UssdForm form) {
+        Writer out = new Writer(FORM);
+        if (form == null) {
+            return out.writeNull().toString();
+        }
+        out.writeObject();
+        out.writeString(form.getAction());
+        out.writeString(form.getController());
+        out.writeInt(form.getProcessingPosition());
+        List<UssdInput> inputs = form.getInputs();
+        if (out.writeSize(inputs)) {
+            for (UssdInput input : inputs) {
+                if (input == null) {
+                    out.writeNull();
+                    continue;
+                }
+                out.writeObject();
+                out.writeString(input.getName());
+                out.writeString(input.getDisplayName());
+                out.writeString(input.getHeader());
+                out.writeString(input.getMessage());
+                List<UssdInput.Option> options = input.getOptions();
+                if (out.writeSize(options)) {
+                    for (UssdInput.Option option : options) {
+                        if (option == null) {
+                            out.writeNull();
+                            continue;
+                        }
+                        out.writeObject();
+                        out.writeString(option.display);
+                        out.writeString(option.value);
+                    }
+                }
+            }
+        }
+        out.writeMap(form.getData());
+        return out.toString();
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public UssdForm decodeForm(String repr) {
+        if (!isCompact(repr)) {
+            return JSON.decodeForm(repr);
+        }
+        return decodeCompactForm(repr);
+    }
+
+    static UssdForm decodeCompactForm(String repr) {
+        Reader in = new Reader(repr, FORM);
+        try {
+            if (!in.readObject()) {
+                return in.end(null);
+            }
+            String action = in.readString();
+            String controller = in.readString();
+            UssdForm form = new UssdForm(action, controller);
+            form.processingPosition(in.readInt());
+            int size = in.readSize();
+            if (size != -1) {
+                ArrayList<UssdInput> inputs = new ArrayList<UssdInput>(size);
+                for (int i = 0; i < size; i++) {
+                    inputs.add(readInput(in));
+                }
+                form.inputs(inputs);
+            }
+            Map<String, String> data = in.readMap();
+            if (data != null) {
+                form.data(data);
+            }
+            return in.end(form);
+        }
+        catch (IllegalArgumentException ex) {
+            throw in.error(ex);
+        }
+    }
+
+    private static UssdInput readInput(Reader in) {
+        if (!in.readObject()) {
+            return null;
+        }
+        UssdInput input = new UssdInput(in.readString());
+        input.displayName(in.readString());
+        input.header(in.readString());
+        input.message(in.readString());
+        int size = in.readSize();
+        if (size != -1) {
+            ArrayList<UssdInput.Option> options =
+                    new ArrayList<UssdInput.Option>(size);
+            for (int i = 0; i < size; i++) {
+                if (!in.readObject()) {
+                    options.add(null);
+                    continue;
+                }
+                String display = in.readString();
+                String value = in.readString();
+                options.add(new UssdInput.Option(display, value));
+            }
+            input.options(options);
+        }
+        return input;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String encodeMap(Map<String, String> map) {
+        Writer out = new Writer(MAP);
+        out.writeMap(map);
+        return out.toString();
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public Map<String, String> decodeMap(String repr) {
+        if (!isCompact(repr)) {
+            return JSON.decodeMap(repr);
+        }
+        return decodeCompactMap(repr);
+    }
+
+    static Map<String, String> decodeCompactMap(String repr) {
+        Reader in = new Reader(repr, MAP);
+        return in.end(in.readMap());
+    }
+
+    private static class Writer {
+        private final StringBuilder out = new StringBuilder(64);
+        private Map<String, Integer> strings;
+        private int stringCount;
+
+        Writer(char kind) {
+            out.append(PREFIX).append(VERSION).append(kind);
+        }
+
+        Writer writeNull() {
+            out.append('-');
+            return this;
+        }
+
+        void writeObject() {
+            out.append('+');
+        }
+
+        void writeInt(int value) {
+            out.append(value).append(';');
+        }
+
+        /**
+         * Writes the size of a collection, or null.
+         *
+         * @return true if collection is not null, and so its elements
+         * must follow.
+         */
+        boolean writeSize(List<?> list) {
+            if (list == null) {
+                writeNull();
+                return false;
+            }
+            writeInt(list.size());
+            return true;
+        }
+
+        void writeMap(Map<String, String> map) {
+            if (map == null) {
+                writeNull();
+                return;
+            }
+            writeInt(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeNull();
+                return;
+            }
+            if (strings == null) {
+                strings = new HashMap<String, Integer>();
+            }
+            Integer index = strings.get(s);
+            // A reference is at least three characters long.
+            if (index != null && s.length() > 2) {
+                out.append('@').append(index.intValue()).append(';');
+                return;
+            }
+            // Reader numbers every string written out in full.
+            if (index == null) {
+                strings.put(s, stringCount);
+            }
+            stringCount++;
+            out.append(s.length()).append(':').append(s);
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+    private static class Reader {
+        private final String repr;
+        private final List<String> strings = new ArrayList<String>();
+        private int position;
+
+        Reader(String repr, char kind) {
+            this.repr = repr;
+            int headerLength = PREFIX.length() + 2;
+            if (repr.length() < headerLength) {
+                throw error("Truncated header");
+            }
+            int version = Character.digit(repr.charAt(PREFIX.length()), 10);
+            if (version != VERSION) {
+                throw error("Unsupported version " +
+                        repr.charAt(PREFIX.length()));
+            }
+            if (repr.charAt(PREFIX.length() + 1) != kind) {
+                throw error(String.format("Expected kind '%c' but found "
+                        + "'%c'", kind, repr.charAt(PREFIX.length() + 1)));
+            }
+            position = headerLength;
+        }
+
+        /**
+         * Reads the marker of an object.
+         *
+         * @return false if object is null.
+         */
+        boolean readObject() {
+            char c = next();
+            if (c == '-') {
+                return false;
+            }
+            if (c != '+') {
+                throw error("Expected '+' or '-' but found '" + c + "'");
+            }
+            return true;
+        }
+
+        int readInt() {
+            int end = repr.indexOf(';', position);
+            if (end == -1) {
+                throw error("Unterminated number");
+            }
+            try {
+                int value = Integer.parseInt(repr.substring(position, end));
+                position = end + 1;
+                return value;
+            }
+            catch (NumberFormatException ex) {
+                throw error("Invalid number");
+            }
+        }
+
+        /**
+         * Reads the size of a collection.
+         *
+         * @return size, or -1 if collection is null.
+         */
+        int readSize() {
+            if (peek() == '-') {
+                position++;
+                return -1;
+            }
+            int size = readInt();
+            // Each element takes at least a character.
+            if (size < 0 || size > repr.length() - position) {
+                throw error("Invalid size " + size);
+            }
+            return size;
+        }
+
+        Map<String, String> readMap() {
+            int size = readSize();
+            if (size == -1) {
+                return null;
+            }
+            Map<String, String> map = new LinkedHashMap<String, String>(
+                    size * 2);
+            for (int i = 0; i < size; i++) {
+                String key = readString();
+                map.put(key, readString());
+            }
+            return map;
+        }
+
+        String readString() {
+            char c = peek();
+            if (c == '-') {
+                position++;
+                return null;
+            }
+            if (c == '@') {
+                position++;
+                int index = readInt();
+                if (index < 0 || index >= strings.size()) {
+                    throw error("Invalid string reference " + index);
+                }
+                return strings.get(index);
+            }
+            int end = repr.indexOf(':', position);
+            if (end == -1) {
+                throw error("Unterminated string length");
+            }
+            int length;
+            try {
+                length = Integer.parseInt(repr.substring(position, end));
+            }
+            catch (NumberFormatException ex) {
+                throw error("Invalid string length");
+            }
+            if (length < 0 || length > repr.length() - end - 1) {
+                throw error("Invalid string length " + length);
+            }
+            position = end + 1 + length;
+            String s = repr.substring(end + 1, position);
+            strings.add(s);
+            return s;
+        }
+
+        <T> T end(T value) {
+            if (position != repr.length()) {
+                throw error("Unexpected characters after value");
+            }
+            return value;
+        }
+
+        private char peek() {
+            if (position >= repr.length()) {
+                throw error("Unexpected end of value");
+            }
+            return repr.charAt(position);
+        }
+
+        private char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        FrameworkException error(String message) {
+            return new FrameworkException(String.format("Invalid session "
+                    + "state at position %d: %s", position, message));
+        }
+
+        FrameworkException error(IllegalArgumentException cause) {
+            return new FrameworkException(String.format("Invalid session "
+                    + "state at position %d", position), cause);
+        }
+    }
+}
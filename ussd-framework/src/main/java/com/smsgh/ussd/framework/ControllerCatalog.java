@@ -0,0 +1,263 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Finds the controllers under a set of packages, and the routes to their
+ * actions, so that they can be checked and resolved before the first
+ * request arrives.
+ * <p>
+ * Controllers are found in the generated route tables, and by listing the
+ * class files under each package in the directories and jar files of a
+ * class loader; other kinds of class loader resources are not listed.
+ * Subpackages are included. Classes are loaded without being initialized.
+ * <p>
+ * Problems which would make requests fail are collected as errors, and
+ * suspicious methods which are not usable as actions as warnings.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class ControllerCatalog {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final List<Class<? extends UssdController>> controllers =
+            new ArrayList<Class<? extends UssdController>>();
+    private final List<String> routes = new ArrayList<String>();
+    private final List<String> errors = new ArrayList<String>();
+    private final List<String> warnings = new ArrayList<String>();
+
+    /**
+     * Finds and checks the controllers under some packages.
+     *
+     * @param controllerPackages packages to search. May be null, in which
+     * case no controllers are found.
+     * @param classLoader class loader to search, and load classes with.
+     * @param routeTables route tables to search.
+     *
+     * @exception java.lang.IllegalArgumentException if classLoader or
+     * routeTables is null.
+     */
+    ControllerCatalog(String[] controllerPackages, ClassLoader classLoader,
+            List<RouteTable> routeTables) {
+        if (classLoader == null) {
+            throw new IllegalArgumentException("\"classLoader\" argument "
+                    + "cannot be null");
+        }
+        if (routeTables == null) {
+            throw new IllegalArgumentException("\"routeTables\" argument "
+                    + "cannot be null");
+        }
+        if (controllerPackages == null) {
+            return;
+        }
+        Set<String> classNames = new TreeSet<String>();
+        for (String controllerPackage : controllerPackages) {
+            String prefix = controllerPackage + '.';
+            for (RouteTable routeTable : routeTables) {
+                for (String controllerName :
+                        routeTable.getControllerNames()) {
+                    if (controllerName.startsWith(prefix)) {
+                        classNames.add(controllerName);
+                    }
+                }
+            }
+            try {
+                listClasses(classLoader, controllerPackage, classNames);
+            }
+            catch (IOException ex) {
+                errors.add(String.format("Could not list classes of "
+                        + "package \"%s\": %s", controllerPackage, ex));
+            }
+        }
+        for (String className : classNames) {
+            Class<?> cls;
+            try {
+                cls = Class.forName(className, false, classLoader);
+            }
+            catch (ClassNotFoundException ex) {
+                continue;
+            }
+            catch (LinkageError ex) {
+                // Not loadable, so cannot be a controller which works.
+                continue;
+            }
+            if (UssdController.class.isAssignableFrom(cls)) {
+                check(cls.asSubclass(UssdController.class));
+            }
+        }
+    }
+
+    private static void listClasses(ClassLoader classLoader,
+            String packageName, Set<String> classNames) throws IOException {
+        String path = packageName.replace('.', '/');
+        Enumeration<URL> resources = classLoader.getResources(path);
+        while (resources.hasMoreElements()) {
+            URL url = resources.nextElement();
+            if (url.getProtocol().equals("file")) {
+                File dir;
+                try {
+                    dir = new File(url.toURI());
+                }
+                catch (URISyntaxException ex) {
+                    dir = new File(url.getPath());
+                }
+                listClasses(dir, packageName, classNames);
+            }
+            else if (url.getProtocol().equals("jar")) {
+                URLConnection connection = url.openConnection();
+                connection.setUseCaches(false);
+                JarFile jarFile = ((JarURLConnection)connection).getJarFile();
+                try {
+                    Enumeration<JarEntry> entries = jarFile.entries();
+                    while (entries.hasMoreElements()) {
+                        String name = entries.nextElement().getName();
+                        if (name.startsWith(path + '/') &&
+                                name.endsWith(CLASS_SUFFIX)) {
+                            addClassName(name.substring(0, name.length() -
+                                    CLASS_SUFFIX.length()).replace('/', '.'),
+                                    classNames);
+                        }
+                    }
+                }
+                finally {
+                    jarFile.close();
+                }
+            }
+        }
+    }
+
+    private static void listClasses(File dir, String packageName,
+            Set<String> classNames) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                listClasses(file, packageName + '.' + name, classNames);
+            }
+            else if (name.endsWith(CLASS_SUFFIX)) {
+                addClassName(packageName + '.' + name.substring(0,
+                        name.length() - CLASS_SUFFIX.length()), classNames);
+            }
+        }
+    }
+
+    private static void addClassName(String className,
+            Set<String> classNames) {
+        // Anonymous and local classes cannot be controllers.
+        int dollar = className.indexOf('$');
+        while (dollar != -1) {
+            if (dollar + 1 < className.length() &&
+                    Character.isDigit(className.charAt(dollar + 1))) {
+                return;
+            }
+            dollar = className.indexOf('$', dollar + 1);
+        }
+        classNames.add(className);
+    }
+
+    private void check(Class<? extends UssdController> cls) {
+        int modifiers = cls.getModifiers();
+        if (Modifier.isAbstract(modifiers) || cls.isInterface()) {
+            // Base classes of controllers are not used on their own.
+            return;
+        }
+        boolean creatable = Modifier.isPublic(modifiers) &&
+                (cls.getEnclosingClass() == null ||
+                        Modifier.isStatic(modifiers));
+        if (creatable) {
+            try {
+                creatable = Modifier.isPublic(
+                        cls.getConstructor().getModifiers());
+            }
+            catch (NoSuchMethodException ex) {
+                creatable = false;
+            }
+        }
+        if (!creatable) {
+            errors.add(String.format("Class \"%s\" cannot be created by "
+                    + "the framework. Is class a public class having a "
+                    + "public no-arg constructor?", cls.getName()));
+            return;
+        }
+        controllers.add(cls);
+
+        Set<String> actionNames = new TreeSet<String>();
+        for (Method method : cls.getMethods()) {
+            if (!UssdResponse.class.isAssignableFrom(
+                    method.getReturnType())) {
+                continue;
+            }
+            if (method.getParameterTypes().length == 0) {
+                actionNames.add(method.getName());
+            }
+            else if (method.getDeclaringClass() != UssdController.class) {
+                warnings.add(String.format("Method \"%s.%s\" returns "
+                        + "\"%s\" but takes arguments, so it cannot be "
+                        + "used as an action.", cls.getName(),
+                        method.getName(), UssdResponse.class.getName()));
+            }
+        }
+        for (String actionName : actionNames) {
+            routes.add(cls.getName() + '.' + actionName);
+        }
+    }
+
+    /**
+     * Gets the controllers found.
+     *
+     * @return concrete controller classes which the framework can create,
+     * sorted by name.
+     */
+    List<Class<? extends UssdController>> getControllers() {
+        return controllers;
+    }
+
+    /**
+     * Gets the routes to the actions of the controllers found.
+     *
+     * @return fully qualified routes to the public no-arg methods returning
+     * UssdResponse, including those inherited from UssdController.
+     */
+    List<String> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Gets the problems found which would make requests fail.
+     *
+     * @return error messages.
+     */
+    List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Gets the problems found which may be mistakes.
+     *
+     * @return warning messages.
+     */
+    List<String> getWarnings() {
+        return warnings;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.Map;
+
+/**
+ * Holds what a controller needs to handle one call: the request, the
+ * controller data, the data bag and the form data. Each ordinary
+ * controller has its own, whereas stateless controllers get a new one
+ * bound to the calling thread for each call.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class ControllerContext {
+    private UssdRequest request;
+    private Map<String, Object> controllerData;
+    private UssdDataBag dataBag;
+    private SessionStateCodec sessionStateCodec;
+    private MenuTemplateRegistry menuTemplateRegistry;
+    private Map<String, String> formData;
+    private boolean formDataLoaded;
+
+    /**
+     * Creates an empty context, to be filled in through its setters.
+     */
+    ControllerContext() {
+    }
+
+    /**
+     * Creates the context of a call.
+     *
+     * @param request request being handled.
+     * @param dataBag data bag of session.
+     * @param controllerData custom data from framework client.
+     */
+    ControllerContext(UssdRequest request, UssdDataBag dataBag,
+            Map<String, Object> controllerData) {
+        this.request = request;
+        this.dataBag = dataBag;
+        this.controllerData = controllerData;
+    }
+
+    UssdRequest getRequest() {
+        return request;
+    }
+
+    void setRequest(UssdRequest request) {
+        this.request = request;
+    }
+
+    Map<String, Object> getControllerData() {
+        return controllerData;
+    }
+
+    void setControllerData(Map<String, Object> controllerData) {
+        this.controllerData = controllerData;
+    }
+
+    UssdDataBag getDataBag() {
+        return dataBag;
+    }
+
+    void setDataBag(UssdDataBag dataBag) {
+        this.dataBag = dataBag;
+    }
+
+    /**
+     * Gets the codec for the menus, forms and form data in the data bag.
+     *
+     * @return session state codec; the default one if none was set.
+     */
+    SessionStateCodec getSessionStateCodec() {
+        return sessionStateCodec != null ? sessionStateCodec :
+                Ussd.getDefaultSessionStateCodec();
+    }
+
+    void setSessionStateCodec(SessionStateCodec sessionStateCodec) {
+        this.sessionStateCodec = sessionStateCodec;
+    }
+
+    /**
+     * Gets the registry of the menu templates rendered by id.
+     *
+     * @return menu template registry; the default one if none was set.
+     */
+    MenuTemplateRegistry getMenuTemplateRegistry() {
+        return menuTemplateRegistry != null ? menuTemplateRegistry :
+                Ussd.getDefaultMenuTemplateRegistry();
+    }
+
+    void setMenuTemplateRegistry(MenuTemplateRegistry menuTemplateRegistry) {
+        this.menuTemplateRegistry = menuTemplateRegistry;
+    }
+
+    /**
+     * Gets the form data of the session, unmarshalling it from the data
+     * bag on first use.
+     *
+     * @return form data, or null if there is none.
+     *
+     * @exception FrameworkException if form data cannot be unmarshalled.
+     */
+    Map<String, String> getFormData() {
+        if (!formDataLoaded && dataBag != null) {
+            loadFormData();
+        }
+        return formData;
+    }
+
+    /**
+     * Unmarshalls the form data of the session from the data bag.
+     *
+     * @exception FrameworkException if form data cannot be unmarshalled.
+     */
+    void loadFormData() {
+        // Retrieve any form data existing from previous ussd screens,
+        // for use by current route
+        String repr = dataBag.get(UssdController.FORM_DATA_KEY);
+        try {
+            formData = getSessionStateCodec().decodeMap(repr);
+        }
+        catch (RuntimeException ex) {
+            throw new FrameworkException("An error occured while getting "
+                    + "form data.", ex);
+        }
+        formDataLoaded = true;
+    }
+}
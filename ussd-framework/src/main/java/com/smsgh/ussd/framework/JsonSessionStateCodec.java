@@ -0,0 +1,88 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+/**
+ * Session state codec writing the JSON which the framework has always
+ * kept in the data bag, for deployments which must stay readable by
+ * earlier framework versions. Reads what {@link CompactSessionStateCodec}
+ * writes as well.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class JsonSessionStateCodec implements SessionStateCodec {
+
+    // Gson instances are thread-safe, and costly to create.
+    private static final Gson GSON = new Gson();
+    private static final Type MAP_TYPE =
+            new TypeToken<Map<String, String>>(){}.getType();
+
+    /**
+     * Creates a new instance.
+     */
+    public JsonSessionStateCodec() {
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String encodeMenu(UssdMenu menu) {
+        return GSON.toJson(menu);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public UssdMenu decodeMenu(String repr) {
+        if (CompactSessionStateCodec.isCompact(repr)) {
+            return CompactSessionStateCodec.decodeCompactMenu(repr);
+        }
+        return GSON.fromJson(repr, UssdMenu.class);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String encodeForm(UssdForm form) {
+        return GSON.toJson(form);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public UssdForm decodeForm(String repr) {
+        if (CompactSessionStateCodec.isCompact(repr)) {
+            return CompactSessionStateCodec.decodeCompactForm(repr);
+        }
+        return GSON.fromJson(repr, UssdForm.class);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String encodeMap(Map<String, String> map) {
+        return GSON.toJson(map);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public Map<String, String> decodeMap(String repr) {
+        if (CompactSessionStateCodec.isCompact(repr)) {
+            return CompactSessionStateCodec.decodeCompactMap(repr);
+        }
+        return GSON.fromJson(repr, MAP_TYPE);
+    }
+}
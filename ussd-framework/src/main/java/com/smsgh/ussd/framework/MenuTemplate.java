@@ -0,0 +1,411 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable menu, compiled once from a {@link UssdMenu} and addressed
+ * by an id, so that rendering it only keeps its id and parameters in the
+ * data bag rather than the whole menu. Registered with a
+ * {@link MenuTemplateRegistry}, and rendered with
+ * {@link UssdController#renderMenuTemplate(String, Map)}.
+ * <p>
+ * The header, footer, message and item displays of the menu may contain
+ * parameters of the form {name}, where name is made of letters, digits
+ * and underscores. They are replaced with the values passed when the
+ * template is rendered. Other braces are kept as they are.
+ * <p>
+ * The choices of a template are looked up in a map of its item indices,
+ * ignoring case as {@link UssdController#menuProcessor()} does for
+ * menus.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public final class MenuTemplate {
+
+    /**
+     * The character which starts the references to templates kept in
+     * the data bag, and which cannot appear in template ids.
+     */
+    static final char REFERENCE_PREFIX = '&';
+
+    private final String id;
+    private final Text header;
+    private final Text footer;
+    private final Text message;
+    private final List<UssdMenuItem> items;
+    private final List<Text> displays;
+    private final Map<String, UssdMenuItem> itemsByChoice;
+    private final Set<String> parameterNames;
+    // Message of a template without parameters, rendered once.
+    private final String staticMessage;
+
+    /**
+     * Compiles a menu into a template.
+     *
+     * @param id id of template.
+     * @param menu menu to compile. Later changes to it do not affect the
+     * template.
+     *
+     * @exception java.lang.IllegalArgumentException if id or menu is
+     * null, id is empty or contains '&amp;', menu has a null item, or two
+     * items of menu have indices differing only in case.
+     */
+    public MenuTemplate(String id, UssdMenu menu) {
+        if (id == null) {
+            throw new IllegalArgumentException("\"id\" argument cannot "
+                    + "be null");
+        }
+        if (id.length() == 0 || id.indexOf(REFERENCE_PREFIX) != -1) {
+            throw new IllegalArgumentException("\"id\" argument must be "
+                    + "non-empty and cannot contain '" + REFERENCE_PREFIX +
+                    "'. Received " + id);
+        }
+        if (menu == null) {
+            throw new IllegalArgumentException("\"menu\" argument cannot "
+                    + "be null");
+        }
+        this.id = id;
+        Set<String> names = new LinkedHashSet<String>();
+        header = Text.compile(menu.getHeader(), names);
+        footer = Text.compile(menu.getFooter(), names);
+        message = Text.compile(menu.getMessage(), names);
+        List<UssdMenuItem> itemList = new ArrayList<UssdMenuItem>();
+        List<Text> displayList = new ArrayList<Text>();
+        Map<String, UssdMenuItem> choices =
+                new HashMap<String, UssdMenuItem>();
+        for (int i = 0; i < menu.getItems().size(); i++) {
+            UssdMenuItem item = menu.getItems().get(i);
+            if (item == null) {
+                throw new IllegalArgumentException("\"menu\" argument has "
+                        + "a null item at index " + i);
+            }
+            UssdMenuItem copy = new UssdMenuItem(item.getIndex(),
+                    item.getDisplay(), item.getAction(),
+                    item.getController());
+            if (choices.put(choiceKey(copy.getIndex()), copy) != null) {
+                throw new IllegalArgumentException("\"menu\" argument has "
+                        + "more than one item with index " + copy.getIndex());
+            }
+            itemList.add(copy);
+            displayList.add(Text.compile(copy.getDisplay(), names));
+        }
+        items = Collections.unmodifiableList(itemList);
+        displays = displayList;
+        itemsByChoice = choices;
+        parameterNames = Collections.unmodifiableSet(names);
+        staticMessage = names.isEmpty() ? render(null) : null;
+    }
+
+    /**
+     * Gets the key under which a choice is looked up. Choices whose keys
+     * are equal are equal ignoring case, as by
+     * {@link String#equalsIgnoreCase(String)}.
+     */
+    private static String choiceKey(String choice) {
+        StringBuilder key = null;
+        for (int i = 0; i < choice.length(); i++) {
+            char c = choice.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(c));
+            if (key == null && folded != c) {
+                key = new StringBuilder(choice.length());
+                key.append(choice, 0, i);
+            }
+            if (key != null) {
+                key.append(folded);
+            }
+        }
+        return key != null ? key.toString() : choice;
+    }
+
+    /**
+     * Gets the id of the template.
+     *
+     * @return template id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the names of the parameters of the template.
+     *
+     * @return parameter names, in the order they first appear.
+     */
+    public Set<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Finds the item of a choice.
+     *
+     * @param choice choice of app user. May be null.
+     *
+     * @return copy of item whose index equals choice ignoring case, or
+     * null if there is none.
+     */
+    public UssdMenuItem findItem(String choice) {
+        if (choice == null) {
+            return null;
+        }
+        UssdMenuItem item = itemsByChoice.get(choiceKey(choice));
+        if (item == null) {
+            return null;
+        }
+        return new UssdMenuItem(item.getIndex(), item.getDisplay(),
+                item.getAction(), item.getController());
+    }
+
+    /**
+     * Generates the ussd response message of the template, as
+     * {@link UssdMenu#render()} would for the menu with its parameters
+     * replaced.
+     *
+     * @param parameters values of parameters. May be null if template
+     * has no parameters. Values of other names are ignored.
+     *
+     * @return ussd response message.
+     *
+     * @exception java.lang.IllegalArgumentException if a parameter of
+     * the template has no value.
+     */
+    public String render(Map<String, String> parameters) {
+        if (staticMessage != null) {
+            return staticMessage;
+        }
+        if (message != null) {
+            return message.render(parameters, this);
+        }
+        StringBuilder messageBuilder = new StringBuilder();
+        if (header != null) {
+            header.appendTo(messageBuilder, parameters, this);
+            messageBuilder.append('\n');
+        }
+        for (int i = 0; i < items.size(); i++) {
+            messageBuilder.append(items.get(i).getIndex());
+            messageBuilder.append(". ");
+            displays.get(i).appendTo(messageBuilder, parameters, this);
+            messageBuilder.append('\n');
+        }
+        if (footer != null) {
+            footer.appendTo(messageBuilder, parameters, this);
+        }
+        return messageBuilder.toString();
+    }
+
+    /**
+     * Creates the menu of the template with its parameters replaced.
+     * Rendering the menu with {@link UssdController#renderMenu(UssdMenu)}
+     * keeps a reference to the template, as long as the menu is not
+     * changed.
+     *
+     * @param parameters values of parameters. May be null if template
+     * has no parameters. Values of other names are ignored.
+     *
+     * @return new menu.
+     *
+     * @exception java.lang.IllegalArgumentException if a parameter of
+     * the template has no value.
+     */
+    public UssdMenu toMenu(Map<String, String> parameters) {
+        UssdMenu menu = new UssdMenu();
+        if (header != null) {
+            menu.header(header.render(parameters, this));
+        }
+        if (footer != null) {
+            menu.footer(footer.render(parameters, this));
+        }
+        if (message != null) {
+            menu.message(message.render(parameters, this));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            UssdMenuItem item = items.get(i);
+            menu.addItem(new UssdMenuItem(item.getIndex(),
+                    displays.get(i).render(parameters, this),
+                    item.getAction(), item.getController()));
+        }
+        menu.template = this;
+        menu.templateParameters = getParameters(parameters);
+        return menu;
+    }
+
+    /**
+     * Gets the values of the parameters of the template, which are kept
+     * in the data bag.
+     *
+     * @param parameters values of parameters, and maybe of other names.
+     * May be null.
+     *
+     * @return values of the parameters of the template only, or null if
+     * template has no parameters.
+     *
+     * @exception java.lang.IllegalArgumentException if a parameter of
+     * the template has no value.
+     */
+    Map<String, String> getParameters(Map<String, String> parameters) {
+        if (parameterNames.isEmpty()) {
+            return null;
+        }
+        Map<String, String> used = new LinkedHashMap<String, String>(
+                parameterNames.size() * 2);
+        for (String name : parameterNames) {
+            used.put(name, getParameter(parameters, name));
+        }
+        return used;
+    }
+
+    private String getParameter(Map<String, String> parameters,
+            String name) {
+        String value = parameters != null ? parameters.get(name) : null;
+        if (value == null) {
+            throw new IllegalArgumentException(String.format("No value "
+                    + "given for parameter \"%s\" of menu template \"%s\"",
+                    name, id));
+        }
+        return value;
+    }
+
+    /**
+     * Determines whether the template was compiled from a menu equal to
+     * some menu.
+     *
+     * @param menu menu to compare with.
+     *
+     * @return true if menu has the same header, footer, message and
+     * items as that of the template.
+     */
+    boolean matches(UssdMenu menu) {
+        if (!Text.isSource(header, menu.getHeader()) ||
+                !Text.isSource(footer, menu.getFooter()) ||
+                !Text.isSource(message, menu.getMessage()) ||
+                items.size() != menu.getItems().size()) {
+            return false;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            UssdMenuItem item = items.get(i);
+            UssdMenuItem other = menu.getItems().get(i);
+            if (other == null || !item.getIndex().equals(other.getIndex()) ||
+                    !Text.isSource(displays.get(i), other.getDisplay()) ||
+                    !item.getAction().equals(other.getAction()) ||
+                    (item.getController() == null ?
+                            other.getController() != null :
+                            !item.getController().equals(
+                                    other.getController()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "MenuTemplate{" + "id=" + id + ", parameterNames=" +
+                parameterNames + ", items=" + items + '}';
+    }
+
+    /**
+     * A text split into literal parts and parameters.
+     */
+    private static class Text {
+        private final String[] literals;
+        // Name of the parameter following each literal; null after the
+        // last one.
+        private final String[] names;
+
+        private Text(String[] literals, String[] names) {
+            this.literals = literals;
+            this.names = names;
+        }
+
+        static Text compile(String text, Set<String> parameterNames) {
+            if (text == null) {
+                return null;
+            }
+            List<String> literals = new ArrayList<String>();
+            List<String> names = new ArrayList<String>();
+            int start = 0;
+            int open = text.indexOf('{');
+            while (open != -1) {
+                int close = open + 1;
+                while (close < text.length() &&
+                        isNameChar(text.charAt(close))) {
+                    close++;
+                }
+                if (close > open + 1 && close < text.length() &&
+                        text.charAt(close) == '}') {
+                    String name = text.substring(open + 1, close);
+                    literals.add(text.substring(start, open));
+                    names.add(name);
+                    parameterNames.add(name);
+                    start = close + 1;
+                    open = text.indexOf('{', start);
+                }
+                else {
+                    open = text.indexOf('{', open + 1);
+                }
+            }
+            literals.add(text.substring(start));
+            names.add(null);
+            return new Text(literals.toArray(new String[literals.size()]),
+                    names.toArray(new String[names.size()]));
+        }
+
+        static boolean isSource(Text text, String source) {
+            if (text == null) {
+                return source == null;
+            }
+            return text.toString().equals(source);
+        }
+
+        private static boolean isNameChar(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                    (c >= '0' && c <= '9') || c == '_';
+        }
+
+        String render(Map<String, String> parameters, MenuTemplate owner) {
+            if (literals.length == 1) {
+                return literals[0];
+            }
+            StringBuilder builder = new StringBuilder();
+            appendTo(builder, parameters, owner);
+            return builder.toString();
+        }
+
+        void appendTo(StringBuilder builder, Map<String, String> parameters,
+                MenuTemplate owner) {
+            for (int i = 0; i < literals.length; i++) {
+                builder.append(literals[i]);
+                if (names[i] != null) {
+                    builder.append(owner.getParameter(parameters, names[i]));
+                }
+            }
+        }
+
+        /**
+         * Gets the text as it was before compilation.
+         */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < literals.length; i++) {
+                builder.append(literals[i]);
+                if (names[i] != null) {
+                    builder.append('{').append(names[i]).append('}');
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
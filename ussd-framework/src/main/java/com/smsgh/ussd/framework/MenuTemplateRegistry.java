@@ -0,0 +1,109 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the {@link MenuTemplate} instances which controllers render by
+ * id. Set with {@link Ussd#menuTemplateRegistry(MenuTemplateRegistry)};
+ * by default all Ussd instances share
+ * {@link Ussd#getDefaultMenuTemplateRegistry()}.
+ * <p>
+ * Templates are typically registered once, e.g. in static initializers of
+ * controllers or when the application starts. Registering an equal menu
+ * under the same id again returns the template already registered, so
+ * registering in controller constructors is also safe. Since sessions
+ * only keep template ids, every node of a deployment must register the
+ * same templates.
+ * <p>
+ * Safe for use by multiple threads at once.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MenuTemplateRegistry {
+
+    private final ConcurrentMap<String, MenuTemplate> templates =
+            new ConcurrentHashMap<String, MenuTemplate>();
+
+    /**
+     * Creates an empty registry.
+     */
+    public MenuTemplateRegistry() {
+    }
+
+    /**
+     * Compiles a menu into a template and registers it.
+     *
+     * @param id id of template.
+     * @param menu menu to compile. Later changes to it do not affect the
+     * template.
+     *
+     * @return registered template.
+     *
+     * @exception java.lang.IllegalArgumentException if menu cannot be
+     * compiled, or a different menu is registered under id.
+     *
+     * @see MenuTemplate#MenuTemplate(String, UssdMenu)
+     */
+    public MenuTemplate register(String id, UssdMenu menu) {
+        if (id != null && menu != null) {
+            MenuTemplate existing = templates.get(id);
+            if (existing != null && existing.matches(menu)) {
+                return existing;
+            }
+        }
+        return register(new MenuTemplate(id, menu), menu);
+    }
+
+    private MenuTemplate register(MenuTemplate template, UssdMenu menu) {
+        MenuTemplate existing = templates.putIfAbsent(template.getId(),
+                template);
+        if (existing == null) {
+            return template;
+        }
+        if (existing.matches(menu)) {
+            return existing;
+        }
+        throw new IllegalArgumentException(String.format("A different "
+                + "menu is already registered as menu template \"%s\"",
+                template.getId()));
+    }
+
+    /**
+     * Gets a registered template.
+     *
+     * @param id id of template.
+     *
+     * @return template, or null if none is registered under id.
+     */
+    public MenuTemplate get(String id) {
+        if (id == null) {
+            return null;
+        }
+        return templates.get(id);
+    }
+
+    /**
+     * Removes a template. Sessions showing the template fail when they
+     * next reach the framework.
+     *
+     * @param id id of template.
+     *
+     * @return true if a template was registered under id.
+     */
+    public boolean unregister(String id) {
+        return id != null && templates.remove(id) != null;
+    }
+
+    /**
+     * Gets the number of templates registered.
+     *
+     * @return template count.
+     */
+    public int size() {
+        return templates.size();
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe cache of routes resolved to their controller class, action
+ * method and {@link ActionDispatcher}, so that the class loading and
+ * reflection needed to resolve a route happen only on its first use.
+ * Routes which cannot be resolved are cached as well, together with the
+ * message of the error they cause, so that a bad route does not cost a
+ * round of failed class loads on every request.
+ * <p>
+ * Controllers listed in a generated {@link RouteTable} are looked up in it
+ * before any class loading is attempted, and their actions are dispatched
+ * without reflection. A controller found in a route table is used even if
+ * a class whose name is tried earlier exists outside route tables.
+ * <p>
+ * Routes are cached per combination of route and controller packages. The
+ * cache holds at most a fixed number of routes; beyond that an arbitrary
+ * route is dropped for each new one.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class RouteCache {
+
+    /**
+     * The number of routes held by the cache used by the framework.
+     */
+    static final int DEFAULT_MAX_ROUTES = 1024;
+
+    private static final RouteCache INSTANCE = new RouteCache(
+            DEFAULT_MAX_ROUTES, loadRouteTables(
+                    RouteCache.class.getClassLoader()));
+
+    private final ConcurrentMap<Key, Route> routes =
+            new ConcurrentHashMap<Key, Route>();
+    private final ConcurrentMap<CatalogKey, ControllerCatalog> catalogs =
+            new ConcurrentHashMap<CatalogKey, ControllerCatalog>();
+    private final ConcurrentMap<Class<? extends UssdController>,
+            UssdController> sharedControllers = new ConcurrentHashMap<
+                    Class<? extends UssdController>, UssdController>();
+    private final int maxRoutes;
+    private final List<RouteTable> routeTables;
+
+    /**
+     * Creates a new route cache which resolves all routes through
+     * reflection.
+     *
+     * @param maxRoutes the maximum number of routes to hold.
+     *
+     * @exception java.lang.IllegalArgumentException if maxRoutes is not
+     * positive.
+     */
+    RouteCache(int maxRoutes) {
+        this(maxRoutes, Collections.<RouteTable>emptyList());
+    }
+
+    /**
+     * Creates a new route cache which looks up controllers in the given
+     * route tables first.
+     *
+     * @param maxRoutes the maximum number of routes to hold.
+     * @param routeTables route tables, in the order they are consulted.
+     *
+     * @exception java.lang.IllegalArgumentException if maxRoutes is not
+     * positive, or if routeTables is null.
+     */
+    RouteCache(int maxRoutes, List<RouteTable> routeTables) {
+        if (maxRoutes <= 0) {
+            throw new IllegalArgumentException("\"maxRoutes\" argument "
+                    + "must be positive. Received " + maxRoutes);
+        }
+        if (routeTables == null) {
+            throw new IllegalArgumentException("\"routeTables\" argument "
+                    + "cannot be null");
+        }
+        this.maxRoutes = maxRoutes;
+        this.routeTables = new ArrayList<RouteTable>(routeTables);
+    }
+
+    /**
+     * Loads the route tables registered as services with a class loader.
+     *
+     * @param classLoader class loader to search for
+     * META-INF/services/com.smsgh.ussd.framework.RouteTable resources.
+     *
+     * @return route tables found, which may be none.
+     */
+    static List<RouteTable> loadRouteTables(ClassLoader classLoader) {
+        List<RouteTable> routeTables = new ArrayList<RouteTable>();
+        for (RouteTable routeTable : ServiceLoader.load(RouteTable.class,
+                classLoader)) {
+            routeTables.add(routeTable);
+        }
+        return routeTables;
+    }
+
+    /**
+     * Gets the route cache shared by all Ussd instances. It uses the route
+     * tables registered with the class loader of the framework.
+     *
+     * @return route cache singleton.
+     */
+    static RouteCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the route tables consulted by the cache.
+     *
+     * @return route tables, in the order they are consulted.
+     */
+    List<RouteTable> getRouteTables() {
+        return Collections.unmodifiableList(routeTables);
+    }
+
+    /**
+     * Identifies a route together with the packages used to qualify its
+     * controller name.
+     */
+    private static final class Key {
+        private final String route;
+        private final String[] controllerPackages;
+        private final int hash;
+
+        Key(String route, String[] controllerPackages) {
+            this.route = route;
+            this.controllerPackages = controllerPackages;
+            this.hash = route.hashCode() * 31 +
+                    Arrays.hashCode(controllerPackages);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)obj;
+            return hash == other.hash && route.equals(other.route) &&
+                    Arrays.equals(controllerPackages,
+                            other.controllerPackages);
+        }
+    }
+
+    /**
+     * Identifies a controller catalog by the packages it searches and the
+     * class loader it searches them with.
+     */
+    private static final class CatalogKey {
+        private final String[] controllerPackages;
+        private final ClassLoader classLoader;
+        private final int hash;
+
+        CatalogKey(String[] controllerPackages, ClassLoader classLoader) {
+            this.controllerPackages = controllerPackages != null ?
+                    controllerPackages.clone() : null;
+            this.classLoader = classLoader;
+            this.hash = Arrays.hashCode(controllerPackages) * 31 +
+                    System.identityHashCode(classLoader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CatalogKey)) {
+                return false;
+            }
+            CatalogKey other = (CatalogKey)obj;
+            return hash == other.hash && classLoader == other.classLoader &&
+                    Arrays.equals(controllerPackages,
+                            other.controllerPackages);
+        }
+    }
+
+    /**
+     * The outcome of resolving a route: either its controller class,
+     * action name and dispatcher, or the error resolving it causes.
+     */
+    static final class Route {
+        private final String actionName;
+        private final Method action;
+        private final ActionDispatcher dispatcher;
+        private final String errorMessage;
+        private final boolean frameworkError;
+
+        private Route(Class<? extends UssdController> controllerClass,
+                String actionName, Method action) {
+            this(actionName, action, new ActionInvoker(controllerClass,
+                    action));
+        }
+
+        private Route(String actionName, Method action,
+                ActionDispatcher dispatcher) {
+            this.actionName = actionName;
+            this.action = action;
+            this.dispatcher = dispatcher;
+            this.errorMessage = null;
+            this.frameworkError = false;
+        }
+
+        private Route(String errorMessage, boolean frameworkError) {
+            this.actionName = null;
+            this.action = null;
+            this.dispatcher = null;
+            this.errorMessage = errorMessage;
+            this.frameworkError = frameworkError;
+        }
+
+        /**
+         * Throws the error which resolving the route caused, if any.
+         * A new exception is thrown each time, so that its stack trace
+         * shows the request which used the route.
+         */
+        void check() {
+            if (errorMessage == null) {
+                return;
+            }
+            if (frameworkError) {
+                throw new FrameworkException(errorMessage);
+            }
+            throw new RuntimeException(errorMessage);
+        }
+
+        Class<? extends UssdController> getControllerClass() {
+            return dispatcher != null ? dispatcher.getControllerClass() :
+                    null;
+        }
+
+        String getActionName() {
+            return actionName;
+        }
+
+        /**
+         * Gets the action method, which is only looked up for routes
+         * resolved through reflection.
+         *
+         * @return action method, or null if route was resolved from a
+         * route table.
+         */
+        Method getAction() {
+            return action;
+        }
+
+        ActionDispatcher getDispatcher() {
+            return dispatcher;
+        }
+
+        /**
+         * Tells whether the controller of the route serves all requests
+         * from one instance.
+         *
+         * @return true if controller implements
+         * {@link StatelessUssdController}.
+         */
+        boolean isStateless() {
+            return dispatcher != null && StatelessUssdController.class
+                    .isAssignableFrom(dispatcher.getControllerClass());
+        }
+    }
+
+    /**
+     * Resolves a route, from the cache if it has been resolved before.
+     *
+     * @param route route to resolve, in the form "SomeController.action".
+     * @param controllerPackages packages for qualifying controller name.
+     * May be null.
+     *
+     * @return resolved route, whose {@link Route#check()} method must be
+     * called before it is used.
+     */
+    Route resolve(String route, String[] controllerPackages) {
+        Key key = new Key(route, controllerPackages);
+        Route resolved = routes.get(key);
+        if (resolved == null) {
+            // Copy packages so that later changes to the caller's array
+            // cannot corrupt the key.
+            if (controllerPackages != null) {
+                key = new Key(route, controllerPackages.clone());
+            }
+            resolved = load(route, controllerPackages);
+            if (routes.size() >= maxRoutes) {
+                Iterator<Key> it = routes.keySet().iterator();
+                if (it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            routes.put(key, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Gets the number of routes in the cache.
+     *
+     * @return cached route count.
+     */
+    int size() {
+        return routes.size();
+    }
+
+    /**
+     * Gets the instance of a stateless controller which is shared by all
+     * requests, creating it on first use.
+     *
+     * @param dispatcher dispatcher of a route whose
+     * {@link Route#isStateless()} method returns true.
+     *
+     * @return shared controller instance.
+     */
+    UssdController getSharedController(ActionDispatcher dispatcher) {
+        Class<? extends UssdController> controllerClass =
+                dispatcher.getControllerClass();
+        UssdController controller = sharedControllers.get(controllerClass);
+        if (controller == null) {
+            // Racing threads may each create an instance, but only one
+            // is ever used.
+            controller = dispatcher.newController();
+            UssdController existing = sharedControllers.putIfAbsent(
+                    controllerClass, controller);
+            if (existing != null) {
+                controller = existing;
+            }
+        }
+        return controller;
+    }
+
+    /**
+     * Gets the catalog of the controllers under some packages, finding
+     * them on first use only, since that takes a scan of the class path.
+     *
+     * @param controllerPackages packages to search. May be null.
+     * @param classLoader class loader to search, and load classes with.
+     *
+     * @return cached controller catalog.
+     *
+     * @exception java.lang.IllegalArgumentException if classLoader is
+     * null.
+     */
+    ControllerCatalog getCatalog(String[] controllerPackages,
+            ClassLoader classLoader) {
+        if (classLoader == null) {
+            throw new IllegalArgumentException("\"classLoader\" argument "
+                    + "cannot be null");
+        }
+        CatalogKey key = new CatalogKey(controllerPackages, classLoader);
+        ControllerCatalog catalog = catalogs.get(key);
+        if (catalog == null) {
+            // Racing threads may each scan, but only one catalog is kept.
+            catalog = new ControllerCatalog(controllerPackages, classLoader,
+                    routeTables);
+            ControllerCatalog existing = catalogs.putIfAbsent(key, catalog);
+            if (existing != null) {
+                catalog = existing;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Removes all routes, controller catalogs and shared controllers from
+     * the cache.
+     */
+    void clear() {
+        routes.clear();
+        catalogs.clear();
+        sharedControllers.clear();
+    }
+
+    private Route load(String route, String[] controllerPackages) {
+        // Split route up to get the controller and action.
+        int periodIndex = route.lastIndexOf('.');
+        if (periodIndex == -1) {
+            return new Route("Invalid route format. "
+                    + "Must be \"SomeController.action\"." +
+                "Current route is: " + route, true);
+        }
+        String controllerName = route.substring(0, periodIndex);
+        String actionName = route.substring(periodIndex+1);
+
+        // Controllers in route tables need no probing of the classpath,
+        // and their actions no reflection.
+        List<String> candidates = candidateNamesOf(controllerName,
+                controllerPackages);
+        Route tableRoute = loadFromRouteTables(candidates, actionName);
+        if (tableRoute != null) {
+            return tableRoute;
+        }
+
+        // Try loading class using only given controller's name first. If
+        // class is not found, then it may be because it has not been
+        // qualified with its package, so use given controller packages,
+        // with and without the "Controller" suffix, to attempt class
+        // loading again.
+        Class<?> controllerClass = null;
+        for (String candidate : candidates) {
+            try {
+                controllerClass = Class.forName(candidate);
+                break;
+            }
+            catch (ClassNotFoundException ex) { }
+        }
+
+        // If controller class wasn't found, fail with details of
+        // classes we tried loading.
+        if (controllerClass == null) {
+            StringBuilder attemptedClasses = new StringBuilder();
+            for (String candidate : candidates) {
+                attemptedClasses.append(attemptedClasses.length() == 0 ?
+                        " " : ", ");
+                attemptedClasses.append(candidate);
+            }
+            return new Route(String.format(
+                    "Class \"%s\" could not be found. Tried to load "
+                            + "the following classes: %s",
+                    controllerName, attemptedClasses), false);
+        }
+        return loadAction(controllerClass, actionName);
+    }
+
+    /**
+     * Resolves a route from the first candidate controller name which is
+     * in a route table.
+     *
+     * @return resolved route, or null if no candidate is in a route table.
+     */
+    private Route loadFromRouteTables(List<String> candidates,
+            String actionName) {
+        for (String candidate : candidates) {
+            for (RouteTable routeTable : routeTables) {
+                Map<String, ActionDispatcher> actions =
+                        routeTable.getActions(candidate);
+                if (actions == null) {
+                    continue;
+                }
+                ActionDispatcher dispatcher = actions.get(actionName);
+                if (dispatcher != null) {
+                    return new Route(actionName, null, dispatcher);
+                }
+
+                // Not an action known at build time, e.g. one which does
+                // not return UssdResponse. Leave it to reflection.
+                try {
+                    return loadAction(Class.forName(candidate), actionName);
+                }
+                catch (ClassNotFoundException ex) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Route loadAction(Class<?> candidateClass,
+            String actionName) {
+        // Check that controller class subclasses UssdController.
+        if (!UssdController.class.isAssignableFrom(candidateClass)) {
+            return new Route(String.format("Class \"%s\" does not "
+                    + "subclass \"%s\"", candidateClass,
+                    UssdController.class.getName()), false);
+        }
+        Class<? extends UssdController> controllerClass =
+                candidateClass.asSubclass(UssdController.class);
+
+        // Get action method.
+        Method action;
+        try {
+            action = controllerClass.getMethod(actionName);
+        }
+        catch (NoSuchMethodException ex) {
+            return new Route(String.format(
+                    "Class \"%s\" does not have a public no-arg action "
+                            + "named \"%s\".",
+                    controllerClass.getName(), actionName), false);
+        }
+        return new Route(controllerClass, actionName, action);
+    }
+
+    /**
+     * Gets the class names tried for a controller name, in the order they
+     * are tried: the name itself, followed by the name qualified with each
+     * controller package, with and without a "Controller" suffix.
+     */
+    static List<String> candidateNamesOf(String controllerName,
+            String[] controllerPackages) {
+        List<String> candidates = new ArrayList<String>();
+        candidates.add(controllerName);
+        if (controllerPackages != null) {
+            for (String controllerPackage : controllerPackages) {
+                String fullControllerName = controllerPackage + '.' +
+                        controllerName;
+                candidates.add(fullControllerName);
+                if (!fullControllerName.endsWith("Controller")) {
+                    candidates.add(fullControllerName + "Controller");
+                }
+            }
+        }
+        return candidates;
+    }
+}
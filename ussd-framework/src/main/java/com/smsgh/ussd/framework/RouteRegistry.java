@@ -0,0 +1,235 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns routes as compact ids, which are kept in the session store and
+ * ClientState in place of the routes themselves. Enabled with
+ * {@link Ussd#routeRegistry(RouteRegistry)}.
+ * <p>
+ * The id of a route is derived from the route alone, so that every node
+ * of a deployment gives it the same id without any coordination, and an
+ * id written by one node can be read by another. Ussd registers the
+ * routes to all actions of the controllers under its controller packages
+ * when it warms up or processes its first request; other routes, and
+ * routes whose ids collide, are kept in full as before. A route naming
+ * its controller with a partial name is stored under the id of the
+ * route it resolves to.
+ * <p>
+ * Ids which are not registered, e.g. because they were written by a
+ * deployment with different controllers, are read as if the session did
+ * not exist. Routes kept in full remain readable whether or not a
+ * registry is used, so a registry can be added to a running deployment
+ * once all its nodes have a framework version which reads ids.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class RouteRegistry {
+
+    /**
+     * The character which starts route ids, and which cannot start a
+     * route.
+     */
+    public static final char ID_PREFIX = '#';
+
+    private final ConcurrentMap<String, String> routesById =
+            new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> idsByRoute =
+            new ConcurrentHashMap<String, String>();
+    private final Set<String> collidedIds = new HashSet<String>();
+    // Catalogs whose routes have been registered.
+    private final Set<ControllerCatalog> loadedCatalogs =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<ControllerCatalog, Boolean>());
+
+    /**
+     * Creates an empty registry.
+     */
+    public RouteRegistry() {
+    }
+
+    /**
+     * Determines whether a value kept for a next route is a route id.
+     *
+     * @param storedRoute value kept in session store or ClientState.
+     *
+     * @return true if value is a route id; false if it is a route.
+     */
+    public static boolean isId(String storedRoute) {
+        return storedRoute != null && storedRoute.length() > 0 &&
+                storedRoute.charAt(0) == ID_PREFIX;
+    }
+
+    /**
+     * Gets the id a route would have, whether or not it is registered.
+     *
+     * @param route fully qualified route.
+     *
+     * @return route id.
+     */
+    static String idOf(String route) {
+        // 32-bit FNV-1a, which is spread better than String.hashCode()
+        // over routes differing only in a few characters.
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < route.length(); i++) {
+            hash ^= route.charAt(i);
+            hash *= 0x01000193;
+        }
+        return ID_PREFIX + Long.toString(hash & 0xffffffffL,
+                Character.MAX_RADIX);
+    }
+
+    /**
+     * Registers a route, so that it is kept as an id. A route whose id
+     * is that of another registered route is kept in full, as is that
+     * other route from then on.
+     *
+     * @param route fully qualified route, i.e. the full name of its
+     * controller followed by a period and the name of its action.
+     *
+     * @exception java.lang.IllegalArgumentException if route is null, or
+     * is not of the form "SomeController.action".
+     */
+    public synchronized void register(String route) {
+        if (route == null) {
+            throw new IllegalArgumentException("\"route\" argument "
+                    + "cannot be null");
+        }
+        if (route.indexOf('.') < 1 || route.endsWith(".") ||
+                isId(route)) {
+            throw new IllegalArgumentException("\"route\" argument must be "
+                    + "of the form \"SomeController.action\". Received "
+                    + route);
+        }
+        if (idsByRoute.containsKey(route)) {
+            return;
+        }
+        String id = idOf(route);
+        if (collidedIds.contains(id)) {
+            return;
+        }
+        String other = routesById.putIfAbsent(id, route);
+        if (other != null) {
+            collidedIds.add(id);
+            routesById.remove(id);
+            idsByRoute.values().removeAll(Collections.singleton(id));
+            return;
+        }
+        idsByRoute.put(route, id);
+    }
+
+    /**
+     * Registers some routes.
+     *
+     * @param routes fully qualified routes.
+     *
+     * @exception java.lang.IllegalArgumentException if routes is null, or
+     * any route is invalid.
+     *
+     * @see #register(java.lang.String)
+     */
+    public void registerAll(Collection<String> routes) {
+        if (routes == null) {
+            throw new IllegalArgumentException("\"routes\" argument "
+                    + "cannot be null");
+        }
+        for (String route : routes) {
+            register(route);
+        }
+    }
+
+    /**
+     * Registers the routes of a controller catalog, unless they have
+     * already been registered, so that the Ussd instances sharing the
+     * registry only register them once.
+     *
+     * @param catalog catalog of controllers.
+     */
+    void load(ControllerCatalog catalog) {
+        if (loadedCatalogs.contains(catalog)) {
+            return;
+        }
+        registerAll(catalog.getRoutes());
+        loadedCatalogs.add(catalog);
+    }
+
+    /**
+     * Gets the id of a registered route.
+     *
+     * @param route route.
+     *
+     * @return route id, or null if route is not registered.
+     */
+    public String getId(String route) {
+        return route != null ? idsByRoute.get(route) : null;
+    }
+
+    /**
+     * Gets the route of an id.
+     *
+     * @param id route id.
+     *
+     * @return route, or null if id is not that of a registered route.
+     */
+    public String getRoute(String id) {
+        return id != null ? routesById.get(id) : null;
+    }
+
+    /**
+     * Gets the number of routes kept as ids.
+     *
+     * @return registered route count.
+     */
+    public int size() {
+        return routesById.size();
+    }
+
+    /**
+     * Gets the value to keep for a next route.
+     *
+     * @param route next route.
+     * @param controllerPackages packages for qualifying controller names
+     * of routes which are not fully qualified. May be null.
+     *
+     * @return id of route, or route itself if it has no id.
+     */
+    String encode(String route, String[] controllerPackages) {
+        String id = idsByRoute.get(route);
+        if (id != null) {
+            return id;
+        }
+        RouteCache.Route resolved = RouteCache.getInstance().resolve(route,
+                controllerPackages);
+        if (resolved.getControllerClass() == null) {
+            return route;
+        }
+        id = idsByRoute.get(resolved.getControllerClass().getName() + '.' +
+                resolved.getActionName());
+        if (id == null) {
+            return route;
+        }
+        // Remember partial route, to spare it resolution next time.
+        idsByRoute.putIfAbsent(route, id);
+        return id;
+    }
+
+    /**
+     * Gets the next route from the value kept for it.
+     *
+     * @param storedRoute route or route id kept for a next route. May be
+     * null.
+     *
+     * @return route, or null if storedRoute is null or an unknown id.
+     */
+    String decode(String storedRoute) {
+        return isId(storedRoute) ? routesById.get(storedRoute) : storedRoute;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps controller class names to dispatchers for their actions, so that
+ * routes can be resolved without probing the classpath or reflecting on
+ * controllers. Implementations are generated at build time by the
+ * annotation processor of the ussd-processor module, and are found by
+ * the framework through {@link java.util.ServiceLoader}, i.e. by being
+ * listed in a META-INF/services/com.smsgh.ussd.framework.RouteTable
+ * resource.
+ * <p>
+ * Routes whose controllers are not in any route table are resolved
+ * through reflection, exactly as when there are no route tables.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public interface RouteTable {
+
+    /**
+     * Gets the controllers in the table.
+     *
+     * @return fully qualified (binary) names of controller classes.
+     */
+    Set<String> getControllerNames();
+
+    /**
+     * Gets the actions of a controller.
+     *
+     * @param controllerName fully qualified (binary) name of controller
+     * class.
+     *
+     * @return dispatchers of public no-arg actions returning UssdResponse,
+     * keyed by action name; or null if controller is not in the table.
+     */
+    Map<String, ActionDispatcher> getActions(String controllerName);
+}
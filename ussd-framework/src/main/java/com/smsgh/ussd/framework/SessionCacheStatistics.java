@@ -0,0 +1,125 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the session store traffic of ussd requests, which show
+ * how much work the request-scoped session cache of {@link UssdContext}
+ * saves. Obtained through {@link Ussd#getSessionCacheStatistics()}.
+ * <p>
+ * Counts are added once per request, when its context is closed.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class SessionCacheStatistics {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong storeRoundTrips = new AtomicLong();
+    private final AtomicLong storeReads = new AtomicLong();
+    private final AtomicLong memoryReads = new AtomicLong();
+    private final AtomicLong requestedWrites = new AtomicLong();
+    private final AtomicLong storeWrites = new AtomicLong();
+
+    /**
+     * Creates a new instance with all counters at zero.
+     */
+    public SessionCacheStatistics() {
+    }
+
+    void record(int storeRoundTrips, int storeReads, int memoryReads,
+            int requestedWrites, int storeWrites) {
+        this.requests.incrementAndGet();
+        this.storeRoundTrips.addAndGet(storeRoundTrips);
+        this.storeReads.addAndGet(storeReads);
+        this.memoryReads.addAndGet(memoryReads);
+        this.requestedWrites.addAndGet(requestedWrites);
+        this.storeWrites.addAndGet(storeWrites);
+    }
+
+    /**
+     * Gets the number of requests counted.
+     * @return request count.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of times the session store was called, where a
+     * batch counts as a single call.
+     * @return store round trip count.
+     */
+    public long getStoreRoundTrips() {
+        return storeRoundTrips.get();
+    }
+
+    /**
+     * Gets the number of read operations sent to the session store.
+     * @return store read count.
+     */
+    public long getStoreReads() {
+        return storeReads.get();
+    }
+
+    /**
+     * Gets the number of reads of the next route and of data bag entries
+     * which were answered from memory, without going to the store.
+     * @return saved read count.
+     */
+    public long getMemoryReads() {
+        return memoryReads.get();
+    }
+
+    /**
+     * Gets the number of writes made to the next route and data bag
+     * entries, including those which cancelled each other out.
+     * @return requested write count.
+     */
+    public long getRequestedWrites() {
+        return requestedWrites.get();
+    }
+
+    /**
+     * Gets the number of write operations actually sent to the session
+     * store.
+     * @return store write count.
+     */
+    public long getStoreWrites() {
+        return storeWrites.get();
+    }
+
+    /**
+     * Gets the number of writes which did not have to be sent to the
+     * store, because they were overwritten or undone within the request.
+     * @return saved write count.
+     */
+    public long getSavedWrites() {
+        return requestedWrites.get() - storeWrites.get();
+    }
+
+    /**
+     * Sets all counters back to zero.
+     */
+    public void reset() {
+        requests.set(0);
+        storeRoundTrips.set(0);
+        storeReads.set(0);
+        memoryReads.set(0);
+        requestedWrites.set(0);
+        storeWrites.set(0);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public String toString() {
+        return "SessionCacheStatistics{" + "requests=" + requests +
+                ", storeRoundTrips=" + storeRoundTrips + ", storeReads=" +
+                storeReads + ", memoryReads=" + memoryReads +
+                ", requestedWrites=" + requestedWrites + ", storeWrites=" +
+                storeWrites + '}';
+    }
+}
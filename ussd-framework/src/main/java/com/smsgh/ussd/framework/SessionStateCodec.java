@@ -0,0 +1,82 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.Map;
+
+/**
+ * Converts the menus, forms and form data which controllers keep in the
+ * data bag between requests to and from strings. Set with
+ * {@link Ussd#sessionStateCodec(SessionStateCodec)}.
+ * <p>
+ * Implementations must be safe for use by multiple threads at once, since
+ * one instance serves all requests. Decoding methods should accept what
+ * other codecs shipped with the framework write, so that changing codecs
+ * does not break sessions in progress.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public interface SessionStateCodec {
+
+    /**
+     * Encodes a menu.
+     *
+     * @param menu menu to encode.
+     *
+     * @return encoded menu.
+     */
+    String encodeMenu(UssdMenu menu);
+
+    /**
+     * Decodes a menu.
+     *
+     * @param repr encoded menu. May be null or blank.
+     *
+     * @return decoded menu, or null if repr is null or blank.
+     *
+     * @exception java.lang.RuntimeException if repr is invalid.
+     */
+    UssdMenu decodeMenu(String repr);
+
+    /**
+     * Encodes a form, including its data and processing position.
+     *
+     * @param form form to encode.
+     *
+     * @return encoded form.
+     */
+    String encodeForm(UssdForm form);
+
+    /**
+     * Decodes a form.
+     *
+     * @param repr encoded form. May be null or blank.
+     *
+     * @return decoded form, or null if repr is null or blank.
+     *
+     * @exception java.lang.RuntimeException if repr is invalid.
+     */
+    UssdForm decodeForm(String repr);
+
+    /**
+     * Encodes form data.
+     *
+     * @param map form data to encode. May be null.
+     *
+     * @return encoded form data.
+     */
+    String encodeMap(Map<String, String> map);
+
+    /**
+     * Decodes form data.
+     *
+     * @param repr encoded form data. May be null or blank.
+     *
+     * @return decoded form data, which may be modified; or null if repr is
+     * null, blank or the encoding of null.
+     *
+     * @exception java.lang.RuntimeException if repr is invalid.
+     */
+    Map<String, String> decodeMap(String repr);
+}
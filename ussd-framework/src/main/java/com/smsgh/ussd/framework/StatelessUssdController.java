@@ -0,0 +1,27 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+/**
+ * Marker interface for controllers which keep no state of their own in
+ * fields, and so can serve all requests from a single instance.
+ * <p>
+ * The framework creates one instance of each {@link UssdController}
+ * subclass implementing this interface, and shares it between all
+ * requests and threads. The request, data bag, controller data and form
+ * data of each call are kept in a context object bound to the calling
+ * thread for the duration of the action, from where the getters of
+ * UssdController return them. Form data is only unmarshalled if it is
+ * asked for. Outside such a call, those getters and setters throw
+ * {@link IllegalStateException}.
+ * <p>
+ * {@link UssdController#init()} is not called on stateless controllers,
+ * since there is no single request to initialise them with; any setup
+ * belongs in the constructor. Their fields must be safe to use from
+ * several threads at once.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public interface StatelessUssdController {
+}
@@ -3,15 +3,18 @@
  */
 package com.smsgh.ussd.framework;
 
-import com.smsgh.ussd.framework.stores.InMemorySessionStore;
+import com.smsgh.ussd.framework.stores.ConcurrentInMemorySessionStore;
 import com.smsgh.ussd.framework.stores.SessionStore;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,8 +50,20 @@ public class Ussd  {
      */
     public static final String DEFAULT_ENCODING = "utf-8";
     
+    /**
+     * The mobile number of the first warm-up session. Each further
+     * warm-up session uses the next number.
+     */
+    public static final long WARM_UP_MOBILE = 999000000000L;
+    
     // Session store.
     private static final SessionStore DEFAULT_STORE;    
+    private static final SessionStateCodec DEFAULT_SESSION_STATE_CODEC =
+            new CompactSessionStateCodec();
+    private static final MenuTemplateRegistry DEFAULT_MENU_TEMPLATE_REGISTRY =
+            new MenuTemplateRegistry();
+    private static final SessionCacheStatistics SESSION_CACHE_STATISTICS =
+            new SessionCacheStatistics();
     private SessionStore store;
     
     // Controller- and action-related fields.
@@ -69,13 +84,34 @@ public class Ussd  {
     // Enables auto dialling 
     private int maxAutoDialDepth;
     
+    // Enables keeping sessions in ClientState.
+    private ClientStateCodec clientStateCodec;
+    
+    // Enables keeping next routes as ids.
+    private RouteRegistry routeRegistry;
+    private SessionStateCodec sessionStateCodec;
+    private MenuTemplateRegistry menuTemplateRegistry;
+    
+    // Synthetic sessions run by warmUp().
+    private final List<String[]> warmUpSessions = new ArrayList<String[]>();
+    private int warmUpRounds = 1;
+    
     private static final Logger LOG = LoggerFactory.getLogger(Ussd.class);
+    
+    private static final int MAX_IDLE_PARSERS = 64;
+    
+    // Parsers of request bodies, kept for reuse by later requests of all
+    // Ussd instances, which are often created per request.
+    private static final BlockingQueue<UssdRequestParser> REQUEST_PARSERS =
+            new ArrayBlockingQueue<UssdRequestParser>(MAX_IDLE_PARSERS);
 
     /**
-     * Create default store as singleton.
+     * Create default store as singleton. It is lock-striped so that
+     * concurrent sessions do not serialize through a single monitor.
      */
     static {
-        DEFAULT_STORE = new InMemorySessionStore(SESSION_TIMEOUT_MILLIS);
+        DEFAULT_STORE = new ConcurrentInMemorySessionStore(
+                SESSION_TIMEOUT_MILLIS);
     }
     
     /**
@@ -84,6 +120,8 @@ public class Ussd  {
      */
     public Ussd() {
         store = getDefaultStore();
+        sessionStateCodec = getDefaultSessionStateCodec();
+        menuTemplateRegistry = getDefaultMenuTemplateRegistry();
     }
     
     /**
@@ -96,6 +134,37 @@ public class Ussd  {
         return DEFAULT_STORE;
     }
     
+    /**
+     * Gets the singleton {@link CompactSessionStateCodec} set on newly
+     * created Ussd instances.
+     * 
+     * @return compact session state codec singleton.
+     */
+    public static SessionStateCodec getDefaultSessionStateCodec() {
+        return DEFAULT_SESSION_STATE_CODEC;
+    }
+    
+    /**
+     * Gets the singleton menu template registry set on newly created Ussd
+     * instances.
+     * 
+     * @return menu template registry singleton.
+     */
+    public static MenuTemplateRegistry getDefaultMenuTemplateRegistry() {
+        return DEFAULT_MENU_TEMPLATE_REGISTRY;
+    }
+    
+    /**
+     * Gets the counters of session store traffic for all requests
+     * processed by Ussd instances, which show how many store calls were
+     * saved by caching each request's session in memory.
+     * 
+     * @return session cache statistics singleton.
+     */
+    public static SessionCacheStatistics getSessionCacheStatistics() {
+        return SESSION_CACHE_STATISTICS;
+    }
+    
     /**
      * Gets the session store used by the Ussd instance.
      * 
@@ -108,6 +177,10 @@ public class Ussd  {
     /**
      * Sets the session store used by the Ussd instance. Use this to
      * override the default in-memory session store singleton.
+     * <p>
+     * A {@link com.smsgh.ussd.framework.stores.LifecycleSessionStore} must
+     * have been started by the application; each request then borrows a
+     * handle from it rather than closing it.
      * 
      * @param store new session store for the instance.
      * 
@@ -125,6 +198,147 @@ public class Ussd  {
         return this;
     }
 
+    /**
+     * Gets the codec used to keep sessions in ClientState.
+     * 
+     * @return ClientState codec, or null if sessions are kept in the
+     * session store only.
+     * 
+     * @see #clientStateCodec(ClientStateCodec)
+     */
+    public ClientStateCodec getClientStateCodec() {
+        return clientStateCodec;
+    }
+
+    /**
+     * Enables the keeping of sessions in the ClientState field of ussd
+     * requests and responses, which the SMSGH USSD API round-trips, rather
+     * than in the session store. By default this is null, so that sessions
+     * are kept in the session store only.
+     * <p>
+     * The next route and data bag of a session are then signed and encoded
+     * into the ClientState of each response, and read back from the
+     * ClientState of the next request, so that typical sessions cost no
+     * session store calls and any node can serve any request. Sessions
+     * whose state grows beyond the codec's maximum length are moved to
+     * the session store, which must then be shared by all nodes as usual.
+     * <p>
+     * The framework owns the ClientState field in this mode; any value
+     * set by an action is replaced.
+     * 
+     * @param clientStateCodec codec for ClientState, or null to keep
+     * sessions in the session store only.
+     * 
+     * @return this instance to enable chaining of property mutator methods.
+     */
+    public Ussd clientStateCodec(ClientStateCodec clientStateCodec) {
+        this.clientStateCodec = clientStateCodec;
+        return this;
+    }
+
+    /**
+     * Gets the registry used to keep next routes as ids.
+     * 
+     * @return route registry, or null if next routes are kept in full.
+     * 
+     * @see #routeRegistry(RouteRegistry)
+     */
+    public RouteRegistry getRouteRegistry() {
+        return routeRegistry;
+    }
+
+    /**
+     * Enables the keeping of next routes in the session store and
+     * ClientState as compact ids, rather than as fully qualified routes
+     * of many dozen characters. By default this is null, so that next
+     * routes are kept in full.
+     * <p>
+     * The routes to all actions of the controllers under the controller
+     * packages are added to the registry by {@link #warmUp()}, or else
+     * before the first request is processed.
+     * 
+     * @param routeRegistry registry of route ids, or null to keep next
+     * routes in full.
+     * 
+     * @return this instance to enable chaining of property mutator methods.
+     * 
+     * @see RouteRegistry
+     */
+    public Ussd routeRegistry(RouteRegistry routeRegistry) {
+        this.routeRegistry = routeRegistry;
+        return this;
+    }
+
+    /**
+     * Gets the codec used to keep menus, forms and form data in the data
+     * bag.
+     * 
+     * @return instance's session state codec.
+     * 
+     * @see #sessionStateCodec(SessionStateCodec)
+     */
+    public SessionStateCodec getSessionStateCodec() {
+        return sessionStateCodec;
+    }
+
+    /**
+     * Sets the codec used to keep menus, forms and form data in the data
+     * bag between requests. Use this to override the default compact
+     * session state codec singleton; for instance with a
+     * {@link JsonSessionStateCodec} while nodes running framework versions
+     * which only read JSON are still serving sessions.
+     * 
+     * @param sessionStateCodec new session state codec for the instance.
+     * 
+     * @return this instance to enable chaining of property mutator methods.
+     * 
+     * @exception java.lang.IllegalArgumentException if sessionStateCodec
+     * argument is null.
+     */
+    public Ussd sessionStateCodec(SessionStateCodec sessionStateCodec) {
+        if (sessionStateCodec == null) {
+            throw new IllegalArgumentException("\"sessionStateCodec\" "
+                    + "argument cannot be null.");
+        }
+        this.sessionStateCodec = sessionStateCodec;
+        return this;
+    }
+
+    /**
+     * Gets the registry of the menu templates which controllers render by
+     * id.
+     * 
+     * @return instance's menu template registry.
+     * 
+     * @see #menuTemplateRegistry(MenuTemplateRegistry)
+     */
+    public MenuTemplateRegistry getMenuTemplateRegistry() {
+        return menuTemplateRegistry;
+    }
+
+    /**
+     * Sets the registry of the menu templates which controllers render by
+     * id. Use this to override the default menu template registry
+     * singleton.
+     * 
+     * @param menuTemplateRegistry new menu template registry for the
+     * instance.
+     * 
+     * @return this instance to enable chaining of property mutator methods.
+     * 
+     * @exception java.lang.IllegalArgumentException if menuTemplateRegistry
+     * argument is null.
+     */
+    public Ussd menuTemplateRegistry(
+            MenuTemplateRegistry menuTemplateRegistry) {
+        if (menuTemplateRegistry == null) {
+            throw new IllegalArgumentException("\"menuTemplateRegistry\" "
+                    + "argument cannot be null.");
+        }
+        this.menuTemplateRegistry = menuTemplateRegistry;
+        return this;
+    }
+
     /**
      * Gets the packages in which the ussd controller to handle
      * the current request is located. This enables the setting of 
@@ -404,6 +618,213 @@ public class Ussd  {
         return this;
     }
     
+    /**
+     * Gets the synthetic sessions run by {@link #warmUp()}.
+     * 
+     * @return warm-up sessions, each being the messages sent in order.
+     */
+    public List<String[]> getWarmUpSessions() {
+        return Collections.unmodifiableList(warmUpSessions);
+    }
+
+    /**
+     * Adds a synthetic session to be run by {@link #warmUp()}. The first
+     * message is the dial string of the initiation request, which is also
+     * used as the service code; every other message is sent as the app
+     * user's response to the previous screen.
+     * <p>
+     * Warm-up sessions go through the same processing as real ones,
+     * including the session store, so they should only visit actions
+     * which are safe to run at startup.
+     * 
+     * @param messages messages of session, e.g. "*714#", "1", "Kofi".
+     * 
+     * @return this instance to enable chaining of property mutators.
+     * 
+     * @exception java.lang.IllegalArgumentException if messages is null,
+     * empty or has null elements.
+     */
+    public Ussd warmUpSession(String... messages) {
+        if (messages == null || messages.length == 0) {
+            throw new IllegalArgumentException("\"messages\" argument "
+                    + "cannot be null or empty");
+        }
+        for (String message : messages) {
+            if (message == null) {
+                throw new IllegalArgumentException("\"messages\" argument "
+                        + "cannot have null elements");
+            }
+        }
+        warmUpSessions.add(messages.clone());
+        return this;
+    }
+
+    /**
+     * Gets the number of times {@link #warmUp()} runs the warm-up
+     * sessions.
+     * 
+     * @return warm-up rounds.
+     */
+    public int getWarmUpRounds() {
+        return warmUpRounds;
+    }
+
+    /**
+     * Sets the number of times {@link #warmUp()} runs the warm-up
+     * sessions. Default is 1. More rounds give the JIT compiler more
+     * chance to compile the request processing code before real
+     * requests arrive.
+     * 
+     * @param warmUpRounds positive number of rounds.
+     * 
+     * @return this instance to enable chaining of property mutators.
+     */
+    public Ussd warmUpRounds(int warmUpRounds) {
+        if (warmUpRounds <= 0) {
+            throw new IllegalArgumentException("\"warmUpRounds\" argument "
+                    + "must be positive. Received " + warmUpRounds);
+        }
+        this.warmUpRounds = warmUpRounds;
+        return this;
+    }
+
+    /**
+     * Prepares this instance for its first requests. Intended to be
+     * called once all properties are set, e.g. from
+     * {@link javax.servlet.GenericServlet#init()}, so that the latency of
+     * class loading and route resolution is not borne by app users.
+     * <p>
+     * The controllers under the controller packages (including
+     * subpackages) are found and checked, and the routes to all their
+     * actions, together with the initiation route, are resolved into the
+     * route cache. Then the warm-up sessions are run through the whole of
+     * request processing, without notifying any request listener, and
+     * their sessions are closed afterwards.
+     * <p>
+     * Calling this method is optional; requests are processed the same
+     * way whether or not it has been called.
+     * 
+     * @return the number of controllers found.
+     * 
+     * @exception FrameworkException if a controller cannot be created
+     * by the framework, if the initiation route or a route to an action
+     * cannot be resolved, or if a warm-up session fails. The message
+     * lists every problem found.
+     */
+    public int warmUp() {
+        RouteCache routeCache = RouteCache.getInstance();
+        ControllerCatalog catalog = getControllerCatalog();
+        if (routeRegistry != null) {
+            loadRouteRegistry(catalog);
+        }
+        List<String> errors = new ArrayList<String>(catalog.getErrors());
+        for (String warning : catalog.getWarnings()) {
+            LOG.warn(warning);
+        }
+        
+        List<String> routes = new ArrayList<String>(catalog.getRoutes());
+        if (initiationController != null && initiationAction != null) {
+            routes.add(0, String.format("%s.%s", initiationController,
+                    initiationAction));
+        }
+        for (String route : routes) {
+            try {
+                routeCache.resolve(route, controllerPackages).check();
+            }
+            catch (RuntimeException ex) {
+                errors.add(ex.getMessage());
+            }
+        }
+        
+        // Warm-up sessions are only worth running on valid routes.
+        if (errors.isEmpty()) {
+            for (int round = 0; round < warmUpRounds; round++) {
+                for (int i = 0; i < warmUpSessions.size(); i++) {
+                    String error = runWarmUpSession(i);
+                    if (error != null) {
+                        errors.add(error);
+                    }
+                }
+                if (!errors.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        
+        if (!errors.isEmpty()) {
+            StringBuilder message = new StringBuilder("Warm-up failed:");
+            for (String error : errors) {
+                message.append("\n").append(error);
+            }
+            throw new FrameworkException(message.toString());
+        }
+        LOG.info("Warm-up found {} controllers and resolved {} routes.",
+                catalog.getControllers().size(), routes.size());
+        return catalog.getControllers().size();
+    }
+
+    private ControllerCatalog getControllerCatalog() {
+        ClassLoader classLoader = Thread.currentThread()
+                .getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = Ussd.class.getClassLoader();
+        }
+        // Cached, so that Ussd instances created for each request do not
+        // scan the class path again.
+        return RouteCache.getInstance().getCatalog(controllerPackages,
+                classLoader);
+    }
+    
+    private void loadRouteRegistry(ControllerCatalog catalog) {
+        int size = routeRegistry.size();
+        routeRegistry.load(catalog);
+        if (routeRegistry.size() != size) {
+            LOG.debug("Registered {} route ids.", routeRegistry.size());
+        }
+    }
+    
+    private String runWarmUpSession(int index) {
+        String[] messages = warmUpSessions.get(index);
+        UssdRequest request = new UssdRequest();
+        request.setMobile(String.valueOf(WARM_UP_MOBILE + index));
+        request.setSessionId("warm-up-" + index);
+        request.setServiceCode(messages[0]);
+        request.setOperator("warm-up");
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                request.setType(i == 0 ? UssdRequest.REQUEST_TYPE_INITIATION :
+                        UssdRequest.REQUEST_TYPE_RESPONSE);
+                request.setMessage(messages[i]);
+                request.setSequence(i + 1);
+                
+                // Round trip through JSON as real requests and responses do.
+                UssdResponse response = processRequest(UssdRequest.fromJson(
+                        UssdRequest.toJson(request)), false);
+                new UssdResponseWriter().write(response);
+                if (response.getException() != null) {
+                    return String.format("Warm-up session %d failed at "
+                            + "message %d (\"%s\"): %s", index + 1, i + 1,
+                            messages[i], response.getException());
+                }
+                if (response.isRelease()) {
+                    break;
+                }
+                request.setClientState(response.getClientState());
+            }
+        }
+        finally {
+            UssdContext context = new UssdContext(store, request,
+                    controllerPackages, controllerData);
+            try {
+                context.sessionClose();
+            }
+            finally {
+                context.close();
+            }
+        }
+        return null;
+    }
+    
     /**
      * Alternative point of call for processing USSD requests.
      * <p>
@@ -526,7 +947,7 @@ public class Ussd  {
         
         UssdRequest ussdRequest = fetchRequest(request);
         
-        UssdResponse ussdResponse = processRequest(ussdRequest);
+        UssdResponse ussdResponse = processRequest(ussdRequest, true);
         
         sendResponse(ussdResponse, response);
         
@@ -536,6 +957,11 @@ public class Ussd  {
     /**
      * Hook for subclasses to override how {@link UssdRequest} instances are
      * parsed from the HTTP request.
+     * <p>
+     * The body is parsed as it is read by a {@link UssdRequestParser}
+     * from a pool shared by all Ussd instances, and rejected without being
+     * read if its declared length exceeds
+     * {@link UssdRequestParser#DEFAULT_MAX_LENGTH}.
      * 
      * @param request HTTP response
      * @return parsed {@link UssdRequest} instance.
@@ -544,15 +970,30 @@ public class Ussd  {
      */
     protected UssdRequest fetchRequest(HttpServletRequest request)
             throws ServletException, IOException {
-        String ussdRequestJson = IOUtils.toString(request.getInputStream(),
-                DEFAULT_ENCODING);
-        UssdRequest ussdRequest = UssdRequest.fromJson(ussdRequestJson);
-        return ussdRequest;
+        int contentLength = request.getContentLength();
+        if (contentLength > UssdRequestParser.DEFAULT_MAX_LENGTH) {
+            throw new IOException(String.format("Request body is longer "
+                    + "than %d bytes", UssdRequestParser.DEFAULT_MAX_LENGTH));
+        }
+        UssdRequestParser parser = REQUEST_PARSERS.poll();
+        if (parser == null) {
+            parser = new UssdRequestParser();
+        }
+        try {
+            UssdRequest ussdRequest = parser.parse(request.getInputStream());
+            return ussdRequest;
+        }
+        finally {
+            REQUEST_PARSERS.offer(parser);
+        }
     }
     
     /**
      * Hook for subclasses to override how {@link UssdResponse} instances
      * are sent in the HTTP response.
+     * <p>
+     * The JSON of the response is written by a {@link UssdResponseWriter}
+     * into a buffer reused by the current thread, and sent in one write.
      * 
      * @param ussdResponse result of ussd request processing.
      * @param response HTTP response
@@ -562,9 +1003,8 @@ public class Ussd  {
     protected void sendResponse(UssdResponse ussdResponse,
             HttpServletResponse response)
             throws ServletException, IOException {        
-        String ussdResponseJson = UssdResponse.toJson(ussdResponse);
-        byte[] ussdResponseJsonBytes = ussdResponseJson.getBytes(
-                DEFAULT_ENCODING);
+        UssdResponseWriter writer = new UssdResponseWriter().write(
+                ussdResponse);
         
         // This CORS header is necessary for Ussd Simulator at
         // http://apps.smsgh.com/UssdSimulator/ to work with
@@ -575,21 +1015,28 @@ public class Ussd  {
         
         response.setContentType("application/json;charset=" +
                 DEFAULT_ENCODING);
-        response.setContentLength(ussdResponseJsonBytes.length);
-        response.getOutputStream().write(ussdResponseJsonBytes);
+        response.setContentLength(writer.getLength());
+        writer.writeTo(response.getOutputStream());
     }
 
-    private UssdResponse processRequest(UssdRequest request) {
+    private UssdResponse processRequest(UssdRequest request,
+            boolean notifyListener) {
         if (request == null) {
             throw new IllegalArgumentException("\"request\" argument "
                     + "cannot be null");
         }
         
-        if (requestListener != null) {
+        if (notifyListener && requestListener != null) {
             requestListener.requestEntering(request);
         }
+        if (routeRegistry != null) {
+            loadRouteRegistry(getControllerCatalog());
+        }
         UssdContext context = new UssdContext(store, request, 
-                controllerPackages, controllerData);
+                controllerPackages, controllerData, clientStateCodec,
+                routeRegistry);
+        context.setSessionStateCodec(sessionStateCodec);
+        context.setMenuTemplateRegistry(menuTemplateRegistry);
         UssdResponse response = null;
         try {
             if (request.getType().equalsIgnoreCase(
@@ -624,7 +1071,10 @@ public class Ussd  {
             }
             context.close();
         }
-        if (requestListener != null) {
+        if (clientStateCodec != null) {
+            response.setClientState(context.getClientState());
+        }
+        if (notifyListener && requestListener != null) {
             requestListener.responseLeaving(request, response);
         }
         return response;
@@ -700,22 +1150,24 @@ public class Ussd  {
 
     private UssdResponse processContinuationRequest(UssdContext context) {
         logRequest(context.getRequest());
+        boolean exists = context.sessionExists();
+        if (!exists)
+        {
+            throw new SessionNotFoundException("Session does not exist.");
+        }
+        
+        // Follow redirects in memory, so that only the final route of a
+        // redirect chain is kept in the session.
+        String route = null;
         UssdResponse response = null;
         int redirectCount = 0;
         while (redirectCount < MAX_REDIRECT_COUNT && response == null) {
-            boolean exists = context.sessionExists();
-            if (!exists)
-            {
-                throw new SessionNotFoundException("Session does not exist.");
-            }
-            response = context.sessionExecuteAction();
+            response = route == null ? context.sessionExecuteAction() :
+                    context.sessionExecuteAction(route);
             logResponse(response);
-            if (!response.isRelease())
-            {
-                context.sessionSetNextRoute(response.getNextRoute());
-            }
             if (response.isRedirect())
             {
+                route = response.getNextRoute();
                 response = null;
                 redirectCount++;
             }
@@ -725,6 +1177,10 @@ public class Ussd  {
                     "Failed to get final ussd response after %d redirect%s.",
                     redirectCount, redirectCount == 1 ? "" : "s"));
         }
+        if (!response.isRelease())
+        {
+            context.sessionSetNextRoute(response.getNextRoute());
+        }
         return response;
     }
     
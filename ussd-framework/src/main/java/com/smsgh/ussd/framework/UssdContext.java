@@ -3,28 +3,132 @@
  */
 package com.smsgh.ussd.framework;
 
+import com.smsgh.ussd.framework.stores.LifecycleSessionStore;
+import com.smsgh.ussd.framework.stores.SessionBatch;
 import com.smsgh.ussd.framework.stores.SessionStore;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.Map;
 
 /**
  * Class internal to framework, which is responsible for
  * creating a controller instance and calling upon one of its action
  * methods to process a ussd request and return a ussd response.
+ * <p>
+ * The context caches the session of its request for the whole request,
+ * across redirects and auto dial hops: the next route and the data bag
+ * entries used by the framework are fetched in one batch when the session
+ * is first checked for, later reads are answered from memory, and only
+ * the net changes are written back in one batch when the context is
+ * closed.
+ * <p>
+ * A context borrows a handle from a {@link LifecycleSessionStore} for its
+ * request and releases it when closed. Other stores are closed instead.
+ * <p>
+ * Given a {@link ClientStateCodec}, a context keeps its session in the
+ * ClientState of requests and responses instead of the store, for as long
+ * as the session fits in it: it is then loaded from the request and its
+ * new state made available through {@link #getClientState()}, without any
+ * store calls. Once a session outgrows ClientState, it is written to the
+ * store in full and stays there until it ends.
+ * <p>
+ * Given a {@link RouteRegistry}, a context keeps the ids of registered
+ * next routes instead of the routes themselves.
  * 
  * @author Aaron Baffour-Awuah
  */
 public class UssdContext {
+    
+    /**
+     * Suffix appended to the mobile number of a session to form the key
+     * of its next route.
+     */
+    public static final String NEXT_ROUTE_KEY_SUFFIX = ".NextRoute";
+    
+    /**
+     * Suffix appended to the mobile number of a session to form the name
+     * of its data bag hash.
+     */
+    public static final String DATA_BAG_KEY_SUFFIX = ".DataBag";
+    
+    // Data bag entries read by the framework on almost every hop, and
+    // thus fetched together with the next route.
+    private static final String[] PREFETCHED_DATA_BAG_KEYS = {
+        UssdController.FORM_DATA_KEY,
+        UssdController.MENU_PROCESSOR_DATA_KEY,
+        UssdController.FORM_PROCESSOR_DATA_KEY
+    };
+    
     private SessionStore store;
+    private LifecycleSessionStore lifecycleStore;
     private UssdRequest request;
+    private String nextRouteKey;
+    private String dataBagKey;
     private String[] controllerPackages;
     private Map<String, Object> controllerData;
     private UssdDataBag dataBag;
+    private String nextRoute;
+    private boolean nextRouteKnown;
+    private boolean nextRouteDirty;
+    private String storedNextRoute;
+    private boolean storedNextRouteKnown;
+    private ClientStateCodec clientStateCodec;
+    private RouteRegistry routeRegistry;
+    private SessionStateCodec sessionStateCodec;
+    private MenuTemplateRegistry menuTemplateRegistry;
+    private boolean clientStateChecked;
+    private boolean sessionInStore;
+    private String clientState;
+    
+    // Counters for SessionCacheStatistics.
+    private int storeRoundTrips;
+    private int storeReads;
+    private int memoryReads;
+    private int requestedWrites;
+    private int storeWrites;
     
     public UssdContext(SessionStore store, UssdRequest request, 
             String[] controllerPackages,
             Map<String, Object> controllerData) {
+        this(store, request, controllerPackages, controllerData, null);
+    }
+    
+    /**
+     * Creates a context which keeps its session in ClientState when
+     * given a codec.
+     * 
+     * @param store session store.
+     * @param request request being processed.
+     * @param controllerPackages packages for qualifying controller names.
+     * @param controllerData data passed on to controllers.
+     * @param clientStateCodec codec for keeping session in ClientState, or
+     * null to keep session in store only.
+     */
+    public UssdContext(SessionStore store, UssdRequest request, 
+            String[] controllerPackages,
+            Map<String, Object> controllerData,
+            ClientStateCodec clientStateCodec) {
+        this(store, request, controllerPackages, controllerData,
+                clientStateCodec, null);
+    }
+    
+    /**
+     * Creates a context which keeps its session in ClientState when
+     * given a codec, and keeps registered next routes as ids when given
+     * a registry.
+     * 
+     * @param store session store.
+     * @param request request being processed.
+     * @param controllerPackages packages for qualifying controller names.
+     * @param controllerData data passed on to controllers.
+     * @param clientStateCodec codec for keeping session in ClientState, or
+     * null to keep session in store only.
+     * @param routeRegistry registry of route ids, or null to keep next
+     * routes in full.
+     */
+    public UssdContext(SessionStore store, UssdRequest request, 
+            String[] controllerPackages,
+            Map<String, Object> controllerData,
+            ClientStateCodec clientStateCodec,
+            RouteRegistry routeRegistry) {
         if (store == null) {
             throw new IllegalArgumentException("\"store\" argument "
                     + "cannot be null");
@@ -33,11 +137,22 @@ public class UssdContext {
             throw new IllegalArgumentException("\"request\" argument "
                     + "cannot be null");
         }
-        this.store = store;
         this.request = request;
+        this.nextRouteKey = request.getMobile() + NEXT_ROUTE_KEY_SUFFIX;
+        this.dataBagKey = request.getMobile() + DATA_BAG_KEY_SUFFIX;
         this.controllerPackages = controllerPackages;
         this.controllerData = controllerData;
-        this.dataBag = new UssdDataBag(store, getDataBagKey());
+        this.clientStateCodec = clientStateCodec;
+        this.routeRegistry = routeRegistry;
+        this.sessionInStore = clientStateCodec == null;
+        if (store instanceof LifecycleSessionStore) {
+            this.lifecycleStore = (LifecycleSessionStore)store;
+            this.store = lifecycleStore.borrow();
+        }
+        else {
+            this.store = store;
+        }
+        this.dataBag = new UssdDataBag(this.store, getDataBagKey(), true);
     }
 
     /**
@@ -55,7 +170,7 @@ public class UssdContext {
      * @return key under which next route is kept. 
      */
     public String getNextRouteKey() {
-        return String.format("%s.%s", request.getMobile(), "NextRoute");
+        return nextRouteKey;
     }
     
     /**
@@ -65,7 +180,52 @@ public class UssdContext {
      * @return key for session's data bag.
      */
     public String getDataBagKey() {
-        return String.format("%s.%s", request.getMobile(), "DataBag");
+        return dataBagKey;
+    }
+
+    /**
+     * Gets the codec which controllers use to keep menus, forms and form
+     * data in the data bag.
+     * 
+     * @return session state codec, or null if controllers use the
+     * default one.
+     */
+    public SessionStateCodec getSessionStateCodec() {
+        return sessionStateCodec;
+    }
+
+    /**
+     * Sets the codec which controllers use to keep menus, forms and form
+     * data in the data bag.
+     * 
+     * @param sessionStateCodec session state codec, or null to use
+     * {@link Ussd#getDefaultSessionStateCodec()}.
+     */
+    public void setSessionStateCodec(SessionStateCodec sessionStateCodec) {
+        this.sessionStateCodec = sessionStateCodec;
+    }
+
+    /**
+     * Gets the registry of the menu templates which controllers render
+     * by id.
+     * 
+     * @return menu template registry, or null if controllers use the
+     * default one.
+     */
+    public MenuTemplateRegistry getMenuTemplateRegistry() {
+        return menuTemplateRegistry;
+    }
+
+    /**
+     * Sets the registry of the menu templates which controllers render
+     * by id.
+     * 
+     * @param menuTemplateRegistry menu template registry, or null to use
+     * {@link Ussd#getDefaultMenuTemplateRegistry()}.
+     */
+    public void setMenuTemplateRegistry(
+            MenuTemplateRegistry menuTemplateRegistry) {
+        this.menuTemplateRegistry = menuTemplateRegistry;
     }
 
     /**
@@ -73,8 +233,10 @@ public class UssdContext {
      * @param nextRoute the route to store.
      */
     public void sessionSetNextRoute(String nextRoute) {
-        store.setValue(getNextRouteKey(), nextRoute);
-        
+        requestedWrites++;
+        this.nextRoute = nextRoute;
+        this.nextRouteKnown = true;
+        this.nextRouteDirty = true;
     }
 
     /**
@@ -82,8 +244,11 @@ public class UssdContext {
      * session of this context's request.
      */
     public void sessionClose() {
-        store.deleteValue(getNextRouteKey());
-        store.deleteHash(getDataBagKey());
+        requestedWrites++;
+        this.nextRoute = null;
+        this.nextRouteKnown = true;
+        this.nextRouteDirty = true;
+        dataBag.clear();
     }
 
     /**
@@ -93,154 +258,279 @@ public class UssdContext {
      * respectively.
      */
     public boolean sessionExists() {
-        return store.valueExists(getNextRouteKey());
+        loadSession();
+        return nextRoute != null;
     }
-
+    
     /**
-     * Uses the data used to create a context to create a controller and
-     * execute a specified action.
-     * 
-     * @return response from action executed.
+     * Fetches in a single batch the next route and the data bag entries
+     * used by the framework, unless they are already known.
      */
-    public UssdResponse sessionExecuteAction() {
-        // Get route which has the controller and action to execute.
-        String route = store.getValue(getNextRouteKey());
-        if (route == null) {
-            throw new FrameworkException("No route was found.");
+    private void loadSession() {
+        if (!clientStateChecked && !nextRouteKnown) {
+            clientStateChecked = true;
+            if (loadClientState()) {
+                return;
+            }
         }
-        
-        // Split route up to get the controller and action.
-        int periodIndex = route.lastIndexOf('.');
-        if (periodIndex == -1) {
-            throw new FrameworkException("Invalid route format. "
-                    + "Must be \"SomeController.action\"." +
-                "Current route is: " + route);
+        if (nextRouteKnown) {
+            memoryReads++;
         }
-        String controllerName = route.substring(0, periodIndex);
-        String actionName = route.substring(periodIndex+1);
-        
-        // First trying loading class using only given controller's name.
-        Class controllerClass = null;
-        try {
-            controllerClass = Class.forName(controllerName);
+        SessionBatch batch = new SessionBatch();
+        int routeIndex = -1;
+        if (!nextRouteKnown) {
+            routeIndex = batch.getValue(getNextRouteKey());
         }
-        catch (ClassNotFoundException ex) { }
-        
-        // If class was not found, then it may be because it has not
-        // been qualified with its package. Use given controller packages
-        // to attempt class loading again.
-        if (controllerClass == null) {
-            
-            // Use this string builder to store all the classes
-            // we tried loading. If we eventually don't find the
-            // controller class, we'll let user know what classes
-            // were attempted.
-            StringBuilder attemptedClasses = new StringBuilder();
-            attemptedClasses.append(' ').append(controllerName);
-            if (controllerPackages != null) {
-                for (String controllerPackage : controllerPackages) {
-                    String fullControllerName = controllerPackage + '.' +
-                            controllerName;
-                    try {
-                        controllerClass = Class.forName(fullControllerName);
-                        break;
-                    }
-                    catch (ClassNotFoundException ex) {}
-                    attemptedClasses.append(", ");
-                    attemptedClasses.append(fullControllerName);
-                    
-                    // Have support for omission of "Controller" suffix from
-                    // controller class names.
-                    if (!fullControllerName.endsWith("Controller")) {
-                        fullControllerName = fullControllerName + "Controller";
-                        try {
-                            controllerClass = Class.forName(fullControllerName);
-                            break;
-                        }
-                        catch (ClassNotFoundException ex) {}
-                        attemptedClasses.append(", ");
-                        attemptedClasses.append(fullControllerName);
-                    }
-                }
+        int[] dataBagIndices = new int[PREFETCHED_DATA_BAG_KEYS.length];
+        for (int i = 0; i < PREFETCHED_DATA_BAG_KEYS.length; i++) {
+            if (dataBag.isKnown(PREFETCHED_DATA_BAG_KEYS[i])) {
+                dataBagIndices[i] = -1;
+            }
+            else {
+                dataBagIndices[i] = batch.getHashValue(
+                        getDataBagKey(), PREFETCHED_DATA_BAG_KEYS[i]);
             }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batch.execute(store);
+        storeRoundTrips++;
+        storeReads += batch.size();
+        if (routeIndex != -1) {
+            String storedRoute = batch.getString(routeIndex);
+            nextRoute = decodeRoute(storedRoute);
+            nextRouteKnown = true;
+            storedNextRoute = nextRoute;
             
-            // If controller class wasn't found, throw exception with
-            // details of classes we tried loading.
-            if (controllerClass == null) {                    
-                throw new RuntimeException(String.format(
-                        "Class \"%s\" could not be found. Tried to load "
-                                + "the following classes: %s",
-                        controllerName, attemptedClasses));
+            // An unknown route id must still be deleted on session close.
+            storedNextRouteKnown = nextRoute != null || storedRoute == null;
+        }
+        for (int i = 0; i < PREFETCHED_DATA_BAG_KEYS.length; i++) {
+            if (dataBagIndices[i] != -1) {
+                dataBag.remember(PREFETCHED_DATA_BAG_KEYS[i],
+                        batch.getString(dataBagIndices[i]));
             }
         }
-        
-        // Check that controller class subclasses UssdController.
-        if (!UssdController.class.isAssignableFrom(controllerClass)) {
-            throw new RuntimeException(String.format("Class \"%s\" does not "
-                    + "subclass \"%s\"", controllerClass, 
-                    UssdController.class.getName()));
+    }
+    
+    /**
+     * Loads the session from the ClientState of the request, if it is kept
+     * there.
+     * @return true if session was loaded.
+     */
+    private boolean loadClientState() {
+        if (clientStateCodec == null) {
+            return false;
+        }
+        ClientStateCodec.State state = clientStateCodec.decode(request);
+        if (state == null || state.isInStore()) {
+            // Sessions without ClientState, e.g. started before it was
+            // enabled, are looked for in the store.
+            sessionInStore = true;
+            return false;
+        }
+        nextRoute = decodeRoute(state.getNextRoute());
+        nextRouteKnown = true;
+        dataBag.load(state.getDataBag());
+        return true;
+    }
+    
+    private String encodeRoute(String route) {
+        return routeRegistry != null ?
+                routeRegistry.encode(route, controllerPackages) : route;
+    }
+    
+    /**
+     * Gets the route kept in the store or ClientState. Unknown route ids
+     * leave the session as though it did not exist, rather than failing
+     * the request in some other way.
+     */
+    private String decodeRoute(String storedRoute) {
+        if (routeRegistry != null) {
+            return routeRegistry.decode(storedRoute);
         }
+        return RouteRegistry.isId(storedRoute) ? null : storedRoute;
+    }
+    
+    /**
+     * Gets the ClientState for the response to this context's request,
+     * which is set by {@link #commit()} if a {@link ClientStateCodec} was
+     * given.
+     * @return ClientState for response, or null if session has ended or
+     * is not kept in ClientState.
+     */
+    public String getClientState() {
+        return clientState;
+    }
+    
+    /**
+     * Writes the net changes made to the session so far to the store in
+     * a single batch. Changes which leave the store as it is known to be,
+     * e.g. setting the next route to the route it already has, are dropped.
+     * <p>
+     * Called by {@link #close()}, so there is normally no need to call it
+     * directly.
+     */
+    public void commit() {
+        if (!sessionInStore) {
+            commitClientState();
+            return;
+        }
+        SessionBatch batch = new SessionBatch();
+        dataBag.flush(batch);
         
-        // Get action method.
-        Method action;
-        try {
-            action = controllerClass.getMethod(actionName);
+        // Write next route last, so that the session is not seen to exist
+        // before its data bag is up to date.
+        if (nextRouteDirty) {
+            if (!storedNextRouteKnown ||
+                    !(nextRoute == null ? storedNextRoute == null :
+                            nextRoute.equals(storedNextRoute))) {
+                if (nextRoute == null) {
+                    batch.deleteValue(getNextRouteKey());
+                }
+                else {
+                    batch.setValue(getNextRouteKey(), encodeRoute(nextRoute));
+                }
+                storedNextRoute = nextRoute;
+                storedNextRouteKnown = true;
+            }
+            nextRouteDirty = false;
         }
-        catch (NoSuchMethodException ex) {
-            throw new RuntimeException(String.format(
-                    "Class \"%s\" does not have a public no-arg action "
-                            + "named \"%s\".",
-                    controllerClass.getName(), actionName));
+        if (!batch.isEmpty()) {
+            batch.execute(store);
+            storeRoundTrips++;
+            storeWrites += batch.size();
+        }
+        if (clientStateCodec != null) {
+            clientState = nextRoute == null ? null :
+                    clientStateCodec.encodeInStore(request);
+        }
+    }
+    
+    /**
+     * Encodes the session into ClientState, or moves it to the store for
+     * good if it does not fit. The whole data bag is in memory, since it
+     * was either loaded from ClientState or cleared at initiation.
+     */
+    private void commitClientState() {
+        nextRouteDirty = false;
+        if (nextRoute == null) {
+            clientState = null;
+            return;
+        }
+        if (!dataBag.isComplete()) {
+            throw new FrameworkException("Data bag must be loaded in full "
+                    + "to be kept in ClientState.");
+        }
+        Map<String, String> contents = dataBag.snapshot();
+        clientState = clientStateCodec.encode(request,
+                encodeRoute(nextRoute), contents);
+        if (clientState != null) {
+            return;
         }
         
-        // Create controller instance. Possible problems include
-        // non-public class, non-public constructor, absence of
-        // no-arg constructor or error in constructor.
-        UssdController controller;        
-        try {
-            controller = (UssdController)controllerClass.newInstance();
+        // Session about to be written in full, so stale entries left from
+        // earlier sessions of the same mobile number are removed first.
+        SessionBatch batch = new SessionBatch();
+        batch.deleteHash(getDataBagKey());
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            batch.setHashValue(getDataBagKey(), entry.getKey(),
+                    entry.getValue());
         }
-        catch (IllegalAccessException ex) {
-            throw new RuntimeException(String.format("Failed to create "
-                    + "instance of class \"%s\". Is class a public class having a "
-                    + "public no-arg constructor?", controllerClass.getName()));
+        batch.setValue(getNextRouteKey(), encodeRoute(nextRoute));
+        batch.execute(store);
+        storeRoundTrips++;
+        storeWrites += batch.size();
+        dataBag.load(contents);
+        storedNextRoute = nextRoute;
+        storedNextRouteKnown = true;
+        sessionInStore = true;
+        clientState = clientStateCodec.encodeInStore(request);
+    }
+
+    /**
+     * Uses the data used to create a context to create a controller and
+     * execute a specified action.
+     * 
+     * @return response from action executed.
+     */
+    public UssdResponse sessionExecuteAction() {
+        // Get route which has the controller and action to execute.
+        loadSession();
+        String route = nextRoute;
+        if (route == null) {
+            throw new FrameworkException("No route was found.");
         }
-        catch (InstantiationException ex) {
-            throw new RuntimeException(String.format("Failed to create "
-                    + "instance of class \"%s\". Is class a public class having a "
-                    + "public no-arg constructor?", controllerClass.getName()));
+        return sessionExecuteAction(route);
+    }
+    
+    /**
+     * Executes the action of a given route rather than that of the next
+     * route of the session, e.g. to follow a redirect without keeping its
+     * route in the session. The next route of the session is left as it
+     * is.
+     * 
+     * @param route route of action to execute.
+     * 
+     * @return response from action executed.
+     * 
+     * @exception java.lang.IllegalArgumentException if route is null.
+     */
+    public UssdResponse sessionExecuteAction(String route) {
+        if (route == null) {
+            throw new IllegalArgumentException("\"route\" argument "
+                    + "cannot be null");
         }
         
-        // Initialize newly created controller.
-        controller.setRequest(request);
-        controller.setDataBag(dataBag);
-        controller.setControllerData(controllerData);
-        controller.init();
+        // Resolve route to its controller class and action, which only
+        // needs class loading and reflection on its first use, and none
+        // at all for controllers in a generated route table.
+        RouteCache.Route resolved = RouteCache.getInstance().resolve(route,
+                controllerPackages);
+        resolved.check();
+        Class<? extends UssdController> controllerClass =
+                resolved.getControllerClass();
+        String actionName = resolved.getActionName();
         
-        // Now invoke action on controller.
+        // Create controller instance, or get the shared one of a
+        // stateless controller. Possible problems include
+        // non-public class, non-public constructor, absence of
+        // no-arg constructor or error in constructor.
+        ActionDispatcher dispatcher = resolved.getDispatcher();
         Object someObj;
-        try {
-            someObj = action.invoke(controller);
-        }
-        catch (InvocationTargetException ex) {
-            // InvocationTargetException doesn't have
-            // any interesting message. Thus pull out
-            // the exception it wraps and throw that
-            // instead.
-            Throwable t = ex.getTargetException();
-            if (t instanceof RuntimeException) {
-                throw (RuntimeException)t;
+        if (resolved.isStateless()) {
+            UssdController controller = RouteCache.getInstance()
+                    .getSharedController(dispatcher);
+            
+            // Pass request to shared controller through the current
+            // thread, and invoke action on it.
+            ControllerContext callContext = new ControllerContext(request,
+                    dataBag, controllerData);
+            callContext.setSessionStateCodec(sessionStateCodec);
+            callContext.setMenuTemplateRegistry(menuTemplateRegistry);
+            ControllerContext previous = UssdController.bindStatelessContext(
+                    callContext);
+            try {
+                someObj = dispatcher.invoke(controller);
             }
-            if (t instanceof Error) {
-                throw (Error)t;
+            finally {
+                UssdController.bindStatelessContext(previous);
             }
-            throw new RuntimeException(t);
         }
-        catch (Exception ex) {
-            if (ex instanceof RuntimeException) {
-                throw (RuntimeException)ex;
-            }
-            throw new RuntimeException(ex);
+        else {
+            UssdController controller = dispatcher.newController();
+
+            // Initialize newly created controller.
+            controller.setRequest(request);
+            controller.setDataBag(dataBag);
+            controller.setControllerData(controllerData);
+            controller.setSessionStateCodec(sessionStateCodec);
+            controller.setMenuTemplateRegistry(menuTemplateRegistry);
+            controller.init();
+
+            // Now invoke action on controller.
+            someObj = dispatcher.invoke(controller);
         }
         
         // Check that return value of action is not null, and is
@@ -259,10 +549,28 @@ public class UssdContext {
     }
     
     /**
-     * Gives opportunity to SessionStore implementation to release any
+     * Sends the net changes made to the session to the store, and then
+     * gives back the handle borrowed from a LifecycleSessionStore, or gives
+     * opportunity to any other SessionStore implementation to release any
      * resources it might be holding on to.
      */
     public void close() {
-        store.close();
+        try {
+            commit();
+        }
+        finally {
+            Ussd.getSessionCacheStatistics().record(
+                    storeRoundTrips + dataBag.storeRoundTrips,
+                    storeReads + dataBag.storeReads,
+                    memoryReads + dataBag.memoryReads,
+                    requestedWrites + dataBag.requestedWrites,
+                    storeWrites);
+            if (lifecycleStore != null) {
+                lifecycleStore.release(store);
+            }
+            else {
+                store.close();
+            }
+        }
     }
 }
@@ -23,33 +23,70 @@ public abstract class UssdController {
     public static final String FORM_DATA_KEY = 
             UssdController.class.getName() + ".FormData";
 
-    private UssdRequest request;
-    private Map<String, Object> controllerData;
-    private UssdDataBag dataBag;
-    private Map<String, String> formData;
+    // Contexts of the calls on stateless controllers in progress.
+    private static final ThreadLocal<ControllerContext> STATELESS_CONTEXT =
+            new ThreadLocal<ControllerContext>();
+
+    private final ControllerContext context;
 
     /**
      * Does nothing aside instance creation.
      */
     public UssdController() {
+        context = this instanceof StatelessUssdController ? null :
+                new ControllerContext();
     }
     
     /**
      * Called as the final step in initialising a controller. Subclasses 
      * must call this version or else important initialisation  
      * will be skipped.
+     * <p>
+     * Not called on controllers implementing
+     * {@link StatelessUssdController}.
      */
     public void init() {
-        // Retrieve any form data existing from previous ussd screens,
-        // for use by current route
-        String repr = dataBag.get(FORM_DATA_KEY);
-        try {
-            formData = UssdUtils.unmarshallMap(repr);
+        context().loadFormData();
+    }
+    
+    /**
+     * Binds the context of a call on a stateless controller to the
+     * current thread.
+     * 
+     * @param callContext context of call, or null to unbind.
+     * 
+     * @return context previously bound to the current thread, or null.
+     */
+    static ControllerContext bindStatelessContext(
+            ControllerContext callContext) {
+        ControllerContext previous = STATELESS_CONTEXT.get();
+        if (callContext != null) {
+            STATELESS_CONTEXT.set(callContext);
         }
-        catch (RuntimeException ex) {
-            throw new FrameworkException("An error occured while getting "
-                    + "form data.", ex);
+        else {
+            STATELESS_CONTEXT.remove();
         }
+        return previous;
+    }
+    
+    /**
+     * Gets the context of the controller, or of the call in progress on
+     * the current thread for stateless controllers.
+     *
+     * @exception java.lang.IllegalStateException if controller is
+     * stateless and no call on it is in progress on the current thread.
+     */
+    private ControllerContext context() {
+        if (context != null) {
+            return context;
+        }
+        ControllerContext callContext = STATELESS_CONTEXT.get();
+        if (callContext == null) {
+            throw new IllegalStateException("Stateless controller "
+                    + getClass().getName() + " was used outside a call "
+                    + "dispatched by the framework.");
+        }
+        return callContext;
     }
 
     /**
@@ -58,7 +95,7 @@ public abstract class UssdController {
      * @return request to be handled.
      */
     public UssdRequest getRequest() {
-        return request;
+        return context().getRequest();
     }
 
     /**
@@ -68,7 +105,7 @@ public abstract class UssdController {
      * @param request the request to be handled.
      */
     void setRequest(UssdRequest request) {
-        this.request = request;
+        context().setRequest(request);
     }
 
     /**
@@ -77,7 +114,7 @@ public abstract class UssdController {
      * @return custom data from framework client.
      */
     public Map<String, Object> getControllerData() {
-        return controllerData;
+        return context().getControllerData();
     }
 
     /**
@@ -86,7 +123,7 @@ public abstract class UssdController {
      * @param controllerData 
      */
     void setControllerData(Map<String, Object> controllerData) {
-        this.controllerData = controllerData;
+        context().setControllerData(controllerData);
     }
 
     /**
@@ -96,7 +133,7 @@ public abstract class UssdController {
      * @return {@link UssdDataBag} for persisting requests across requests.
      */
     public UssdDataBag getDataBag() {
-        return dataBag;
+        return context().getDataBag();
     }
 
     /**
@@ -108,7 +145,52 @@ public abstract class UssdController {
      * across requests.
      */
     void setDataBag(UssdDataBag dataBag) {
-        this.dataBag = dataBag;
+        context().setDataBag(dataBag);
+    }
+
+    /**
+     * Gets the codec used to keep menus, forms and form data in the
+     * data bag.
+     * 
+     * @return session state codec set on the {@link Ussd} instance
+     * handling the request, or else the default one.
+     */
+    public SessionStateCodec getSessionStateCodec() {
+        return context().getSessionStateCodec();
+    }
+
+    /**
+     * Sets the codec used to keep menus, forms and form data in the data
+     * bag. Called by the framework during controller initialisation.
+     * 
+     * @param sessionStateCodec session state codec, or null for the
+     * default one.
+     */
+    void setSessionStateCodec(SessionStateCodec sessionStateCodec) {
+        context().setSessionStateCodec(sessionStateCodec);
+    }
+
+    /**
+     * Gets the registry of the menu templates which can be rendered by id.
+     * 
+     * @return menu template registry set on the {@link Ussd} instance
+     * handling the request, or else the default one.
+     * 
+     * @see #renderMenuTemplate(String, Map)
+     */
+    public MenuTemplateRegistry getMenuTemplateRegistry() {
+        return context().getMenuTemplateRegistry();
+    }
+
+    /**
+     * Sets the registry of the menu templates which can be rendered by
+     * id. Called by the framework during controller initialisation.
+     * 
+     * @param menuTemplateRegistry menu template registry, or null for the
+     * default one.
+     */
+    void setMenuTemplateRegistry(MenuTemplateRegistry menuTemplateRegistry) {
+        context().setMenuTemplateRegistry(menuTemplateRegistry);
     }
 
     /**
@@ -124,7 +206,7 @@ public abstract class UssdController {
      * @return form data from previous form input screens.
      */
     public Map<String, String> getFormData() {
-        return formData;
+        return context().getFormData();
     }
     
     private String route(String action, String controller) {
@@ -274,12 +356,90 @@ public abstract class UssdController {
             throw new IllegalArgumentException("\"ussdMenu\" argument cannot "
                     + "be null");
         }
-        String repr = UssdUtils.marshallUssdMenu(ussdMenu);
-        dataBag.set(MENU_PROCESSOR_DATA_KEY, repr);
+        String repr;
+        MenuTemplate template = ussdMenu.template;
+        if (template != null &&
+                getMenuTemplateRegistry().get(template.getId()) == template &&
+                ussdMenu.equals(template.toMenu(
+                        ussdMenu.templateParameters))) {
+            // Unchanged menu of a registered template.
+            repr = getMenuTemplateReference(template,
+                    ussdMenu.templateParameters);
+        }
+        else {
+            repr = getSessionStateCodec().encodeMenu(ussdMenu);
+        }
+        getDataBag().set(MENU_PROCESSOR_DATA_KEY, repr);
         String message = ussdMenu.render();
         return render(message, "menuProcessor", autoDialOn);
     }
     
+    /**
+     * Constructs a ussd response out of a registered menu template which
+     * has no parameters.
+     * @param templateId id of template.
+     * @return ussd response from menu template.
+     * @see #renderMenuTemplate(String, Map, boolean)
+     */
+    public UssdResponse renderMenuTemplate(String templateId) {
+        return renderMenuTemplate(templateId, null, true);
+    }
+    
+    /**
+     * Constructs a ussd response out of a registered menu template.
+     * @param templateId id of template.
+     * @param parameters values of parameters of template. May be null if
+     * template has no parameters.
+     * @return ussd response from menu template.
+     * @see #renderMenuTemplate(String, Map, boolean)
+     */
+    public UssdResponse renderMenuTemplate(String templateId,
+            Map<String, String> parameters) {
+        return renderMenuTemplate(templateId, parameters, true);
+    }
+    
+    /**
+     * Constructs a ussd response out of a registered menu template. Only
+     * the id of the template and the values of its parameters are kept
+     * in the data bag for {@link #menuProcessor()}, rather than the whole
+     * menu as by {@link #renderMenu(UssdMenu, boolean)}.
+     * @param templateId id of template in
+     * {@link #getMenuTemplateRegistry()}.
+     * @param parameters values of parameters of template. May be null if
+     * template has no parameters.
+     * @param autoDialOn true (by default) to continue any ongoing auto 
+     * dial processing; false to end it.
+     * @return ussd response from menu template.
+     * @exception java.lang.IllegalArgumentException if templateId is null
+     * or not registered, or a parameter of template has no value.
+     */
+    public UssdResponse renderMenuTemplate(String templateId,
+            Map<String, String> parameters, boolean autoDialOn) {
+        if (templateId == null) {
+            throw new IllegalArgumentException("\"templateId\" argument "
+                    + "cannot be null");
+        }
+        MenuTemplate template = getMenuTemplateRegistry().get(templateId);
+        if (template == null) {
+            throw new IllegalArgumentException(String.format("Menu "
+                    + "template \"%s\" is not registered", templateId));
+        }
+        String message = template.render(parameters);
+        getDataBag().set(MENU_PROCESSOR_DATA_KEY, getMenuTemplateReference(
+                template, template.getParameters(parameters)));
+        return render(message, "menuProcessor", autoDialOn);
+    }
+    
+    private String getMenuTemplateReference(MenuTemplate template,
+            Map<String, String> parameters) {
+        String reference = MenuTemplate.REFERENCE_PREFIX + template.getId();
+        if (parameters == null) {
+            return reference;
+        }
+        return reference + MenuTemplate.REFERENCE_PREFIX +
+                getSessionStateCodec().encodeMap(parameters);
+    }
+    
     /**
      * Constructs a ussd response out of a form.
      * @param form the form
@@ -301,8 +461,8 @@ public abstract class UssdController {
             throw new IllegalArgumentException("\"form\" argument cannot "
                     + "be null");
         }
-        String repr = UssdUtils.marshallUssdForm(form);
-        dataBag.set(FORM_PROCESSOR_DATA_KEY, repr);
+        String repr = getSessionStateCodec().encodeForm(form);
+        getDataBag().set(FORM_PROCESSOR_DATA_KEY, repr);
         String message = form.render();
         return render(message, "formProcessor", autoDialOn);
     }
@@ -314,9 +474,14 @@ public abstract class UssdController {
      * choice. Redisplays menu if selected menu choice is invalid.
      */
     public UssdResponse menuProcessor() {
-        UssdMenu menu = getMenu();
+        String repr = getDataBag().get(MENU_PROCESSOR_DATA_KEY);
+        String choice = getRequest().getTrimmedMessage();
+        if (repr != null && repr.length() > 0 &&
+                repr.charAt(0) == MenuTemplate.REFERENCE_PREFIX) {
+            return processMenuTemplateChoice(repr, choice);
+        }
+        UssdMenu menu = getMenu(repr);
         UssdMenuItem chosenItem = null;
-        String choice = request.getTrimmedMessage();
         for (UssdMenuItem item : menu.getItems()) {
             if (item == null) {
                 throw new FrameworkException("Encountered null "
@@ -330,7 +495,37 @@ public abstract class UssdController {
         if (chosenItem == null) {
             return handleInvalidMenuChoice(menu, choice);
         }
-        dataBag.delete(MENU_PROCESSOR_DATA_KEY);
+        getDataBag().delete(MENU_PROCESSOR_DATA_KEY);
+        return redirect(chosenItem.getAction(), chosenItem.getController());
+    }
+    
+    private UssdResponse processMenuTemplateChoice(String reference,
+            String choice) {
+        int end = reference.indexOf(MenuTemplate.REFERENCE_PREFIX, 1);
+        String templateId = end == -1 ? reference.substring(1) :
+                reference.substring(1, end);
+        MenuTemplate template = getMenuTemplateRegistry().get(templateId);
+        if (template == null) {
+            throw new FrameworkException(String.format("Menu template "
+                    + "\"%s\" could not be found.", templateId));
+        }
+        UssdMenuItem chosenItem = template.findItem(choice);
+        if (chosenItem == null) {
+            Map<String, String> parameters = null;
+            if (end != -1) {
+                try {
+                    parameters = getSessionStateCodec().decodeMap(
+                            reference.substring(end + 1));
+                }
+                catch (RuntimeException ex) {
+                    throw new FrameworkException("An error occured while "
+                            + "getting menu template parameters.", ex);
+                }
+            }
+            return handleInvalidMenuChoice(template.toMenu(parameters),
+                    choice);
+        }
+        getDataBag().delete(MENU_PROCESSOR_DATA_KEY);
         return redirect(chosenItem.getAction(), chosenItem.getController());
     }
     
@@ -338,6 +533,10 @@ public abstract class UssdController {
      * Hook for subclasses to override how invalid menu choices are
      * handled. By default invalid menu choices cause a redisplay of
      * the menu, and any auto dial session is ended.
+     * <p>
+     * For a menu template, the menu is created with
+     * {@link MenuTemplate#toMenu(Map)}; rendered unchanged, it is still
+     * kept by reference.
      * 
      * @param menu the menu in which the invalid input was received.
      * @param invalidMenuChoice the invalid choice the app user texted.
@@ -370,18 +569,18 @@ public abstract class UssdController {
         String value;
         if (!input.hasOptions())
         {
-            value = request.getTrimmedMessage();
+            value = getRequest().getTrimmedMessage();
         }
         else
         {
             UssdInput.Option option;
             try {
-                int choice = Integer.parseInt(request.getTrimmedMessage());
+                int choice = Integer.parseInt(getRequest().getTrimmedMessage());
                 option = input.getOptions().get(choice - 1);
             }
             catch (Exception ex) {
                 return handleInvalidFormInputOption(form,
-                        request.getTrimmedMessage());
+                        getRequest().getTrimmedMessage());
             }
             if (option == null) {
                 throw new FrameworkException("Encountered null ussd input "
@@ -392,14 +591,15 @@ public abstract class UssdController {
         form.getData().put(key, value);
         if (form.getProcessingPosition() == (inputs.size() - 1))
         {
-            dataBag.delete(FORM_PROCESSOR_DATA_KEY);
-            String formDataRepr = UssdUtils.marshallMap(form.getData());
-            dataBag.set(FORM_DATA_KEY, formDataRepr);
+            getDataBag().delete(FORM_PROCESSOR_DATA_KEY);
+            String formDataRepr = getSessionStateCodec().encodeMap(
+                    form.getData());
+            getDataBag().set(FORM_DATA_KEY, formDataRepr);
             return redirect(form.getAction(), form.getController());
         }
         form.processingPosition(form.getProcessingPosition()+1);
-        String formRepr = UssdUtils.marshallUssdForm(form);
-        dataBag.set(FORM_PROCESSOR_DATA_KEY, formRepr);
+        String formRepr = getSessionStateCodec().encodeForm(form);
+        getDataBag().set(FORM_PROCESSOR_DATA_KEY, formRepr);
         String message = form.render();
         return render(message, "formProcessor");
     }
@@ -420,11 +620,10 @@ public abstract class UssdController {
         return renderForm(form, false);
     }
     
-    private UssdMenu getMenu() {        
-        String repr = dataBag.get(MENU_PROCESSOR_DATA_KEY);
+    private UssdMenu getMenu(String repr) {
         UssdMenu menu;
         try {
-            menu = UssdUtils.unmarshallUssdMenu(repr);
+            menu = getSessionStateCodec().decodeMenu(repr);
         }
         catch (RuntimeException ex) {
             throw new FrameworkException("An error occured while getting "
@@ -437,10 +636,10 @@ public abstract class UssdController {
     }
     
     private UssdForm getForm() {
-        String repr = dataBag.get(FORM_PROCESSOR_DATA_KEY);
+        String repr = getDataBag().get(FORM_PROCESSOR_DATA_KEY);
         UssdForm form;
         try {
-            form = UssdUtils.unmarshallUssdForm(repr);            
+            form = getSessionStateCodec().decodeForm(repr);            
         }
         catch (RuntimeException ex) {
             throw new FrameworkException("An error occured while getting "
@@ -3,17 +3,43 @@
  */
 package com.smsgh.ussd.framework;
 
+import com.smsgh.ussd.framework.stores.SessionBatch;
 import com.smsgh.ussd.framework.stores.SessionStore;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Map-like class for use inside ussd controllers for persisting data
  * across ussd requests, but within the same ussd session.
+ * <p>
+ * When created by the framework, the UssdDataBag acts as a write-behind
+ * cache for the duration of a ussd request: each value is fetched from
+ * the store at most once, changes are kept in memory, and only the
+ * net changes are written to the store when the request ends.
  * 
  * @author Aaron Baffour-Awuah
  */
 public class UssdDataBag {
     private String dataBagKey;
     private SessionStore store;
+    
+    // Used only when caching for a request. values holds the current
+    // value of each key known in memory, and storedValues the value each
+    // key is known to have in the store; null stands for absence in both.
+    private Map<String, String> values;
+    private Map<String, String> storedValues;
+    private Set<String> dirtyKeys;
+    private boolean cleared;
+    private boolean clearPending;
+    
+    // Counters for SessionCacheStatistics.
+    int storeRoundTrips;
+    int storeReads;
+    int memoryReads;
+    int requestedWrites;
 
     /**
      * Creates new UssdDataBag instance.
@@ -26,6 +52,128 @@ public class UssdDataBag {
         this.store = store;
         this.dataBagKey = dataBagKey;
     }
+    
+    /**
+     * Creates new UssdDataBag instance which may cache its contents in
+     * memory, and hold back its changes until {@link #flush(SessionBatch)}
+     * is called.
+     * 
+     * @param store the backing store for the UssdDataBag contents.
+     * @param dataBagKey the key under which the UssdDataBag is stored in the
+     * backing store.
+     * @param writeBehind whether to cache contents and hold back changes,
+     * or to behave like a UssdDataBag created with the public constructor.
+     */
+    UssdDataBag(SessionStore store, String dataBagKey, boolean writeBehind) {
+        this(store, dataBagKey);
+        if (writeBehind) {
+            this.values = new HashMap<String, String>();
+            this.storedValues = new HashMap<String, String>();
+            this.dirtyKeys = new LinkedHashSet<String>();
+        }
+    }
+    
+    /**
+     * Tells whether the value of a key is already held in memory.
+     * @param key
+     * @return true if value of key need not be fetched from store.
+     */
+    boolean isKnown(String key) {
+        return values != null && (cleared || values.containsKey(key));
+    }
+    
+    /**
+     * Records the value of a key fetched from store by the framework.
+     * @param key
+     * @param value value of key, or null if key does not exist.
+     */
+    void remember(String key, String value) {
+        values.put(key, value);
+        storedValues.put(key, value);
+    }
+    
+    /**
+     * Replaces the contents held in memory with the whole contents of the
+     * data bag, e.g. as decoded from ClientState, so that any other key is
+     * known not to exist.
+     * @param contents all key-value pairs of the data bag.
+     */
+    void load(Map<String, String> contents) {
+        values.clear();
+        storedValues.clear();
+        dirtyKeys.clear();
+        values.putAll(contents);
+        storedValues.putAll(contents);
+        cleared = true;
+        clearPending = false;
+    }
+
+    /**
+     * Tells whether all the contents of the data bag are held in memory,
+     * because they were loaded or cleared during the request.
+     * @return true if {@link #snapshot()} can be called.
+     */
+    boolean isComplete() {
+        return values != null && cleared;
+    }
+
+    /**
+     * Gets all the contents of the data bag. May only be called if
+     * {@link #isComplete()}.
+     * @return key-value pairs of the data bag.
+     */
+    Map<String, String> snapshot() {
+        Map<String, String> contents = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                contents.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Adds to a batch the writes needed to bring the store up to date
+     * with the changes held in memory. Changes which leave a key as
+     * the store is known to have it are dropped.
+     * 
+     * @param batch the batch which receives writes.
+     */
+    void flush(SessionBatch batch) {
+        if (values == null) {
+            return;
+        }
+        if (clearPending) {
+            batch.deleteHash(dataBagKey);
+            clearPending = false;
+        }
+        for (String key : dirtyKeys) {
+            String value = values.get(key);
+            boolean storedValueKnown = cleared ||
+                    storedValues.containsKey(key);
+            if (storedValueKnown && equal(value, storedValues.get(key))) {
+                continue;
+            }
+            if (value == null) {
+                batch.deleteHashValue(dataBagKey, key);
+            }
+            else {
+                batch.setHashValue(dataBagKey, key, value);
+            }
+            storedValues.put(key, value);
+        }
+        dirtyKeys.clear();
+    }
+    
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+    
+    private void change(String key, String value) {
+        requestedWrites++;
+        values.put(key, value);
+        dirtyKeys.add(key);
+    }
 
     /**
      * Gets the value associated with a key.
@@ -33,7 +181,18 @@ public class UssdDataBag {
      * @return value of existing key-value pair, or null if key does not exist.
      */
     public String get(String key) {
-        return store.getHashValue(dataBagKey, key);
+        if (values == null) {
+            return store.getHashValue(dataBagKey, key);
+        }
+        if (isKnown(key)) {
+            memoryReads++;
+        }
+        else {
+            storeRoundTrips++;
+            storeReads++;
+            remember(key, store.getHashValue(dataBagKey, key));
+        }
+        return values.get(key);
     }
 
     /**
@@ -43,7 +202,10 @@ public class UssdDataBag {
      * @return true if and only if key exists as part of some key-value pair.
      */
     public boolean exists(String key) {
-        return store.hashValueExists(dataBagKey, key);
+        if (values == null) {
+            return store.hashValueExists(dataBagKey, key);
+        }
+        return get(key) != null;
     }
 
     /**
@@ -54,7 +216,11 @@ public class UssdDataBag {
      * @param value the new value to be associated with the key.
      */
     public void set(String key, String value) {
-        store.setHashValue(dataBagKey, key, value);
+        if (values == null) {
+            store.setHashValue(dataBagKey, key, value);
+            return;
+        }
+        change(key, value);
     }
 
     /**
@@ -62,13 +228,26 @@ public class UssdDataBag {
      * @param key the key of the pair to delete.
      */
     public void delete(String key) {
-        store.deleteHashValue(dataBagKey, key);
+        if (values == null) {
+            store.deleteHashValue(dataBagKey, key);
+            return;
+        }
+        change(key, null);
     }
 
     /**
      * Deletes all the contents of the UssdDataBag instance.
      */
     public void clear() {
-        store.deleteHash(dataBagKey);
+        if (values == null) {
+            store.deleteHash(dataBagKey);
+            return;
+        }
+        requestedWrites++;
+        values.clear();
+        storedValues.clear();
+        dirtyKeys.clear();
+        cleared = true;
+        clearPending = true;
     }
 }
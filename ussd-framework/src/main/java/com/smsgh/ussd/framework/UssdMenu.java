@@ -4,6 +4,7 @@
 package com.smsgh.ussd.framework;
 
 import java.util.ArrayList;
+import java.util.Map;
 
 /**
  * Used to display menus in ussd apps.
@@ -27,6 +28,11 @@ public class UssdMenu {
     private String footer;
     private String message;
     private ArrayList<UssdMenuItem> items;
+    
+    // Template the menu was created from, if any, to which a reference
+    // is kept in the data bag instead of the menu. Not serialized.
+    transient MenuTemplate template;
+    transient Map<String, String> templateParameters;
 
     /**
      * Creates a new instance with an empty list of
@@ -20,6 +20,9 @@ public class UssdRequest {
     
     public static final String REQUEST_TYPE_TIMEOUT = "Timeout";
 
+    // Gson instances are thread-safe, so one is shared by all requests.
+    private static final Gson GSON = new Gson();
+
     /**
      * Creates new UssdRequest instance.
      */
@@ -54,11 +57,15 @@ public class UssdRequest {
     private transient int autoDialIndex;
     
     public static UssdRequest fromJson(String json) {
-        Gson gson = new Gson();
-        UssdRequest instance = gson.fromJson(json, UssdRequest.class);
+        UssdRequest instance = GSON.fromJson(json, UssdRequest.class);
         return instance;
     }
     
+    public static String toJson(UssdRequest instance) {
+        String json = GSON.toJson(instance);
+        return json;
+    }
+    
     /**
      * Tells whether or not the ussd request was manufactured from
      * a ussd initiation message during auto dial processing.
@@ -177,9 +184,12 @@ public class UssdRequest {
     }
 
     /**
-     * Currently not used by framework. See SMSGH USSD documentation 
-     * for details.
+     * Gets the ClientState of the previous response of the session. Holds
+     * the session if sessions are kept in ClientState, and otherwise not
+     * used by framework. See SMSGH USSD documentation for details.
      * @return 
+     * 
+     * @see Ussd#clientStateCodec(ClientStateCodec)
      */
     public String getClientState() {
         return clientState;
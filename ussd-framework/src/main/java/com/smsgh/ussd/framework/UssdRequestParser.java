@@ -0,0 +1,600 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Parses the JSON of ussd requests straight from an input stream, without
+ * reading the body into a string first or binding fields by reflection.
+ * Used by {@link Ussd#fetchRequest(javax.servlet.http.HttpServletRequest)}.
+ * <p>
+ * The body is decoded from UTF-8 a buffer at a time, with malformed input
+ * replaced as {@link java.io.InputStreamReader} replaces it. Only the
+ * eight fields of {@link UssdRequest} are turned into strings; other
+ * fields are skipped. Values are converted as Gson converts them: numbers
+ * and booleans given for string fields are kept as text, Sequence may be
+ * given as a string, nulls leave fields at their defaults, and the last of
+ * duplicate fields wins. Input must otherwise be strict JSON.
+ * <p>
+ * Bodies longer than the maximum length are rejected as soon as that
+ * length is exceeded, without reading the rest of them.
+ * <p>
+ * Instances keep their buffers between calls, and so are not safe for
+ * use by multiple threads.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class UssdRequestParser {
+
+    /**
+     * The default maximum length in bytes of request bodies, which is
+     * several times that of requests with the longest ClientState.
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16384;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 4096;
+
+    // Limit on nesting of skipped values, so that hostile input cannot
+    // exhaust the stack.
+    private static final int MAX_DEPTH = 64;
+
+    private static final String[] FIELD_NAMES = { "Mobile", "SessionId",
+        "ServiceCode", "Type", "Message", "Operator", "Sequence",
+        "ClientState" };
+    private static final int SEQUENCE_FIELD = 6;
+
+    private final int maxLength;
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuilder text = new StringBuilder();
+    private final String[] values = new String[FIELD_NAMES.length];
+
+    private InputStream in;
+    private int length;
+    private boolean endOfInput;
+    private boolean flushed;
+
+    /**
+     * Creates a parser accepting bodies of up to
+     * {@link #DEFAULT_MAX_LENGTH} bytes.
+     */
+    public UssdRequestParser() {
+        this(DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Creates a parser.
+     *
+     * @param maxLength maximum length in bytes of request bodies.
+     *
+     * @exception java.lang.IllegalArgumentException if maxLength is not
+     * positive.
+     */
+    public UssdRequestParser(int maxLength) {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("\"maxLength\" argument "
+                    + "must be positive. Received " + maxLength);
+        }
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Gets the maximum length of request bodies.
+     *
+     * @return maximum length in bytes.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Parses a ussd request.
+     *
+     * @param in request body. Read to its end, but not closed.
+     *
+     * @return parsed request, or null if body is empty or the JSON null
+     * literal.
+     *
+     * @throws IOException if body cannot be read, is not a JSON object, or
+     * is longer than the maximum length.
+     */
+    public UssdRequest parse(InputStream in) throws IOException {
+        UssdRequest request = new UssdRequest();
+        return parse(in, request) ? request : null;
+    }
+
+    /**
+     * Parses a ussd request into an existing instance, e.g. one being
+     * reused. All fields of the instance are set, to their defaults if
+     * the body does not have them.
+     *
+     * @param in request body. Read to its end, but not closed.
+     * @param request destination of parsed request.
+     *
+     * @return false if body is empty or the JSON null literal, in which
+     * case request is left unchanged.
+     *
+     * @throws IOException if body cannot be read, is not a JSON object, or
+     * is longer than the maximum length.
+     *
+     * @exception java.lang.IllegalArgumentException if in or request is
+     * null.
+     */
+    public boolean parse(InputStream in, UssdRequest request)
+            throws IOException {
+        if (in == null) {
+            throw new IllegalArgumentException("\"in\" argument "
+                    + "cannot be null");
+        }
+        if (request == null) {
+            throw new IllegalArgumentException("\"request\" argument "
+                    + "cannot be null");
+        }
+        reset(in);
+        try {
+            int c = nextNonWhitespace();
+            if (c == -1) {
+                return false;
+            }
+            if (c == 'n') {
+                expectLiteral("null");
+                expectEnd();
+                return false;
+            }
+            if (c != '{') {
+                throw syntaxError("Expected a JSON object", c);
+            }
+            int sequence = readObject();
+            expectEnd();
+            request.setMobile(values[0]);
+            request.setSessionId(values[1]);
+            request.setServiceCode(values[2]);
+            request.setType(values[3]);
+            request.setMessage(values[4]);
+            request.setOperator(values[5]);
+            request.setSequence(sequence);
+            request.setClientState(values[7]);
+            request.setAutoDialOriginated(false);
+            request.setAutoDialIndex(0);
+            return true;
+        }
+        finally {
+            // Drop references to stream and request data.
+            this.in = null;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+            if (text.capacity() > BUFFER_SIZE) {
+                text.setLength(0);
+                text.trimToSize();
+            }
+        }
+    }
+
+    private void reset(InputStream in) {
+        this.in = in;
+        length = 0;
+        endOfInput = false;
+        flushed = false;
+        decoder.reset();
+        byteBuffer.clear();
+        byteBuffer.flip();
+        chars.clear();
+        chars.flip();
+    }
+
+    /**
+     * Reads the fields of an object whose opening brace has been read.
+     *
+     * @return value of Sequence field.
+     */
+    private int readObject() throws IOException {
+        int sequence = 0;
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return sequence;
+        }
+        while (true) {
+            if (c != '"') {
+                throw syntaxError("Expected a field name", c);
+            }
+            readString();
+            int field = -1;
+            for (int i = 0; i < FIELD_NAMES.length; i++) {
+                if (textEquals(FIELD_NAMES[i])) {
+                    field = i;
+                    break;
+                }
+            }
+            c = nextNonWhitespace();
+            if (c != ':') {
+                throw syntaxError("Expected ':'", c);
+            }
+            c = nextNonWhitespace();
+            if (field == -1) {
+                skipValue(c, 0);
+            }
+            else if (field == SEQUENCE_FIELD) {
+                Integer value = readInt(c);
+                if (value != null) {
+                    sequence = value;
+                }
+            }
+            else {
+                values[field] = readStringValue(c);
+            }
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return sequence;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'", c);
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads a value for a string field, whose first character has been
+     * read.
+     *
+     * @return value, or null for the null literal.
+     */
+    private String readStringValue(int c) throws IOException {
+        if (c == '"') {
+            readString();
+            return text.toString();
+        }
+        if (c == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        if (c == 't') {
+            expectLiteral("true");
+            return "true";
+        }
+        if (c == 'f') {
+            expectLiteral("false");
+            return "false";
+        }
+        if (isNumberStart(c)) {
+            readNumber(c);
+            checkNumber();
+            return text.toString();
+        }
+        throw syntaxError("Expected a string", c);
+    }
+
+    /**
+     * Reads a value for an int field, whose first character has been read.
+     *
+     * @return value, or null for the null literal.
+     */
+    private Integer readInt(int c) throws IOException {
+        if (c == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        if (c == '"') {
+            readString();
+        }
+        else if (isNumberStart(c)) {
+            readNumber(c);
+        }
+        else {
+            throw syntaxError("Expected an int", c);
+        }
+        String number = text.toString();
+        try {
+            return Integer.parseInt(number);
+        }
+        catch (NumberFormatException ex) {
+            // Fall through, to accept integral values like 1.0 and 1e2.
+        }
+        double value;
+        try {
+            value = Double.parseDouble(number);
+        }
+        catch (NumberFormatException ex) {
+            throw new IOException("Expected an int but was: " + number);
+        }
+        int intValue = (int)value;
+        if (intValue != value) {
+            throw new IOException("Expected an int but was: " + number);
+        }
+        return intValue;
+    }
+
+    private void skipValue(int c, int depth) throws IOException {
+        if (depth >= MAX_DEPTH) {
+            throw new IOException("JSON is nested too deeply");
+        }
+        if (c == '{') {
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return;
+            }
+            while (true) {
+                if (c != '"') {
+                    throw syntaxError("Expected a field name", c);
+                }
+                skipString();
+                c = nextNonWhitespace();
+                if (c != ':') {
+                    throw syntaxError("Expected ':'", c);
+                }
+                skipValue(nextNonWhitespace(), depth + 1);
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or '}'", c);
+                }
+                c = nextNonWhitespace();
+            }
+        }
+        else if (c == '[') {
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return;
+            }
+            while (true) {
+                skipValue(c, depth + 1);
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'", c);
+                }
+                c = nextNonWhitespace();
+            }
+        }
+        else if (c == '"') {
+            skipString();
+        }
+        else if (c == 'n') {
+            expectLiteral("null");
+        }
+        else if (c == 't') {
+            expectLiteral("true");
+        }
+        else if (c == 'f') {
+            expectLiteral("false");
+        }
+        else if (isNumberStart(c)) {
+            readNumber(c);
+            checkNumber();
+        }
+        else {
+            throw syntaxError("Expected a value", c);
+        }
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been read into
+     * the text buffer.
+     */
+    private void readString() throws IOException {
+        text.setLength(0);
+        while (true) {
+            if (!chars.hasRemaining() && !fill()) {
+                throw new IOException("Unterminated string");
+            }
+            // Copy runs of plain characters in one go.
+            int start = chars.position();
+            int end = chars.limit();
+            int i = start;
+            char[] array = chars.array();
+            while (i < end && array[i] != '"' && array[i] != '\\') {
+                i++;
+            }
+            text.append(array, start, i - start);
+            chars.position(i);
+            if (i == end) {
+                continue;
+            }
+            chars.get();
+            if (array[i] == '"') {
+                return;
+            }
+            text.append(readEscape());
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = next();
+            if (c == -1) {
+                throw new IOException("Unterminated string");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                readEscape();
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = next();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+            case '\'':
+                return (char)c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit == -1) {
+                        throw new IOException("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char)value;
+            default:
+                throw syntaxError("Invalid escape sequence", c);
+        }
+    }
+
+    private static boolean isNumberStart(int c) {
+        return c == '-' || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Reads the rest of a number whose first character has been read into
+     * the text buffer, as it was written.
+     */
+    private void readNumber(int c) throws IOException {
+        text.setLength(0);
+        text.append((char)c);
+        while (true) {
+            c = peek();
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' ||
+                    c == 'E' || c == '+' || c == '-') {
+                text.append((char)next());
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private void checkNumber() throws IOException {
+        try {
+            Double.parseDouble(text.toString());
+        }
+        catch (NumberFormatException ex) {
+            throw new IOException("Invalid number: " + text);
+        }
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+        // First character has been read.
+        for (int i = 1; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) {
+                throw new IOException("Expected " + literal);
+            }
+        }
+        int c = peek();
+        if (Character.isLetterOrDigit(c)) {
+            throw new IOException("Expected " + literal);
+        }
+    }
+
+    private void expectEnd() throws IOException {
+        int c = nextNonWhitespace();
+        if (c != -1) {
+            throw syntaxError("JSON document was not fully consumed", c);
+        }
+    }
+
+    private boolean textEquals(String s) {
+        if (text.length() != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (text.charAt(i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static IOException syntaxError(String message, int c) {
+        return new IOException(c == -1 ? message + " but reached end of "
+                + "input" : String.format("%s but found '%c'", message,
+                        (char)c));
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = next();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+    }
+
+    private int next() throws IOException {
+        if (!chars.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return chars.get();
+    }
+
+    private int peek() throws IOException {
+        if (!chars.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return chars.get(chars.position());
+    }
+
+    /**
+     * Decodes more characters into the empty character buffer, reading
+     * more bytes as needed.
+     *
+     * @return false if input has ended.
+     */
+    private boolean fill() throws IOException {
+        chars.clear();
+        while (chars.position() == 0 && !flushed) {
+            if (!endOfInput) {
+                byteBuffer.compact();
+                int n = in.read(bytes, byteBuffer.position(),
+                        byteBuffer.remaining());
+                if (n == -1) {
+                    endOfInput = true;
+                }
+                else {
+                    length += n;
+                    if (length > maxLength) {
+                        throw new IOException(String.format("Request body "
+                                + "is longer than %d bytes", maxLength));
+                    }
+                    byteBuffer.position(byteBuffer.position() + n);
+                }
+                byteBuffer.flip();
+            }
+            CoderResult result = decoder.decode(byteBuffer, chars,
+                    endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (endOfInput && !byteBuffer.hasRemaining()) {
+                decoder.flush(chars);
+                flushed = true;
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+}
@@ -71,9 +71,13 @@ public class UssdResponse {
     }
 
     /**
-     * Currently not used by framework. See SMSGH USSD documentation 
+     * Gets the state which SMSGH sends back with the next request of the
+     * session. Set by the framework if sessions are kept in ClientState,
+     * and otherwise not used by framework. See SMSGH USSD documentation 
      * for details.
      * @return 
+     * 
+     * @see Ussd#clientStateCodec(ClientStateCodec)
      */
     public String getClientState() {
         return clientState;
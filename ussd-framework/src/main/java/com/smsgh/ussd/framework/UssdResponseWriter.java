@@ -0,0 +1,226 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the JSON of ussd responses as UTF-8 straight into a byte buffer
+ * kept by the current thread, for sending in a single write. Used by
+ * {@link Ussd#sendResponse(UssdResponse,
+ * javax.servlet.http.HttpServletResponse)}.
+ * <p>
+ * The output is byte for byte that of {@link UssdResponse#toJson(
+ * UssdResponse)} encoded as UTF-8: fields in the order Type, Message and
+ * ClientState, null fields left out, and strings escaped as Gson escapes
+ * them by default, including its escaping of HTML characters. Unpaired
+ * surrogates are written as '?', as String.getBytes() writes them.
+ * <p>
+ * A writer uses the buffer of its thread until it is discarded, so a
+ * thread must only use one writer at a time.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class UssdResponseWriter {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // Buffers which have grown past this are not kept, so that a rare
+    // large response does not hold on to memory.
+    private static final int MAX_KEPT_CAPACITY = 65536;
+
+    // Holds byte arrays only, which keep no application classes alive.
+    private static final ThreadLocal<byte[]> BUFFERS =
+            new ThreadLocal<byte[]>();
+
+    // Length of longest escape sequence, e.g. \u003c.
+    private static final int MAX_BYTES_PER_CHAR = 6;
+
+    private static final byte[][] ESCAPES = new byte[128][];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = unicodeEscape(c);
+        }
+        ESCAPES['\t'] = ascii("\\t");
+        ESCAPES['\b'] = ascii("\\b");
+        ESCAPES['\n'] = ascii("\\n");
+        ESCAPES['\r'] = ascii("\\r");
+        ESCAPES['\f'] = ascii("\\f");
+        ESCAPES['"'] = ascii("\\\"");
+        ESCAPES['\\'] = ascii("\\\\");
+        for (char c : "<>&='".toCharArray()) {
+            ESCAPES[c] = unicodeEscape(c);
+        }
+    }
+
+    private static final byte[] TYPE_NAME = ascii("\"Type\":");
+    private static final byte[] MESSAGE_NAME = ascii("\"Message\":");
+    private static final byte[] CLIENT_STATE_NAME = ascii(
+            "\"ClientState\":");
+
+    private byte[] bytes;
+    private int length;
+
+    /**
+     * Creates a writer using the buffer of the current thread.
+     */
+    UssdResponseWriter() {
+        bytes = BUFFERS.get();
+        if (bytes == null) {
+            bytes = new byte[INITIAL_CAPACITY];
+            BUFFERS.set(bytes);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte)s.charAt(i);
+        }
+        return b;
+    }
+
+    private static byte[] unicodeEscape(int c) {
+        return ascii(String.format("\\u%04x", c));
+    }
+
+    /**
+     * Writes the JSON of a response over anything written before.
+     *
+     * @param response response to write.
+     *
+     * @return this writer.
+     *
+     * @exception java.lang.IllegalArgumentException if response is null.
+     */
+    UssdResponseWriter write(UssdResponse response) {
+        if (response == null) {
+            throw new IllegalArgumentException("\"response\" argument "
+                    + "cannot be null");
+        }
+        length = 0;
+        ensureCapacity(2);
+        bytes[length++] = '{';
+        boolean first = writeField(TYPE_NAME, response.getType(), true);
+        first = writeField(MESSAGE_NAME, response.getMessage(), first);
+        writeField(CLIENT_STATE_NAME, response.getClientState(), first);
+        ensureCapacity(1);
+        bytes[length++] = '}';
+        return this;
+    }
+
+    /**
+     * Gets the buffer holding the JSON written.
+     *
+     * @return buffer, of which the first {@link #getLength()} bytes are
+     * valid.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the length of the JSON written.
+     *
+     * @return length in bytes.
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Writes the JSON written to a stream in one call.
+     *
+     * @param out destination stream.
+     *
+     * @throws IOException if writing fails.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    private boolean writeField(byte[] name, String value, boolean first) {
+        if (value == null) {
+            return first;
+        }
+        ensureCapacity(name.length + 3 + value.length() * MAX_BYTES_PER_CHAR);
+        if (!first) {
+            bytes[length++] = ',';
+        }
+        System.arraycopy(name, 0, bytes, length, name.length);
+        length += name.length;
+        bytes[length++] = '"';
+        writeString(value);
+        bytes[length++] = '"';
+        return false;
+    }
+
+    private void writeString(String value) {
+        byte[] b = bytes;
+        int n = length;
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    b[n++] = (byte)c;
+                }
+                else {
+                    System.arraycopy(escape, 0, b, n, escape.length);
+                    n += escape.length;
+                }
+            }
+            else if (c < 0x800) {
+                b[n++] = (byte)(0xc0 | (c >> 6));
+                b[n++] = (byte)(0x80 | (c & 0x3f));
+            }
+            else if (c == '\u2028' || c == '\u2029') {
+                byte[] escape = unicodeEscape(c);
+                System.arraycopy(escape, 0, b, n, escape.length);
+                n += escape.length;
+            }
+            else if (c >= '\ud800' && c <= '\udfff') {
+                char low = i + 1 < count ? value.charAt(i + 1) : 0;
+                if (c <= '\udbff' && low >= '\udc00' && low <= '\udfff') {
+                    int codePoint = ((c - 0xd800) << 10) + (low - 0xdc00) +
+                            0x10000;
+                    b[n++] = (byte)(0xf0 | (codePoint >> 18));
+                    b[n++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+                    b[n++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+                    b[n++] = (byte)(0x80 | (codePoint & 0x3f));
+                    i++;
+                }
+                else {
+                    b[n++] = '?';
+                }
+            }
+            else {
+                b[n++] = (byte)(0xe0 | (c >> 12));
+                b[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        length = n;
+    }
+
+    private void ensureCapacity(int extra) {
+        int needed = length + extra;
+        if (needed <= bytes.length) {
+            return;
+        }
+        int capacity = bytes.length;
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        byte[] grown = new byte[capacity];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+        if (capacity <= MAX_KEPT_CAPACITY) {
+            BUFFERS.set(grown);
+        }
+    }
+}
@@ -3,51 +3,41 @@
  */
 package com.smsgh.ussd.framework;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import java.lang.reflect.Type;
 import java.util.Map;
 
 /**
+ * Marshalls menus, forms and form data to and from the JSON of
+ * {@link JsonSessionStateCodec}. Unmarshalling accepts what
+ * {@link CompactSessionStateCodec} writes as well.
  *
  * @author aaron
  */
 public class UssdUtils {
     
+    private static final SessionStateCodec JSON_CODEC =
+            new JsonSessionStateCodec();
+    
     public static String marshallUssdForm(UssdForm form) {
-        Gson gson = new Gson();
-        String repr = gson.toJson(form);
-        return repr;
+        return JSON_CODEC.encodeForm(form);
     }
     
     public static UssdForm unmarshallUssdForm(String repr) {
-        Gson gson = new Gson();
-        UssdForm form = gson.fromJson(repr, UssdForm.class);
-        return form;
+        return JSON_CODEC.decodeForm(repr);
     }
     
     public static String marshallUssdMenu(UssdMenu menu) {
-        Gson gson = new Gson();
-        String repr = gson.toJson(menu);
-        return repr;
+        return JSON_CODEC.encodeMenu(menu);
     }
     
     public static UssdMenu unmarshallUssdMenu(String repr) {
-        Gson gson = new Gson();
-        UssdMenu menu = gson.fromJson(repr, UssdMenu.class);
-        return menu;
+        return JSON_CODEC.decodeMenu(repr);
     }
     
     public static String marshallMap(Map<String, String> map) {
-        Gson gson = new Gson();
-        String repr = gson.toJson(map);
-        return repr;
+        return JSON_CODEC.encodeMap(map);
     }
     
     public static Map<String, String> unmarshallMap(String repr) {
-        Gson gson = new Gson();
-        Type type = new TypeToken<Map<String, String>>(){}.getType();
-        Map<String, String> map = gson.fromJson(repr, type);
-        return map;
+        return JSON_CODEC.decodeMap(repr);
     }
 }
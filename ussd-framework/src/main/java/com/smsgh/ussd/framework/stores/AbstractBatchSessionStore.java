@@ -0,0 +1,131 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+/**
+ * Base class for stores which carry out all their operations in batches,
+ * e.g. because every call to them costs a network round trip. Each
+ * {@link SessionStore} method is implemented by executing a batch
+ * with a single operation.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public abstract class AbstractBatchSessionStore implements BatchSessionStore {
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getHashValue(String name, String key) {
+        SessionBatch batch = new SessionBatch();
+        batch.getHashValue(name, key);
+        execute(batch);
+        return batch.getString(0);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        SessionBatch batch = new SessionBatch();
+        batch.setHashValue(name, key, value);
+        execute(batch);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashExists(String name) {
+        SessionBatch batch = new SessionBatch();
+        batch.hashExists(name);
+        execute(batch);
+        return batch.getBoolean(0);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashValueExists(String name, String key) {
+        SessionBatch batch = new SessionBatch();
+        batch.hashValueExists(name, key);
+        execute(batch);
+        return batch.getBoolean(0);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHash(String name) {
+        SessionBatch batch = new SessionBatch();
+        batch.deleteHash(name);
+        execute(batch);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHashValue(String name, String key) {
+        SessionBatch batch = new SessionBatch();
+        batch.deleteHashValue(name, key);
+        execute(batch);
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String value) {
+        SessionBatch batch = new SessionBatch();
+        batch.setValue(key, value);
+        execute(batch);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getValue(String key) {
+        SessionBatch batch = new SessionBatch();
+        batch.getValue(key);
+        execute(batch);
+        return batch.getString(0);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean valueExists(String key) {
+        SessionBatch batch = new SessionBatch();
+        batch.valueExists(key);
+        execute(batch);
+        return batch.getBoolean(0);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteValue(String key) {
+        SessionBatch batch = new SessionBatch();
+        batch.deleteValue(key);
+        execute(batch);
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+    }
+}
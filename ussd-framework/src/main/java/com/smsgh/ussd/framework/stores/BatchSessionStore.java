@@ -0,0 +1,25 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+/**
+ * Implemented by session stores which can carry out a
+ * {@link SessionBatch} of operations better than one at a time, e.g.
+ * atomically, or in a single network round trip.
+ * <p>
+ * Stores which do not implement this interface still support batches,
+ * through {@link SessionBatch#executeEach(SessionStore)}.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public interface BatchSessionStore extends SessionStore {
+
+    /**
+     * Carries out all the operations of a batch in order, and sets the
+     * result of each read operation on it.
+     *
+     * @param batch the operations to carry out.
+     */
+    void execute(SessionBatch batch);
+}
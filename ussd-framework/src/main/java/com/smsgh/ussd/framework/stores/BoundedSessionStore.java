@@ -0,0 +1,612 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe in-memory session store which bounds both the number of
+ * sessions it holds and their estimated size in bytes, in addition to
+ * expiring them after a sliding time period. Designed to be used as a
+ * singleton per Ussd application, in place of
+ * {@link ConcurrentInMemorySessionStore} wherever a burst of traffic could
+ * otherwise grow the heap until the timeout catches up with it.
+ * <p>
+ * All keys sharing the part before their last '.' (the mobile number, for
+ * the keys used by the framework) belong to one session, and sessions are
+ * evicted as a whole under a segmented LRU policy. A session starts out in
+ * the probation segment, and moves to the protected segment once it is
+ * read and found to exist, i.e. once a second request of a ussd session
+ * arrives. The protected segment is limited to
+ * {@link #PROTECTED_PERCENT} percent of the bounds, beyond which its
+ * least recently used sessions are moved back to probation; sessions are
+ * evicted from probation first. Hence freshly initiated sessions, such as
+ * a flood of dials which are never answered, can only displace each
+ * other, while sessions which are mid-flow are kept.
+ * <p>
+ * Sizes are estimates for a 64-bit JVM with compressed references, good
+ * enough to bound memory use rather than to measure it exactly.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class BoundedSessionStore implements BatchSessionStore {
+
+    /**
+     * The percentage of the session and byte bounds which sessions in the
+     * protected segment can take up.
+     */
+    public static final int PROTECTED_PERCENT = 80;
+
+    // Estimated sizes of a session record with its maps and linked hash
+    // map entry, of a hash map entry, and of a string without its chars.
+    static final int SESSION_OVERHEAD_BYTES = 200;
+    static final int ENTRY_OVERHEAD_BYTES = 40;
+    static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final Map<String, Session> probation =
+            new LinkedHashMap<String, Session>(16, 0.75f, true);
+    private final Map<String, Session> protectedSessions =
+            new LinkedHashMap<String, Session>(16, 0.75f, true);
+    private final int timeoutInMillis;
+    private final int maxSessions;
+    private final long maxBytes;
+    private final int maxProtectedSessions;
+    private final long maxProtectedBytes;
+    private final Clock clock;
+
+    private long bytes;
+    private long protectedBytes;
+    private long evictionCount;
+    private long midFlowEvictionCount;
+    private long expiredCount;
+
+    /**
+     * Holds all entries of a session, with the bookkeeping for its
+     * eviction.
+     */
+    private static class Session {
+        final String key;
+        // A name is either in values or in hashes, never in both.
+        final Map<String, String> values = new HashMap<String, String>(4);
+        final Map<String, Map<String, String>> hashes =
+                new HashMap<String, Map<String, String>>(2);
+        long bytes;
+        long lastAccess;
+        boolean isProtected;
+
+        Session(String key) {
+            this.key = key;
+            this.bytes = SESSION_OVERHEAD_BYTES + stringBytes(key);
+        }
+
+        boolean isEmpty() {
+            return values.isEmpty() && hashes.isEmpty();
+        }
+
+        boolean contains(String name) {
+            return values.containsKey(name) || hashes.containsKey(name);
+        }
+
+        /**
+         * Removes the value or hash of a name.
+         *
+         * @return estimated size of what was removed.
+         */
+        long remove(String name) {
+            if (values.containsKey(name)) {
+                return valueBytes(name, values.remove(name));
+            }
+            Map<String, String> hash = hashes.remove(name);
+            return hash != null ? hashBytes(name, hash) : 0;
+        }
+    }
+
+    /**
+     * Creates a new bounded session store.
+     *
+     * @param timeoutInMillis the sliding expiration time of sessions in the
+     * store in milliseconds.
+     * @param maxSessions the maximum number of sessions to hold.
+     * @param maxBytes the maximum estimated size of all sessions held.
+     *
+     * @exception java.lang.IllegalArgumentException  if any argument is
+     * not positive.
+     */
+    public BoundedSessionStore(int timeoutInMillis, int maxSessions,
+            long maxBytes) {
+        this(timeoutInMillis, maxSessions, maxBytes, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new bounded session store which uses the given clock to
+     * expire its sessions.
+     *
+     * @param timeoutInMillis the sliding expiration time of sessions in the
+     * store in milliseconds.
+     * @param maxSessions the maximum number of sessions to hold.
+     * @param maxBytes the maximum estimated size of all sessions held.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis,
+     * maxSessions or maxBytes is not positive, or if clock is null.
+     */
+    public BoundedSessionStore(int timeoutInMillis, int maxSessions,
+            long maxBytes, Clock clock) {
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("\"maxSessions\" argument "
+                    + "must be positive. Received " + maxSessions);
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("\"maxBytes\" argument "
+                    + "must be positive. Received " + maxBytes);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        this.timeoutInMillis = timeoutInMillis;
+        this.maxSessions = maxSessions;
+        this.maxBytes = maxBytes;
+        this.maxProtectedSessions = (int)((long)maxSessions *
+                PROTECTED_PERCENT / 100);
+        this.maxProtectedBytes = maxBytes / 100 * PROTECTED_PERCENT;
+        this.clock = clock;
+    }
+
+    private static long stringBytes(String s) {
+        return s == null ? 0 : STRING_OVERHEAD_BYTES + 2L * s.length();
+    }
+
+    private static long valueBytes(String key, String value) {
+        return ENTRY_OVERHEAD_BYTES + stringBytes(key) + stringBytes(value);
+    }
+
+    private static long hashBytes(String name, Map<String, String> hash) {
+        long size = ENTRY_OVERHEAD_BYTES + stringBytes(name) +
+                SESSION_OVERHEAD_BYTES / 4;
+        for (Map.Entry<String, String> field : hash.entrySet()) {
+            size += ENTRY_OVERHEAD_BYTES + stringBytes(field.getKey()) +
+                    stringBytes(field.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Gets the session a key belongs to.
+     *
+     * @param key store key or hash name.
+     *
+     * @return the part of key before its last '.', or the whole key if it
+     * has no '.' after its first character.
+     */
+    protected String getSessionKey(String key) {
+        int dot = key.lastIndexOf('.');
+        return dot > 0 ? key.substring(0, dot) : key;
+    }
+
+    /**
+     * Finds the live session which a key belongs to, marking it as most
+     * recently used.
+     */
+    private Session find(String key) {
+        long now = clock.currentTimeMillis();
+        expire(now);
+        String sessionKey = getSessionKey(key);
+        Session session = protectedSessions.get(sessionKey);
+        if (session == null) {
+            session = probation.get(sessionKey);
+        }
+        if (session != null) {
+            // Sessions demoted from the protected segment may have expired
+            // away from the least recently used end of probation.
+            if (session.lastAccess + timeoutInMillis <= now) {
+                remove(session);
+                expiredCount++;
+                return null;
+            }
+            session.lastAccess = now;
+        }
+        return session;
+    }
+
+    private Session findOrCreate(String key) {
+        Session session = find(key);
+        if (session == null) {
+            session = new Session(getSessionKey(key));
+            session.lastAccess = clock.currentTimeMillis();
+            probation.put(session.key, session);
+            bytes += session.bytes;
+        }
+        return session;
+    }
+
+    /**
+     * Moves a session found to exist by a read into the protected segment.
+     */
+    private void promote(Session session) {
+        if (session.isProtected) {
+            return;
+        }
+        probation.remove(session.key);
+        protectedSessions.put(session.key, session);
+        session.isProtected = true;
+        protectedBytes += session.bytes;
+        while (protectedSessions.size() > maxProtectedSessions ||
+                protectedBytes > maxProtectedBytes) {
+            Session eldest = eldest(protectedSessions);
+            if (eldest == session) {
+                break;
+            }
+            protectedSessions.remove(eldest.key);
+            eldest.isProtected = false;
+            protectedBytes -= eldest.bytes;
+            probation.put(eldest.key, eldest);
+        }
+    }
+
+    private static Session eldest(Map<String, Session> segment) {
+        Iterator<Session> it = segment.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private void remove(Session session) {
+        if (session.isProtected) {
+            protectedSessions.remove(session.key);
+            protectedBytes -= session.bytes;
+        }
+        else {
+            probation.remove(session.key);
+        }
+        bytes -= session.bytes;
+    }
+
+    private void resize(Session session, long delta) {
+        session.bytes += delta;
+        bytes += delta;
+        if (session.isProtected) {
+            protectedBytes += delta;
+        }
+    }
+
+    /**
+     * Removes a session once it has no entries, or else evicts sessions
+     * until the store is within its bounds again.
+     * <p>
+     * Sessions on probation other than the one written to are evicted
+     * first. Once there are none, the session written to is evicted itself
+     * if it is on probation, rather than a session which is mid-flow.
+     * Protected sessions are only evicted to make room for a protected
+     * session, when probation is empty.
+     */
+    private void afterWrite(Session session) {
+        if (session.isEmpty()) {
+            remove(session);
+            return;
+        }
+        while (probation.size() + protectedSessions.size() > maxSessions ||
+                bytes > maxBytes) {
+            Session victim = eldestOther(probation, session);
+            if (victim == null && session.isProtected) {
+                victim = eldestOther(protectedSessions, session);
+                if (victim != null) {
+                    midFlowEvictionCount++;
+                }
+            }
+            if (victim == null) {
+                victim = session;
+            }
+            remove(victim);
+            evictionCount++;
+            if (victim == session) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Gets the least recently used session of a segment, other than some
+     * session.
+     */
+    private static Session eldestOther(Map<String, Session> segment,
+            Session session) {
+        for (Session candidate : segment.values()) {
+            if (candidate != session) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes expired sessions from the least recently used end of each
+     * segment.
+     */
+    private void expire(long now) {
+        expire(probation, now);
+        expire(protectedSessions, now);
+    }
+
+    private void expire(Map<String, Session> segment, long now) {
+        Session eldest;
+        while ((eldest = eldest(segment)) != null &&
+                eldest.lastAccess + timeoutInMillis <= now) {
+            remove(eldest);
+            expiredCount++;
+        }
+    }
+
+    private Map<String, String> getHash(String name) {
+        Session session = find(name);
+        if (session != null) {
+            Map<String, String> hash = session.hashes.get(name);
+            if (hash != null) {
+                promote(session);
+                return hash;
+            }
+        }
+        return null;
+    }
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized String getHashValue(String name, String key) {
+        Map<String, String> hash = getHash(name);
+        if (hash != null) {
+            return hash.get(key);
+        }
+        return null;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized void setHashValue(String name, String key,
+            String value) {
+        Session session = findOrCreate(name);
+        Map<String, String> hash = session.hashes.get(name);
+        long delta = 0;
+        if (hash != null) {
+            if (hash.containsKey(key)) {
+                delta -= ENTRY_OVERHEAD_BYTES + stringBytes(key) +
+                        stringBytes(hash.get(key));
+            }
+        }
+        else {
+            delta -= session.remove(name);
+            hash = new HashMap<String, String>();
+            session.hashes.put(name, hash);
+            delta += hashBytes(name, hash);
+        }
+        hash.put(key, value);
+        delta += ENTRY_OVERHEAD_BYTES + stringBytes(key) + stringBytes(value);
+        resize(session, delta);
+        afterWrite(session);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized boolean hashExists(String name) {
+        return getHash(name) != null;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized boolean hashValueExists(String name, String key) {
+        Map<String, String> hash = getHash(name);
+        if (hash != null) {
+            return hash.containsKey(key);
+        }
+        return false;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteHash(String name) {
+        deleteValue(name);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteHashValue(String name, String key) {
+        Session session = find(name);
+        if (session == null) {
+            return;
+        }
+        Map<String, String> hash = session.hashes.get(name);
+        if (hash != null && hash.containsKey(key)) {
+            String value = hash.remove(key);
+            resize(session, -(ENTRY_OVERHEAD_BYTES + stringBytes(key) +
+                    stringBytes(value)));
+        }
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized void setValue(String key, String value) {
+        Session session = findOrCreate(key);
+        long delta = valueBytes(key, value) - session.remove(key);
+        session.values.put(key, value);
+        resize(session, delta);
+        afterWrite(session);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized String getValue(String key) {
+        Session session = find(key);
+        if (session != null && session.contains(key)) {
+            promote(session);
+            return session.values.get(key);
+        }
+        return null;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized boolean valueExists(String key) {
+        Session session = find(key);
+        if (session != null && session.contains(key)) {
+            promote(session);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteValue(String key) {
+        Session session = find(key);
+        if (session != null && session.contains(key)) {
+            resize(session, -session.remove(key));
+            afterWrite(session);
+        }
+    }
+
+    // Batch implementation.
+
+    /**
+     * Carries out all operations of the batch atomically.
+     */
+    @Override
+    public synchronized void execute(SessionBatch batch) {
+        batch.executeEach(this);
+    }
+
+    /**
+     * Removes all expired sessions. Each store operation already removes
+     * expired sessions from the least recently used end of each segment,
+     * so this only needs calling to reclaim the memory of sessions which
+     * expired elsewhere in the probation segment, or of a store which sees
+     * no traffic.
+     */
+    public synchronized void cleanUp() {
+        expire(clock.currentTimeMillis());
+        long deadline = clock.currentTimeMillis() - timeoutInMillis;
+        Iterator<Session> it = probation.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (session.lastAccess <= deadline) {
+                it.remove();
+                bytes -= session.bytes;
+                expiredCount++;
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum number of sessions the store holds.
+     *
+     * @return session bound set at construction.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Gets the maximum estimated size of all sessions the store holds.
+     *
+     * @return byte bound set at construction.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the number of sessions in the store, including those which have
+     * expired but have not been removed yet.
+     *
+     * @return session count.
+     */
+    public synchronized int getSessionCount() {
+        return probation.size() + protectedSessions.size();
+    }
+
+    /**
+     * Gets the number of sessions in the protected segment, i.e. sessions
+     * which have been read back at least once since they were created.
+     *
+     * @return mid-flow session count.
+     */
+    public synchronized int getMidFlowSessionCount() {
+        return protectedSessions.size();
+    }
+
+    /**
+     * Gets the estimated size of all sessions in the store.
+     *
+     * @return estimated size in bytes.
+     */
+    public synchronized long getEstimatedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of sessions removed to keep the store within its
+     * bounds, since the store was created.
+     *
+     * @return eviction count.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Gets the number of sessions evicted from the protected segment. This
+     * only happens when new sessions cannot fit otherwise, and so
+     * indicates that the bounds are too low for the traffic.
+     *
+     * @return count of mid-flow sessions evicted.
+     */
+    public synchronized long getMidFlowEvictionCount() {
+        return midFlowEvictionCount;
+    }
+
+    /**
+     * Gets the number of sessions removed because they expired, since the
+     * store was created.
+     *
+     * @return expired session count.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import com.smsgh.ussd.framework.utils.TimingWheelExpiringMap;
+import java.util.List;
+
+/**
+ * A thread-safe in-memory session store which spreads its entries across
+ * a number of independently locked segments (lock striping), so that
+ * requests for different sessions do not contend for a single monitor.
+ * Entries expire after a sliding time period, just as in
+ * {@link InMemorySessionStore}. Designed to be used as a singleton per
+ * Ussd application.
+ * <p>
+ * All keys sharing the part before their last '.' are kept in a single
+ * record per session, so that the next route and data bag of a session
+ * are found with one lookup, renewed together by any access to either,
+ * and expire together. The segment of a record is determined by the hash
+ * of its session key, so all operations on a given session are
+ * serialized, while operations on different sessions mostly proceed in
+ * parallel.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ConcurrentInMemorySessionStore implements BatchSessionStore {
+
+    /**
+     * The number of segments used per available processor when the
+     * segment count is not given explicitly.
+     */
+    public static final int DEFAULT_SEGMENTS_PER_PROCESSOR = 16;
+
+    /**
+     * The maximum number of segments a store can be created with.
+     */
+    public static final int MAX_SEGMENT_COUNT = 1 << 16;
+
+    private final TimingWheelExpiringMap<String, SessionRecord>[] segments;
+    private final int segmentMask;
+
+    /**
+     * Creates a new concurrent in-memory session store, with the number
+     * of segments derived from the number of available processors.
+     *
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis is
+     * not positive.
+     */
+    public ConcurrentInMemorySessionStore(int timeoutInMillis) {
+        this(timeoutInMillis, DEFAULT_SEGMENTS_PER_PROCESSOR *
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new concurrent in-memory session store.
+     *
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     * @param segmentCount the number of independently locked segments. It is
+     * rounded up to the nearest power of two.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis is
+     * not positive, or if segmentCount is not positive or is greater
+     * than {@link #MAX_SEGMENT_COUNT}.
+     */
+    public ConcurrentInMemorySessionStore(int timeoutInMillis,
+            int segmentCount) {
+        this(timeoutInMillis, segmentCount, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new concurrent in-memory session store which uses the
+     * given clock to expire its entries.
+     *
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     * @param segmentCount the number of independently locked segments. It is
+     * rounded up to the nearest power of two.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis is
+     * not positive, if segmentCount is not positive or is greater
+     * than {@link #MAX_SEGMENT_COUNT}, or if clock is null.
+     */
+    public ConcurrentInMemorySessionStore(int timeoutInMillis,
+            int segmentCount, Clock clock) {
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (segmentCount <= 0 || segmentCount > MAX_SEGMENT_COUNT) {
+            throw new IllegalArgumentException("\"segmentCount\" argument "
+                    + "must be between 1 and " + MAX_SEGMENT_COUNT +
+                    ". Received " + segmentCount);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        int size = 1;
+        while (size < segmentCount) {
+            size <<= 1;
+        }
+        this.segments = newSegments(size);
+        for (int i = 0; i < size; i++) {
+            segments[i] = new TimingWheelExpiringMap<String, SessionRecord>(
+                    timeoutInMillis, clock);
+        }
+        this.segmentMask = size - 1;
+    }
+
+    // Generic arrays cannot be created directly; the array is only ever
+    // filled with maps of session records.
+    @SuppressWarnings("unchecked")
+    private static TimingWheelExpiringMap<String, SessionRecord>[]
+            newSegments(int size) {
+        return (TimingWheelExpiringMap<String, SessionRecord>[])
+                new TimingWheelExpiringMap<?, ?>[size];
+    }
+
+    /**
+     * Gets the number of segments in use by this store.
+     *
+     * @return segment count, which is a power of two.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    private TimingWheelExpiringMap<String, SessionRecord> segmentFor(
+            String key) {
+        // Spread the hash bits so that keys differing only in their
+        // upper bits still land on different segments.
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    private SessionRecord find(
+            TimingWheelExpiringMap<String, SessionRecord> segment,
+            String sessionKey) {
+        SessionRecord record = segment.get(sessionKey);
+        return record != null ? record : SessionRecord.EMPTY;
+    }
+
+    private SessionRecord findOrCreate(
+            TimingWheelExpiringMap<String, SessionRecord> segment,
+            String sessionKey) {
+        SessionRecord record = segment.get(sessionKey);
+        if (record == null) {
+            record = new SessionRecord();
+            segment.put(sessionKey, record);
+        }
+        return record;
+    }
+
+    private void removeIfEmpty(
+            TimingWheelExpiringMap<String, SessionRecord> segment,
+            String sessionKey, SessionRecord record) {
+        if (record != SessionRecord.EMPTY && record.isEmpty()) {
+            segment.remove(sessionKey);
+        }
+    }
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getHashValue(String name, String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(name);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            return find(segment, sessionKey).getHashValue(name, key);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        String sessionKey = SessionRecord.sessionKeyOf(name);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            findOrCreate(segment, sessionKey).setHashValue(name, key, value);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashExists(String name) {
+        String sessionKey = SessionRecord.sessionKeyOf(name);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            return find(segment, sessionKey).hashExists(name);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashValueExists(String name, String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(name);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            return find(segment, sessionKey).hashValueExists(name, key);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHash(String name) {
+        String sessionKey = SessionRecord.sessionKeyOf(name);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            SessionRecord record = find(segment, sessionKey);
+            record.deleteHash(name);
+            removeIfEmpty(segment, sessionKey, record);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHashValue(String name, String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(name);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            SessionRecord record = find(segment, sessionKey);
+            record.deleteHashValue(name, key);
+            removeIfEmpty(segment, sessionKey, record);
+        }
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String value) {
+        String sessionKey = SessionRecord.sessionKeyOf(key);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            findOrCreate(segment, sessionKey).setValue(key, value);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getValue(String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(key);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            return find(segment, sessionKey).getValue(key);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean valueExists(String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(key);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            return find(segment, sessionKey).valueExists(key);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteValue(String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(key);
+        TimingWheelExpiringMap<String, SessionRecord> segment =
+                segmentFor(sessionKey);
+        synchronized (segment) {
+            SessionRecord record = find(segment, sessionKey);
+            record.deleteValue(key);
+            removeIfEmpty(segment, sessionKey, record);
+        }
+    }
+
+    // Batch implementation.
+
+    /**
+     * Carries out the operations of the batch, looking up the record of a
+     * session once for each run of consecutive operations on it. Each such
+     * run is atomic, but the batch as a whole is not.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        List<SessionBatch.Operation> operations = batch.getOperations();
+        int i = 0;
+        while (i < operations.size()) {
+            String sessionKey = SessionRecord.sessionKeyOf(
+                    operations.get(i).getName());
+            TimingWheelExpiringMap<String, SessionRecord> segment =
+                    segmentFor(sessionKey);
+            synchronized (segment) {
+                i = SessionRecord.executeRun(segment, operations, i,
+                        sessionKey);
+            }
+        }
+    }
+
+    /**
+     * Removes all expired entries from every segment. Each store operation
+     * already reclaims a bounded number of expired entries from the segment
+     * it touches, so this only needs calling to reclaim memory from
+     * segments which see no traffic, e.g. from a background thread.
+     */
+    public void cleanUp() {
+        for (TimingWheelExpiringMap<String, SessionRecord> segment : segments) {
+            synchronized (segment) {
+                segment.cleanUp();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of sessions in the store, i.e. of records, each of
+     * which holds all keys and hashes of a session.
+     *
+     * @return session count.
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (TimingWheelExpiringMap<String, SessionRecord> segment : segments) {
+            synchronized (segment) {
+                count += segment.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+    }
+}
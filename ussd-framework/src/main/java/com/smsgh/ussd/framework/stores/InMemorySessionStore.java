@@ -3,18 +3,23 @@
  */
 package com.smsgh.ussd.framework.stores;
 
-import com.smsgh.ussd.framework.utils.SelfExpiringHashMap;
-import java.util.HashMap;
+import com.smsgh.ussd.framework.utils.TimingWheelExpiringMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * A thread-safe in-memory session store that expires its entries after a specified
  * time period. Designed to be used as a singleton per Ussd application.
+ * <p>
+ * All keys sharing the part before their last '.' are kept in a single
+ * record per session, so that the next route and data bag of a session
+ * are found with one lookup, renewed together by any access to either,
+ * and expire together.
  * 
  * @author Aaron Baffour-Awuah
  */
-public class InMemorySessionStore implements SessionStore {
-    private final Map<String, Object> backingStore;
+public class InMemorySessionStore implements BatchSessionStore {
+    private final Map<String, SessionRecord> backingStore;
 
     /**
      * Creates a new in-memory session store.
@@ -30,10 +35,31 @@ public class InMemorySessionStore implements SessionStore {
             throw new IllegalArgumentException("\"timeoutInMillis\" argument "
                     + "must be positive. Received " + timeoutInMillis);
         }
-        this.backingStore = new SelfExpiringHashMap<String, Object>(
+        this.backingStore = new TimingWheelExpiringMap<String, SessionRecord>(
                 timeoutInMillis);
     }
     
+    private SessionRecord find(String key) {
+        SessionRecord record = backingStore.get(SessionRecord.sessionKeyOf(key));
+        return record != null ? record : SessionRecord.EMPTY;
+    }
+    
+    private SessionRecord findOrCreate(String key) {
+        String sessionKey = SessionRecord.sessionKeyOf(key);
+        SessionRecord record = backingStore.get(sessionKey);
+        if (record == null) {
+            record = new SessionRecord();
+            backingStore.put(sessionKey, record);
+        }
+        return record;
+    }
+    
+    private void removeIfEmpty(String key, SessionRecord record) {
+        if (record != SessionRecord.EMPTY && record.isEmpty()) {
+            backingStore.remove(SessionRecord.sessionKeyOf(key));
+        }
+    }
+    
     // Hash store implementation.
     
     /**
@@ -41,12 +67,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized String getHashValue(String name, String key) {        
-        if (backingStore.containsKey(name)) {
-            Map<String, String> hash = 
-                    (Map<String, String>)backingStore.get(name);
-            return hash.get(key);
-        }
-        return null;
+        return find(name).getHashValue(name, key);
     }
 
     /**
@@ -54,15 +75,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized void setHashValue(String name, String key, String value) {
-        Map<String, String> hash;
-        if (backingStore.containsKey(name)) {
-            hash = (Map<String, String>)backingStore.get(name);
-        }
-        else {
-            hash = new HashMap<String, String>();
-            backingStore.put(name, hash);
-        }
-        hash.put(key, value);
+        findOrCreate(name).setHashValue(name, key, value);
     }
 
     /**
@@ -70,7 +83,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized boolean hashExists(String name) {
-        return backingStore.containsKey(name);
+        return find(name).hashExists(name);
     }
 
     /**
@@ -78,12 +91,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized boolean hashValueExists(String name, String key) {
-        if (backingStore.containsKey(name)) {
-            Map<String, String> hash = 
-                    (Map<String, String>)backingStore.get(name);
-            return hash.containsKey(key);
-        }
-        return false;
+        return find(name).hashValueExists(name, key);
     }
 
     /**
@@ -91,7 +99,9 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized void deleteHash(String name) {
-        backingStore.remove(name);
+        SessionRecord record = find(name);
+        record.deleteHash(name);
+        removeIfEmpty(name, record);
     }
 
     /**
@@ -99,11 +109,9 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized void deleteHashValue(String name, String key) {
-        if (backingStore.containsKey(name)) {
-            Map<String, String> hash = 
-                    (Map<String, String>)backingStore.get(name);
-            hash.remove(key);
-        }
+        SessionRecord record = find(name);
+        record.deleteHashValue(name, key);
+        removeIfEmpty(name, record);
     }
     
     // Key-Value store implementation.
@@ -113,7 +121,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized void setValue(String key, String value) {
-        backingStore.put(key, value);
+        findOrCreate(key).setValue(key, value);
     }
 
     /**
@@ -121,7 +129,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized String getValue(String key) {
-        return (String)backingStore.get(key);
+        return find(key).getValue(key);
     }
 
     /**
@@ -129,7 +137,7 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized boolean valueExists(String key) {
-        return backingStore.containsKey(key);
+        return find(key).valueExists(key);
     }
 
     /**
@@ -137,9 +145,27 @@ public class InMemorySessionStore implements SessionStore {
      */
     @Override
     public synchronized void deleteValue(String key) {
-        backingStore.remove(key);
+        SessionRecord record = find(key);
+        record.deleteValue(key);
+        removeIfEmpty(key, record);
     }    
 
+    // Batch implementation.
+
+    /**
+     * Carries out all operations of the batch atomically. Consecutive
+     * operations on the same session share a single lookup of its record.
+     */
+    @Override
+    public synchronized void execute(SessionBatch batch) {
+        List<SessionBatch.Operation> operations = batch.getOperations();
+        int i = 0;
+        while (i < operations.size()) {
+            i = SessionRecord.executeRun(backingStore, operations, i,
+                    SessionRecord.sessionKeyOf(operations.get(i).getName()));
+        }
+    }
+
     /**
      * Does nothing.
      */
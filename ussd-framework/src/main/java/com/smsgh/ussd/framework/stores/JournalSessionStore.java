@@ -0,0 +1,995 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.Clock;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A session store which keeps its entries in memory, and records every
+ * change in a memory-mapped, append-only journal on disk, so that the
+ * sessions in progress survive a restart of the application. Entries
+ * expire after a sliding time period, just as in
+ * {@link InMemorySessionStore}. Designed to be used as a singleton per
+ * Ussd application.
+ * <p>
+ * {@link #start()} replays the journal, bringing back every entry which
+ * was active within the timeout, with whatever remains of its timeout.
+ * Reads are journaled too, at most a few times per timeout for each
+ * entry, so that sessions which are only read are not lost. Records are
+ * checksummed, so that a record torn by a crash ends the replay
+ * instead of corrupting it.
+ * <p>
+ * The journal is made up of two files used in turns. When the file in use
+ * fills up, and also periodically, the live entries are compacted into the
+ * other file, which then takes over once completely written.
+ * <p>
+ * How soon changes reach the disk is set with a {@link DurabilityLevel}.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class JournalSessionStore implements LifecycleSessionStore,
+        BatchSessionStore {
+
+    /**
+     * How soon changes are forced to disk.
+     */
+    public enum DurabilityLevel {
+
+        /**
+         * Changes are written to the mapped journal, and reach the disk
+         * whenever the operating system writes them back. They survive
+         * the application crashing, but not the operating system.
+         */
+        NONE,
+
+        /**
+         * Each change, or batch of changes, is on disk before the call
+         * which made it returns. Concurrent callers share a single force
+         * of the journal to disk.
+         */
+        GROUP_COMMIT,
+
+        /**
+         * The journal is forced to disk after each change or batch of
+         * changes, one caller at a time.
+         */
+        SYNC
+    }
+
+    /**
+     * The default size of each journal file.
+     */
+    public static final int DEFAULT_JOURNAL_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The names of journal files, which are followed by ".0" or ".1".
+     */
+    public static final String JOURNAL_FILE_NAME = "sessions.journal";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // File header: magic, generation, checksum of both.
+    private static final int MAGIC = 0x55534A31;
+    private static final int HEADER_SIZE = 16;
+
+    // Record: body length, checksum of generation and body, then body of
+    // type, time and strings. Strings are written as length (-1 for null)
+    // followed by UTF-8 bytes.
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte SET_VALUE = 1;
+    private static final byte DELETE_VALUE = 2;
+    private static final byte SET_HASH_VALUE = 3;
+    private static final byte DELETE_HASH = 4;
+    private static final byte DELETE_HASH_VALUE = 5;
+    private static final byte TOUCH = 6;
+
+    // Portion of the timeout after which a read is journaled again.
+    private static final int TOUCHES_PER_TIMEOUT = 8;
+
+    /**
+     * An entry in memory: either a value or a hash.
+     */
+    private static class Entry {
+        String value;
+        Map<String, String> hash;
+        long deadline;
+        long journaledAt;
+    }
+
+    private final File directory;
+    private final int timeoutInMillis;
+    private final DurabilityLevel durability;
+    private final int journalSize;
+    private final Clock clock;
+    private final long compactionIntervalMillis;
+
+    // State guarded by this store's monitor.
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final MappedByteBuffer[] journals = new MappedByteBuffer[2];
+    private int current;
+    private long generation;
+    private int position;
+    private long appendedBytes;
+    private byte[] record = new byte[256];
+    private int recordLength;
+    private final CRC32 crc = new CRC32();
+    private boolean started;
+    private boolean stopped;
+    private Thread compactor;
+    private int recoveredEntryCount;
+    private int compactionCount;
+
+    // State guarded by commitLock.
+    private final Object commitLock = new Object();
+    private long durableBytes;
+    private int forceCount;
+
+    /**
+     * Creates a new journal store with group commit, default journal file
+     * size, and compaction once per timeout.
+     *
+     * @param directory directory of journal files, created if necessary.
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     *
+     * @exception java.lang.IllegalArgumentException if directory is null,
+     * or if timeoutInMillis is not positive.
+     */
+    public JournalSessionStore(File directory, int timeoutInMillis) {
+        this(directory, timeoutInMillis, DurabilityLevel.GROUP_COMMIT,
+                DEFAULT_JOURNAL_SIZE, timeoutInMillis, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new journal store.
+     *
+     * @param directory directory of journal files, created if necessary.
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     * @param durability how soon changes are forced to disk.
+     * @param journalSize size in bytes of each of the two journal files.
+     * @param compactionIntervalMillis time between checks of whether the
+     * journal is worth compacting.
+     * @param clock source of the current time, for expiration.
+     *
+     * @exception java.lang.IllegalArgumentException if directory,
+     * durability or clock is null, if timeoutInMillis or
+     * compactionIntervalMillis is not positive, or if journalSize is
+     * less than 4096.
+     */
+    public JournalSessionStore(File directory, int timeoutInMillis,
+            DurabilityLevel durability, int journalSize,
+            long compactionIntervalMillis, Clock clock) {
+        if (directory == null) {
+            throw new IllegalArgumentException("\"directory\" argument "
+                    + "cannot be null");
+        }
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (durability == null) {
+            throw new IllegalArgumentException("\"durability\" argument "
+                    + "cannot be null");
+        }
+        if (journalSize < 4096) {
+            throw new IllegalArgumentException("\"journalSize\" argument "
+                    + "must be at least 4096. Received " + journalSize);
+        }
+        if (compactionIntervalMillis <= 0) {
+            throw new IllegalArgumentException("\"compactionIntervalMillis\" "
+                    + "argument must be positive. Received " +
+                    compactionIntervalMillis);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        this.directory = directory;
+        this.timeoutInMillis = timeoutInMillis;
+        this.durability = durability;
+        this.journalSize = journalSize;
+        this.compactionIntervalMillis = compactionIntervalMillis;
+        this.clock = clock;
+    }
+
+    // Lifecycle
+
+    /**
+     * Opens the journal, brings back the entries which are still within
+     * their timeout, and starts periodic compaction.
+     *
+     * @exception FrameworkException if the journal cannot be opened, or if
+     * the store has been stopped.
+     */
+    @Override
+    public synchronized void start() {
+        if (stopped) {
+            throw new FrameworkException("Session store cannot be "
+                    + "restarted after it has been stopped.");
+        }
+        if (started) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FrameworkException("Could not create journal "
+                    + "directory " + directory);
+        }
+        try {
+            recover();
+        }
+        catch (IOException ex) {
+            throw new FrameworkException("Could not open journal in " +
+                    directory, ex);
+        }
+        started = true;
+
+        compactor = new Thread("JournalSessionStore compactor") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        Thread.sleep(compactionIntervalMillis);
+                        compactIfWorthwhile();
+                    }
+                }
+                catch (InterruptedException ex) {
+                    // Stopped.
+                }
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Forces the journal to disk, and stops periodic compaction. The store
+     * cannot be used afterwards.
+     */
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            thread = compactor;
+            if (started) {
+                journals[current].force();
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Gets this store, which is safe for use by many threads at once.
+     * @return this store.
+     */
+    @Override
+    public SessionStore borrow() {
+        return this;
+    }
+
+    /**
+     * Does nothing, since the handle is the store itself.
+     * @param handle must be this store.
+     */
+    @Override
+    public void release(SessionStore handle) {
+        if (handle != this) {
+            throw new IllegalArgumentException("\"handle\" argument was "
+                    + "not borrowed from this store.");
+        }
+    }
+
+    /**
+     * Does nothing, since the journal is closed by {@link #stop()}.
+     */
+    @Override
+    public void close() {
+    }
+
+    // Statistics
+
+    /**
+     * Gets the number of entries brought back from the journal by
+     * {@link #start()}.
+     * @return recovered entry count.
+     */
+    public synchronized int getRecoveredEntryCount() {
+        return recoveredEntryCount;
+    }
+
+    /**
+     * Gets the number of bytes in use in the current journal file.
+     * @return journal bytes used.
+     */
+    public synchronized int getJournalBytesUsed() {
+        return position;
+    }
+
+    /**
+     * Gets the number of compactions done since the store was started.
+     * @return compaction count.
+     */
+    public synchronized int getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * Gets the number of times the journal was forced to disk to make
+     * changes durable.
+     * @return force count.
+     */
+    public int getForceCount() {
+        synchronized (commitLock) {
+            return forceCount;
+        }
+    }
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized String getHashValue(String name, String key) {
+        Entry entry = read(name, true);
+        return entry == null ? null : entry.hash.get(key);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        long end;
+        synchronized (this) {
+            end = doSetHashValue(name, key, value);
+        }
+        commit(end);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized boolean hashExists(String name) {
+        return live(name, true) != null;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized boolean hashValueExists(String name, String key) {
+        Entry entry = live(name, true);
+        return entry != null && entry.hash.containsKey(key);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHash(String name) {
+        long end;
+        synchronized (this) {
+            end = doDeleteHash(name);
+        }
+        commit(end);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHashValue(String name, String key) {
+        long end;
+        synchronized (this) {
+            end = doDeleteHashValue(name, key);
+        }
+        commit(end);
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String value) {
+        long end;
+        synchronized (this) {
+            end = doSetValue(key, value);
+        }
+        commit(end);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized String getValue(String key) {
+        Entry entry = read(key, false);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized boolean valueExists(String key) {
+        return live(key, false) != null;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteValue(String key) {
+        long end;
+        synchronized (this) {
+            end = doDeleteValue(key);
+        }
+        commit(end);
+    }
+
+    /**
+     * Carries out the operations of a batch atomically, and makes all of
+     * its changes durable together.
+     *
+     * @param batch the operations to carry out.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        long end = -1;
+        synchronized (this) {
+            for (SessionBatch.Operation operation : batch.getOperations()) {
+                String name = operation.getName();
+                String key = operation.getKey();
+                Entry entry;
+                switch (operation.getType()) {
+                    case GET_HASH_VALUE:
+                        entry = read(name, true);
+                        operation.setResult(entry == null ? null :
+                                entry.hash.get(key));
+                        break;
+                    case SET_HASH_VALUE:
+                        end = Math.max(end, doSetHashValue(name, key,
+                                operation.getValue()));
+                        break;
+                    case HASH_EXISTS:
+                        operation.setResult(live(name, true) != null);
+                        break;
+                    case HASH_VALUE_EXISTS:
+                        entry = live(name, true);
+                        operation.setResult(entry != null &&
+                                entry.hash.containsKey(key));
+                        break;
+                    case DELETE_HASH:
+                        end = Math.max(end, doDeleteHash(name));
+                        break;
+                    case DELETE_HASH_VALUE:
+                        end = Math.max(end, doDeleteHashValue(name, key));
+                        break;
+                    case SET_VALUE:
+                        end = Math.max(end, doSetValue(name,
+                                operation.getValue()));
+                        break;
+                    case GET_VALUE:
+                        entry = read(name, false);
+                        operation.setResult(entry == null ? null :
+                                entry.value);
+                        break;
+                    case VALUE_EXISTS:
+                        operation.setResult(live(name, false) != null);
+                        break;
+                    case DELETE_VALUE:
+                        end = Math.max(end, doDeleteValue(name));
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown operation "
+                                + "type: " + operation.getType());
+                }
+            }
+        }
+        commit(end);
+    }
+
+    // Operations, called with this store's monitor held. Changes return
+    // the journal offset which must be durable before returning to
+    // caller, or -1 if nothing was journaled.
+
+    private long doSetHashValue(String name, String key, String value) {
+        Entry entry = live(name, true);
+        long now = clock.currentTimeMillis();
+        long end = append(SET_HASH_VALUE, now, name, key, value);
+        if (entry == null) {
+            entry = new Entry();
+            entry.hash = new HashMap<String, String>();
+            entries.put(name, entry);
+        }
+        entry.hash.put(key, value);
+        entry.deadline = now + timeoutInMillis;
+        entry.journaledAt = now;
+        return end;
+    }
+
+    private long doDeleteHash(String name) {
+        if (live(name, true) == null) {
+            return -1;
+        }
+        long end = append(DELETE_HASH, clock.currentTimeMillis(), name,
+                null, null);
+        entries.remove(name);
+        return end;
+    }
+
+    private long doDeleteHashValue(String name, String key) {
+        Entry entry = live(name, true);
+        if (entry == null || !entry.hash.containsKey(key)) {
+            return -1;
+        }
+        long end = append(DELETE_HASH_VALUE, clock.currentTimeMillis(),
+                name, key, null);
+        entry.hash.remove(key);
+        return end;
+    }
+
+    private long doSetValue(String key, String value) {
+        long now = clock.currentTimeMillis();
+        long end = append(SET_VALUE, now, key, value, null);
+        Entry entry = new Entry();
+        entry.value = value;
+        entry.deadline = now + timeoutInMillis;
+        entry.journaledAt = now;
+        entries.put(key, entry);
+        return end;
+    }
+
+    private long doDeleteValue(String key) {
+        if (live(key, false) == null) {
+            return -1;
+        }
+        long end = append(DELETE_VALUE, clock.currentTimeMillis(), key,
+                null, null);
+        entries.remove(key);
+        return end;
+    }
+
+    /**
+     * Gets a live entry of the given kind, without renewing it.
+     */
+    private Entry live(String name, boolean hash) {
+        checkUsable();
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.deadline <= clock.currentTimeMillis()) {
+            entries.remove(name);
+            return null;
+        }
+        return (entry.hash != null) == hash ? entry : null;
+    }
+
+    /**
+     * Gets a live entry of the given kind and renews it, journaling the
+     * renewal if the entry was last journaled a while ago.
+     */
+    private Entry read(String name, boolean hash) {
+        Entry entry = live(name, hash);
+        if (entry != null) {
+            long now = clock.currentTimeMillis();
+            entry.deadline = now + timeoutInMillis;
+            if (now - entry.journaledAt >= timeoutInMillis /
+                    TOUCHES_PER_TIMEOUT) {
+                append(TOUCH, now, name, null, null);
+                entry.journaledAt = now;
+            }
+        }
+        return entry;
+    }
+
+    private void checkUsable() {
+        if (stopped) {
+            throw new FrameworkException("Session store has been stopped.");
+        }
+        if (!started) {
+            throw new FrameworkException("Session store has not been "
+                    + "started.");
+        }
+    }
+
+    // Journal
+
+    /**
+     * Makes the journal durable up to a given point, as required by the
+     * durability level.
+     * @param end total journal bytes appended which must be durable, or -1
+     * if there is nothing to make durable.
+     */
+    private void commit(long end) {
+        if (end < 0 || durability == DurabilityLevel.NONE) {
+            return;
+        }
+        if (durability == DurabilityLevel.SYNC) {
+            synchronized (this) {
+                journals[current].force();
+            }
+            synchronized (commitLock) {
+                forceCount++;
+            }
+            return;
+        }
+
+        // Group commit: whoever gets the commit lock first forces all that
+        // has been appended by then, on behalf of everyone waiting.
+        synchronized (commitLock) {
+            if (durableBytes >= end) {
+                return;
+            }
+            MappedByteBuffer journal;
+            long target;
+            synchronized (this) {
+                journal = journals[current];
+                target = appendedBytes;
+            }
+            journal.force();
+            forceCount++;
+            durableBytes = target;
+        }
+    }
+
+    /**
+     * Appends a record to the journal, compacting first if it does not
+     * fit.
+     * @return total journal bytes appended so far.
+     */
+    private long append(byte type, long time, String a, String b,
+            String c) {
+        encode(type, time, a, b, c);
+        int size = RECORD_HEADER_SIZE + recordLength;
+        if (position + size > journalSize) {
+            compact();
+            encode(type, time, a, b, c);
+            if (position + size > journalSize) {
+                throw new FrameworkException(String.format("Session journal "
+                        + "is full: %d bytes of live entries, and a record "
+                        + "of %d bytes to add.", position, size));
+            }
+        }
+        writeRecord(journals[current], position, generation);
+        position += size;
+        appendedBytes += size;
+        return appendedBytes;
+    }
+
+    private void encode(byte type, long time, String a, String b,
+            String c) {
+        recordLength = 0;
+        ensureRecordCapacity(9);
+        record[recordLength++] = type;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            record[recordLength++] = (byte)(time >>> shift);
+        }
+        encodeString(a);
+        if (type == SET_VALUE) {
+            encodeString(b);
+        }
+        else if (type == SET_HASH_VALUE) {
+            encodeString(b);
+            encodeString(c);
+        }
+        else if (type == DELETE_HASH_VALUE) {
+            encodeString(b);
+        }
+    }
+
+    private void encodeString(String s) {
+        byte[] bytes = s == null ? null : s.getBytes(UTF8);
+        int length = bytes == null ? -1 : bytes.length;
+        ensureRecordCapacity(recordLength + 4 + Math.max(0, length));
+        writeInt(record, recordLength, length);
+        recordLength += 4;
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, record, recordLength, length);
+            recordLength += length;
+        }
+    }
+
+    private void ensureRecordCapacity(int capacity) {
+        if (record.length < capacity) {
+            record = Arrays.copyOf(record,
+                    Math.max(capacity, record.length * 2));
+        }
+    }
+
+    private void writeRecord(MappedByteBuffer journal, int offset,
+            long recordGeneration) {
+        journal.position(offset + RECORD_HEADER_SIZE);
+        journal.put(record, 0, recordLength);
+        journal.putInt(offset, recordLength);
+        journal.putInt(offset + 4, checksum(recordGeneration, record,
+                recordLength));
+    }
+
+    private int checksum(long recordGeneration, byte[] body, int length) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int)(recordGeneration >>> shift));
+        }
+        crc.update(body, 0, length);
+        return (int)crc.getValue();
+    }
+
+    private void compactIfWorthwhile() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            removeExpired(clock.currentTimeMillis());
+            if (position > journalSize / 4) {
+                compact();
+            }
+        }
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().deadline <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes the live entries into the other journal file, and switches
+     * to it once it has been forced to disk. Until then, the current file
+     * remains the one replayed on startup.
+     */
+    private void compact() {
+        long now = clock.currentTimeMillis();
+        removeExpired(now);
+        int target = 1 - current;
+        long targetGeneration = generation + 1;
+        try {
+            if (journals[target] == null) {
+                journals[target] = map(journalFile(target));
+            }
+        }
+        catch (IOException ex) {
+            throw new FrameworkException("Could not open journal file " +
+                    journalFile(target), ex);
+        }
+        MappedByteBuffer journal = journals[target];
+        journal.putInt(0, 0);
+
+        int offset = HEADER_SIZE;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            long time = entry.deadline - timeoutInMillis;
+            if (entry.hash == null) {
+                encode(SET_VALUE, time, e.getKey(), entry.value, null);
+                offset = writeCompacted(journal, offset, targetGeneration);
+            }
+            else {
+                for (Map.Entry<String, String> h : entry.hash.entrySet()) {
+                    encode(SET_HASH_VALUE, time, e.getKey(), h.getKey(),
+                            h.getValue());
+                    offset = writeCompacted(journal, offset,
+                            targetGeneration);
+                }
+            }
+            entry.journaledAt = time;
+        }
+        if (offset + RECORD_HEADER_SIZE <= journalSize) {
+            journal.putInt(offset, 0);
+        }
+        journal.force();
+        writeHeader(journal, targetGeneration);
+        journal.force();
+
+        current = target;
+        generation = targetGeneration;
+        position = offset;
+        compactionCount++;
+    }
+
+    private int writeCompacted(MappedByteBuffer journal, int offset,
+            long targetGeneration) {
+        int size = RECORD_HEADER_SIZE + recordLength;
+        if (offset + size > journalSize) {
+            throw new FrameworkException("Session journal is too small "
+                    + "for its live entries.");
+        }
+        writeRecord(journal, offset, targetGeneration);
+        return offset + size;
+    }
+
+    private void writeHeader(MappedByteBuffer journal, long headerGeneration) {
+        byte[] header = new byte[12];
+        writeInt(header, 0, MAGIC);
+        writeInt(header, 4, (int)(headerGeneration >>> 32));
+        writeInt(header, 8, (int)headerGeneration);
+        crc.reset();
+        crc.update(header, 0, 12);
+        journal.position(0);
+        journal.put(header);
+        journal.putInt(12, (int)crc.getValue());
+    }
+
+    /**
+     * Reads the generation from a journal file's header.
+     * @return generation, or -1 if header is not valid.
+     */
+    private long readHeader(MappedByteBuffer journal) {
+        byte[] header = new byte[12];
+        journal.position(0);
+        journal.get(header);
+        crc.reset();
+        crc.update(header, 0, 12);
+        if (readInt(header, 0) != MAGIC ||
+                journal.getInt(12) != (int)crc.getValue()) {
+            return -1;
+        }
+        return ((long)readInt(header, 4) << 32) |
+                (readInt(header, 8) & 0xffffffffL);
+    }
+
+    private File journalFile(int index) {
+        return new File(directory, JOURNAL_FILE_NAME + "." + index);
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != journalSize) {
+                raf.setLength(journalSize);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    journalSize);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Opens the journal file with the latest valid header, and replays
+     * its records.
+     */
+    private void recover() throws IOException {
+        long[] generations = { -1, -1 };
+        for (int i = 0; i < 2; i++) {
+            File file = journalFile(i);
+            if (file.isFile()) {
+                journals[i] = map(file);
+                generations[i] = readHeader(journals[i]);
+            }
+        }
+        if (generations[0] < 0 && generations[1] < 0) {
+            if (journals[0] == null) {
+                journals[0] = map(journalFile(0));
+            }
+            current = 0;
+            generation = 1;
+            writeHeader(journals[0], generation);
+            journals[0].putInt(HEADER_SIZE, 0);
+            journals[0].force();
+            position = HEADER_SIZE;
+            return;
+        }
+        current = generations[0] >= generations[1] ? 0 : 1;
+        generation = generations[current];
+        MappedByteBuffer journal = journals[current];
+
+        int offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= journalSize) {
+            int length = journal.getInt(offset);
+            if (length <= 0 || length > journalSize - offset -
+                    RECORD_HEADER_SIZE) {
+                break;
+            }
+            ensureRecordCapacity(length);
+            journal.position(offset + RECORD_HEADER_SIZE);
+            journal.get(record, 0, length);
+            if (journal.getInt(offset + 4) != checksum(generation, record,
+                    length)) {
+                break;
+            }
+            replay(record, length);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        position = offset;
+        removeExpired(clock.currentTimeMillis());
+        recoveredEntryCount = entries.size();
+    }
+
+    private void replay(byte[] body, int length) {
+        int[] offset = { 9 };
+        byte type = body[0];
+        long time = 0;
+        for (int i = 1; i < 9; i++) {
+            time = (time << 8) | (body[i] & 0xff);
+        }
+        String name = decodeString(body, offset);
+        Entry entry = entries.get(name);
+        switch (type) {
+            case SET_VALUE:
+                entry = new Entry();
+                entry.value = decodeString(body, offset);
+                entries.put(name, entry);
+                break;
+            case SET_HASH_VALUE:
+                if (entry == null || entry.hash == null) {
+                    entry = new Entry();
+                    entry.hash = new HashMap<String, String>();
+                    entries.put(name, entry);
+                }
+                String key = decodeString(body, offset);
+                entry.hash.put(key, decodeString(body, offset));
+                break;
+            case DELETE_VALUE:
+            case DELETE_HASH:
+                entries.remove(name);
+                return;
+            case DELETE_HASH_VALUE:
+                if (entry != null && entry.hash != null) {
+                    entry.hash.remove(decodeString(body, offset));
+                }
+                return;
+            case TOUCH:
+                if (entry == null) {
+                    return;
+                }
+                break;
+            default:
+                return;
+        }
+        entry.deadline = Math.max(entry.deadline, time + timeoutInMillis);
+        entry.journaledAt = time;
+    }
+
+    private static String decodeString(byte[] body, int[] offset) {
+        int length = readInt(body, offset[0]);
+        offset[0] += 4;
+        if (length < 0) {
+            return null;
+        }
+        String s = new String(body, offset[0], length, UTF8);
+        offset[0] += length;
+        return s;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) |
+                ((bytes[offset + 1] & 0xff) << 16) |
+                ((bytes[offset + 2] & 0xff) << 8) |
+                (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte)(value >>> 24);
+        bytes[offset + 1] = (byte)(value >>> 16);
+        bytes[offset + 2] = (byte)(value >>> 8);
+        bytes[offset + 3] = (byte)value;
+    }
+}
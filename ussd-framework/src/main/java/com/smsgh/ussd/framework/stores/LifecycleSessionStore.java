@@ -0,0 +1,52 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+/**
+ * Implemented by session stores which hold on to resources, such as
+ * network connections, for the lifetime of an application rather than
+ * of a ussd request.
+ * <p>
+ * The application calls {@link #start()} before the store is used and
+ * {@link #stop()} when it shuts down, e.g. from the init and destroy
+ * methods of its servlet. For each ussd request, the framework calls
+ * {@link #borrow()} to get a handle through which all of the request's
+ * operations go, and hands that handle back with
+ * {@link #release(SessionStore)} when the request ends, instead of
+ * calling {@link #close()}. Handles are used by one thread at a time, so
+ * they can hold on to a pooled connection without any locking.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public interface LifecycleSessionStore extends SessionStore {
+
+    /**
+     * Acquires the resources of the store, e.g. opens its connection pool.
+     * Must be called before the store or any handle from it is used.
+     */
+    void start();
+
+    /**
+     * Releases the resources of the store. Handles still borrowed give up
+     * their resources when released.
+     */
+    void stop();
+
+    /**
+     * Gets a handle for carrying out the operations of a single ussd
+     * request.
+     *
+     * @return handle which must be given back with
+     * {@link #release(SessionStore)}.
+     */
+    SessionStore borrow();
+
+    /**
+     * Gives back a handle obtained from {@link #borrow()}. The handle must
+     * not be used afterwards.
+     *
+     * @param handle the handle to give back.
+     */
+    void release(SessionStore handle);
+}
@@ -0,0 +1,541 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.UssdContext;
+import com.smsgh.ussd.framework.utils.Clock;
+import com.smsgh.ussd.framework.utils.LongKeyedMap;
+import com.smsgh.ussd.framework.utils.TimingWheelExpiringMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A thread-safe in-memory session store which indexes sessions by the
+ * mobile number parsed into a long, rather than by key strings. Designed
+ * to be used as a singleton per Ussd application, in place of
+ * {@link ConcurrentInMemorySessionStore} where the memory held per
+ * session matters. Like that store, it spreads sessions across a number
+ * of independently locked segments, by the hash of their mobile numbers.
+ * <p>
+ * The next route and data bag of a mobile number (the keys ending in
+ * {@link UssdContext#NEXT_ROUTE_KEY_SUFFIX} and
+ * {@link UssdContext#DATA_BAG_KEY_SUFFIX}) are kept together in one
+ * record of a {@link LongKeyedMap}, so a session costs one record instead
+ * of two key strings and their map entries, and no key is retained or
+ * created by a lookup. Keys are parsed in place. Any other key, and
+ * mobile numbers which cannot be parsed into a long without losing
+ * information (e.g. because of a leading zero), are kept in a
+ * {@link ConcurrentInMemorySessionStore} instead.
+ * <p>
+ * Sessions expire after a sliding time period; every operation on either
+ * key of a session renews the whole session. Each segment keeps its
+ * sessions in order of last access, and every operation on a segment
+ * removes a bounded number of its expired sessions from the least
+ * recently used end, so expiry never scans a whole segment.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MobileKeyedSessionStore implements BatchSessionStore {
+
+    // Mobile numbers of up to 18 digits always fit in a long.
+    private static final int MAX_MOBILE_DIGITS = 18;
+
+    private static final int OTHER_FIELD = 0;
+    private static final int NEXT_ROUTE_FIELD = 1;
+    private static final int DATA_BAG_FIELD = 2;
+
+    // Number of expired sessions removed per operation on a segment.
+    private static final int CLEANUP_BUDGET =
+            TimingWheelExpiringMap.DEFAULT_CLEANUP_BUDGET;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final ConcurrentInMemorySessionStore otherKeys;
+    private final int timeoutInMillis;
+    private final Clock clock;
+
+    /**
+     * Holds the next route and data bag of a mobile number.
+     */
+    private static class Session {
+        final long mobile;
+        String nextRoute;
+        boolean nextRouteExists;
+        Map<String, String> dataBag;
+        long lastAccess;
+        // Neighbours in the access order of the segment.
+        Session prev;
+        Session next;
+
+        Session(long mobile) {
+            this.mobile = mobile;
+        }
+
+        boolean isEmpty() {
+            return !nextRouteExists && dataBag == null;
+        }
+    }
+
+    /**
+     * Holds the sessions of a group of mobile numbers, in a map and in a
+     * list ordered by last access. Guarded by itself.
+     */
+    private static class Segment {
+        final LongKeyedMap<Session> sessions = new LongKeyedMap<Session>();
+        // Sentinel of the circular access list; eldest session comes next.
+        final Session head = new Session(-1);
+
+        Segment() {
+            head.prev = head;
+            head.next = head;
+        }
+    }
+
+    /**
+     * Creates a new mobile keyed session store.
+     *
+     * @param timeoutInMillis the sliding expiration time of sessions in the
+     * store in milliseconds.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis is
+     * not positive.
+     */
+    public MobileKeyedSessionStore(int timeoutInMillis) {
+        this(timeoutInMillis, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new mobile keyed session store which uses the given clock
+     * to expire its sessions.
+     *
+     * @param timeoutInMillis the sliding expiration time of sessions in the
+     * store in milliseconds.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis is
+     * not positive, or if clock is null.
+     */
+    public MobileKeyedSessionStore(int timeoutInMillis, Clock clock) {
+        this(timeoutInMillis,
+                ConcurrentInMemorySessionStore.DEFAULT_SEGMENTS_PER_PROCESSOR *
+                Runtime.getRuntime().availableProcessors(), clock);
+    }
+
+    /**
+     * Creates a new mobile keyed session store with the given number of
+     * segments, which uses the given clock to expire its sessions.
+     *
+     * @param timeoutInMillis the sliding expiration time of sessions in the
+     * store in milliseconds.
+     * @param segmentCount the number of independently locked segments. It is
+     * rounded up to the next power of two.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException  if timeoutInMillis is
+     * not positive, if segmentCount is not between 1 and
+     * {@link ConcurrentInMemorySessionStore#MAX_SEGMENT_COUNT}, or if clock
+     * is null.
+     */
+    public MobileKeyedSessionStore(int timeoutInMillis, int segmentCount,
+            Clock clock) {
+        this.otherKeys = new ConcurrentInMemorySessionStore(timeoutInMillis,
+                segmentCount, clock);
+        int size = 1;
+        while (size < segmentCount) {
+            size <<= 1;
+        }
+        this.segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment();
+        }
+        this.segmentMask = size - 1;
+        this.timeoutInMillis = timeoutInMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the number of segments in use by this store.
+     *
+     * @return segment count, which is a power of two.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    private Segment segmentFor(long mobile) {
+        // Take the upper bits of a multiplicative hash, which are
+        // unrelated to the bits LongKeyedMap picks slots with, so that the
+        // sessions of a segment still spread over all of its slots.
+        return segments[(int)((mobile * 0x9E3779B97F4A7C15L) >>> 40) &
+                segmentMask];
+    }
+
+    /**
+     * Determines which session field a key refers to, without allocating.
+     */
+    static int fieldOf(String key) {
+        int dot = key.lastIndexOf('.');
+        if (dot <= 0) {
+            return OTHER_FIELD;
+        }
+        String suffix = UssdContext.NEXT_ROUTE_KEY_SUFFIX;
+        if (key.length() - dot == suffix.length() &&
+                key.regionMatches(dot, suffix, 0, suffix.length())) {
+            return NEXT_ROUTE_FIELD;
+        }
+        suffix = UssdContext.DATA_BAG_KEY_SUFFIX;
+        if (key.length() - dot == suffix.length() &&
+                key.regionMatches(dot, suffix, 0, suffix.length())) {
+            return DATA_BAG_FIELD;
+        }
+        return OTHER_FIELD;
+    }
+
+    /**
+     * Parses the mobile number before the last '.' of a key.
+     *
+     * @return mobile number, or -1 if the part before the last '.' is not
+     * a number which converts to a long and back unchanged.
+     */
+    static long mobileOf(String key) {
+        int end = key.lastIndexOf('.');
+        if (end <= 0 || end > MAX_MOBILE_DIGITS ||
+                (key.charAt(0) == '0' && end > 1)) {
+            return -1;
+        }
+        long mobile = 0;
+        for (int i = 0; i < end; i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            mobile = mobile * 10 + (c - '0');
+        }
+        return mobile;
+    }
+
+    private static long mobileOf(String key, int field) {
+        return fieldOf(key) == field ? mobileOf(key) : -1;
+    }
+
+    /**
+     * Finds the live session of a mobile number in its segment, renewing
+     * it. Must be called with the segment locked.
+     */
+    private Session find(Segment segment, long mobile, boolean create) {
+        long now = clock.currentTimeMillis();
+        removeExpired(segment, now, CLEANUP_BUDGET);
+        Session session = segment.sessions.get(mobile);
+        if (session != null && session.lastAccess + timeoutInMillis <= now) {
+            remove(segment, session);
+            session = null;
+        }
+        if (session == null && create) {
+            session = new Session(mobile);
+            segment.sessions.put(mobile, session);
+        }
+        if (session != null) {
+            session.lastAccess = now;
+            unlink(session);
+            session.prev = segment.head.prev;
+            session.next = segment.head;
+            segment.head.prev.next = session;
+            segment.head.prev = session;
+        }
+        return session;
+    }
+
+    private static void unlink(Session session) {
+        if (session.prev != null) {
+            session.prev.next = session.next;
+            session.next.prev = session.prev;
+            session.prev = null;
+            session.next = null;
+        }
+    }
+
+    private static void remove(Segment segment, Session session) {
+        segment.sessions.remove(session.mobile);
+        unlink(session);
+    }
+
+    private static void removeIfEmpty(Segment segment, Session session) {
+        if (session.isEmpty()) {
+            remove(segment, session);
+        }
+    }
+
+    /**
+     * Removes up to a number of expired sessions from the least recently
+     * used end of a segment.
+     */
+    private void removeExpired(Segment segment, long now, int budget) {
+        Session eldest = segment.head.next;
+        while (budget > 0 && eldest != segment.head &&
+                eldest.lastAccess + timeoutInMillis <= now) {
+            remove(segment, eldest);
+            eldest = segment.head.next;
+            budget--;
+        }
+    }
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getHashValue(String name, String key) {
+        long mobile = mobileOf(name, DATA_BAG_FIELD);
+        if (mobile < 0) {
+            return otherKeys.getHashValue(name, key);
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            if (session != null && session.dataBag != null) {
+                return session.dataBag.get(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        long mobile = mobileOf(name, DATA_BAG_FIELD);
+        if (mobile < 0) {
+            otherKeys.setHashValue(name, key, value);
+            return;
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, true);
+            if (session.dataBag == null) {
+                session.dataBag = new HashMap<String, String>(4);
+            }
+            session.dataBag.put(key, value);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashExists(String name) {
+        long mobile = mobileOf(name, DATA_BAG_FIELD);
+        if (mobile < 0) {
+            return otherKeys.hashExists(name);
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            return session != null && session.dataBag != null;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashValueExists(String name, String key) {
+        long mobile = mobileOf(name, DATA_BAG_FIELD);
+        if (mobile < 0) {
+            return otherKeys.hashValueExists(name, key);
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            return session != null && session.dataBag != null &&
+                    session.dataBag.containsKey(key);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHash(String name) {
+        long mobile = mobileOf(name, DATA_BAG_FIELD);
+        if (mobile < 0) {
+            otherKeys.deleteHash(name);
+            return;
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            if (session != null) {
+                session.dataBag = null;
+                removeIfEmpty(segment, session);
+            }
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHashValue(String name, String key) {
+        long mobile = mobileOf(name, DATA_BAG_FIELD);
+        if (mobile < 0) {
+            otherKeys.deleteHashValue(name, key);
+            return;
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            if (session != null && session.dataBag != null) {
+                session.dataBag.remove(key);
+            }
+        }
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String value) {
+        long mobile = mobileOf(key, NEXT_ROUTE_FIELD);
+        if (mobile < 0) {
+            otherKeys.setValue(key, value);
+            return;
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, true);
+            session.nextRoute = value;
+            session.nextRouteExists = true;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getValue(String key) {
+        long mobile = mobileOf(key, NEXT_ROUTE_FIELD);
+        if (mobile < 0) {
+            return otherKeys.getValue(key);
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            return session != null ? session.nextRoute : null;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean valueExists(String key) {
+        long mobile = mobileOf(key, NEXT_ROUTE_FIELD);
+        if (mobile < 0) {
+            return otherKeys.valueExists(key);
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            return session != null && session.nextRouteExists;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteValue(String key) {
+        long mobile = mobileOf(key, NEXT_ROUTE_FIELD);
+        if (mobile < 0) {
+            otherKeys.deleteValue(key);
+            return;
+        }
+        Segment segment = segmentFor(mobile);
+        synchronized (segment) {
+            Session session = find(segment, mobile, false);
+            if (session != null) {
+                session.nextRoute = null;
+                session.nextRouteExists = false;
+                removeIfEmpty(segment, session);
+            }
+        }
+    }
+
+    // Batch implementation.
+
+    /**
+     * Carries out the operations of the batch, locking the segment of a
+     * session once for each run of consecutive operations on sessions of
+     * that segment. Each such run is atomic, but the batch as a whole is
+     * not.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        List<SessionBatch.Operation> operations = batch.getOperations();
+        int i = 0;
+        while (i < operations.size()) {
+            Segment segment = segmentOf(operations.get(i));
+            if (segment == null) {
+                operations.get(i++).execute(this);
+                continue;
+            }
+            synchronized (segment) {
+                do {
+                    operations.get(i++).execute(this);
+                } while (i < operations.size() &&
+                        segmentOf(operations.get(i)) == segment);
+            }
+        }
+    }
+
+    private Segment segmentOf(SessionBatch.Operation operation) {
+        String name = operation.getName();
+        long mobile = fieldOf(name) != OTHER_FIELD ? mobileOf(name) : -1;
+        return mobile < 0 ? null : segmentFor(mobile);
+    }
+
+    /**
+     * Removes all expired sessions. Expired sessions are never returned,
+     * and each store operation removes a bounded number of them from the
+     * segment it touches, so this only needs calling to reclaim memory
+     * from segments which see no traffic, e.g. from a background thread.
+     */
+    public void cleanUp() {
+        long now = clock.currentTimeMillis();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                removeExpired(segment, now, Integer.MAX_VALUE);
+            }
+        }
+        otherKeys.cleanUp();
+    }
+
+    /**
+     * Gets the number of sessions indexed by mobile number, including
+     * those which have expired but have not been removed yet.
+     *
+     * @return session count.
+     */
+    public int getSessionCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.sessions.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+    }
+}
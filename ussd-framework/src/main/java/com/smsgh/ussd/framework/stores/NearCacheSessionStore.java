@@ -0,0 +1,807 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A session store which sits in front of a remote store, such as
+ * {@link RedisSessionStore}, and remembers what it reads and writes in a
+ * bounded local cache, so that reads repeated on the same node need not
+ * go to the remote store.
+ * <p>
+ * Every write through a near cache also sets a version stamp for the
+ * session, under the session key followed by {@link #VERSION_KEY_SUFFIX},
+ * in the same batch. Cached entries carry the stamp they were read or
+ * written under. Before being served, cached entries are validated by
+ * reading the stamp alone, in place of the entries themselves; if another
+ * node has written to the session since, the stamps differ and the
+ * session's cached entries are dropped. The session key is the part of a
+ * key before its last dot, i.e. the mobile number for the framework's
+ * keys.
+ * <p>
+ * Validation can be skipped for a while after a session was last
+ * validated. With sticky load balancing, where the next hop of a session
+ * is nearly always served by the same node, a validation interval of a
+ * few seconds lets most reads skip the remote store entirely, at the cost
+ * of possibly stale reads when a session does move to another node within
+ * that interval.
+ * <p>
+ * Cached entries are never kept beyond the time at which the remote store
+ * would expire them, i.e. the timeout after they were last read from or
+ * written to it. Reads served locally do not renew them by themselves,
+ * but whenever a cached session is validated, its cached entries are
+ * touched with existence checks in the same remote batch, which renews
+ * them in stores such as {@link RedisSessionStore} whose keys expire
+ * separately. So a session read only through the cache stays alive
+ * remotely, renewed at least once per validation interval.
+ * <p>
+ * Writes always go to the remote store. If the remote store is a
+ * {@link LifecycleSessionStore}, so is the near cache, and its handles
+ * share the cache.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class NearCacheSessionStore extends AbstractBatchSessionStore
+        implements LifecycleSessionStore {
+
+    /**
+     * The default maximum number of sessions kept in the cache.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 10000;
+
+    /**
+     * Suffix of the key under which the version stamp of a session is
+     * kept, appended to the session key.
+     */
+    public static final String VERSION_KEY_SUFFIX = ".Version";
+
+    // Cached facts besides strings: null value, absence of a key, and
+    // a get which returned null without telling which of the two it was.
+    private static final Object NULL_VALUE = new Object();
+    private static final Object ABSENT = new Object();
+    private static final Object NULL_OR_ABSENT = new Object();
+
+    // Result of a lookup which cannot be answered from the cache.
+    private static final Object UNKNOWN = new Object();
+
+    private static class Fact {
+        Object value;
+        long deadline;
+    }
+
+    private static class HashFacts {
+        final Map<String, Object> fields = new HashMap<String, Object>();
+        boolean complete;
+        long deadline;
+    }
+
+    private static class SessionEntry {
+        String stamp;
+        long verifiedAt;
+        final Map<String, Fact> values = new HashMap<String, Fact>();
+        final Map<String, HashFacts> hashes =
+                new HashMap<String, HashFacts>();
+
+        SessionEntry(String stamp) {
+            this.stamp = stamp;
+        }
+
+        void clear(String newStamp) {
+            stamp = newStamp;
+            values.clear();
+            hashes.clear();
+        }
+    }
+
+    private final SessionStore remote;
+    private final int timeoutInMillis;
+    private final long validationIntervalMillis;
+    private final Clock clock;
+
+    // Least recently used session is evicted first. Guarded by itself.
+    private final LinkedHashMap<String, SessionEntry> cache;
+
+    private final String stampPrefix;
+    private final AtomicLong stampCounter = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong validations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a near cache which validates cached entries on every read,
+     * and holds up to {@link #DEFAULT_MAX_SESSIONS} sessions.
+     *
+     * @param remote the remote store.
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * remote store, normally the session timeout.
+     */
+    public NearCacheSessionStore(SessionStore remote, int timeoutInMillis) {
+        this(remote, timeoutInMillis, DEFAULT_MAX_SESSIONS, 0, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a near cache.
+     *
+     * @param remote the remote store.
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * remote store, normally the session timeout.
+     * @param maxSessions maximum number of sessions kept in the cache.
+     * @param validationIntervalMillis time after validating a session
+     * during which its cached entries are served without validating them
+     * again. Zero validates on every read.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException if remote or clock is
+     * null, if timeoutInMillis or maxSessions is not positive, or if
+     * validationIntervalMillis is negative.
+     */
+    public NearCacheSessionStore(SessionStore remote, int timeoutInMillis,
+            final int maxSessions, long validationIntervalMillis,
+            Clock clock) {
+        if (remote == null) {
+            throw new IllegalArgumentException("\"remote\" argument "
+                    + "cannot be null");
+        }
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("\"maxSessions\" argument "
+                    + "must be positive. Received " + maxSessions);
+        }
+        if (validationIntervalMillis < 0) {
+            throw new IllegalArgumentException("\"validationIntervalMillis\" "
+                    + "argument cannot be negative. Received " +
+                    validationIntervalMillis);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        this.remote = remote;
+        this.timeoutInMillis = timeoutInMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.clock = clock;
+        this.cache = new LinkedHashMap<String, SessionEntry>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, SessionEntry> eldest) {
+                return size() > maxSessions;
+            }
+        };
+        this.stampPrefix = Long.toString(new Random().nextLong() &
+                Long.MAX_VALUE, 36) + "-";
+    }
+
+    /**
+     * Gets the store behind this near cache.
+     * @return remote store.
+     */
+    public SessionStore getRemote() {
+        return remote;
+    }
+
+    // Statistics
+
+    /**
+     * Gets the number of read operations answered from the cache.
+     * @return hit count.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of read operations sent to the remote store.
+     * @return miss count.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the portion of read operations answered from the cache.
+     * @return hit count over total read count, or 0 if there were no
+     * reads.
+     */
+    public double getHitRatio() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double)hitCount / total;
+    }
+
+    /**
+     * Gets the portion of read operations sent to the remote store.
+     * @return miss count over total read count, or 0 if there were no
+     * reads.
+     */
+    public double getMissRatio() {
+        long missCount = misses.get();
+        long total = hits.get() + missCount;
+        return total == 0 ? 0 : (double)missCount / total;
+    }
+
+    /**
+     * Gets the number of version stamps read to validate cached sessions.
+     * @return validation count.
+     */
+    public long getValidationCount() {
+        return validations.get();
+    }
+
+    /**
+     * Gets the number of times cached entries of a session were dropped
+     * because another node had written to the session.
+     * @return invalidation count.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Sets all counters back to zero.
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        validations.set(0);
+        invalidations.set(0);
+    }
+
+    /**
+     * Gets the number of sessions in the cache.
+     * @return cached session count.
+     */
+    public int getCachedSessionCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Gets the part of a key which identifies its session: the part before
+     * its last dot, or the whole key if it has no dot.
+     *
+     * @param key key of a key-value pair or name of a hash.
+     * @return session key.
+     */
+    protected String getSessionKey(String key) {
+        int dot = key.lastIndexOf('.');
+        return dot > 0 ? key.substring(0, dot) : key;
+    }
+
+    // Lifecycle
+
+    /**
+     * Starts the remote store if it is a {@link LifecycleSessionStore}.
+     */
+    @Override
+    public void start() {
+        if (remote instanceof LifecycleSessionStore) {
+            ((LifecycleSessionStore)remote).start();
+        }
+    }
+
+    /**
+     * Stops the remote store if it is a {@link LifecycleSessionStore}.
+     */
+    @Override
+    public void stop() {
+        if (remote instanceof LifecycleSessionStore) {
+            ((LifecycleSessionStore)remote).stop();
+        }
+    }
+
+    /**
+     * Gets a handle for a single ussd request, which goes through a handle
+     * borrowed from the remote store if it is a
+     * {@link LifecycleSessionStore}.
+     * @return new handle.
+     */
+    @Override
+    public SessionStore borrow() {
+        SessionStore remoteHandle = remote;
+        if (remote instanceof LifecycleSessionStore) {
+            remoteHandle = ((LifecycleSessionStore)remote).borrow();
+        }
+        return new Handle(remoteHandle);
+    }
+
+    /**
+     * Gives back a handle, releasing the handle it borrowed from the
+     * remote store.
+     * @param handle handle obtained from {@link #borrow()}.
+     */
+    @Override
+    public void release(SessionStore handle) {
+        if (!(handle instanceof Handle) || ((Handle)handle).owner() != this) {
+            throw new IllegalArgumentException("\"handle\" argument was "
+                    + "not borrowed from this store.");
+        }
+        ((Handle)handle).release();
+    }
+
+    /**
+     * Closes the remote store, unless it is a
+     * {@link LifecycleSessionStore}, which is closed by {@link #stop()}.
+     */
+    @Override
+    public void close() {
+        if (!(remote instanceof LifecycleSessionStore)) {
+            remote.close();
+        }
+    }
+
+    /**
+     * Carries out a batch, answering its reads from the cache where
+     * possible.
+     *
+     * @param batch the operations to carry out.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        execute(batch, remote);
+    }
+
+    private void execute(SessionBatch batch, SessionStore remoteStore) {
+        List<SessionBatch.Operation> operations = batch.getOperations();
+        if (operations.isEmpty()) {
+            return;
+        }
+        for (SessionBatch.Operation operation : operations) {
+            if (!operation.getType().isRead()) {
+                executeWrites(operations, remoteStore);
+                return;
+            }
+        }
+        executeReads(operations, remoteStore);
+    }
+
+    /**
+     * Answers reads from the cache where possible. Sessions which need
+     * validating have their version stamps read in the same remote batch
+     * as the reads which cannot be answered from the cache, together with
+     * existence checks renewing their cached entries.
+     */
+    private void executeReads(List<SessionBatch.Operation> operations,
+            SessionStore remoteStore) {
+        long now = clock.currentTimeMillis();
+        int count = operations.size();
+        String[] sessionKeys = new String[count];
+        Object[] cached = new Object[count];
+        Set<String> unverified = new LinkedHashSet<String>();
+        SessionBatch remoteBatch = new SessionBatch();
+        boolean allCached = true;
+        synchronized (cache) {
+            for (int i = 0; i < count; i++) {
+                SessionBatch.Operation operation = operations.get(i);
+                sessionKeys[i] = getSessionKey(operation.getName());
+                SessionEntry entry = cache.get(sessionKeys[i]);
+                cached[i] = entry == null ? UNKNOWN :
+                        lookup(entry, operation, now);
+                if (cached[i] == UNKNOWN) {
+                    allCached = false;
+                }
+                if (entry == null || now - entry.verifiedAt >=
+                        validationIntervalMillis) {
+                    unverified.add(sessionKeys[i]);
+                }
+            }
+            if (allCached && unverified.isEmpty()) {
+                for (int i = 0; i < count; i++) {
+                    operations.get(i).setResult(cached[i]);
+                }
+                hits.addAndGet(count);
+                return;
+            }
+            for (String sessionKey : unverified) {
+                SessionEntry entry = cache.get(sessionKey);
+                if (entry != null) {
+                    touch(entry, remoteBatch, now);
+                }
+            }
+        }
+
+        Map<String, Integer> versionIndices = new HashMap<String, Integer>();
+        for (String sessionKey : unverified) {
+            versionIndices.put(sessionKey, remoteBatch.getValue(
+                    sessionKey + VERSION_KEY_SUFFIX));
+        }
+        for (int i = 0; i < count; i++) {
+            if (cached[i] == UNKNOWN) {
+                remoteBatch.add(operations.get(i));
+            }
+        }
+        remoteBatch.execute(remoteStore);
+        validations.addAndGet(versionIndices.size());
+
+        List<SessionBatch.Operation> stale =
+                new ArrayList<SessionBatch.Operation>();
+        int missCount = 0;
+        synchronized (cache) {
+            Set<String> changed = new LinkedHashSet<String>();
+            for (Map.Entry<String, Integer> e : versionIndices.entrySet()) {
+                String version = remoteBatch.getString(e.getValue());
+                SessionEntry entry = cache.get(e.getKey());
+                if (entry == null) {
+                    entry = new SessionEntry(version);
+                    cache.put(e.getKey(), entry);
+                }
+                else if (!equal(entry.stamp, version)) {
+                    entry.clear(version);
+                    changed.add(e.getKey());
+                    invalidations.incrementAndGet();
+                }
+                else {
+                    renew(entry, now);
+                }
+                entry.verifiedAt = now;
+            }
+            for (int i = 0; i < count; i++) {
+                SessionBatch.Operation operation = operations.get(i);
+                if (cached[i] == UNKNOWN) {
+                    missCount++;
+                    SessionEntry entry = cache.get(sessionKeys[i]);
+                    if (entry != null) {
+                        remember(entry, operation, now);
+                    }
+                }
+                else if (changed.contains(sessionKeys[i])) {
+                    stale.add(operation);
+                }
+                else {
+                    operation.setResult(cached[i]);
+                }
+            }
+        }
+        hits.addAndGet(count - missCount - stale.size());
+        misses.addAndGet(missCount);
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        // Another node wrote to the session: read what was to be served
+        // from the cache afresh.
+        SessionBatch retryBatch = new SessionBatch();
+        for (SessionBatch.Operation operation : stale) {
+            retryBatch.add(operation);
+        }
+        retryBatch.execute(remoteStore);
+        misses.addAndGet(stale.size());
+        synchronized (cache) {
+            for (SessionBatch.Operation operation : stale) {
+                SessionEntry entry = cache.get(getSessionKey(
+                        operation.getName()));
+                if (entry != null) {
+                    remember(entry, operation, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to a remote batch an existence check for each live cached
+     * entry of a session, which renews the entry in the remote store.
+     */
+    private static void touch(SessionEntry entry, SessionBatch remoteBatch,
+            long now) {
+        for (Map.Entry<String, Fact> e : entry.values.entrySet()) {
+            if (e.getValue().deadline > now) {
+                remoteBatch.valueExists(e.getKey());
+            }
+        }
+        for (Map.Entry<String, HashFacts> e : entry.hashes.entrySet()) {
+            if (e.getValue().deadline > now) {
+                remoteBatch.hashExists(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Extends the deadlines of the cached entries of a session which were
+     * touched at some time, and so renewed in the remote store.
+     */
+    private void renew(SessionEntry entry, long touchedAt) {
+        long deadline = touchedAt + timeoutInMillis;
+        for (Fact fact : entry.values.values()) {
+            if (fact.deadline > touchedAt) {
+                fact.deadline = Math.max(fact.deadline, deadline);
+            }
+        }
+        for (HashFacts hash : entry.hashes.values()) {
+            if (hash.deadline > touchedAt) {
+                hash.deadline = Math.max(hash.deadline, deadline);
+            }
+        }
+    }
+
+    /**
+     * Sends a batch with writes to the remote store, together with a new
+     * version stamp for each session written to. The previous stamps are
+     * read in the same batch, to tell whether the rest of the cached
+     * entries of the sessions are still valid.
+     */
+    private void executeWrites(List<SessionBatch.Operation> operations,
+            SessionStore remoteStore) {
+        Set<String> sessionKeys = new LinkedHashSet<String>();
+        for (SessionBatch.Operation operation : operations) {
+            sessionKeys.add(getSessionKey(operation.getName()));
+        }
+        String stamp = stampPrefix + stampCounter.incrementAndGet();
+        SessionBatch remoteBatch = new SessionBatch();
+        Map<String, Integer> versionIndices = new HashMap<String, Integer>();
+        for (String sessionKey : sessionKeys) {
+            versionIndices.put(sessionKey, remoteBatch.getValue(
+                    sessionKey + VERSION_KEY_SUFFIX));
+        }
+        int readCount = 0;
+        for (SessionBatch.Operation operation : operations) {
+            remoteBatch.add(operation);
+            if (operation.getType().isRead()) {
+                readCount++;
+            }
+        }
+        for (String sessionKey : sessionKeys) {
+            remoteBatch.setValue(sessionKey + VERSION_KEY_SUFFIX, stamp);
+        }
+        try {
+            remoteBatch.execute(remoteStore);
+        }
+        catch (RuntimeException ex) {
+            // Unknown how much of the batch went through.
+            synchronized (cache) {
+                for (String sessionKey : sessionKeys) {
+                    cache.remove(sessionKey);
+                }
+            }
+            throw ex;
+        }
+        misses.addAndGet(readCount);
+
+        long now = clock.currentTimeMillis();
+        synchronized (cache) {
+            for (String sessionKey : sessionKeys) {
+                String version = remoteBatch.getString(
+                        versionIndices.get(sessionKey));
+                SessionEntry entry = cache.get(sessionKey);
+                if (entry == null) {
+                    entry = new SessionEntry(stamp);
+                    cache.put(sessionKey, entry);
+                }
+                else if (!equal(entry.stamp, version)) {
+                    entry.clear(stamp);
+                    invalidations.incrementAndGet();
+                }
+                entry.stamp = stamp;
+                entry.verifiedAt = now;
+            }
+            for (SessionBatch.Operation operation : operations) {
+                SessionEntry entry = cache.get(getSessionKey(
+                        operation.getName()));
+                if (entry != null) {
+                    remember(entry, operation, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers a read operation from a cached session.
+     * @return result, or UNKNOWN if the cache cannot tell.
+     */
+    private static Object lookup(SessionEntry entry,
+            SessionBatch.Operation operation, long now) {
+        String name = operation.getName();
+        Object value;
+        switch (operation.getType()) {
+            case GET_VALUE:
+            case VALUE_EXISTS: {
+                Fact fact = entry.values.get(name);
+                if (fact == null || fact.deadline <= now) {
+                    return UNKNOWN;
+                }
+                value = fact.value;
+                break;
+            }
+            case GET_HASH_VALUE:
+            case HASH_VALUE_EXISTS: {
+                HashFacts hash = entry.hashes.get(name);
+                if (hash == null || hash.deadline <= now) {
+                    return UNKNOWN;
+                }
+                value = hash.fields.get(operation.getKey());
+                if (value == null) {
+                    if (!hash.complete) {
+                        return UNKNOWN;
+                    }
+                    value = ABSENT;
+                }
+                break;
+            }
+            case HASH_EXISTS: {
+                HashFacts hash = entry.hashes.get(name);
+                if (hash == null || hash.deadline <= now) {
+                    return UNKNOWN;
+                }
+                for (Object field : hash.fields.values()) {
+                    if (field != ABSENT) {
+                        return Boolean.TRUE;
+                    }
+                }
+                return hash.complete ? Boolean.FALSE : UNKNOWN;
+            }
+            default:
+                return UNKNOWN;
+        }
+        switch (operation.getType()) {
+            case GET_VALUE:
+            case GET_HASH_VALUE:
+                return value instanceof String ? value : null;
+            default:
+                if (value == NULL_OR_ABSENT) {
+                    return UNKNOWN;
+                }
+                return value != ABSENT;
+        }
+    }
+
+    /**
+     * Records in a cached session what an operation carried out on the
+     * remote store tells about it.
+     */
+    private void remember(SessionEntry entry,
+            SessionBatch.Operation operation, long now) {
+        String name = operation.getName();
+        long deadline = now + timeoutInMillis;
+        Object result = operation.getResult();
+        switch (operation.getType()) {
+            case GET_VALUE:
+                rememberValue(entry, name, result == null ?
+                        NULL_OR_ABSENT : result, deadline);
+                break;
+            case VALUE_EXISTS:
+                if (Boolean.FALSE.equals(result)) {
+                    rememberValue(entry, name, ABSENT, deadline);
+                }
+                else {
+                    Fact fact = entry.values.get(name);
+                    if (fact != null && fact.value == NULL_OR_ABSENT) {
+                        fact.value = NULL_VALUE;
+                    }
+                }
+                break;
+            case SET_VALUE:
+                rememberValue(entry, name, operation.getValue() == null ?
+                        NULL_VALUE : operation.getValue(), deadline);
+                break;
+            case DELETE_VALUE:
+                rememberValue(entry, name, ABSENT, deadline);
+                break;
+            case GET_HASH_VALUE:
+                hashFacts(entry, name, deadline).fields.put(
+                        operation.getKey(), result == null ?
+                        NULL_OR_ABSENT : result);
+                break;
+            case HASH_VALUE_EXISTS: {
+                HashFacts hash = hashFacts(entry, name, deadline);
+                if (Boolean.FALSE.equals(result)) {
+                    hash.fields.put(operation.getKey(), ABSENT);
+                }
+                else if (hash.fields.get(operation.getKey()) ==
+                        NULL_OR_ABSENT) {
+                    hash.fields.put(operation.getKey(), NULL_VALUE);
+                }
+                break;
+            }
+            case SET_HASH_VALUE:
+                hashFacts(entry, name, deadline).fields.put(
+                        operation.getKey(), operation.getValue() == null ?
+                        NULL_VALUE : operation.getValue());
+                break;
+            case DELETE_HASH_VALUE:
+                hashFacts(entry, name, deadline).fields.put(
+                        operation.getKey(), ABSENT);
+                break;
+            case HASH_EXISTS:
+                if (Boolean.FALSE.equals(result)) {
+                    HashFacts hash = hashFacts(entry, name, deadline);
+                    hash.fields.clear();
+                    hash.complete = true;
+                }
+                else {
+                    hashFacts(entry, name, deadline);
+                }
+                break;
+            case DELETE_HASH: {
+                HashFacts hash = hashFacts(entry, name, deadline);
+                hash.fields.clear();
+                hash.complete = true;
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private static void rememberValue(SessionEntry entry, String name,
+            Object value, long deadline) {
+        Fact fact = entry.values.get(name);
+        if (fact == null) {
+            fact = new Fact();
+            entry.values.put(name, fact);
+        }
+        fact.value = value;
+        fact.deadline = deadline;
+    }
+
+    /**
+     * Gets the facts of a hash which has just been accessed on the remote
+     * store, and so has had its expiration renewed there. Facts which had
+     * already expired are dropped rather than renewed.
+     */
+    private HashFacts hashFacts(SessionEntry entry, String name,
+            long deadline) {
+        HashFacts hash = entry.hashes.get(name);
+        if (hash == null || hash.deadline <= deadline - timeoutInMillis) {
+            hash = new HashFacts();
+            entry.hashes.put(name, hash);
+        }
+        hash.deadline = deadline;
+        return hash;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Handle for a single ussd request, going through a handle borrowed
+     * from the remote store.
+     */
+    private class Handle extends AbstractBatchSessionStore {
+        private final SessionStore remoteHandle;
+        private boolean released;
+
+        Handle(SessionStore remoteHandle) {
+            this.remoteHandle = remoteHandle;
+        }
+
+        NearCacheSessionStore owner() {
+            return NearCacheSessionStore.this;
+        }
+
+        @Override
+        public void execute(SessionBatch batch) {
+            if (released) {
+                throw new IllegalStateException("Session store handle has "
+                        + "already been released.");
+            }
+            NearCacheSessionStore.this.execute(batch, remoteHandle);
+        }
+
+        void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (remote instanceof LifecycleSessionStore) {
+                ((LifecycleSessionStore)remote).release(remoteHandle);
+            }
+        }
+    }
+}
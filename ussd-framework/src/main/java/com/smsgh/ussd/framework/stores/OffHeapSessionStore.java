@@ -0,0 +1,907 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.Clock;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A thread-safe session store which keeps its entries outside of the Java
+ * heap, so that millions of sessions do not add to garbage collection
+ * work. Entries expire after a sliding time period, just as in
+ * {@link InMemorySessionStore}. Designed to be used as a singleton per
+ * Ussd application.
+ * <p>
+ * Each key-value pair, and each hash together with all of its entries,
+ * is serialized into a record held in a chain of fixed-size blocks carved
+ * out of direct {@link ByteBuffer} slabs. Freed blocks are kept on a
+ * free-list threaded through the blocks themselves. Records are found
+ * through an open-addressing index made of primitive arrays, which also
+ * holds their expiry times, so the heap holds no objects per session.
+ * <p>
+ * Like {@link ConcurrentInMemorySessionStore}, entries are spread across
+ * independently locked segments, each with its own slabs and index.
+ * Expired records are dropped when next looked up, a few index slots are
+ * checked for expired records on every operation, and all expired records
+ * are reclaimed before a segment gives up for lack of space.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class OffHeapSessionStore implements BatchSessionStore {
+
+    /**
+     * The size in bytes of the blocks records are made of.
+     */
+    public static final int BLOCK_SIZE = 64;
+
+    /**
+     * The number of blocks in each off-heap slab.
+     */
+    public static final int BLOCKS_PER_SLAB = 16384;
+
+    /**
+     * The size in bytes of each off-heap slab.
+     */
+    public static final int SLAB_SIZE = BLOCK_SIZE * BLOCKS_PER_SLAB;
+
+    /**
+     * The number of segments used when the segment count is not given
+     * explicitly.
+     */
+    public static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    /**
+     * The maximum number of segments a store can be created with.
+     */
+    public static final int MAX_SEGMENT_COUNT = 1 << 12;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Every block starts with the index of the next block in its chain.
+    private static final int NEXT_SIZE = 4;
+    private static final int DATA_PER_BLOCK = BLOCK_SIZE - NEXT_SIZE;
+    private static final int END_OF_CHAIN = -1;
+
+    // Record layout: total length (int), type (byte), key length (int),
+    // key bytes, then payload. The payload of a value record is the value
+    // itself, and that of a hash record is a sequence of entries, each
+    // being key length (int), key bytes, value length (int, -1 for null)
+    // and value bytes.
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final byte TYPE_VALUE = 1;
+    private static final byte TYPE_NULL_VALUE = 2;
+    private static final byte TYPE_HASH = 3;
+
+    // Index slot markers.
+    private static final int EMPTY = -1;
+    private static final int REMOVED = -2;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    // Index slots checked for expired records on every operation.
+    private static final int SWEEP_STEP = 4;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final int timeoutInMillis;
+    private final Clock clock;
+
+    /**
+     * Creates a new off-heap session store.
+     *
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     * @param capacityInBytes the maximum amount of off-heap memory the
+     * store may allocate, which is shared equally among its segments. Each
+     * segment gets at least one slab.
+     *
+     * @exception java.lang.IllegalArgumentException if timeoutInMillis or
+     * capacityInBytes is not positive.
+     */
+    public OffHeapSessionStore(int timeoutInMillis, long capacityInBytes) {
+        this(timeoutInMillis, capacityInBytes, DEFAULT_SEGMENT_COUNT,
+                Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new off-heap session store.
+     *
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     * @param capacityInBytes the maximum amount of off-heap memory the
+     * store may allocate, which is shared equally among its segments. Each
+     * segment gets at least one slab.
+     * @param segmentCount the number of independently locked segments,
+     * rounded up to the nearest power of two.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException if timeoutInMillis,
+     * capacityInBytes or segmentCount is not positive, if segmentCount
+     * is larger than {@link #MAX_SEGMENT_COUNT}, or if clock is null.
+     */
+    public OffHeapSessionStore(int timeoutInMillis, long capacityInBytes,
+            int segmentCount, Clock clock) {
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (capacityInBytes <= 0) {
+            throw new IllegalArgumentException("\"capacityInBytes\" argument "
+                    + "must be positive. Received " + capacityInBytes);
+        }
+        if (segmentCount <= 0 || segmentCount > MAX_SEGMENT_COUNT) {
+            throw new IllegalArgumentException("\"segmentCount\" argument "
+                    + "must be between 1 and " + MAX_SEGMENT_COUNT +
+                    ". Received " + segmentCount);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        int size = 1;
+        while (size < segmentCount) {
+            size <<= 1;
+        }
+        long slabsPerSegment = Math.max(1,
+                capacityInBytes / SLAB_SIZE / size);
+        if (slabsPerSegment * BLOCKS_PER_SLAB > Integer.MAX_VALUE) {
+            slabsPerSegment = Integer.MAX_VALUE / BLOCKS_PER_SLAB;
+        }
+        this.segments = new Segment[size];
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment((int)slabsPerSegment);
+        }
+        this.segmentMask = size - 1;
+        this.timeoutInMillis = timeoutInMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Gets the number of segments.
+     * @return segment count.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Gets the number of records held, including expired records which
+     * have not yet been reclaimed.
+     * @return record count.
+     */
+    public int getRecordCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of blocks in use by records.
+     * @return used block count.
+     */
+    public long getUsedBlockCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.usedBlocks;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the amount of off-heap memory allocated so far. Slabs are
+     * allocated as needed, and kept once allocated.
+     * @return allocated bytes.
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += (long)segment.slabCount * SLAB_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reclaims the blocks of all expired records.
+     */
+    public void cleanUp() {
+        long now = clock.currentTimeMillis();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.removeExpired(now);
+            }
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        // Use different bits from those used by the segment's index.
+        return segments[(hash >>> 20) & segmentMask];
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h * 0x9E3779B9;
+    }
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getHashValue(String name, String key) {
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(name, hash, now);
+            if (slot == -1 || segment.recordType() != TYPE_HASH) {
+                return null;
+            }
+            segment.renew(slot, now);
+            int entry = segment.findHashEntry(key);
+            return entry == -1 ? null : segment.readHashEntryValue(entry);
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(name, hash, now);
+            if (slot != -1 && segment.recordType() == TYPE_HASH) {
+                segment.startRecordFromScratch(key);
+                segment.appendHashEntry(key, value);
+                segment.update(slot, now);
+            }
+            else {
+                segment.startRecord(TYPE_HASH, name);
+                segment.appendHashEntry(key, value);
+                if (slot != -1) {
+                    segment.update(slot, now);
+                }
+                else {
+                    segment.put(slot, hash, now);
+                }
+            }
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashExists(String name) {
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(name, hash, now);
+            return slot != -1 && segment.recordType() == TYPE_HASH;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashValueExists(String name, String key) {
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(name, hash, now);
+            return slot != -1 && segment.recordType() == TYPE_HASH &&
+                    segment.findHashEntry(key) != -1;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHash(String name) {
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(name, hash, now);
+            if (slot != -1 && segment.recordType() == TYPE_HASH) {
+                segment.remove(slot);
+            }
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHashValue(String name, String key) {
+        int hash = hash(name);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(name, hash, now);
+            if (slot != -1 && segment.recordType() == TYPE_HASH &&
+                    segment.findHashEntry(key) != -1) {
+                segment.startRecordFromScratch(key);
+                segment.update(slot, now);
+            }
+        }
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String value) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(key, hash, now);
+            if (value == null) {
+                segment.startRecord(TYPE_NULL_VALUE, key);
+            }
+            else {
+                segment.startRecord(TYPE_VALUE, key);
+                segment.appendString(value);
+            }
+            if (slot != -1) {
+                segment.update(slot, now);
+            }
+            else {
+                segment.put(slot, hash, now);
+            }
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getValue(String key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(key, hash, now);
+            if (slot == -1) {
+                return null;
+            }
+            byte type = segment.recordType();
+            if (type == TYPE_HASH) {
+                return null;
+            }
+            segment.renew(slot, now);
+            return type == TYPE_VALUE ? segment.readPayloadString() : null;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean valueExists(String key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(key, hash, now);
+            return slot != -1 && segment.recordType() != TYPE_HASH;
+        }
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteValue(String key) {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            long now = segment.begin();
+            int slot = segment.find(key, hash, now);
+            if (slot != -1 && segment.recordType() != TYPE_HASH) {
+                segment.remove(slot);
+            }
+        }
+    }
+
+    /**
+     * Carries out the operations of a batch one at a time. Each operation
+     * is atomic, but the batch as a whole is not, since its keys may lie
+     * in different segments.
+     *
+     * @param batch the operations to carry out.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        batch.executeEach(this);
+    }
+
+    /**
+     * Does nothing, since off-heap memory is held for the lifetime of the
+     * store.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * A part of the store with its own slabs, free-list and index, guarded
+     * by its own monitor.
+     */
+    private final class Segment {
+        private final ByteBuffer[] slabs;
+        private int slabCount;
+
+        // Blocks never used yet start at this index.
+        private int nextUnusedBlock;
+        private int freeListHead = END_OF_CHAIN;
+        private int freeBlocks;
+        private int usedBlocks;
+
+        // Index: first block of record, hash of key and expiry time, with
+        // slots found by linear probing.
+        private int[] heads;
+        private int[] hashes;
+        private long[] deadlines;
+        private int size;
+        private int removedSlots;
+        private int sweepCursor;
+
+        // Record most recently read by find(), and record being built.
+        // Both are reused across operations.
+        private byte[] scratch = new byte[256];
+        private int scratchLength;
+        private byte[] build = new byte[256];
+        private int buildLength;
+
+        Segment(int maxSlabs) {
+            this.slabs = new ByteBuffer[maxSlabs];
+            initIndex(INITIAL_INDEX_CAPACITY);
+        }
+
+        private void initIndex(int capacity) {
+            heads = new int[capacity];
+            Arrays.fill(heads, EMPTY);
+            hashes = new int[capacity];
+            deadlines = new long[capacity];
+            size = 0;
+            removedSlots = 0;
+            sweepCursor = 0;
+        }
+
+        /**
+         * Starts an operation, by checking a few index slots for expired
+         * records.
+         * @return current time.
+         */
+        long begin() {
+            long now = clock.currentTimeMillis();
+            int mask = heads.length - 1;
+            for (int i = 0; i < SWEEP_STEP; i++) {
+                int slot = sweepCursor;
+                sweepCursor = (sweepCursor + 1) & mask;
+                if (heads[slot] >= 0 && deadlines[slot] <= now) {
+                    remove(slot);
+                }
+            }
+            return now;
+        }
+
+        void removeExpired(long now) {
+            for (int slot = 0; slot < heads.length; slot++) {
+                if (heads[slot] >= 0 && deadlines[slot] <= now) {
+                    remove(slot);
+                }
+            }
+        }
+
+        // Index
+
+        /**
+         * Looks up a record and reads it into the scratch buffer. An
+         * expired record is removed and treated as absent.
+         * @return slot of record, or -1 if not found.
+         */
+        int find(String key, int hash, long now) {
+            byte[] keyBytes = key.getBytes(UTF8);
+            int mask = heads.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int head = heads[slot];
+                if (head == EMPTY) {
+                    return -1;
+                }
+                if (head >= 0 && hashes[slot] == hash) {
+                    readRecord(head);
+                    if (keyMatches(keyBytes)) {
+                        if (deadlines[slot] <= now) {
+                            remove(slot);
+                            return -1;
+                        }
+                        return slot;
+                    }
+                }
+            }
+        }
+
+        private boolean keyMatches(byte[] keyBytes) {
+            if (readInt(scratch, 5) != keyBytes.length) {
+                return false;
+            }
+            for (int i = 0; i < keyBytes.length; i++) {
+                if (scratch[RECORD_HEADER_SIZE + i] != keyBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void renew(int slot, long now) {
+            deadlines[slot] = now + timeoutInMillis;
+        }
+
+        /**
+         * Writes the record being built into the given slot's chain.
+         */
+        void update(int slot, long now) {
+            // Renew first, so the record cannot be reclaimed as expired
+            // while making room for its new contents.
+            renew(slot, now);
+            heads[slot] = writeRecord(heads[slot]);
+        }
+
+        /**
+         * Writes the record being built into a new slot.
+         * @param slot must be -1, i.e. record was not found.
+         */
+        void put(int slot, int hash, long now) {
+            if ((size + removedSlots + 1) * 4 > heads.length * 3) {
+                resizeIndex();
+            }
+            int head = writeRecord(END_OF_CHAIN);
+            int mask = heads.length - 1;
+            for (slot = hash & mask; heads[slot] >= 0;
+                    slot = (slot + 1) & mask) {
+            }
+            if (heads[slot] == REMOVED) {
+                removedSlots--;
+            }
+            heads[slot] = head;
+            hashes[slot] = hash;
+            deadlines[slot] = now + timeoutInMillis;
+            size++;
+        }
+
+        void remove(int slot) {
+            freeChain(heads[slot]);
+            heads[slot] = REMOVED;
+            size--;
+            removedSlots++;
+        }
+
+        private void resizeIndex() {
+            int[] oldHeads = heads;
+            int[] oldHashes = hashes;
+            long[] oldDeadlines = deadlines;
+            int capacity = oldHeads.length;
+            if (size * 2 >= capacity) {
+                capacity *= 2;
+            }
+            initIndex(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < oldHeads.length; i++) {
+                if (oldHeads[i] >= 0) {
+                    int slot = oldHashes[i] & mask;
+                    while (heads[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    heads[slot] = oldHeads[i];
+                    hashes[slot] = oldHashes[i];
+                    deadlines[slot] = oldDeadlines[i];
+                    size++;
+                }
+            }
+        }
+
+        // Records in scratch buffer
+
+        byte recordType() {
+            return scratch[4];
+        }
+
+        private int payloadStart() {
+            return RECORD_HEADER_SIZE + readInt(scratch, 5);
+        }
+
+        String readPayloadString() {
+            int start = payloadStart();
+            return new String(scratch, start, scratchLength - start, UTF8);
+        }
+
+        /**
+         * Finds an entry in the hash record in the scratch buffer.
+         * @return offset of entry, or -1 if not found.
+         */
+        int findHashEntry(String key) {
+            byte[] keyBytes = key.getBytes(UTF8);
+            int offset = payloadStart();
+            while (offset < scratchLength) {
+                int keyLength = readInt(scratch, offset);
+                if (keyLength == keyBytes.length && regionMatches(
+                        offset + 4, keyBytes)) {
+                    return offset;
+                }
+                offset = nextHashEntry(offset);
+            }
+            return -1;
+        }
+
+        private boolean regionMatches(int offset, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (scratch[offset + i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int nextHashEntry(int offset) {
+            offset += 4 + readInt(scratch, offset);
+            int valueLength = readInt(scratch, offset);
+            return offset + 4 + Math.max(0, valueLength);
+        }
+
+        String readHashEntryValue(int offset) {
+            offset += 4 + readInt(scratch, offset);
+            int valueLength = readInt(scratch, offset);
+            if (valueLength < 0) {
+                return null;
+            }
+            return new String(scratch, offset + 4, valueLength, UTF8);
+        }
+
+        // Building records
+
+        void startRecord(byte type, String key) {
+            byte[] keyBytes = key.getBytes(UTF8);
+            buildLength = 0;
+            ensureBuildCapacity(RECORD_HEADER_SIZE + keyBytes.length);
+            buildLength = 4;
+            build[buildLength++] = type;
+            writeInt(build, buildLength, keyBytes.length);
+            buildLength += 4;
+            System.arraycopy(keyBytes, 0, build, buildLength,
+                    keyBytes.length);
+            buildLength += keyBytes.length;
+        }
+
+        /**
+         * Starts building a copy of the hash record in the scratch buffer,
+         * leaving out the entry with the given key.
+         */
+        void startRecordFromScratch(String omittedKey) {
+            int omitted = findHashEntry(omittedKey);
+            int start = payloadStart();
+            ensureBuildCapacity(scratchLength);
+            if (omitted == -1) {
+                System.arraycopy(scratch, 0, build, 0, scratchLength);
+                buildLength = scratchLength;
+            }
+            else {
+                int end = nextHashEntry(omitted);
+                System.arraycopy(scratch, 0, build, 0, omitted);
+                System.arraycopy(scratch, end, build, omitted,
+                        scratchLength - end);
+                buildLength = scratchLength - (end - omitted);
+            }
+        }
+
+        void appendString(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+            ensureBuildCapacity(buildLength + bytes.length);
+            System.arraycopy(bytes, 0, build, buildLength, bytes.length);
+            buildLength += bytes.length;
+        }
+
+        void appendHashEntry(String key, String value) {
+            byte[] keyBytes = key.getBytes(UTF8);
+            byte[] valueBytes = value == null ? null : value.getBytes(UTF8);
+            ensureBuildCapacity(buildLength + 8 + keyBytes.length +
+                    (valueBytes == null ? 0 : valueBytes.length));
+            writeInt(build, buildLength, keyBytes.length);
+            buildLength += 4;
+            System.arraycopy(keyBytes, 0, build, buildLength,
+                    keyBytes.length);
+            buildLength += keyBytes.length;
+            if (valueBytes == null) {
+                writeInt(build, buildLength, -1);
+                buildLength += 4;
+            }
+            else {
+                writeInt(build, buildLength, valueBytes.length);
+                buildLength += 4;
+                System.arraycopy(valueBytes, 0, build, buildLength,
+                        valueBytes.length);
+                buildLength += valueBytes.length;
+            }
+        }
+
+        private void ensureBuildCapacity(int capacity) {
+            if (build.length < capacity) {
+                build = Arrays.copyOf(build,
+                        Math.max(capacity, build.length * 2));
+            }
+        }
+
+        // Blocks
+
+        private ByteBuffer slab(int block) {
+            return slabs[block / BLOCKS_PER_SLAB];
+        }
+
+        private int offset(int block) {
+            return (block % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+        }
+
+        private int next(int block) {
+            return slab(block).getInt(offset(block));
+        }
+
+        private void setNext(int block, int next) {
+            slab(block).putInt(offset(block), next);
+        }
+
+        /**
+         * Reads a whole record into the scratch buffer.
+         */
+        private void readRecord(int head) {
+            ByteBuffer slab = slab(head);
+            int length = slab.getInt(offset(head) + NEXT_SIZE);
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            int read = 0;
+            for (int block = head; read < length; block = next(block)) {
+                int count = Math.min(DATA_PER_BLOCK, length - read);
+                slab = slab(block);
+                slab.position(offset(block) + NEXT_SIZE);
+                slab.get(scratch, read, count);
+                read += count;
+            }
+            scratchLength = length;
+        }
+
+        /**
+         * Writes the record being built into a chain of blocks, reusing
+         * the blocks of an existing chain.
+         * @param head first block of existing chain, or END_OF_CHAIN.
+         * @return first block of written chain.
+         */
+        private int writeRecord(int head) {
+            writeInt(build, 0, buildLength);
+            int needed = (buildLength + DATA_PER_BLOCK - 1) / DATA_PER_BLOCK;
+            int existing = 0;
+            for (int block = head; block != END_OF_CHAIN &&
+                    existing < needed; block = next(block)) {
+                existing++;
+            }
+            reserve(needed - existing);
+
+            int first = head;
+            int previous = END_OF_CHAIN;
+            int block = head;
+            int written = 0;
+            while (written < buildLength) {
+                if (block == END_OF_CHAIN) {
+                    block = allocate();
+                    setNext(block, END_OF_CHAIN);
+                    if (previous == END_OF_CHAIN) {
+                        first = block;
+                    }
+                    else {
+                        setNext(previous, block);
+                    }
+                }
+                int count = Math.min(DATA_PER_BLOCK, buildLength - written);
+                ByteBuffer slab = slab(block);
+                slab.position(offset(block) + NEXT_SIZE);
+                slab.put(build, written, count);
+                written += count;
+                previous = block;
+                block = next(block);
+            }
+            if (block != END_OF_CHAIN) {
+                setNext(previous, END_OF_CHAIN);
+                freeChain(block);
+            }
+            return first;
+        }
+
+        /**
+         * Makes sure that some number of blocks can be allocated, first by
+         * allocating slabs, and then by reclaiming expired records.
+         */
+        private void reserve(int count) {
+            if (count <= available()) {
+                return;
+            }
+            while (count > available() && slabCount < slabs.length) {
+                slabs[slabCount++] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            }
+            if (count > available()) {
+                removeExpired(clock.currentTimeMillis());
+            }
+            if (count > available()) {
+                throw new FrameworkException(String.format("Off-heap "
+                        + "session store is full: %d blocks in use, and "
+                        + "%d more needed.", usedBlocks, count));
+            }
+        }
+
+        private int available() {
+            return freeBlocks + slabCount * BLOCKS_PER_SLAB -
+                    nextUnusedBlock;
+        }
+
+        private int allocate() {
+            int block;
+            if (freeListHead != END_OF_CHAIN) {
+                block = freeListHead;
+                freeListHead = next(block);
+                freeBlocks--;
+            }
+            else {
+                block = nextUnusedBlock++;
+            }
+            usedBlocks++;
+            return block;
+        }
+
+        private void freeChain(int block) {
+            while (block != END_OF_CHAIN) {
+                int next = next(block);
+                setNext(block, freeListHead);
+                freeListHead = block;
+                freeBlocks++;
+                usedBlocks--;
+                block = next;
+            }
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) |
+                ((bytes[offset + 1] & 0xff) << 16) |
+                ((bytes[offset + 2] & 0xff) << 8) |
+                (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte)(value >>> 24);
+        bytes[offset + 1] = (byte)(value >>> 16);
+        bytes[offset + 2] = (byte)(value >>> 8);
+        bytes[offset + 3] = (byte)value;
+    }
+}
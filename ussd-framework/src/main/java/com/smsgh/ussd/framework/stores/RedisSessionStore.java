@@ -0,0 +1,632 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A session store kept in a Redis server (or any server speaking the
+ * Redis protocol, RESP), talked to over plain sockets without any client
+ * library.
+ * <p>
+ * Key-value pairs are kept as Redis strings, and hashes as Redis hashes.
+ * Both expire after the given timeout, which is renewed whenever they are
+ * written, read or checked for existence, as in the in-memory stores.
+ * Names can be given a prefix, so that several applications can share a
+ * Redis database.
+ * <p>
+ * Connections are pooled, and all commands needed for a
+ * {@link SessionBatch} are pipelined, i.e. written in one go before any
+ * reply is read, so that a batch costs a single network round trip.
+ * <p>
+ * Redis cannot hold null values, so setting a value or hash entry to null
+ * deletes it instead.
+ * <p>
+ * Designed to be used as a singleton per Ussd application, which calls
+ * {@link #start()} before the first ussd request and {@link #stop()} when
+ * it shuts down. Each ussd request borrows a handle which takes a
+ * connection from the pool on first use, and keeps it until the request
+ * ends.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class RedisSessionStore extends AbstractBatchSessionStore
+        implements LifecycleSessionStore {
+
+    /**
+     * The default port of Redis servers.
+     */
+    public static final int DEFAULT_PORT = 6379;
+
+    /**
+     * The default number of idle connections kept in the pool.
+     */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+
+    /**
+     * The default connect and read timeout of sockets.
+     */
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 5000;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String host;
+    private final int port;
+    private final String timeout;
+    private final String keyPrefix;
+    private final int socketTimeoutMillis;
+    private final BlockingQueue<Connection> idleConnections;
+    private volatile boolean started;
+    private volatile boolean stopped;
+
+    /**
+     * Creates a new store for a Redis server, without any key prefix.
+     *
+     * @param host host name or address of server.
+     * @param port port of server.
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     *
+     * @exception java.lang.IllegalArgumentException if host is null, or
+     * if port or timeoutInMillis is not positive.
+     */
+    public RedisSessionStore(String host, int port, int timeoutInMillis) {
+        this(host, port, timeoutInMillis, "", DEFAULT_MAX_IDLE_CONNECTIONS,
+                DEFAULT_SOCKET_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a new store for a Redis server.
+     *
+     * @param host host name or address of server.
+     * @param port port of server.
+     * @param timeoutInMillis the sliding expiration time of entries in the
+     * store in milliseconds.
+     * @param keyPrefix prefix put before all names sent to server. May be
+     * null or empty for no prefix.
+     * @param maxIdleConnections the number of connections kept open for
+     * reuse. More connections are opened when needed, but are closed when
+     * the pool is full.
+     * @param socketTimeoutMillis the connect and read timeout of sockets.
+     *
+     * @exception java.lang.IllegalArgumentException if host is null, or
+     * if port, timeoutInMillis, maxIdleConnections or socketTimeoutMillis
+     * is not positive.
+     */
+    public RedisSessionStore(String host, int port, int timeoutInMillis,
+            String keyPrefix, int maxIdleConnections,
+            int socketTimeoutMillis) {
+        if (host == null) {
+            throw new IllegalArgumentException("\"host\" argument "
+                    + "cannot be null");
+        }
+        if (port <= 0) {
+            throw new IllegalArgumentException("\"port\" argument "
+                    + "must be positive. Received " + port);
+        }
+        if (timeoutInMillis <= 0) {
+            throw new IllegalArgumentException("\"timeoutInMillis\" argument "
+                    + "must be positive. Received " + timeoutInMillis);
+        }
+        if (maxIdleConnections <= 0) {
+            throw new IllegalArgumentException("\"maxIdleConnections\" "
+                    + "argument must be positive. Received " +
+                    maxIdleConnections);
+        }
+        if (socketTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("\"socketTimeoutMillis\" "
+                    + "argument must be positive. Received " +
+                    socketTimeoutMillis);
+        }
+        this.host = host;
+        this.port = port;
+        this.timeout = String.valueOf(timeoutInMillis);
+        this.keyPrefix = keyPrefix != null ? keyPrefix : "";
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        this.idleConnections = new LinkedBlockingQueue<Connection>(
+                maxIdleConnections);
+    }
+
+    /**
+     * Gets the number of connections currently idle in the pool.
+     * @return idle connection count.
+     */
+    public int getIdleConnectionCount() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Opens a connection to the server and checks that the server
+     * answers, so that a wrong address or a server which is down is
+     * reported at startup rather than on the first ussd request.
+     *
+     * @exception FrameworkException if the server could not be reached,
+     * or if the store has been stopped.
+     */
+    @Override
+    public void start() {
+        if (stopped) {
+            throw new FrameworkException("Session store cannot be "
+                    + "restarted after it has been stopped.");
+        }
+        Connection connection = openConnection();
+        try {
+            connection.write(new String[]{ "PING" });
+            connection.flush();
+            Object reply = connection.read();
+            // Anything but PONG means something other than a Redis server
+            // answered, e.g. the socket connected to itself because the
+            // server's port was free and in the local ephemeral range.
+            if (!"PONG".equals(reply)) {
+                connection.close();
+                throw new FrameworkException(String.format("Redis server "
+                        + "at %s:%d replied unexpectedly to PING: %s", host,
+                        port, reply));
+            }
+        }
+        catch (IOException ex) {
+            connection.close();
+            throw new FrameworkException(String.format("Communication with "
+                    + "Redis server at %s:%d failed.", host, port), ex);
+        }
+        started = true;
+        releaseConnection(connection);
+    }
+
+    /**
+     * Closes all pooled connections. Connections held by borrowed handles
+     * are closed as soon as the handles are released, and the store cannot
+     * be used afterwards.
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Gets a handle which takes a connection from the pool when first
+     * used, and keeps it for all later operations until released.
+     *
+     * @return handle for a single ussd request.
+     */
+    @Override
+    public SessionStore borrow() {
+        checkUsable();
+        return new Handle();
+    }
+
+    /**
+     * Gives back a handle obtained from {@link #borrow()}, returning its
+     * connection to the pool.
+     *
+     * @param handle the handle to give back.
+     *
+     * @exception java.lang.IllegalArgumentException if handle was not
+     * obtained from this store.
+     */
+    @Override
+    public void release(SessionStore handle) {
+        if (!(handle instanceof Handle) ||
+                ((Handle)handle).getOwner() != this) {
+            throw new IllegalArgumentException("\"handle\" argument was "
+                    + "not borrowed from this store.");
+        }
+        ((Handle)handle).release();
+    }
+
+    /**
+     * Sends the commands for all operations of a batch to the server
+     * in a single pipeline, over a connection which is returned to the
+     * pool right afterwards.
+     *
+     * @param batch the operations to carry out.
+     *
+     * @exception FrameworkException if the server could not be reached, if
+     * it replied with an error to any command, or if the store has not been
+     * started or has been stopped.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        checkUsable();
+        if (batch.isEmpty()) {
+            return;
+        }
+        Connection connection = borrowConnection();
+        try {
+            execute(batch, connection);
+        }
+        finally {
+            releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Sends the commands for all operations of a batch to the server
+     * in a single pipeline, and sets the result of each read operation.
+     * The connection is closed if communication fails.
+     */
+    private void execute(SessionBatch batch, Connection connection) {
+        List<SessionBatch.Operation> operations = batch.getOperations();
+
+        // Each operation takes one or two commands. Its result comes from
+        // the reply to its first command.
+        List<String[]> commands = new ArrayList<String[]>(
+                2 * operations.size());
+        int[] resultIndices = new int[operations.size()];
+        for (int i = 0; i < operations.size(); i++) {
+            resultIndices[i] = commands.size();
+            addCommands(operations.get(i), commands);
+        }
+
+        Object[] replies = send(connection, commands);
+
+        for (int i = 0; i < operations.size(); i++) {
+            SessionBatch.Operation operation = operations.get(i);
+            Object reply = replies[resultIndices[i]];
+            switch (operation.getType()) {
+                case GET_HASH_VALUE:
+                case GET_VALUE:
+                    operation.setResult(reply);
+                    break;
+                case HASH_EXISTS:
+                case HASH_VALUE_EXISTS:
+                case VALUE_EXISTS:
+                    operation.setResult(reply instanceof Long &&
+                            (Long)reply > 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void addCommands(SessionBatch.Operation operation,
+            List<String[]> commands) {
+        String name = keyPrefix + operation.getName();
+        String key = operation.getKey();
+        String value = operation.getValue();
+        switch (operation.getType()) {
+            case GET_HASH_VALUE:
+                commands.add(new String[]{ "HGET", name, key });
+                commands.add(new String[]{ "PEXPIRE", name, timeout });
+                break;
+            case SET_HASH_VALUE:
+                if (value == null) {
+                    commands.add(new String[]{ "HDEL", name, key });
+                }
+                else {
+                    commands.add(new String[]{ "HSET", name, key, value });
+                }
+                commands.add(new String[]{ "PEXPIRE", name, timeout });
+                break;
+            case HASH_EXISTS:
+                commands.add(new String[]{ "EXISTS", name });
+                commands.add(new String[]{ "PEXPIRE", name, timeout });
+                break;
+            case HASH_VALUE_EXISTS:
+                commands.add(new String[]{ "HEXISTS", name, key });
+                commands.add(new String[]{ "PEXPIRE", name, timeout });
+                break;
+            case DELETE_HASH:
+                commands.add(new String[]{ "DEL", name });
+                break;
+            case DELETE_HASH_VALUE:
+                commands.add(new String[]{ "HDEL", name, key });
+                break;
+            case SET_VALUE:
+                if (value == null) {
+                    commands.add(new String[]{ "DEL", name });
+                }
+                else {
+                    commands.add(new String[]{ "SET", name, value, "PX",
+                        timeout });
+                }
+                break;
+            case GET_VALUE:
+                commands.add(new String[]{ "GET", name });
+                commands.add(new String[]{ "PEXPIRE", name, timeout });
+                break;
+            case VALUE_EXISTS:
+                commands.add(new String[]{ "EXISTS", name });
+                commands.add(new String[]{ "PEXPIRE", name, timeout });
+                break;
+            case DELETE_VALUE:
+                commands.add(new String[]{ "DEL", name });
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation "
+                        + "type: " + operation.getType());
+        }
+    }
+
+    private Object[] send(Connection connection, List<String[]> commands) {
+        Object[] replies = new Object[commands.size()];
+        try {
+            for (String[] command : commands) {
+                connection.write(command);
+            }
+            connection.flush();
+
+            // Read every reply even after an error, so that the
+            // connection stays usable.
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = connection.read();
+            }
+        }
+        catch (IOException ex) {
+            connection.close();
+            throw new FrameworkException(String.format("Communication with "
+                    + "Redis server at %s:%d failed.", host, port), ex);
+        }
+
+        for (int i = 0; i < replies.length; i++) {
+            if (replies[i] instanceof ErrorReply) {
+                throw new FrameworkException(String.format("Redis server "
+                        + "at %s:%d replied with error to %s: %s", host, port,
+                        commands.get(i)[0], replies[i]));
+            }
+        }
+        return replies;
+    }
+
+    private void checkUsable() {
+        if (stopped) {
+            throw new FrameworkException("Session store has been stopped.");
+        }
+        if (!started) {
+            throw new FrameworkException("Session store has not been "
+                    + "started.");
+        }
+    }
+
+    private Connection borrowConnection() {
+        Connection connection = idleConnections.poll();
+        if (connection != null) {
+            return connection;
+        }
+        return openConnection();
+    }
+
+    private Connection openConnection() {
+        try {
+            return new Connection(host, port, socketTimeoutMillis);
+        }
+        catch (IOException ex) {
+            throw new FrameworkException(String.format("Could not connect "
+                    + "to Redis server at %s:%d.", host, port), ex);
+        }
+    }
+
+    private void releaseConnection(Connection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        if (stopped || !idleConnections.offer(connection)) {
+            connection.close();
+            return;
+        }
+
+        // stop() may have emptied the pool just before the offer.
+        if (stopped && idleConnections.remove(connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Handle through which a single ussd request reaches the server,
+     * holding on to one connection from first use until released.
+     */
+    private class Handle extends AbstractBatchSessionStore {
+        private Connection connection;
+        private boolean released;
+
+        RedisSessionStore getOwner() {
+            return RedisSessionStore.this;
+        }
+
+        @Override
+        public void execute(SessionBatch batch) {
+            if (released) {
+                throw new IllegalStateException("Handle has been "
+                        + "released.");
+            }
+            checkUsable();
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (connection == null || connection.isClosed()) {
+                connection = borrowConnection();
+            }
+            RedisSessionStore.this.execute(batch, connection);
+        }
+
+        void release() {
+            released = true;
+            if (connection != null) {
+                releaseConnection(connection);
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * Reply of server to a command which failed.
+     */
+    private static class ErrorReply {
+        private final String message;
+
+        ErrorReply(String message) {
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return message;
+        }
+    }
+
+    /**
+     * A socket to the server, with RESP encoding and decoding.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private volatile boolean closed;
+
+        Connection(String host, int port, int socketTimeoutMillis)
+                throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(socketTimeoutMillis);
+                socket.connect(new InetSocketAddress(host, port),
+                        socketTimeoutMillis);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+            catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        void write(String[] command) throws IOException {
+            writeHeader('*', command.length);
+            for (String arg : command) {
+                byte[] bytes = arg.getBytes(UTF8);
+                writeHeader('$', bytes.length);
+                out.write(bytes);
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+
+        private void writeHeader(char type, int length) throws IOException {
+            out.write(type);
+            String digits = String.valueOf(length);
+            for (int i = 0; i < digits.length(); i++) {
+                out.write(digits.charAt(i));
+            }
+            out.write('\r');
+            out.write('\n');
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Reads a reply.
+         * @return String for simple and bulk strings, Long for integers,
+         * List for arrays, ErrorReply for errors, and null for null bulk
+         * strings and arrays.
+         * @throws IOException
+         */
+        Object read() throws IOException {
+            int type = in.read();
+            if (type == -1) {
+                throw new EOFException("Connection closed by server.");
+            }
+            String line = readLine();
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new ErrorReply(line);
+                case ':':
+                    return parseLong(line);
+                case '$': {
+                    int length = (int)parseLong(line);
+                    if (length < 0) {
+                        return null;
+                    }
+                    byte[] bytes = new byte[length];
+                    int offset = 0;
+                    while (offset < length) {
+                        int count = in.read(bytes, offset, length - offset);
+                        if (count == -1) {
+                            throw new EOFException("Connection closed "
+                                    + "by server.");
+                        }
+                        offset += count;
+                    }
+                    readLine();
+                    return new String(bytes, UTF8);
+                }
+                case '*': {
+                    int length = (int)parseLong(line);
+                    if (length < 0) {
+                        return null;
+                    }
+                    List<Object> elements = new ArrayList<Object>(length);
+                    for (int i = 0; i < length; i++) {
+                        elements.add(read());
+                    }
+                    return elements;
+                }
+                default:
+                    throw new IOException("Unknown reply type: " +
+                            (char)type);
+            }
+        }
+
+        private long parseLong(String line) throws IOException {
+            try {
+                return Long.parseLong(line);
+            }
+            catch (NumberFormatException ex) {
+                throw new IOException("Invalid number in reply: " + line);
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(16);
+            int b;
+            while ((b = in.read()) != '\r') {
+                if (b == -1) {
+                    throw new EOFException("Connection closed by server.");
+                }
+                line.write(b);
+            }
+            if (in.read() != '\n') {
+                throw new IOException("Reply line not terminated with "
+                        + "CRLF.");
+            }
+            return new String(line.toByteArray(), UTF8);
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered list of session store operations which are sent to a store
+ * together, so that stores backed by a remote server can carry them out in
+ * a single round trip.
+ * <p>
+ * Each method which adds an operation returns the index of that
+ * operation, which is used to fetch its result after the batch has been
+ * executed with {@link #execute(SessionStore)}. Operations may mix reads
+ * and writes across the value and hash namespaces, and are carried out
+ * in the order in which they were added.
+ * <p>
+ * Stores which implement {@link BatchSessionStore} execute batches
+ * themselves. Any other store gets the operations one at a time.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class SessionBatch {
+
+    /**
+     * The kinds of operations a batch can hold. Each corresponds to
+     * the {@link SessionStore} method of the same name.
+     */
+    public enum OperationType {
+        GET_HASH_VALUE(true),
+        SET_HASH_VALUE(false),
+        HASH_EXISTS(true),
+        HASH_VALUE_EXISTS(true),
+        DELETE_HASH(false),
+        DELETE_HASH_VALUE(false),
+        SET_VALUE(false),
+        GET_VALUE(true),
+        VALUE_EXISTS(true),
+        DELETE_VALUE(false);
+
+        private final boolean read;
+
+        private OperationType(boolean read) {
+            this.read = read;
+        }
+
+        /**
+         * Tells whether operations of this type produce a result.
+         * @return true for reads, false for writes.
+         */
+        public boolean isRead() {
+            return read;
+        }
+    }
+
+    /**
+     * A single operation in a batch.
+     */
+    public static class Operation {
+        private final OperationType type;
+        private final String name;
+        private final String key;
+        private final String value;
+        private Object result;
+
+        Operation(OperationType type, String name, String key,
+                String value) {
+            this.type = type;
+            this.name = name;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Gets the kind of operation.
+         * @return operation type.
+         */
+        public OperationType getType() {
+            return type;
+        }
+
+        /**
+         * Gets the key of the key-value pair, or the name of the hash,
+         * which the operation is carried out on.
+         * @return key or hash name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the key in the hash which the operation is carried out on.
+         * @return key in hash, or null for hash-wide and key-value
+         * operations.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Gets the value written by the operation.
+         * @return value for set operations, or null for the others.
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Gets the result of the operation after its batch has been
+         * executed.
+         * @return a String for get operations, a Boolean for exists
+         * operations, and null for writes.
+         */
+        public Object getResult() {
+            return result;
+        }
+
+        /**
+         * Sets the result of the operation. Called by
+         * {@link BatchSessionStore} implementations.
+         * @param result a String for get operations, or a Boolean for
+         * exists operations.
+         */
+        public void setResult(Object result) {
+            this.result = result;
+        }
+
+        /**
+         * Carries out the operation by calling the corresponding method
+         * on a store, and records its result.
+         * @param store the store to call.
+         */
+        public void execute(SessionStore store) {
+            switch (type) {
+                case GET_HASH_VALUE:
+                    result = store.getHashValue(name, key);
+                    break;
+                case SET_HASH_VALUE:
+                    store.setHashValue(name, key, value);
+                    break;
+                case HASH_EXISTS:
+                    result = store.hashExists(name);
+                    break;
+                case HASH_VALUE_EXISTS:
+                    result = store.hashValueExists(name, key);
+                    break;
+                case DELETE_HASH:
+                    store.deleteHash(name);
+                    break;
+                case DELETE_HASH_VALUE:
+                    store.deleteHashValue(name, key);
+                    break;
+                case SET_VALUE:
+                    store.setValue(name, value);
+                    break;
+                case GET_VALUE:
+                    result = store.getValue(name);
+                    break;
+                case VALUE_EXISTS:
+                    result = store.valueExists(name);
+                    break;
+                case DELETE_VALUE:
+                    store.deleteValue(name);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation "
+                            + "type: " + type);
+            }
+        }
+
+        /**
+         * @inheritDoc
+         */
+        @Override
+        public String toString() {
+            return "Operation{" + "type=" + type + ", name=" + name +
+                    ", key=" + key + ", value=" + value + ", result=" +
+                    result + '}';
+        }
+    }
+
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    /**
+     * Creates an empty batch.
+     */
+    public SessionBatch() {
+    }
+
+    private int add(OperationType type, String name, String key,
+            String value) {
+        if (name == null) {
+            throw new IllegalArgumentException("\"name\" argument "
+                    + "cannot be null");
+        }
+        operations.add(new Operation(type, name, key, value));
+        return operations.size() - 1;
+    }
+
+    /**
+     * Adds an operation of another batch, e.g. to split a batch among
+     * several stores. The operation's result is set on the same object,
+     * and so is seen through both batches.
+     * @param operation operation to add.
+     * @return index of operation.
+     */
+    int add(Operation operation) {
+        operations.add(operation);
+        return operations.size() - 1;
+    }
+
+    // Hash store
+
+    /**
+     * Adds a {@link SessionStore#getHashValue(String, String)} operation.
+     * @param name name of hash.
+     * @param key key whose value is to be retrieved.
+     * @return index of operation.
+     */
+    public int getHashValue(String name, String key) {
+        return add(OperationType.GET_HASH_VALUE, name, key, null);
+    }
+
+    /**
+     * Adds a {@link SessionStore#setHashValue(String, String, String)}
+     * operation.
+     * @param name name of hash.
+     * @param key key in hash.
+     * @param value new value for key in hash.
+     * @return index of operation.
+     */
+    public int setHashValue(String name, String key, String value) {
+        return add(OperationType.SET_HASH_VALUE, name, key, value);
+    }
+
+    /**
+     * Adds a {@link SessionStore#hashExists(String)} operation.
+     * @param name name of hash.
+     * @return index of operation.
+     */
+    public int hashExists(String name) {
+        return add(OperationType.HASH_EXISTS, name, null, null);
+    }
+
+    /**
+     * Adds a {@link SessionStore#hashValueExists(String, String)} operation.
+     * @param name name of hash.
+     * @param key key whose existence in hash is to be checked.
+     * @return index of operation.
+     */
+    public int hashValueExists(String name, String key) {
+        return add(OperationType.HASH_VALUE_EXISTS, name, key, null);
+    }
+
+    /**
+     * Adds a {@link SessionStore#deleteHash(String)} operation.
+     * @param name name of hash.
+     * @return index of operation.
+     */
+    public int deleteHash(String name) {
+        return add(OperationType.DELETE_HASH, name, null, null);
+    }
+
+    /**
+     * Adds a {@link SessionStore#deleteHashValue(String, String)} operation.
+     * @param name name of hash whose entry is to be deleted.
+     * @param key key of hash entry to be deleted.
+     * @return index of operation.
+     */
+    public int deleteHashValue(String name, String key) {
+        return add(OperationType.DELETE_HASH_VALUE, name, key, null);
+    }
+
+    // Key-Value store
+
+    /**
+     * Adds a {@link SessionStore#setValue(String, String)} operation.
+     * @param key key to be associated with value.
+     * @param value new value for key.
+     * @return index of operation.
+     */
+    public int setValue(String key, String value) {
+        return add(OperationType.SET_VALUE, key, null, value);
+    }
+
+    /**
+     * Adds a {@link SessionStore#getValue(String)} operation.
+     * @param key key whose value is to be retrieved.
+     * @return index of operation.
+     */
+    public int getValue(String key) {
+        return add(OperationType.GET_VALUE, key, null, null);
+    }
+
+    /**
+     * Adds a {@link SessionStore#valueExists(String)} operation.
+     * @param key key whose existence is to be checked.
+     * @return index of operation.
+     */
+    public int valueExists(String key) {
+        return add(OperationType.VALUE_EXISTS, key, null, null);
+    }
+
+    /**
+     * Adds a {@link SessionStore#deleteValue(String)} operation.
+     * @param key key of key-value pair to be deleted.
+     * @return index of operation.
+     */
+    public int deleteValue(String key) {
+        return add(OperationType.DELETE_VALUE, key, null, null);
+    }
+
+    // Results
+
+    /**
+     * Gets the result of an executed get operation.
+     * @param index index of operation.
+     * @return value retrieved, or null if there was none.
+     */
+    public String getString(int index) {
+        return (String)operations.get(index).getResult();
+    }
+
+    /**
+     * Gets the result of an executed exists operation.
+     * @param index index of operation.
+     * @return true if and only if the item checked for exists.
+     */
+    public boolean getBoolean(int index) {
+        Boolean result = (Boolean)operations.get(index).getResult();
+        return result != null && result;
+    }
+
+    /**
+     * Gets the operations of this batch in the order they were added.
+     * @return read-only operation list.
+     */
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Gets the number of operations in this batch.
+     * @return operation count.
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Tells whether this batch has any operations.
+     * @return true if and only if batch has no operations.
+     */
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Removes all operations, so the batch can be reused.
+     */
+    public void clear() {
+        operations.clear();
+    }
+
+    /**
+     * Executes all operations in this batch against a store. Stores which
+     * implement {@link BatchSessionStore} are handed the whole batch,
+     * while the operations are carried out one at a time on any other
+     * store.
+     *
+     * @param store the store to execute operations against.
+     */
+    public void execute(SessionStore store) {
+        if (store instanceof BatchSessionStore) {
+            ((BatchSessionStore)store).execute(this);
+        }
+        else {
+            executeEach(store);
+        }
+    }
+
+    /**
+     * Executes the operations in this batch one at a time, by calling
+     * the corresponding methods of a store. This is the fallback
+     * for stores which cannot do better.
+     *
+     * @param store the store to execute operations against.
+     */
+    public void executeEach(SessionStore store) {
+        for (Operation operation : operations) {
+            operation.execute(store);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public String toString() {
+        return "SessionBatch{" + "operations=" + operations + '}';
+    }
+}
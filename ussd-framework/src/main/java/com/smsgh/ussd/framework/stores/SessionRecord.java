@@ -0,0 +1,225 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds all the entries of a session, i.e. all keys and hashes sharing the
+ * part before their last '.' (the mobile number, for the keys used by the
+ * framework). In-memory stores keep one record per session in their
+ * expiring maps, so that a hop needs a single lookup and renewal, and the
+ * next route and data bag of a session expire together.
+ * <p>
+ * A record implements {@link SessionStore} over its own entries only, so
+ * that batch operations can be executed directly against it. It is not
+ * thread-safe.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class SessionRecord implements SessionStore {
+
+    /**
+     * Record of a session which does not exist. It only serves reads.
+     */
+    static final SessionRecord EMPTY = new SessionRecord();
+
+    // A name is either in values or in hashes, never in both.
+    private final Map<String, String> values = new HashMap<String, String>(4);
+    private final Map<String, Map<String, String>> hashes =
+            new HashMap<String, Map<String, String>>(2);
+    private long version;
+
+    /**
+     * Gets the session a key belongs to.
+     *
+     * @param key store key or hash name.
+     *
+     * @return the part of key before its last '.', or the whole key if it
+     * has no '.' after its first character.
+     */
+    static String sessionKeyOf(String key) {
+        int dot = key.lastIndexOf('.');
+        return dot > 0 ? key.substring(0, dot) : key;
+    }
+
+    /**
+     * Executes the operations of a batch from a given index, for as long
+     * as they belong to the same session, looking up the session's record
+     * only once. Records are created by set operations, and removed once
+     * they have no entries left.
+     *
+     * @param records records by session key.
+     * @param operations operations of batch.
+     * @param start index of first operation to execute.
+     * @param sessionKey session key of first operation.
+     *
+     * @return index of first operation which was not executed, because it
+     * belongs to another session or because there are no more operations.
+     */
+    static int executeRun(Map<String, SessionRecord> records,
+            List<SessionBatch.Operation> operations, int start,
+            String sessionKey) {
+        SessionRecord record = records.get(sessionKey);
+        int i = start;
+        for (; i < operations.size(); i++) {
+            SessionBatch.Operation operation = operations.get(i);
+            if (i > start && !sessionKey.equals(
+                    sessionKeyOf(operation.getName()))) {
+                break;
+            }
+            if (record == null && (operation.getType() ==
+                    SessionBatch.OperationType.SET_VALUE ||
+                    operation.getType() ==
+                    SessionBatch.OperationType.SET_HASH_VALUE)) {
+                record = new SessionRecord();
+                records.put(sessionKey, record);
+            }
+            operation.execute(record != null ? record : EMPTY);
+        }
+        if (record != null && record.isEmpty()) {
+            records.remove(sessionKey);
+        }
+        return i;
+    }
+
+    /**
+     * Determines whether the record has no entries left.
+     *
+     * @return true if and only if session has no keys or hashes.
+     */
+    boolean isEmpty() {
+        return values.isEmpty() && hashes.isEmpty();
+    }
+
+    private boolean contains(String name) {
+        return values.containsKey(name) || hashes.containsKey(name);
+    }
+
+    /**
+     * Gets the number of changes made to the record.
+     *
+     * @return version, which starts at zero and increases with every
+     * write which changes the record.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    // Hash store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getHashValue(String name, String key) {
+        Map<String, String> hash = hashes.get(name);
+        return hash != null ? hash.get(key) : null;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        Map<String, String> hash = hashes.get(name);
+        if (hash == null) {
+            values.remove(name);
+            hash = new HashMap<String, String>();
+            hashes.put(name, hash);
+        }
+        hash.put(key, value);
+        version++;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashExists(String name) {
+        return contains(name);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean hashValueExists(String name, String key) {
+        Map<String, String> hash = hashes.get(name);
+        return hash != null && hash.containsKey(key);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteHash(String name) {
+        deleteValue(name);
+    }
+
+    /**
+     * Deletes a key from a hash, and the hash itself once it has no keys
+     * left, as Redis does.
+     */
+    @Override
+    public void deleteHashValue(String name, String key) {
+        Map<String, String> hash = hashes.get(name);
+        if (hash != null && hash.containsKey(key)) {
+            hash.remove(key);
+            if (hash.isEmpty()) {
+                hashes.remove(name);
+            }
+            version++;
+        }
+    }
+
+    // Key-Value store implementation.
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String value) {
+        hashes.remove(key);
+        values.put(key, value);
+        version++;
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public String getValue(String key) {
+        return values.get(key);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean valueExists(String key) {
+        return contains(key);
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public void deleteValue(String key) {
+        if (contains(key)) {
+            values.remove(key);
+            hashes.remove(key);
+            version++;
+        }
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+    }
+}
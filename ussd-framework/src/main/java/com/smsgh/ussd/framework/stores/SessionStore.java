@@ -8,6 +8,10 @@ package com.smsgh.ussd.framework.stores;
  * Stores key-value pairs and hashes/hashtables so that the 
  * values in the hashes can be retrieved directly without having
  * to first deserialize the hash.
+ * <p>
+ * Operations can also be sent to a store in groups using
+ * {@link SessionBatch}. Stores which can execute such groups in one go
+ * should implement {@link BatchSessionStore}.
  * 
  * @author Aaron Baffour-Awuah
  */
@@ -0,0 +1,511 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A session store which spreads sessions over several other stores, the
+ * shards, e.g. one {@link RedisSessionStore} per Redis server.
+ * <p>
+ * Each key is assigned to a shard by consistent hashing of its shard key,
+ * which is the part of the key before its last dot. For the keys used by
+ * the framework that is the mobile number, so the next route and the data
+ * bag of a session are always kept on the same shard. Every shard is placed
+ * at many points, its virtual nodes, on a hash ring, so that sessions are
+ * spread evenly, and adding or removing a shard only moves the sessions
+ * which the shard takes over or gives up.
+ * <p>
+ * A shard whose operations fail a number of times in a row is considered
+ * unavailable for a while. Its sessions then go to the next shard on the
+ * ring, and after the retry interval the shard is tried again. Sessions
+ * which move this way start afresh on their new shard.
+ * <p>
+ * Batches are split by shard, and each part executed as a batch on its
+ * shard. A batch is therefore only atomic if its operations are all on
+ * the same shard, as is the case for the operations of a ussd request.
+ * <p>
+ * Shards which are {@link LifecycleSessionStore}s are started and stopped
+ * with this store, and handles borrowed from this store borrow handles from
+ * them as needed.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ShardedSessionStore extends AbstractBatchSessionStore
+        implements LifecycleSessionStore {
+
+    /**
+     * The default number of points each shard is placed at on the ring.
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    /**
+     * The default number of failures in a row after which a shard is
+     * considered unavailable.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * The default time after which an unavailable shard is tried again.
+     */
+    public static final int DEFAULT_RETRY_INTERVAL_MILLIS = 10000;
+
+    private static class Shard {
+        final String name;
+        final SessionStore store;
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        final AtomicLong operationCount = new AtomicLong();
+        final AtomicLong failureCount = new AtomicLong();
+        volatile long unavailableUntil;
+
+        Shard(String name, SessionStore store) {
+            this.name = name;
+            this.store = store;
+        }
+
+        boolean isAvailable(long now) {
+            return unavailableUntil <= now;
+        }
+    }
+
+    private final int virtualNodes;
+    private final int failureThreshold;
+    private final int retryIntervalMillis;
+    private final Clock clock;
+
+    // Shards and ring are replaced as a whole whenever a shard is added or
+    // removed, under this store's monitor.
+    private volatile Map<String, Shard> shards =
+            new LinkedHashMap<String, Shard>();
+    private volatile TreeMap<Integer, Shard> ring =
+            new TreeMap<Integer, Shard>();
+    private boolean started;
+
+    /**
+     * Creates a new sharded store without shards, using default settings.
+     */
+    public ShardedSessionStore() {
+        this(DEFAULT_VIRTUAL_NODES, DEFAULT_FAILURE_THRESHOLD,
+                DEFAULT_RETRY_INTERVAL_MILLIS, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a new sharded store without shards.
+     *
+     * @param virtualNodes number of points each shard is placed at on the
+     * hash ring.
+     * @param failureThreshold number of failures in a row after which a
+     * shard is considered unavailable.
+     * @param retryIntervalMillis time after which an unavailable shard is
+     * tried again.
+     * @param clock source of the current time, for retries.
+     *
+     * @exception java.lang.IllegalArgumentException if virtualNodes,
+     * failureThreshold or retryIntervalMillis is not positive, or if clock
+     * is null.
+     */
+    public ShardedSessionStore(int virtualNodes, int failureThreshold,
+            int retryIntervalMillis, Clock clock) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("\"virtualNodes\" argument "
+                    + "must be positive. Received " + virtualNodes);
+        }
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("\"failureThreshold\" "
+                    + "argument must be positive. Received " +
+                    failureThreshold);
+        }
+        if (retryIntervalMillis <= 0) {
+            throw new IllegalArgumentException("\"retryIntervalMillis\" "
+                    + "argument must be positive. Received " +
+                    retryIntervalMillis);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        this.virtualNodes = virtualNodes;
+        this.failureThreshold = failureThreshold;
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Adds a shard, which takes over the sessions falling on its points of
+     * the ring. The shard is started if this store has been started.
+     *
+     * @param name name of shard, which determines its points on the ring
+     * and so must stay the same across restarts.
+     * @param store the shard.
+     * @return this instance to enable chaining of method calls.
+     *
+     * @exception java.lang.IllegalArgumentException if name or store is
+     * null, or if there is already a shard with the given name.
+     */
+    public synchronized ShardedSessionStore addShard(String name,
+            SessionStore store) {
+        if (name == null) {
+            throw new IllegalArgumentException("\"name\" argument "
+                    + "cannot be null");
+        }
+        if (store == null) {
+            throw new IllegalArgumentException("\"store\" argument "
+                    + "cannot be null");
+        }
+        if (shards.containsKey(name)) {
+            throw new IllegalArgumentException("A shard named \"" + name +
+                    "\" has already been added.");
+        }
+        if (started && store instanceof LifecycleSessionStore) {
+            ((LifecycleSessionStore)store).start();
+        }
+        Map<String, Shard> newShards = new LinkedHashMap<String, Shard>(
+                shards);
+        newShards.put(name, new Shard(name, store));
+        setShards(newShards);
+        return this;
+    }
+
+    /**
+     * Removes a shard, whose sessions go to the shards following its
+     * points on the ring. The shard is not stopped, since handles borrowed
+     * from it may still be in use.
+     *
+     * @param name name of shard.
+     * @return the removed shard.
+     *
+     * @exception java.lang.IllegalArgumentException if there is no shard
+     * with the given name.
+     */
+    public synchronized SessionStore removeShard(String name) {
+        Shard shard = getShard(name);
+        Map<String, Shard> newShards = new LinkedHashMap<String, Shard>(
+                shards);
+        newShards.remove(name);
+        setShards(newShards);
+        return shard.store;
+    }
+
+    private void setShards(Map<String, Shard> newShards) {
+        TreeMap<Integer, Shard> newRing = new TreeMap<Integer, Shard>();
+        for (Shard shard : newShards.values()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                Integer point = hash(shard.name + "#" + i);
+                // Settle the rare collision the same way regardless of
+                // the order in which shards were added.
+                Shard other = newRing.get(point);
+                if (other == null || other.name.compareTo(shard.name) > 0) {
+                    newRing.put(point, shard);
+                }
+            }
+        }
+        shards = newShards;
+        ring = newRing;
+    }
+
+    private Shard getShard(String name) {
+        Shard shard = shards.get(name);
+        if (shard == null) {
+            throw new IllegalArgumentException("No shard named \"" + name +
+                    "\" has been added.");
+        }
+        return shard;
+    }
+
+    /**
+     * Gets the names of the shards, in the order in which they were added.
+     * @return shard names.
+     */
+    public List<String> getShardNames() {
+        return new ArrayList<String>(shards.keySet());
+    }
+
+    /**
+     * Gets the name of the shard which a key currently goes to, taking
+     * unavailable shards into account.
+     *
+     * @param key key of a key-value pair or name of a hash.
+     * @return shard name.
+     */
+    public String getShardName(String key) {
+        return shardFor(key).name;
+    }
+
+    /**
+     * Tells whether a shard is currently used, or whether it is
+     * considered unavailable after failing too many times in a row.
+     *
+     * @param name name of shard.
+     * @return true if shard is available.
+     */
+    public boolean isShardAvailable(String name) {
+        return getShard(name).isAvailable(clock.currentTimeMillis());
+    }
+
+    /**
+     * Gets the number of batches, or single operations, carried out on a
+     * shard.
+     * @param name name of shard.
+     * @return operation count.
+     */
+    public long getShardOperationCount(String name) {
+        return getShard(name).operationCount.get();
+    }
+
+    /**
+     * Gets the number of batches, or single operations, which failed on a
+     * shard.
+     * @param name name of shard.
+     * @return failure count.
+     */
+    public long getShardFailureCount(String name) {
+        return getShard(name).failureCount.get();
+    }
+
+    /**
+     * Gets the part of a key which determines its shard: the part before
+     * its last dot, or the whole key if it has no dot. Keys of the same
+     * session thus share a shard key, e.g. "233244123456.NextRoute" and
+     * "233244123456.DataBag".
+     *
+     * @param key key of a key-value pair or name of a hash.
+     * @return shard key.
+     */
+    protected String getShardKey(String key) {
+        int dot = key.lastIndexOf('.');
+        return dot > 0 ? key.substring(0, dot) : key;
+    }
+
+    /**
+     * Hashes a string onto the ring: FNV-1a over its characters, followed
+     * by the avalanche step of MurmurHash3 to spread similar strings such
+     * as mobile numbers.
+     */
+    static int hash(String s) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private Shard shardFor(String key) {
+        TreeMap<Integer, Shard> currentRing = ring;
+        if (currentRing.isEmpty()) {
+            throw new FrameworkException("No shards have been added to "
+                    + "session store.");
+        }
+        int point = hash(getShardKey(key));
+        SortedMap<Integer, Shard> tail = currentRing.tailMap(point);
+        Shard owner = tail.isEmpty() ? currentRing.firstEntry().getValue() :
+                tail.get(tail.firstKey());
+        long now = clock.currentTimeMillis();
+        if (owner.isAvailable(now)) {
+            return owner;
+        }
+
+        // Fail over to the next available shard clockwise, or stay with
+        // the owner if there is none.
+        for (Shard shard : tail.values()) {
+            if (shard.isAvailable(now)) {
+                return shard;
+            }
+        }
+        for (Shard shard : currentRing.headMap(point).values()) {
+            if (shard.isAvailable(now)) {
+                return shard;
+            }
+        }
+        return owner;
+    }
+
+    // Lifecycle
+
+    /**
+     * Starts the shards which are {@link LifecycleSessionStore}s.
+     */
+    @Override
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        for (Shard shard : shards.values()) {
+            if (shard.store instanceof LifecycleSessionStore) {
+                ((LifecycleSessionStore)shard.store).start();
+            }
+        }
+        started = true;
+    }
+
+    /**
+     * Stops the shards which are {@link LifecycleSessionStore}s.
+     */
+    @Override
+    public synchronized void stop() {
+        for (Shard shard : shards.values()) {
+            if (shard.store instanceof LifecycleSessionStore) {
+                ((LifecycleSessionStore)shard.store).stop();
+            }
+        }
+        started = false;
+    }
+
+    /**
+     * Gets a handle for a single ussd request, which borrows a handle from
+     * each shard it uses that is a {@link LifecycleSessionStore}.
+     * @return new handle.
+     */
+    @Override
+    public SessionStore borrow() {
+        return new Handle();
+    }
+
+    /**
+     * Gives back a handle, releasing the handles it borrowed from shards.
+     * @param handle handle obtained from {@link #borrow()}.
+     */
+    @Override
+    public void release(SessionStore handle) {
+        if (!(handle instanceof Handle) || ((Handle)handle).owner() != this) {
+            throw new IllegalArgumentException("\"handle\" argument was "
+                    + "not borrowed from this store.");
+        }
+        ((Handle)handle).release();
+    }
+
+    /**
+     * Carries out a batch, splitting it among shards.
+     *
+     * @param batch the operations to carry out.
+     */
+    @Override
+    public void execute(SessionBatch batch) {
+        execute(batch, null);
+    }
+
+    private void execute(SessionBatch batch, Handle handle) {
+        List<SessionBatch.Operation> operations = batch.getOperations();
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        // Normally every operation is on the same shard, and the batch
+        // can be passed on as it is.
+        Shard first = shardFor(operations.get(0).getName());
+        Map<Shard, SessionBatch> parts = null;
+        for (int i = 1; i < operations.size(); i++) {
+            Shard shard = shardFor(operations.get(i).getName());
+            if (parts == null) {
+                if (shard == first) {
+                    continue;
+                }
+                parts = new LinkedHashMap<Shard, SessionBatch>();
+                SessionBatch firstPart = new SessionBatch();
+                for (int j = 0; j < i; j++) {
+                    firstPart.add(operations.get(j));
+                }
+                parts.put(first, firstPart);
+            }
+            SessionBatch part = parts.get(shard);
+            if (part == null) {
+                part = new SessionBatch();
+                parts.put(shard, part);
+            }
+            part.add(operations.get(i));
+        }
+
+        if (parts == null) {
+            execute(first, batch, handle);
+        }
+        else {
+            for (Map.Entry<Shard, SessionBatch> part : parts.entrySet()) {
+                execute(part.getKey(), part.getValue(), handle);
+            }
+        }
+    }
+
+    private void execute(Shard shard, SessionBatch batch, Handle handle) {
+        SessionStore store = handle == null ? shard.store :
+                handle.storeFor(shard);
+        shard.operationCount.incrementAndGet();
+        try {
+            batch.execute(store);
+        }
+        catch (RuntimeException ex) {
+            shard.failureCount.incrementAndGet();
+            if (shard.consecutiveFailures.incrementAndGet() >=
+                    failureThreshold) {
+                shard.unavailableUntil = clock.currentTimeMillis() +
+                        retryIntervalMillis;
+            }
+            throw ex;
+        }
+        if (shard.consecutiveFailures.get() != 0) {
+            shard.consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * Handle for a single ussd request. Borrows handles from shards only
+     * when they are first used.
+     */
+    private class Handle extends AbstractBatchSessionStore {
+        private final Map<Shard, SessionStore> borrowed =
+                new HashMap<Shard, SessionStore>();
+        private boolean released;
+
+        ShardedSessionStore owner() {
+            return ShardedSessionStore.this;
+        }
+
+        SessionStore storeFor(Shard shard) {
+            if (!(shard.store instanceof LifecycleSessionStore)) {
+                return shard.store;
+            }
+            SessionStore store = borrowed.get(shard);
+            if (store == null) {
+                store = ((LifecycleSessionStore)shard.store).borrow();
+                borrowed.put(shard, store);
+            }
+            return store;
+        }
+
+        @Override
+        public void execute(SessionBatch batch) {
+            if (released) {
+                throw new IllegalStateException("Session store handle has "
+                        + "already been released.");
+            }
+            ShardedSessionStore.this.execute(batch, this);
+        }
+
+        void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (Map.Entry<Shard, SessionStore> e : borrowed.entrySet()) {
+                ((LifecycleSessionStore)e.getKey().store).release(
+                        e.getValue());
+            }
+            borrowed.clear();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.utils;
+
+/**
+ * Source of the current time for classes which expire entries, so that
+ * tests can control the passage of time instead of sleeping.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public interface Clock {
+
+    /**
+     * Clock backed by {@link System#currentTimeMillis()}.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Gets the current time.
+     *
+     * @return current time in milliseconds.
+     */
+    long currentTimeMillis();
+}
@@ -0,0 +1,259 @@
+/**
+ * (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.utils;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to non-null values, which neither
+ * boxes its keys nor allocates entry objects. Keys and values are kept in
+ * two parallel arrays addressed by linear probing, and removals shift
+ * later entries of a probe run back instead of leaving tombstones, so
+ * lookups never have to skip deleted slots.
+ * <p>
+ * This class is not thread-safe, and must be externally synchronized.
+ *
+ * @author Aaron Baffour-Awuah
+ * @param <V> the Value type
+ */
+public class LongKeyedMap<V> {
+
+    /**
+     * The initial number of slots when the capacity is not given
+     * explicitly.
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 64;
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeThreshold;
+
+    /**
+     * Creates a map with {@link #DEFAULT_INITIAL_CAPACITY} slots.
+     */
+    public LongKeyedMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates a map which can hold the given number of entries before it
+     * needs to grow.
+     *
+     * @param expectedSize number of entries expected.
+     *
+     * @exception java.lang.IllegalArgumentException if expectedSize is
+     * negative.
+     */
+    public LongKeyedMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("\"expectedSize\" argument "
+                    + "cannot be negative. Received " + expectedSize);
+        }
+        int capacity = 4;
+        while (capacity < MAX_CAPACITY &&
+                (long)capacity * 2 / 3 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = capacity / 3 * 2;
+    }
+
+    /**
+     * Spreads the bits of a key, using the finalizer of MurmurHash3, so
+     * that sequential keys such as mobile numbers do not form long runs.
+     */
+    private int slotOf(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key & mask;
+    }
+
+    private int indexOf(long key) {
+        for (int i = slotOf(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the value of a key.
+     *
+     * @param key key to look up.
+     *
+     * @return value of key, or null if key is not in the map.
+     */
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    // Values are only ever put through put(long, V).
+    @SuppressWarnings("unchecked")
+    private V valueAt(int i) {
+        return (V)values[i];
+    }
+
+    /**
+     * Determines whether a key is in the map.
+     *
+     * @param key key to look up.
+     *
+     * @return true if and only if key is in the map.
+     */
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Sets the value of a key.
+     *
+     * @param key key to set.
+     * @param value new value of key.
+     *
+     * @return previous value of key, or null if key was not in the map.
+     *
+     * @exception java.lang.IllegalArgumentException if value is null.
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("\"value\" argument "
+                    + "cannot be null");
+        }
+        int i = slotOf(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V previous = valueAt(i);
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeThreshold) {
+            grow();
+        }
+        return null;
+    }
+
+    private void grow() {
+        if (keys.length == MAX_CAPACITY) {
+            throw new IllegalStateException("Map cannot hold more than " +
+                    resizeThreshold + " entries");
+        }
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length << 1);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = slotOf(oldKeys[j]);
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Removes a key from the map.
+     *
+     * @param key key to remove.
+     *
+     * @return value key had, or null if key was not in the map.
+     */
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V previous = valueAt(i);
+        removeAt(i);
+        return previous;
+    }
+
+    private void removeAt(int hole) {
+        // Shift back each later entry of the run which would otherwise
+        // become unreachable from its home slot.
+        for (int i = (hole + 1) & mask; values[i] != null;
+                i = (i + 1) & mask) {
+            int home = slotOf(keys[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
+        size--;
+    }
+
+    /**
+     * Gets the number of entries in the map.
+     *
+     * @return entry count.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Determines whether the map has no entries.
+     *
+     * @return true if and only if map is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries from the map, keeping its capacity.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Gets the number of slots in the map, which is always a power of two
+     * and at least half again as large as the entry count.
+     *
+     * @return slot count.
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Gets all keys in the map, in no particular order. The keys are
+     * copied, so the map can be changed while going through them.
+     *
+     * @return array of keys.
+     */
+    public long[] keys() {
+        long[] copy = new long[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                copy[n++] = keys[i];
+            }
+        }
+        return copy;
+    }
+}
@@ -33,7 +33,11 @@ import java.util.concurrent.TimeUnit;
  * @author Aaron Baffour-Awuah
  * @param <K> the Key type
  * @param <V> the Value type
+ * @deprecated Renewing a key does not reorder the delay queue, and expired
+ * entries are only removed on update operations. Use
+ * {@link TimingWheelExpiringMap} instead.
  */
+@Deprecated
 public class SelfExpiringHashMap<K, V> implements Map<K, V> {
 
     final Map<K, V> internalMap;
@@ -223,8 +227,14 @@ public class SelfExpiringHashMap<K, V> implements Map<K, V> {
     public void cleanUp() {
         ExpiringKey<K> delayedKey = delayQueue.poll();
         while (delayedKey != null) {
-            internalMap.remove(delayedKey.getKey());
-            expiringKeys.remove(delayedKey.getKey());
+            // Only remove the entry if the polled key is still the one
+            // tracking it. A key replaced by a later put is stale, and
+            // removing by its key would drop the newer entry.
+            K key = delayedKey.getKey();
+            if (expiringKeys.get(key) == delayedKey) {
+                internalMap.remove(key);
+                expiringKeys.remove(key);
+            }
             delayedKey = delayQueue.poll();
         }
     }
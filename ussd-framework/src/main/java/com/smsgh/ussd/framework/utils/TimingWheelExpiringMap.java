@@ -0,0 +1,452 @@
+/**
+ * (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.utils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An implementation of a HashMap whose entries expire after a specified
+ * sliding life time, using a hashed timing wheel to schedule expiry.
+ * <p>
+ * Every entry sits in the wheel bucket of the last tick in which it is
+ * live. Inserting, renewing and removing an entry only relinks it in a
+ * doubly linked bucket list, so they take constant time. Expired entries
+ * are reclaimed by sweeping the buckets of the ticks that have elapsed,
+ * so at most a tick after they expire. Each operation (reads included)
+ * sweeps for a bounded amount of work, and {@link #cleanUp()} can be
+ * called to sweep everything that has expired.
+ * Expired entries which have not been swept yet are never returned.
+ * <p>
+ * The wheel spans at least the default life time, so entries using that
+ * life time are visited exactly once. Entries with longer per-key life
+ * times are skipped over on each revolution until they are due.
+ * <p>
+ * Like {@link SelfExpiringHashMap}, this class is not thread-safe, and
+ * must be externally synchronized.
+ *
+ * @author Aaron Baffour-Awuah
+ * @param <K> the Key type
+ * @param <V> the Value type
+ */
+public class TimingWheelExpiringMap<K, V> implements Map<K, V> {
+
+    /**
+     * The number of ticks the wheel is divided into when the tick duration
+     * is not given explicitly.
+     */
+    public static final int DEFAULT_TICKS_PER_LIFE_TIME = 512;
+
+    /**
+     * The maximum number of buckets a wheel can have.
+     */
+    public static final int MAX_WHEEL_SIZE = 1 << 16;
+
+    /**
+     * The default amount of sweeping work done per map operation, counted
+     * in buckets visited and entries examined.
+     */
+    public static final int DEFAULT_CLEANUP_BUDGET = 64;
+
+    private final Map<K, Node<K, V>> internalMap;
+    private final Node<K, V>[] wheel;
+    private final int wheelMask;
+    private final long tickMillis;
+    private final long maxLifeTimeMillis;
+    private final Clock clock;
+    private int cleanUpBudget = DEFAULT_CLEANUP_BUDGET;
+
+    /**
+     * All buckets for ticks up to and including this one have been swept.
+     */
+    private long sweptTick;
+
+    /**
+     * Creates a map whose entries expire after the given life time,
+     * using the system clock.
+     *
+     * @param defaultMaxLifeTimeMillis default life time of entries.
+     */
+    public TimingWheelExpiringMap(long defaultMaxLifeTimeMillis) {
+        this(defaultMaxLifeTimeMillis, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a map whose entries expire after the given life time.
+     *
+     * @param defaultMaxLifeTimeMillis default life time of entries.
+     * @param clock source of the current time.
+     */
+    public TimingWheelExpiringMap(long defaultMaxLifeTimeMillis, Clock clock) {
+        this(defaultMaxLifeTimeMillis, Math.max(1,
+                defaultMaxLifeTimeMillis / DEFAULT_TICKS_PER_LIFE_TIME), clock);
+    }
+
+    /**
+     * Creates a map whose entries expire after the given life time.
+     *
+     * @param defaultMaxLifeTimeMillis default life time of entries.
+     * @param tickMillis duration of a wheel tick. Expired entries are
+     * reclaimed at most a tick late.
+     * @param clock source of the current time.
+     *
+     * @exception java.lang.IllegalArgumentException if either
+     * defaultMaxLifeTimeMillis or tickMillis is not positive, or if clock
+     * is null.
+     */
+    public TimingWheelExpiringMap(long defaultMaxLifeTimeMillis,
+            long tickMillis, Clock clock) {
+        if (defaultMaxLifeTimeMillis <= 0) {
+            throw new IllegalArgumentException("\"defaultMaxLifeTimeMillis\" "
+                    + "argument must be positive. Received " +
+                    defaultMaxLifeTimeMillis);
+        }
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("\"tickMillis\" argument "
+                    + "must be positive. Received " + tickMillis);
+        }
+        if (clock == null) {
+            throw new IllegalArgumentException("\"clock\" argument "
+                    + "cannot be null");
+        }
+        this.internalMap = new HashMap<K, Node<K, V>>();
+        this.maxLifeTimeMillis = defaultMaxLifeTimeMillis;
+        this.tickMillis = tickMillis;
+        this.clock = clock;
+
+        // Make wheel span the default life time, plus one tick for
+        // deadlines which do not fall on a tick boundary.
+        long ticks = defaultMaxLifeTimeMillis / tickMillis + 2;
+        int size = 1;
+        while (size < ticks && size < MAX_WHEEL_SIZE) {
+            size <<= 1;
+        }
+        this.wheel = newWheel(size);
+        for (int i = 0; i < size; i++) {
+            Node<K, V> sentinel = new Node<K, V>(null, null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            wheel[i] = sentinel;
+        }
+        this.wheelMask = size - 1;
+        this.sweptTick = clock.currentTimeMillis() / tickMillis - 1;
+    }
+
+    // Generic arrays cannot be created directly; the array is only ever
+    // filled with bucket sentinels of this map.
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newWheel(int size) {
+        return (Node<K, V>[])new Node<?, ?>[size];
+    }
+
+    /**
+     * Gets the amount of sweeping work done per map operation.
+     *
+     * @return clean-up budget per operation.
+     */
+    public int getCleanUpBudget() {
+        return cleanUpBudget;
+    }
+
+    /**
+     * Sets the amount of sweeping work done per map operation, counted in
+     * buckets visited and entries examined.
+     *
+     * @param cleanUpBudget positive clean-up budget per operation.
+     *
+     * @exception java.lang.IllegalArgumentException if cleanUpBudget is
+     * not positive.
+     */
+    public void setCleanUpBudget(int cleanUpBudget) {
+        if (cleanUpBudget <= 0) {
+            throw new IllegalArgumentException("\"cleanUpBudget\" argument "
+                    + "must be positive. Received " + cleanUpBudget);
+        }
+        this.cleanUpBudget = cleanUpBudget;
+    }
+
+    /**
+     * Gets the number of buckets in the wheel.
+     *
+     * @return wheel size, which is a power of two.
+     */
+    public int getWheelSize() {
+        return wheel.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Sweeps all expired entries first, so the result is exact.
+     */
+    @Override
+    public int size() {
+        cleanUp();
+        return internalMap.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Does not renew the key.
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        long now = clock.currentTimeMillis();
+        sweep(now, cleanUpBudget);
+        return liveNode(key, now) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        long now = clock.currentTimeMillis();
+        for (Node<K, V> node : internalMap.values()) {
+            if (node.deadline > now && (value == null ? node.value == null :
+                    value.equals(node.value))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Renews the key if it is found.
+     */
+    @Override
+    public V get(Object key) {
+        long now = clock.currentTimeMillis();
+        sweep(now, cleanUpBudget);
+        Node<K, V> node = liveNode(key, now);
+        if (node == null) {
+            return null;
+        }
+        schedule(node, now, node.lifeTimeMillis);
+        return node.value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, maxLifeTimeMillis);
+    }
+
+    /**
+     * Associates the given key to the given value in this map, with the
+     * specified life time in milliseconds.
+     *
+     * @param key
+     * @param value
+     * @param lifeTimeMillis
+     * @return a previously associated object for the given key (if exists).
+     */
+    public V put(K key, V value, long lifeTimeMillis) {
+        long now = clock.currentTimeMillis();
+        sweep(now, cleanUpBudget);
+        Node<K, V> node = internalMap.get(key);
+        V previous = null;
+        if (node == null) {
+            node = new Node<K, V>(key, value);
+            internalMap.put(key, node);
+        }
+        else {
+            if (node.deadline > now) {
+                previous = node.value;
+            }
+            node.value = value;
+        }
+        schedule(node, now, lifeTimeMillis);
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(Object key) {
+        long now = clock.currentTimeMillis();
+        sweep(now, cleanUpBudget);
+        Node<K, V> node = internalMap.remove(key);
+        if (node == null) {
+            return null;
+        }
+        unlink(node);
+        return node.deadline > now ? node.value : null;
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Renews the specified key, setting the life time to the initial value.
+     *
+     * @param key
+     * @return true if the key is found, false otherwise
+     */
+    public boolean renewKey(K key) {
+        long now = clock.currentTimeMillis();
+        sweep(now, cleanUpBudget);
+        Node<K, V> node = liveNode(key, now);
+        if (node == null) {
+            return false;
+        }
+        schedule(node, now, node.lifeTimeMillis);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        for (Node<K, V> sentinel : wheel) {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+        internalMap.clear();
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public Set<K> keySet() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public Collection<V> values() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Removes all expired keys. A bounded part of this work is done
+     * implicitly by every operation, but it can also be called explicitly,
+     * e.g. periodically from a background thread holding the map's lock.
+     */
+    public void cleanUp() {
+        sweep(clock.currentTimeMillis(), Integer.MAX_VALUE);
+    }
+
+    private Node<K, V> liveNode(Object key, long now) {
+        Node<K, V> node = internalMap.get(key);
+        if (node != null && node.deadline <= now) {
+            internalMap.remove(key);
+            unlink(node);
+            return null;
+        }
+        return node;
+    }
+
+    private void schedule(Node<K, V> node, long now, long lifeTimeMillis) {
+        unlink(node);
+        node.lifeTimeMillis = lifeTimeMillis;
+        if (lifeTimeMillis >= Long.MAX_VALUE - now) {
+            // Never expires, so keep off the wheel.
+            node.deadline = Long.MAX_VALUE;
+            return;
+        }
+        node.deadline = now + lifeTimeMillis;
+
+        // Go into the bucket of the last tick in which the entry is live,
+        // which is swept once the entry has expired. Ticks which have
+        // already been swept give way to the next bucket to be swept.
+        long tick = Math.max((node.deadline - 1) / tickMillis,
+                sweptTick + 1);
+        Node<K, V> sentinel = wheel[(int)(tick & wheelMask)];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+
+    private void sweep(long now, int budget) {
+        // Only ticks which have completed are swept. Sweeping the current
+        // tick would mark it as swept while some of its entries are yet
+        // to expire, leaving them for a whole revolution.
+        long lastTick = now / tickMillis - 1;
+
+        // Buckets are reused every revolution, so after a long idle
+        // period one revolution visits every bucket that matters.
+        if (lastTick - sweptTick > wheel.length) {
+            sweptTick = lastTick - wheel.length;
+        }
+        while (sweptTick < lastTick && budget > 0) {
+            long tick = sweptTick + 1;
+            Node<K, V> sentinel = wheel[(int)(tick & wheelMask)];
+            budget--;
+            Node<K, V> node = sentinel.next;
+            while (node != sentinel && budget > 0) {
+                Node<K, V> next = node.next;
+                if (node.deadline <= now) {
+                    internalMap.remove(node.key);
+                    unlink(node);
+                }
+                budget--;
+                node = next;
+            }
+            if (node != sentinel) {
+                // Out of budget midway through bucket. Resume from its
+                // start next time.
+                return;
+            }
+            sweptTick = tick;
+        }
+    }
+
+    private static class Node<K, V> {
+        private final K key;
+        private V value;
+        private long deadline;
+        private long lifeTimeMillis;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        public Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
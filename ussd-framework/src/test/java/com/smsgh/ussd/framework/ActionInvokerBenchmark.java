@@ -0,0 +1,83 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares the cost of creating a controller and invoking an action the
+ * way routes used to be dispatched, through Class.newInstance() and an
+ * unprepared Method, with that of {@link ActionInvoker}. Not run as part
+ * of the test suite; run its main method, e.g.
+ * <pre>
+ * java com.smsgh.ussd.framework.ActionInvokerBenchmark 10000000
+ * </pre>
+ * The argument is the number of dispatches per round (default 10000000).
+ * Each path is timed twice, alternately, over several rounds after a
+ * warm-up round, and the best round is reported.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ActionInvokerBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int dispatches = args.length > 0 ? Integer.parseInt(args[0]) :
+                10000000;
+        final Class<? extends UssdController> cls = SampleController.class;
+        final Method action = cls.getMethod("exit");
+        final ActionInvoker invoker = new ActionInvoker(cls,
+                cls.getMethod("exit"));
+
+        System.out.println(String.format("%d dispatches per round",
+                dispatches));
+        Path reflective = new Path() {
+            @Override
+            public Object dispatch() throws Exception {
+                return action.invoke(cls.newInstance());
+            }
+        };
+        Path prepared = new Path() {
+            @Override
+            public Object dispatch() {
+                return invoker.invoke(invoker.newController());
+            }
+        };
+
+        // Alternate the paths, so that neither benefits from running
+        // first.
+        for (int i = 0; i < 2; i++) {
+            run("Class.newInstance + Method.invoke", dispatches, reflective);
+            run("ActionInvoker", dispatches, prepared);
+        }
+    }
+
+    private interface Path {
+        Object dispatch() throws Exception;
+    }
+
+    private static void run(String name, int dispatches, Path path)
+            throws Exception {
+        long best = Long.MAX_VALUE;
+        int responses = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < dispatches; i++) {
+                if (path.dispatch() instanceof UssdResponse) {
+                    responses++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (responses != dispatches * (ROUNDS + 1)) {
+            throw new AssertionError("Missing responses: " + responses);
+        }
+        System.out.println(String.format("%s: %d ns/dispatch", name,
+                best / dispatches));
+    }
+}
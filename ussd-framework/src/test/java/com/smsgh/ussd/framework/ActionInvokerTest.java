@@ -0,0 +1,130 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.IOException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ActionInvokerTest {
+
+    public static class Controller extends UssdController {
+        public UssdResponse run() {
+            return UssdResponse.render("ran");
+        }
+
+        public UssdResponse fail() throws IOException {
+            throw new IOException("checked");
+        }
+
+        public UssdResponse crash() {
+            throw new IllegalStateException("unchecked");
+        }
+    }
+
+    public static class FailingController extends UssdController {
+        public FailingController() {
+            throw new IllegalStateException("constructor");
+        }
+
+        public UssdResponse run() {
+            return null;
+        }
+    }
+
+    public static class HiddenController extends UssdController {
+        private HiddenController() {
+        }
+
+        public UssdResponse run() {
+            return null;
+        }
+    }
+
+    static class PackagePrivateController extends UssdController {
+        public UssdResponse run() {
+            return null;
+        }
+    }
+
+    public static abstract class AbstractController extends UssdController {
+        public UssdResponse run() {
+            return null;
+        }
+    }
+
+    private static ActionInvoker invoker(
+            Class<? extends UssdController> cls, String action)
+            throws Exception {
+        return new ActionInvoker(cls, cls.getMethod(action));
+    }
+
+    @Test
+    public void testInvoke() throws Exception {
+        ActionInvoker invoker = invoker(Controller.class, "run");
+        UssdController controller = invoker.newController();
+        assertTrue(controller instanceof Controller);
+        assertNotSame(controller, invoker.newController());
+        UssdResponse response = (UssdResponse)invoker.invoke(controller);
+        assertEquals("ran", response.getMessage());
+    }
+
+    @Test
+    public void testPackagePrivateController() throws Exception {
+        assertTrue(invoker(PackagePrivateController.class, "run")
+                .newController() instanceof PackagePrivateController);
+    }
+
+    @Test
+    public void testActionExceptionsAreUnwrapped() throws Exception {
+        try {
+            invoker(Controller.class, "crash").invoke(new Controller());
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            assertEquals("unchecked", ex.getMessage());
+        }
+        try {
+            invoker(Controller.class, "fail").invoke(new Controller());
+            fail("Expected RuntimeException");
+        }
+        catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testConstructorExceptionsAreUnwrapped() throws Exception {
+        try {
+            invoker(FailingController.class, "run").newController();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+            assertEquals("constructor", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testUninstantiableControllers() throws Exception {
+        Class[] classes = { HiddenController.class,
+            AbstractController.class };
+        for (Class cls : classes) {
+            ActionInvoker invoker = invoker(cls, "run");
+            try {
+                invoker.newController();
+                fail("Expected RuntimeException");
+            }
+            catch (RuntimeException ex) {
+                assertEquals(String.format("Failed to create instance of "
+                        + "class \"%s\". Is class a public class having a "
+                        + "public no-arg constructor?", cls.getName()),
+                        ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import com.smsgh.ussd.framework.utils.ManualClock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ClientStateCodecTest {
+
+    private static final byte[] SECRET = "0123456789abcdef".getBytes();
+
+    private final ManualClock clock = new ManualClock(1000000);
+    private final ClientStateCodec codec = new ClientStateCodec(SECRET,
+            ClientStateCodec.DEFAULT_MAX_LENGTH, 70000, clock);
+
+    private static UssdRequest request(String sessionId, String mobile,
+            String clientState) {
+        UssdRequest request = new UssdRequest();
+        request.setSessionId(sessionId);
+        request.setMobile(mobile);
+        request.setClientState(clientState);
+        return request;
+    }
+
+    private static Map<String, String> dataBag() {
+        Map<String, String> dataBag = new LinkedHashMap<String, String>();
+        dataBag.put(UssdController.FORM_DATA_KEY,
+                "{\"Name\":\"Kofi \u0254\"}");
+        dataBag.put("count", "3");
+        dataBag.put("empty", "");
+        return dataBag;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortSecret() {
+        new ClientStateCodec(new byte[8]);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        UssdRequest request = request("s1", "233244000111", null);
+        String state = codec.encode(request, "Main.form", dataBag());
+        assertTrue(state.matches("[A-Za-z0-9_-]+"));
+
+        request.setClientState(state);
+        ClientStateCodec.State decoded = codec.decode(request);
+        assertFalse(decoded.isInStore());
+        assertEquals("Main.form", decoded.getNextRoute());
+        assertEquals(dataBag(), decoded.getDataBag());
+    }
+
+    @Test
+    public void testNoClientState() {
+        assertNull(codec.decode(request("s1", "233244000111", null)));
+        assertNull(codec.decode(request("s1", "233244000111", "")));
+    }
+
+    @Test
+    public void testInStore() {
+        UssdRequest request = request("s1", "233244000111", null);
+        request.setClientState(codec.encodeInStore(request));
+        assertTrue(codec.decode(request).isInStore());
+    }
+
+    @Test
+    public void testLargeStateIsDeflated() {
+        Map<String, String> dataBag = new LinkedHashMap<String, String>();
+        StringBuilder menu = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 20; i++) {
+            menu.append("{\"index\":\"").append(i).append(
+                    "\",\"display\":\"Option\",\"action\":\"option\"},");
+        }
+        menu.append("]}");
+        dataBag.put(UssdController.MENU_PROCESSOR_DATA_KEY, menu.toString());
+        UssdRequest request = request("s1", "233244000111", null);
+        String state = codec.encode(request, "Main.menuProcessor", dataBag);
+        assertTrue(state.length() < menu.length() / 2);
+        request.setClientState(state);
+        assertEquals(dataBag, codec.decode(request).getDataBag());
+    }
+
+    @Test
+    public void testSizeGuard() {
+        ClientStateCodec small = new ClientStateCodec(SECRET, 60, 70000,
+                clock);
+        UssdRequest request = request("s1", "233244000111", null);
+        assertNotNull(small.encode(request, "Main.start",
+                new LinkedHashMap<String, String>()));
+        assertNull(small.encode(request, "Main.form", dataBag()));
+        assertTrue(small.encodeInStore(request).length() <= 60);
+    }
+
+    @Test(expected = SessionNotFoundException.class)
+    public void testOtherSessionIsRejected() {
+        String state = codec.encode(request("s1", "233244000111", null),
+                "Main.form", dataBag());
+        codec.decode(request("s2", "233244000111", state));
+    }
+
+    @Test(expected = SessionNotFoundException.class)
+    public void testOtherMobileIsRejected() {
+        String state = codec.encode(request("s1", "233244000111", null),
+                "Main.form", dataBag());
+        codec.decode(request("s1", "233244000222", state));
+    }
+
+    @Test(expected = SessionNotFoundException.class)
+    public void testOtherSecretIsRejected() {
+        String state = codec.encode(request("s1", "233244000111", null),
+                "Main.form", dataBag());
+        new ClientStateCodec("fedcba9876543210".getBytes(),
+                ClientStateCodec.DEFAULT_MAX_LENGTH, 70000, clock).decode(
+                request("s1", "233244000111", state));
+    }
+
+    @Test(expected = SessionNotFoundException.class)
+    public void testExpiredStateIsRejected() {
+        String state = codec.encode(request("s1", "233244000111", null),
+                "Main.form", dataBag());
+        clock.advance(70000);
+        codec.decode(request("s1", "233244000111", state));
+    }
+
+    @Test
+    public void testMalformedStateIsRejected() {
+        String[] states = { "x", "!!!!", "AAAA", "AQAAAAAAAAAAAAAAAAAAAAAAAA" };
+        for (String state : states) {
+            try {
+                codec.decode(request("s1", "233244000111", state));
+                fail("Expected rejection of " + state);
+            }
+            catch (SessionNotFoundException ex) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testAlteredStateIsRejected() {
+        String state = codec.encode(request("s1", "233244000111", null),
+                "Main.form", dataBag());
+        for (int i = 0; i < state.length(); i++) {
+            char c = state.charAt(i);
+            String altered = state.substring(0, i) + (c == 'A' ? 'B' : 'A') +
+                    state.substring(i + 1);
+            try {
+                codec.decode(request("s1", "233244000111", altered));
+                fail("Expected rejection of change at " + i);
+            }
+            catch (SessionNotFoundException ex) {
+                // Expected.
+            }
+        }
+    }
+}
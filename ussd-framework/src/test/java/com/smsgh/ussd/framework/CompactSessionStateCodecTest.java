@@ -0,0 +1,143 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class CompactSessionStateCodecTest {
+
+    private final SessionStateCodec codec = new CompactSessionStateCodec();
+    private final SessionStateCodec jsonCodec = new JsonSessionStateCodec();
+
+    private static UssdForm createForm() {
+        Map<String, String> data = new HashMap<String, String>();
+        data.put("s", "2");
+        ArrayList<UssdInput> inputs = new ArrayList<UssdInput>();
+        inputs.add(new UssdInput("a").displayName("dk").header("Header:"));
+        ArrayList<UssdInput.Option> options =
+                new ArrayList<UssdInput.Option>();
+        options.add(new UssdInput.Option("Male", "M"));
+        options.add(new UssdInput.Option("Female", "F"));
+        options.add(new UssdInput.Option("Other: \u00e9\u20ac 1:2;@0;"));
+        inputs.add(new UssdInput("gender").displayName("Gender")
+                .message("Choose").options(options));
+        return new UssdForm("greeting", "framework.Sample").inputs(inputs)
+                .processingPosition(1).data(data);
+    }
+
+    private static UssdMenu createMenu() {
+        return new UssdMenu().header("Welcome").footer("Bye")
+                .addItem(new UssdMenuItem("1", "Greet me", "greetingForm",
+                        "com.smsgh.ussd.framework.SampleController"))
+                .addItem(new UssdMenuItem("2", "Count", "count",
+                        "com.smsgh.ussd.framework.SampleController"))
+                .addItem(new UssdMenuItem("0", "Exit", "exit"));
+    }
+
+    @Test
+    public void testForm() {
+        UssdForm expected = createForm();
+        String repr = codec.encodeForm(expected);
+        assertTrue(CompactSessionStateCodec.isCompact(repr));
+        assertEquals(expected, codec.decodeForm(repr));
+        assertEquals(expected, jsonCodec.decodeForm(repr));
+        assertTrue(repr.length() < jsonCodec.encodeForm(expected).length());
+
+        // Written by the JSON codec.
+        assertEquals(expected, codec.decodeForm(
+                jsonCodec.encodeForm(expected)));
+
+        expected = new UssdForm("a");
+        assertEquals(expected, codec.decodeForm(codec.encodeForm(expected)));
+    }
+
+    @Test
+    public void testMenu() {
+        UssdMenu expected = createMenu();
+        String repr = codec.encodeMenu(expected);
+        assertEquals(expected, codec.decodeMenu(repr));
+        assertEquals(expected, jsonCodec.decodeMenu(repr));
+        assertEquals(expected, codec.decodeMenu(
+                jsonCodec.encodeMenu(expected)));
+
+        // Repeated controller name is written once.
+        assertEquals(repr.indexOf("SampleController"),
+                repr.lastIndexOf("SampleController"));
+
+        expected = new UssdMenu();
+        assertEquals(expected, codec.decodeMenu(codec.encodeMenu(expected)));
+    }
+
+    @Test
+    public void testMap() {
+        Map<String, String> expected = new LinkedHashMap<String, String>();
+        assertEquals(expected, codec.decodeMap(codec.encodeMap(expected)));
+
+        expected.put("a", "b");
+        expected.put("b", "a");
+        expected.put("key", "key");
+        expected.put("value", null);
+        expected.put("", "key");
+        String repr = codec.encodeMap(expected);
+        assertEquals("~1D5;1:a1:b1:b1:a3:key@4;5:value-0:@4;", repr);
+        Map<String, String> result = codec.decodeMap(repr);
+        assertEquals(expected, result);
+        assertEquals(new ArrayList<String>(expected.keySet()),
+                new ArrayList<String>(result.keySet()));
+
+        // Unlike JSON, keeps null values.
+        expected.remove("value");
+        assertEquals(expected, codec.decodeMap(jsonCodec.encodeMap(
+                expected)));
+
+        assertNull(codec.decodeMap(codec.encodeMap(null)));
+        assertNull(codec.decodeMap(jsonCodec.encodeMap(null)));
+    }
+
+    @Test
+    public void testBlanks() {
+        String[] blanks = { null, "", " " };
+        for (String blank : blanks) {
+            assertNull(codec.decodeForm(blank));
+            assertNull(codec.decodeMenu(blank));
+            assertNull(codec.decodeMap(blank));
+        }
+    }
+
+    @Test
+    public void testInvalidValues() {
+        String form = codec.encodeForm(createForm());
+        String[] invalidValues = {
+            "~", "~2D0;", "~1M", "~1D", "~1D1;", "~1D1;1:a", "~1D1;9:a-",
+            "~1D1;1:a@1;", "~1D99;", "~1Dx;", "~1D0;-",
+            "~1M+--", "~1M+---1;*", "~1M+---1;+1:1---",
+            form.substring(0, form.length() - 1), form + "-"
+        };
+        for (String invalidValue : invalidValues) {
+            try {
+                if (invalidValue.startsWith("~1M")) {
+                    codec.decodeMenu(invalidValue);
+                }
+                else if (invalidValue.startsWith("~1F")) {
+                    codec.decodeForm(invalidValue);
+                }
+                else {
+                    codec.decodeMap(invalidValue);
+                }
+                fail("Expected FrameworkException for " + invalidValue);
+            }
+            catch (FrameworkException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import com.smsgh.ussd.framework.catalog.good.MainController;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ControllerCatalogTest {
+
+    private static final String GOOD_PACKAGE =
+            "com.smsgh.ussd.framework.catalog.good";
+    private static final String BROKEN_PACKAGE =
+            "com.smsgh.ussd.framework.catalog.broken";
+
+    private static final List<RouteTable> NO_ROUTE_TABLES =
+            Collections.emptyList();
+
+    private static ControllerCatalog catalogOf(ClassLoader classLoader,
+            String... controllerPackages) {
+        return new ControllerCatalog(controllerPackages, classLoader,
+                NO_ROUTE_TABLES);
+    }
+
+    private static void assertGoodCatalog(ControllerCatalog catalog) {
+        assertEquals(Collections.emptyList(), catalog.getErrors());
+        assertEquals(Arrays.asList(MainController.class.getName(),
+                MainController.Nested.class.getName()),
+                Arrays.asList(catalog.getControllers().get(0).getName(),
+                        catalog.getControllers().get(1).getName()));
+        assertEquals(2, catalog.getControllers().size());
+        String main = MainController.class.getName();
+        String nested = MainController.Nested.class.getName();
+        assertEquals(Arrays.asList(main + ".fail", main + ".formProcessor",
+                main + ".menuProcessor", main + ".next", main + ".start",
+                nested + ".formProcessor", nested + ".hello",
+                nested + ".menuProcessor"), catalog.getRoutes());
+        assertEquals(1, catalog.getWarnings().size());
+        assertTrue(catalog.getWarnings().get(0).contains(
+                main + ".greet"));
+    }
+
+    @Test
+    public void testDirectoryControllers() {
+        assertGoodCatalog(catalogOf(getClass().getClassLoader(),
+                GOOD_PACKAGE));
+    }
+
+    @Test
+    public void testJarControllers() throws Exception {
+        File jar = File.createTempFile("controllers", ".jar");
+        try {
+            String path = GOOD_PACKAGE.replace('.', '/');
+            File dir = new File(getClass().getClassLoader().getResource(
+                    path).toURI());
+            JarOutputStream out = new JarOutputStream(
+                    new FileOutputStream(jar));
+            try {
+                // Directory entries, as jar tools write them, are needed
+                // for packages to be found as resources.
+                String dirPath = "";
+                for (String name : path.split("/")) {
+                    dirPath += name + '/';
+                    out.putNextEntry(new JarEntry(dirPath));
+                    out.closeEntry();
+                }
+                for (File file : dir.listFiles()) {
+                    out.putNextEntry(new JarEntry(path + '/' +
+                            file.getName()));
+                    copy(file, out);
+                    out.closeEntry();
+                }
+            }
+            finally {
+                out.close();
+            }
+
+            // Lists resources of the jar only, but loads classes through
+            // the parent like any web app class loader.
+            ClassLoader jarOnly = new URLClassLoader(
+                    new URL[]{ jar.toURI().toURL() },
+                    getClass().getClassLoader()) {
+                @Override
+                public Enumeration<URL> getResources(String name)
+                        throws IOException {
+                    return findResources(name);
+                }
+            };
+            assertTrue(jarOnly.getResources(path).nextElement()
+                    .getProtocol().equals("jar"));
+            assertGoodCatalog(catalogOf(jarOnly, GOOD_PACKAGE));
+        }
+        finally {
+            jar.delete();
+        }
+    }
+
+    private static void copy(File file, JarOutputStream out)
+            throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testUncreatableControllers() {
+        ControllerCatalog catalog = catalogOf(getClass().getClassLoader(),
+                BROKEN_PACKAGE);
+        assertEquals(Collections.emptyList(), catalog.getControllers());
+        assertEquals(Collections.singletonList("Class \""
+                + BROKEN_PACKAGE + ".ArgsController\" cannot be created by "
+                + "the framework. Is class a public class having a public "
+                + "no-arg constructor?"), catalog.getErrors());
+    }
+
+    @Test
+    public void testNoPackages() {
+        ControllerCatalog catalog = new ControllerCatalog(null,
+                getClass().getClassLoader(), NO_ROUTE_TABLES);
+        assertTrue(catalog.getControllers().isEmpty());
+        assertTrue(catalog.getRoutes().isEmpty());
+        assertTrue(catalog.getErrors().isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MenuTemplateTest {
+
+    private static UssdMenu createMenu() {
+        return new UssdMenu().header("Balance: {balance} {currency}")
+                .footer("{none} {} {a-b} {")
+                .addItem(new UssdMenuItem("1", "Send to {name}", "send",
+                        "framework.Sample"))
+                .addItem(new UssdMenuItem("0", "Exit", "exit"))
+                .addItem(new UssdMenuItem("B", "Back", "back"));
+    }
+
+    @Test
+    public void testRender() {
+        MenuTemplate template = new MenuTemplate("account", createMenu());
+        assertEquals("account", template.getId());
+        assertEquals(Arrays.asList("balance", "currency", "none", "name"),
+                new ArrayList<String>(template.getParameterNames()));
+
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("balance", "12.50");
+        parameters.put("currency", "GHS");
+        parameters.put("none", "{name}");
+        parameters.put("name", "Ama");
+        parameters.put("unused", "x");
+        UssdMenu menu = template.toMenu(parameters);
+        assertEquals(new UssdMenu().header("Balance: 12.50 GHS")
+                .footer("{name} {} {a-b} {")
+                .addItem(new UssdMenuItem("1", "Send to Ama", "send",
+                        "framework.Sample"))
+                .addItem(new UssdMenuItem("0", "Exit", "exit"))
+                .addItem(new UssdMenuItem("B", "Back", "back")), menu);
+        assertEquals(menu.render(), template.render(parameters));
+        assertEquals(4, template.getParameters(parameters).size());
+
+        parameters.remove("name");
+        try {
+            template.render(parameters);
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+
+        // Static and custom message templates.
+        UssdMenu staticMenu = new UssdMenu().header("Menu")
+                .addItem(new UssdMenuItem("1", "One", "one"));
+        template = new MenuTemplate("static", staticMenu);
+        assertTrue(template.getParameterNames().isEmpty());
+        assertEquals(staticMenu.render(), template.render(null));
+        assertNull(template.getParameters(null));
+        template = new MenuTemplate("message", new UssdMenu()
+                .message("Pick {n}").addItem(new UssdMenuItem("1", "One",
+                        "one")));
+        assertEquals("Pick 2", template.render(Collections.singletonMap(
+                "n", "2")));
+    }
+
+    @Test
+    public void testFindItem() {
+        UssdMenu menu = createMenu();
+        MenuTemplate template = new MenuTemplate("account", menu);
+        assertEquals(menu.getItems().get(0), template.findItem("1"));
+        assertEquals(menu.getItems().get(2), template.findItem("b"));
+        assertEquals(menu.getItems().get(2), template.findItem("B"));
+        assertNull(template.findItem("2"));
+        assertNull(template.findItem(""));
+        assertNull(template.findItem(null));
+
+        // Template is not affected by changes to its menu or items.
+        menu.getItems().get(0).setAction("changed");
+        template.findItem("1").setAction("changed");
+        assertEquals("send", template.findItem("1").getAction());
+
+        // Same folding of case as String.equalsIgnoreCase.
+        template = new MenuTemplate("dotless", new UssdMenu()
+                .addItem(new UssdMenuItem("\u0131", "Dotless i", "a")));
+        assertNotNull(template.findItem("I"));
+        assertNotNull(template.findItem("i"));
+    }
+
+    @Test
+    public void testInvalidTemplates() {
+        try {
+            new MenuTemplate("a&b", new UssdMenu());
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+        try {
+            new MenuTemplate("dup", new UssdMenu()
+                    .addItem(new UssdMenuItem("a", "A", "a"))
+                    .addItem(new UssdMenuItem("A", "A", "a")));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testRegistry() {
+        MenuTemplateRegistry registry = new MenuTemplateRegistry();
+        MenuTemplate template = registry.register("account", createMenu());
+        assertSame(template, registry.get("account"));
+        assertSame(template, registry.register("account", createMenu()));
+        assertEquals(1, registry.size());
+        try {
+            registry.register("account", createMenu().header("Other"));
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException ex) {
+        }
+        assertNull(registry.get("other"));
+        assertNull(registry.get(null));
+        assertTrue(registry.unregister("account"));
+        assertFalse(registry.unregister("account"));
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal stand-ins for servlet requests and responses, for driving
+ * {@link Ussd} in tests without a servlet container.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MockHttp {
+
+    /**
+     * Creates a POST request with the given body.
+     * @param body request body.
+     * @return servlet request.
+     */
+    public static HttpServletRequest post(byte[] body) {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        final ServletInputStream servletIn = new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return in.read(b, off, len);
+            }
+        };
+        return (HttpServletRequest)Proxy.newProxyInstance(
+                MockHttp.class.getClassLoader(),
+                new Class[]{ HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("getMethod")) {
+                            return "POST";
+                        }
+                        if (name.equals("getInputStream")) {
+                            return servletIn;
+                        }
+                        if (name.equals("getContentLength")) {
+                            return -1;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Servlet response which keeps what is written to it.
+     */
+    public static class Response {
+        public final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        public final Map<String, String> headers =
+                new HashMap<String, String>();
+        public int contentLength = -1;
+        public String contentType;
+        public int writeCalls;
+        public final HttpServletResponse servletResponse;
+
+        public Response() {
+            final ServletOutputStream servletOut = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    writeCalls++;
+                    body.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    writeCalls++;
+                    body.write(b, off, len);
+                }
+            };
+            servletResponse = (HttpServletResponse)Proxy.newProxyInstance(
+                    MockHttp.class.getClassLoader(),
+                    new Class[]{ HttpServletResponse.class },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method,
+                                Object[] args) throws Throwable {
+                            String name = method.getName();
+                            if (name.equals("getOutputStream")) {
+                                return servletOut;
+                            }
+                            if (name.equals("setHeader")) {
+                                headers.put((String)args[0], (String)args[1]);
+                            }
+                            else if (name.equals("setContentLength")) {
+                                contentLength = (Integer)args[0];
+                            }
+                            else if (name.equals("setContentType")) {
+                                contentType = (String)args[0];
+                            }
+                            return null;
+                        }
+                    });
+        }
+
+        public String bodyAsString() {
+            try {
+                return body.toString("UTF-8");
+            }
+            catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class RouteCacheTest {
+
+    private static final String[] PACKAGES = { "com.smsgh.ussd.framework" };
+
+    private final RouteCache cache = new RouteCache(3);
+
+    /**
+     * Route table with a dispatcher for SampleController.start only, as
+     * if only that action returned UssdResponse.
+     */
+    private static class SampleRouteTable implements RouteTable {
+        private final Map<String, ActionDispatcher> actions =
+                new HashMap<String, ActionDispatcher>();
+
+        SampleRouteTable() {
+            actions.put("start", new ActionDispatcher(
+                    SampleController.class) {
+                @Override
+                public UssdController newController() {
+                    return new SampleController();
+                }
+
+                @Override
+                public Object invoke(UssdController controller) {
+                    return ((SampleController)controller).start();
+                }
+            });
+        }
+
+        @Override
+        public Set<String> getControllerNames() {
+            return Collections.singleton(SampleController.class.getName());
+        }
+
+        @Override
+        public Map<String, ActionDispatcher> getActions(
+                String controllerName) {
+            return getControllerNames().contains(controllerName) ?
+                    actions : null;
+        }
+    }
+
+    private static String failureOf(RouteCache.Route route) {
+        try {
+            route.check();
+            return null;
+        }
+        catch (RuntimeException ex) {
+            return ex.getMessage();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveMaxRoutes() {
+        new RouteCache(0);
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        RouteCache.Route route = cache.resolve("Sample.start", PACKAGES);
+        route.check();
+        assertEquals(SampleController.class, route.getControllerClass());
+        assertEquals("start", route.getActionName());
+        assertEquals(SampleController.class.getMethod("start"),
+                route.getAction());
+        assertSame(route, cache.resolve("Sample.start", PACKAGES.clone()));
+        assertSame(route.getControllerClass(), cache.resolve(
+                "com.smsgh.ussd.framework.SampleController.start",
+                null).getControllerClass());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testPackagesArePartOfKey() {
+        String[] packages = PACKAGES.clone();
+        RouteCache.Route route = cache.resolve("Sample.start", packages);
+        assertNull(failureOf(route));
+
+        // Changing the caller's array later does not affect the cache.
+        packages[0] = "com.example";
+        assertNotNull(failureOf(cache.resolve("Sample.start", packages)));
+        assertSame(route, cache.resolve("Sample.start", PACKAGES));
+    }
+
+    @Test
+    public void testFailuresAreCached() {
+        RouteCache.Route route = cache.resolve("Missing.start", PACKAGES);
+        assertEquals("Class \"Missing\" could not be found. Tried to load "
+                + "the following classes:  Missing, "
+                + "com.smsgh.ussd.framework.Missing, "
+                + "com.smsgh.ussd.framework.MissingController",
+                failureOf(route));
+        assertSame(route, cache.resolve("Missing.start", PACKAGES));
+
+        assertEquals("Class \"com.smsgh.ussd.framework.SampleController\" "
+                + "does not have a public no-arg action named \"missing\".",
+                failureOf(cache.resolve("Sample.missing", PACKAGES)));
+        assertTrue(failureOf(cache.resolve("java.lang.String.length",
+                PACKAGES)).contains("does not subclass"));
+        try {
+            cache.resolve("NoPeriod", PACKAGES).check();
+            fail("Expected FrameworkException");
+        }
+        catch (FrameworkException ex) {
+            assertTrue(ex.getMessage().startsWith("Invalid route format."));
+        }
+    }
+
+    @Test
+    public void testBounded() {
+        for (int i = 0; i < 10; i++) {
+            cache.resolve("Sample.action" + i, PACKAGES);
+            assertTrue(cache.size() <= 3);
+        }
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testRouteTables() {
+        SampleRouteTable routeTable = new SampleRouteTable();
+        List<RouteTable> routeTables = Collections.<RouteTable>singletonList(
+                routeTable);
+        RouteCache tableCache = new RouteCache(3, routeTables);
+        assertEquals(routeTables, tableCache.getRouteTables());
+
+        RouteCache.Route route = tableCache.resolve("Sample.start", PACKAGES);
+        route.check();
+        assertEquals(SampleController.class, route.getControllerClass());
+        assertNull(route.getAction());
+        assertSame(routeTable.getActions(SampleController.class.getName())
+                .get("start"), route.getDispatcher());
+
+        // Actions missing from table are resolved through reflection.
+        route = tableCache.resolve("Sample.count", PACKAGES);
+        route.check();
+        assertNotNull(route.getAction());
+        assertEquals("Class \"com.smsgh.ussd.framework.SampleController\" "
+                + "does not have a public no-arg action named \"missing\".",
+                failureOf(tableCache.resolve("Sample.missing", PACKAGES)));
+
+        // So are controllers missing from table.
+        assertNotNull(failureOf(tableCache.resolve("Missing.start",
+                PACKAGES)));
+    }
+
+    @Test
+    public void testCatalogsAreCached() {
+        ClassLoader classLoader = RouteCacheTest.class.getClassLoader();
+        String[] packages = { "com.smsgh.ussd.framework" };
+        ControllerCatalog catalog = cache.getCatalog(packages, classLoader);
+        assertTrue(catalog.getRoutes().contains(
+                SampleController.class.getName() + ".start"));
+        assertSame(catalog, cache.getCatalog(packages.clone(),
+                classLoader));
+        assertNotSame(catalog, cache.getCatalog(null, classLoader));
+
+        // Registries register the routes of a catalog once.
+        RouteRegistry registry = new RouteRegistry();
+        registry.load(catalog);
+        int size = registry.size();
+        assertTrue(size > 0);
+        registry.load(catalog);
+        assertEquals(size, registry.size());
+
+        cache.clear();
+        assertNotSame(catalog, cache.getCatalog(packages, classLoader));
+    }
+
+    @Test
+    public void testCandidateNames() {
+        assertEquals(Arrays.asList("Main", "a.Main",
+                "a.MainController", "b.Main", "b.MainController"),
+                RouteCache.candidateNamesOf("Main", new String[]{ "a", "b" }));
+        assertEquals(Arrays.asList("MainController",
+                "a.MainController"), RouteCache.candidateNamesOf(
+                        "MainController", new String[]{ "a" }));
+        assertEquals(Collections.singletonList("a.Main"),
+                RouteCache.candidateNamesOf("a.Main", null));
+    }
+
+    @Test
+    public void testNoRouteTablesRegistered() {
+        assertTrue(RouteCache.loadRouteTables(
+                RouteCacheTest.class.getClassLoader()).isEmpty());
+    }
+}
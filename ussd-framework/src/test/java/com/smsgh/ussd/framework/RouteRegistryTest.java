@@ -0,0 +1,91 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.Arrays;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class RouteRegistryTest {
+
+    private static final String[] PACKAGES = { "com.smsgh.ussd" };
+
+    private static final String START_ROUTE =
+            SampleController.class.getName() + ".start";
+
+    private final RouteRegistry registry = new RouteRegistry();
+
+    @Test
+    public void testRegister() {
+        assertNull(registry.getId(START_ROUTE));
+        registry.register(START_ROUTE);
+        registry.register(START_ROUTE);
+        assertEquals(1, registry.size());
+
+        String id = registry.getId(START_ROUTE);
+        assertEquals(RouteRegistry.idOf(START_ROUTE), id);
+        assertTrue(RouteRegistry.isId(id));
+        assertTrue(id.length() <= 8);
+        assertEquals(START_ROUTE, registry.getRoute(id));
+
+        // Ids depend on routes only, so that all nodes agree on them.
+        RouteRegistry other = new RouteRegistry();
+        other.registerAll(Arrays.asList("a.b", START_ROUTE));
+        assertEquals(id, other.getId(START_ROUTE));
+    }
+
+    @Test
+    public void testEncodeAndDecode() {
+        registry.register(START_ROUTE);
+        String id = registry.getId(START_ROUTE);
+        assertEquals(id, registry.encode(START_ROUTE, null));
+        assertEquals(START_ROUTE, registry.decode(id));
+
+        // Partial routes are stored under the id of their full route.
+        assertEquals(id, registry.encode("framework.Sample.start",
+                PACKAGES));
+
+        // Unregistered and unresolvable routes are kept in full.
+        assertEquals("framework.Sample.count", registry.encode(
+                "framework.Sample.count", PACKAGES));
+        assertEquals("Missing.start", registry.encode("Missing.start",
+                PACKAGES));
+        assertEquals("Missing.start", registry.decode("Missing.start"));
+        assertNull(registry.decode(null));
+
+        // Unknown ids are read as no route at all.
+        assertNull(registry.decode(RouteRegistry.idOf("Missing.start")));
+    }
+
+    @Test
+    public void testCollidingRoutesAreKeptInFull() {
+        String a = "com.example.Controller.a332789";
+        String b = "com.example.Controller.a529192";
+        assertEquals(RouteRegistry.idOf(a), RouteRegistry.idOf(b));
+        registry.register(a);
+        registry.register(b);
+        registry.register(a);
+        assertEquals(0, registry.size());
+        assertNull(registry.getId(a));
+        assertNull(registry.getId(b));
+        assertEquals(a, registry.encode(a, null));
+    }
+
+    @Test
+    public void testInvalidRoutes() {
+        for (String route : new String[]{ null, "start", ".start",
+                "Sample.", "#a.b" }) {
+            try {
+                registry.register(route);
+                fail("Expected IllegalArgumentException for " + route);
+            }
+            catch (IllegalArgumentException ex) {
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Controller used by framework tests to drive sessions through menus,
+ * forms and redirects.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class SampleController extends UssdController {
+
+    static {
+        Ussd.getDefaultMenuTemplateRegistry().register("sample.greeting",
+                new UssdMenu().header("Hi {name}")
+                        .addItem(new UssdMenuItem("1", "Count", "count"))
+                        .addItem(new UssdMenuItem("X", "Exit", "exit")));
+    }
+
+    public UssdResponse start() {
+        UssdMenu menu = new UssdMenu().header("Welcome")
+                .addItem("Greet me", "greetingForm")
+                .addItem("Count", "count")
+                .addItem(new UssdMenuItem("0", "Exit", "exit"));
+        return renderMenu(menu);
+    }
+
+    public UssdResponse templateMenu() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("name", "Kofi");
+        return renderMenuTemplate("sample.greeting", parameters);
+    }
+
+    public UssdResponse greetingForm() {
+        UssdForm form = new UssdForm("greeting")
+                .addInput(new UssdInput("Name"))
+                .addInput(new UssdInput("Gender")
+                        .addOption(new UssdInput.Option("Male", "M"))
+                        .addOption(new UssdInput.Option("Female", "F")));
+        return renderForm(form);
+    }
+
+    public UssdResponse greeting() {
+        Map<String, String> formData = getFormData();
+        String prefix = "M".equals(formData.get("Gender")) ?
+                "Master" : "Madam";
+        return render(String.format("Hello, %s %s", prefix,
+                formData.get("Name")));
+    }
+
+    public UssdResponse count() {
+        String count = getDataBag().get("count");
+        int next = count == null ? 1 : Integer.parseInt(count) + 1;
+        getDataBag().set("count", String.valueOf(next));
+        return render("Count is " + next, "count");
+    }
+
+    public UssdResponse exit() {
+        return render("Bye");
+    }
+}
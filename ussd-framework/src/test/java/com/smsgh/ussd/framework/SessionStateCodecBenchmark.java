@@ -0,0 +1,119 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.util.ArrayList;
+
+/**
+ * Compares {@link JsonSessionStateCodec} with
+ * {@link CompactSessionStateCodec}: the time taken to encode and decode a
+ * typical menu and form, and the length of what is kept in the data bag
+ * for each. Not run as part of the test suite; run its main method, e.g.
+ * <pre>
+ * java com.smsgh.ussd.framework.SessionStateCodecBenchmark 200000
+ * </pre>
+ * The argument is the number of encodings and decodings per round
+ * (default 200000). Each codec is timed twice, alternately, over several
+ * rounds after a warm-up round, and the best round is reported.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class SessionStateCodecBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) :
+                200000;
+        String controller = "com.example.ussd.controllers.AccountController";
+        UssdMenu menu = new UssdMenu().header("Welcome to Example Bank")
+                .addItem(new UssdMenuItem("1", "Check balance", "balance",
+                        controller))
+                .addItem(new UssdMenuItem("2", "Buy airtime", "airtime",
+                        controller))
+                .addItem(new UssdMenuItem("3", "Transfer money", "transfer",
+                        controller))
+                .addItem(new UssdMenuItem("4", "Mini statement", "statement",
+                        controller))
+                .addItem(new UssdMenuItem("0", "Exit", "exit", controller));
+        ArrayList<UssdInput.Option> networks =
+                new ArrayList<UssdInput.Option>();
+        networks.add(new UssdInput.Option("MTN", "mtn"));
+        networks.add(new UssdInput.Option("Vodafone", "vodafone"));
+        networks.add(new UssdInput.Option("AirtelTigo", "airteltigo"));
+        UssdForm form = new UssdForm("confirmAirtime", controller)
+                .addInput(new UssdInput("network").displayName("Network")
+                        .options(networks))
+                .addInput(new UssdInput("recipient")
+                        .displayName("Recipient number"))
+                .addInput(new UssdInput("amount").displayName("Amount"))
+                .processingPosition(2);
+        form.getData().put("network", "vodafone");
+        form.getData().put("recipient", "0244000111");
+
+        SessionStateCodec[] codecs = { new JsonSessionStateCodec(),
+            new CompactSessionStateCodec() };
+        for (SessionStateCodec codec : codecs) {
+            System.out.println(String.format("%s: %d-char menu, %d-char "
+                    + "form", codec.getClass().getSimpleName(),
+                    codec.encodeMenu(menu).length(),
+                    codec.encodeForm(form).length()));
+        }
+
+        // Alternate the codecs, so that none benefits from running first.
+        for (int i = 0; i < 2; i++) {
+            for (SessionStateCodec codec : codecs) {
+                run(codec, operations, menu, form);
+            }
+        }
+    }
+
+    private static void run(SessionStateCodec codec, int operations,
+            UssdMenu menu, UssdForm form) {
+        long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE,
+            Long.MAX_VALUE };
+        String menuRepr = codec.encodeMenu(menu);
+        String formRepr = codec.encodeForm(form);
+        int check = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long[] times = new long[4];
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                check += codec.encodeMenu(menu).length();
+            }
+            times[0] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                check += codec.decodeMenu(menuRepr).getItems().size();
+            }
+            times[1] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                check += codec.encodeForm(form).length();
+            }
+            times[2] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                check += codec.decodeForm(formRepr).getProcessingPosition();
+            }
+            times[3] = System.nanoTime() - start;
+            if (round > 0) {
+                for (int j = 0; j < best.length; j++) {
+                    best[j] = Math.min(best[j], times[j]);
+                }
+            }
+        }
+        long expected = (long)(menuRepr.length() + menu.getItems().size() +
+                formRepr.length() + form.getProcessingPosition()) *
+                operations * (ROUNDS + 1);
+        if (check != (int)expected) {
+            throw new AssertionError("Wrong check: " + check);
+        }
+        System.out.println(String.format("%s: menu %d ns/encode, "
+                + "%d ns/decode; form %d ns/encode, %d ns/decode",
+                codec.getClass().getSimpleName(), best[0] / operations,
+                best[1] / operations, best[2] / operations,
+                best[3] / operations));
+    }
+}
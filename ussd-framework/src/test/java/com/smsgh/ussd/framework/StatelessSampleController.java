@@ -0,0 +1,36 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+/**
+ * Stateless version of {@link SampleController}, which counts its
+ * instances.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class StatelessSampleController extends SampleController
+        implements StatelessUssdController {
+
+    private static int instanceCount;
+
+    public StatelessSampleController() {
+        synchronized (StatelessSampleController.class) {
+            instanceCount++;
+        }
+    }
+
+    public static synchronized int getInstanceCount() {
+        return instanceCount;
+    }
+
+    public static synchronized void resetInstanceCount() {
+        instanceCount = 0;
+    }
+
+    @Override
+    public void init() {
+        throw new IllegalStateException("init() called on stateless " +
+                "controller");
+    }
+}
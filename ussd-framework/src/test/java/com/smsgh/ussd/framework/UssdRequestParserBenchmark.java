@@ -0,0 +1,100 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Compares the cost of parsing a ussd request the way requests used to be
+ * parsed, by reading the body into a string and binding it with Gson, with
+ * that of {@link UssdRequestParser}. Not run as part of the test suite;
+ * run its main method, e.g.
+ * <pre>
+ * java com.smsgh.ussd.framework.UssdRequestParserBenchmark 1000000
+ * </pre>
+ * The argument is the number of parses per round (default 1000000). The
+ * request has a ClientState of typical length. Each path is timed twice,
+ * alternately, over several rounds after a warm-up round, and the best
+ * round is reported.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class UssdRequestParserBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int parses = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        StringBuilder clientState = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            clientState.append((char)('A' + i % 26));
+        }
+        final byte[] body = ("{\"Mobile\":\"233244000111\"," +
+                "\"SessionId\":\"0123456789abcdef0123456789abcdef\"," +
+                "\"ServiceCode\":\"*714*1#\",\"Type\":\"Response\"," +
+                "\"Message\":\"1\",\"Operator\":\"mtn\",\"Sequence\":2," +
+                "\"ClientState\":\"" + clientState + "\"}")
+                .getBytes(Ussd.DEFAULT_ENCODING);
+
+        System.out.println(String.format("%d parses per round, %d-byte "
+                + "request", parses, body.length));
+        Path gson = new Path() {
+            @Override
+            public UssdRequest parse(InputStream in) throws Exception {
+                return UssdRequest.fromJson(IOUtils.toString(in,
+                        Ussd.DEFAULT_ENCODING));
+            }
+        };
+        Path streaming = new Path() {
+            @Override
+            public UssdRequest parse(InputStream in) throws Exception {
+                return new UssdRequestParser().parse(in);
+            }
+        };
+        final UssdRequestParser parser = new UssdRequestParser();
+        final UssdRequest request = new UssdRequest();
+        Path reusing = new Path() {
+            @Override
+            public UssdRequest parse(InputStream in) throws Exception {
+                parser.parse(in, request);
+                return request;
+            }
+        };
+
+        // Alternate the paths, so that none benefits from running first.
+        for (int i = 0; i < 2; i++) {
+            run("IOUtils.toString + Gson", parses, body, gson);
+            run("UssdRequestParser", parses, body, streaming);
+            run("UssdRequestParser, reused", parses, body, reusing);
+        }
+    }
+
+    private interface Path {
+        UssdRequest parse(InputStream in) throws Exception;
+    }
+
+    private static void run(String name, int parses, byte[] body, Path path)
+            throws Exception {
+        long best = Long.MAX_VALUE;
+        int sequences = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < parses; i++) {
+                sequences += path.parse(new ByteArrayInputStream(body))
+                        .getSequence();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (sequences != 2 * parses * (ROUNDS + 1)) {
+            throw new AssertionError("Wrong sequences: " + sequences);
+        }
+        System.out.println(String.format("%s: %d ns/parse", name,
+                best / parses));
+    }
+}
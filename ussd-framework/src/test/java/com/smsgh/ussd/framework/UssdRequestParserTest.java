@@ -0,0 +1,419 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class UssdRequestParserTest {
+
+    private static final String[] FIELD_NAMES = { "Mobile", "SessionId",
+        "ServiceCode", "Type", "Message", "Operator", "Sequence",
+        "ClientState" };
+
+    private final UssdRequestParser parser = new UssdRequestParser();
+
+    /**
+     * Stream returning at most one byte per read, so that multibyte
+     * characters are split between reads.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final InputStream in;
+
+        TrickleInputStream(byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private UssdRequest parse(String json) throws IOException {
+        return parser.parse(new ByteArrayInputStream(json.getBytes(
+                "UTF-8")));
+    }
+
+    private static void assertSameRequest(String json, UssdRequest expected,
+            UssdRequest actual) {
+        if (expected == null) {
+            assertNull(json, actual);
+            return;
+        }
+        assertNotNull(json, actual);
+        assertEquals(json, expected.getMobile(), actual.getMobile());
+        assertEquals(json, expected.getSessionId(), actual.getSessionId());
+        assertEquals(json, expected.getServiceCode(),
+                actual.getServiceCode());
+        assertEquals(json, expected.getType(), actual.getType());
+        assertEquals(json, expected.getMessage(), actual.getMessage());
+        assertEquals(json, expected.getOperator(), actual.getOperator());
+        assertEquals(json, expected.getSequence(), actual.getSequence());
+        assertEquals(json, expected.getClientState(),
+                actual.getClientState());
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        UssdRequest request = parse("{\"Mobile\":\"233244000111\"," +
+                "\"SessionId\":\"abc\",\"ServiceCode\":\"*714#\"," +
+                "\"Type\":\"Initiation\",\"Message\":\"Caf\\u00e9 \u20ac\"," +
+                "\"Operator\":\"mtn\",\"Sequence\":1,\"ClientState\":null," +
+                "\"Extra\":{\"a\":[1,2.5e3,true,false,null,\"x\"]}}");
+        assertEquals("233244000111", request.getMobile());
+        assertEquals("abc", request.getSessionId());
+        assertEquals("*714#", request.getServiceCode());
+        assertEquals("Initiation", request.getType());
+        assertEquals("Caf\u00e9 \u20ac", request.getMessage());
+        assertEquals("mtn", request.getOperator());
+        assertEquals(1, request.getSequence());
+        assertNull(request.getClientState());
+    }
+
+    @Test
+    public void testConversionsMatchGson() throws Exception {
+        String[] jsons = {
+            "{\"Sequence\":\"12\",\"Message\":12}",
+            "{\"Sequence\":1.0,\"Message\":-0.50,\"Type\":true}",
+            "{\"Sequence\":1e2,\"Mobile\":null,\"Mobile\":\"2\"}",
+            "{\"Sequence\":null}",
+            "{}",
+            " null ",
+            "",
+            " \r\n\t"
+        };
+        for (String json : jsons) {
+            assertSameRequest(json, UssdRequest.fromJson(json), parse(json));
+        }
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        UssdRequest request = new UssdRequest();
+        request.setAutoDialOriginated(true);
+        assertTrue(parser.parse(new ByteArrayInputStream(
+                "{\"Mobile\":\"1\",\"Sequence\":3}".getBytes("UTF-8")),
+                request));
+        assertTrue(parser.parse(new ByteArrayInputStream(
+                "{\"Type\":\"Response\"}".getBytes("UTF-8")), request));
+        assertNull(request.getMobile());
+        assertEquals(0, request.getSequence());
+        assertEquals("Response", request.getType());
+        assertFalse(request.isAutoDialOriginated());
+        assertFalse(parser.parse(new ByteArrayInputStream(new byte[0]),
+                request));
+        assertEquals("Response", request.getType());
+    }
+
+    @Test
+    public void testInvalidJson() {
+        String[] jsons = {
+            "[]", "\"Mobile\"", "{\"Mobile\":\"1\"", "{\"Mobile\" \"1\"}",
+            "{\"Mobile\":\"1\",}", "{\"Mobile\":{}}", "{\"Sequence\":1.5}",
+            "{\"Sequence\":3000000000}", "{\"Sequence\":true}",
+            "{\"Mobile\":\"\\x\"}", "{\"Mobile\":\"\\u12\"}",
+            "{\"Message\":nul}", "{\"Message\":trueish}",
+            "{\"Extra\":1-}", "{} {}", "{\"Mobile\":\"1"
+        };
+        for (String json : jsons) {
+            try {
+                parse(json);
+                fail("Expected IOException for " + json);
+            }
+            catch (IOException ex) {
+            }
+        }
+    }
+
+    @Test
+    public void testDeepNestingIsRejected() {
+        StringBuilder json = new StringBuilder("{\"Extra\":");
+        for (int i = 0; i < 100; i++) {
+            json.append('[');
+        }
+        try {
+            parse(json.toString());
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("nested"));
+        }
+    }
+
+    @Test
+    public void testLongBodyIsRejectedEarly() throws Exception {
+        final int[] bytesRead = new int[1];
+        InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                bytesRead[0]++;
+                return bytesRead[0] == 1 ? '{' : ' ';
+            }
+        };
+        UssdRequestParser small = new UssdRequestParser(100);
+        try {
+            small.parse(in);
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("100"));
+        }
+        assertTrue(bytesRead[0] < 5000);
+
+        assertNotNull(small.parse(new ByteArrayInputStream(
+                "{\"Mobile\":\"1\"}".getBytes("UTF-8"))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveMaxLength() {
+        new UssdRequestParser(0);
+    }
+
+    /**
+     * Compares parses of random valid requests, split into single bytes,
+     * with those of Gson.
+     */
+    @Test
+    public void testFuzzAgainstGson() throws Exception {
+        Random random = new Random(20160601L);
+        for (int i = 0; i < 2000; i++) {
+            String json = randomRequest(random);
+            UssdRequest expected = UssdRequest.fromJson(json);
+            byte[] bytes = json.getBytes("UTF-8");
+            assertSameRequest(json, expected, parser.parse(
+                    new ByteArrayInputStream(bytes)));
+            assertSameRequest(json, expected, parser.parse(
+                    new TrickleInputStream(bytes)));
+        }
+    }
+
+    /**
+     * Compares outcomes for random corruptions of valid requests with
+     * those of Gson: wherever Gson reads a request, the parser must read
+     * the same one or reject the input, and it must never fail in other
+     * ways.
+     */
+    @Test
+    public void testFuzzCorruptedInput() throws Exception {
+        Random random = new Random(20160602L);
+        String alphabet = "{}[]:,\"\\ 0123456789.-eEtrufalsn\u00e9\u20ac";
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder json = new StringBuilder(randomRequest(random));
+            int edits = 1 + random.nextInt(3);
+            for (int j = 0; j < edits && json.length() > 0; j++) {
+                int at = random.nextInt(json.length());
+                char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        json.deleteCharAt(at);
+                        break;
+                    case 1:
+                        json.insert(at, c);
+                        break;
+                    default:
+                        json.setCharAt(at, c);
+                        break;
+                }
+            }
+            // Compare with Gson on what survives encoding, since edits
+            // may split surrogate pairs.
+            String body = new String(json.toString().getBytes("UTF-8"),
+                    "UTF-8");
+            UssdRequest actual;
+            try {
+                actual = parse(body);
+            }
+            catch (IOException ex) {
+                continue;
+            }
+            UssdRequest expected;
+            try {
+                expected = UssdRequest.fromJson(body);
+            }
+            catch (RuntimeException ex) {
+                fail("Gson rejected what parser accepted: " + body);
+                return;
+            }
+            assertSameRequest(body, expected, actual);
+        }
+    }
+
+    private static String randomRequest(Random random) {
+        StringBuilder json = new StringBuilder();
+        json.append(whitespace(random)).append('{');
+        int fieldCount = random.nextInt(12);
+        for (int i = 0; i < fieldCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(whitespace(random));
+            String name;
+            if (random.nextInt(4) == 0) {
+                name = randomString(random, 8);
+            }
+            else {
+                name = FIELD_NAMES[random.nextInt(FIELD_NAMES.length)];
+            }
+            json.append(quote(name, random)).append(whitespace(random))
+                    .append(':').append(whitespace(random));
+            if (name.equals("Sequence")) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        json.append("null");
+                        break;
+                    case 1:
+                        json.append('"').append(random.nextInt(1000))
+                                .append('"');
+                        break;
+                    default:
+                        json.append(random.nextInt(2000) - 1000);
+                        break;
+                }
+            }
+            else if (isField(name)) {
+                switch (random.nextInt(8)) {
+                    case 0:
+                        json.append("null");
+                        break;
+                    case 1:
+                        json.append(random.nextBoolean());
+                        break;
+                    case 2:
+                        json.append(random.nextInt());
+                        break;
+                    default:
+                        json.append(quote(randomString(random, 40), random));
+                        break;
+                }
+            }
+            else {
+                randomValue(random, json, 0);
+            }
+            json.append(whitespace(random));
+        }
+        return json.append('}').append(whitespace(random)).toString();
+    }
+
+    private static boolean isField(String name) {
+        for (String fieldName : FIELD_NAMES) {
+            if (fieldName.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void randomValue(Random random, StringBuilder json,
+            int depth) {
+        switch (random.nextInt(depth < 3 ? 7 : 5)) {
+            case 0:
+                json.append("null");
+                break;
+            case 1:
+                json.append(random.nextBoolean());
+                break;
+            case 2:
+                json.append(random.nextInt());
+                break;
+            case 3:
+                json.append(random.nextDouble() * 1e6);
+                break;
+            case 4:
+                json.append(quote(randomString(random, 20), random));
+                break;
+            case 5:
+                json.append('[');
+                int length = random.nextInt(4);
+                for (int i = 0; i < length; i++) {
+                    json.append(i > 0 ? "," : "").append(whitespace(random));
+                    randomValue(random, json, depth + 1);
+                }
+                json.append(']');
+                break;
+            default:
+                json.append('{');
+                int fieldCount = random.nextInt(4);
+                for (int i = 0; i < fieldCount; i++) {
+                    json.append(i > 0 ? "," : "")
+                            .append(quote(randomString(random, 5), random))
+                            .append(':');
+                    randomValue(random, json, depth + 1);
+                }
+                json.append('}');
+                break;
+        }
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    // Any BMP character but lone surrogates.
+                    char c = (char)random.nextInt(0xd800);
+                    s.append(c);
+                    break;
+                case 1:
+                    // Supplementary character.
+                    s.appendCodePoint(0x10000 + random.nextInt(0x10000));
+                    break;
+                default:
+                    s.append((char)(' ' + random.nextInt(95)));
+                    break;
+            }
+        }
+        return s.toString();
+    }
+
+    private static String quote(String s, Random random) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < ' ' || (random.nextInt(10) == 0 &&
+                    (c < '\ud800' || c > '\udfff'))) {
+                // Surrogates are left unescaped, as halves of a pair
+                // escaped apart do not survive encoding to UTF-8.
+                switch (random.nextInt(2)) {
+                    case 0:
+                        quoted.append(String.format("\\u%04x", (int)c));
+                        break;
+                    default:
+                        quoted.append(String.format("\\u%04X", (int)c));
+                        break;
+                }
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String whitespace(Random random) {
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(3);
+        for (int i = 0; i < length; i++) {
+            s.append(" \t\r\n".charAt(random.nextInt(4)));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class UssdResponseWriterTest {
+
+    private static UssdResponse response(String type, String message,
+            String clientState) {
+        UssdResponse response = new UssdResponse();
+        response.setType(type);
+        response.setMessage(message);
+        response.setClientState(clientState);
+        return response;
+    }
+
+    private static void assertSameAsGson(UssdResponse response)
+            throws Exception {
+        byte[] expected = UssdResponse.toJson(response).getBytes("UTF-8");
+        UssdResponseWriter writer = new UssdResponseWriter().write(response);
+        byte[] actual = Arrays.copyOf(writer.getBytes(), writer.getLength());
+        if (!Arrays.equals(expected, actual)) {
+            fail(String.format("Expected %s but was %s", new String(expected,
+                    "UTF-8"), new String(actual, "UTF-8")));
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        UssdResponseWriter writer = new UssdResponseWriter().write(
+                response("Response", "Welcome\n1. Caf\u00e9", null));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        assertEquals("{\"Type\":\"Response\",\"Message\":" +
+                "\"Welcome\\n1. Caf\u00e9\"}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSameAsGson() throws Exception {
+        assertSameAsGson(response(null, null, null));
+        assertSameAsGson(response("Release", null, null));
+        assertSameAsGson(response(null, "", "state"));
+        assertSameAsGson(response("Response", "<a href='x'>&amp;=</a>",
+                "\"quoted\" \\ back/slash"));
+        assertSameAsGson(response("Response", "\u0000\u0001\b\t\n\u000b" +
+                "\f\r\u001f\u007f\u0080\u07ff\u0800\u2028\u2029\uffff",
+                null));
+        assertSameAsGson(response("Response", "\ud83d\ude00 pair, " +
+                "lone \ud83d, lone \ude00, reversed \ude00\ud83d, end \ud83d",
+                null));
+    }
+
+    @Test
+    public void testBufferIsReused() throws Exception {
+        char[] chars = new char[5000];
+        Arrays.fill(chars, '<');
+        String longMessage = new String(chars);
+        UssdResponseWriter writer = new UssdResponseWriter().write(
+                response("Response", longMessage, null));
+        assertEquals(30000 + 32, writer.getLength());
+        byte[] grown = writer.getBytes();
+
+        // Later writers on same thread write into grown buffer, however
+        // short their response.
+        writer = new UssdResponseWriter().write(response("Release", "Bye",
+                null));
+        assertSame(grown, writer.getBytes());
+        assertSameAsGson(response("Release", "Bye", null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullResponse() {
+        new UssdResponseWriter().write(null);
+    }
+
+    @Test
+    public void testFuzzAgainstGson() throws Exception {
+        Random random = new Random(20160603L);
+        for (int i = 0; i < 5000; i++) {
+            assertSameAsGson(response(randomString(random),
+                    randomString(random), randomString(random)));
+        }
+    }
+
+    private static String randomString(Random random) {
+        if (random.nextInt(5) == 0) {
+            return null;
+        }
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(50);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    s.append((char)random.nextInt(0x10000));
+                    break;
+                case 1:
+                    s.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+                default:
+                    s.append((char)random.nextInt(0x80));
+                    break;
+            }
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework;
+
+import com.google.gson.Gson;
+import com.smsgh.ussd.framework.stores.CountingSessionStore;
+import com.smsgh.ussd.framework.stores.EmbeddedRespServer;
+import com.smsgh.ussd.framework.stores.RedisSessionStore;
+import com.smsgh.ussd.framework.utils.Clock;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives whole ussd sessions through {@link Ussd}.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class UssdTest {
+    
+    private CountingSessionStore store;
+    private Ussd ussd;
+    private int sequence;
+    private String clientState;
+    
+    @Before
+    public void setUp() {
+        store = new CountingSessionStore();
+        ussd = new Ussd().store(store)
+                .controllerPackages(new String[]{ "com.smsgh.ussd" })
+                .initiationController("framework.Sample")
+                .initiationAction("start")
+                .maxAutoDialDepth(5);
+    }
+    
+    private Map<String, String> send(String type, String message)
+            throws Exception {
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("Mobile", "233244000111");
+        request.put("SessionId", "0123456789abcdef0123456789abcdef");
+        request.put("ServiceCode", "*714#");
+        request.put("Type", type);
+        request.put("Message", message);
+        request.put("Operator", "mtn");
+        request.put("Sequence", ++sequence);
+        if (clientState != null) {
+            request.put("ClientState", clientState);
+        }
+        byte[] body = new Gson().toJson(request).getBytes("UTF-8");
+        MockHttp.Response response = new MockHttp.Response();
+        assertTrue(ussd.service(MockHttp.post(body),
+                response.servletResponse));
+        Map<String, String> result = new Gson().fromJson(
+                response.bodyAsString(), Map.class);
+        
+        // Sent back with next request, as the SMSGH USSD API does.
+        clientState = result.get("ClientState");
+        return result;
+    }
+    
+    @Test
+    public void testMenuAndFormFlow() throws Exception {
+        Map<String, String> response = send("Initiation", "*714#");
+        assertEquals("Response", response.get("Type"));
+        assertTrue(response.get("Message").startsWith("Welcome\n1. Greet me"));
+        
+        response = send("Response", "1");
+        assertEquals("Response", response.get("Type"));
+        assertEquals("Enter Name:\n", response.get("Message"));
+        
+        response = send("Response", "Kofi");
+        assertEquals("Choose Gender:\n1. Male\n2. Female\n",
+                response.get("Message"));
+        
+        // Invalid option redisplays input.
+        response = send("Response", "7");
+        assertEquals("Choose Gender:\n1. Male\n2. Female\n",
+                response.get("Message"));
+        
+        response = send("Response", "1");
+        assertEquals("Release", response.get("Type"));
+        assertEquals("Hello, Master Kofi", response.get("Message"));
+        assertFalse(store.getDelegate().valueExists(
+                "233244000111.NextRoute"));
+        assertFalse(store.getDelegate().hashExists("233244000111.DataBag"));
+    }
+    
+    @Test
+    public void testSessionStateCodecsCanBeSwitched() throws Exception {
+        // Menu is kept in the compact format by default.
+        send("Initiation", "*714#");
+        assertTrue(CompactSessionStateCodec.isCompact(
+                store.getDelegate().getHashValue("233244000111.DataBag",
+                        UssdController.MENU_PROCESSOR_DATA_KEY)));
+        
+        // Sessions in progress carry on with the JSON codec, and the
+        // other way round.
+        ussd.sessionStateCodec(new JsonSessionStateCodec());
+        send("Response", "1");
+        assertTrue(store.getDelegate().getHashValue("233244000111.DataBag",
+                UssdController.FORM_PROCESSOR_DATA_KEY).startsWith("{"));
+        ussd.sessionStateCodec(Ussd.getDefaultSessionStateCodec());
+        send("Response", "Kofi");
+        Map<String, String> response = send("Response", "2");
+        assertEquals("Hello, Madam Kofi", response.get("Message"));
+    }
+    
+    @Test
+    public void testMenuTemplateIsKeptByReference() throws Exception {
+        ussd.initiationAction("templateMenu");
+        Map<String, String> response = send("Initiation", "*714#");
+        assertEquals("Hi Kofi\n1. Count\nX. Exit\n",
+                response.get("Message"));
+        String reference = store.getDelegate().getHashValue(
+                "233244000111.DataBag",
+                UssdController.MENU_PROCESSOR_DATA_KEY);
+        assertTrue(reference, reference.startsWith("&sample.greeting&"));
+        
+        // Invalid choice redisplays menu, still by reference.
+        response = send("Response", "7");
+        assertEquals("Hi Kofi\n1. Count\nX. Exit\n",
+                response.get("Message"));
+        assertEquals(reference, store.getDelegate().getHashValue(
+                "233244000111.DataBag",
+                UssdController.MENU_PROCESSOR_DATA_KEY));
+        
+        response = send("Response", "x");
+        assertEquals("Release", response.get("Type"));
+        assertEquals("Bye", response.get("Message"));
+    }
+    
+    @Test
+    public void testStatelessControllerIsShared() throws Exception {
+        RouteCache.getInstance().clear();
+        StatelessSampleController.resetInstanceCount();
+        ussd.initiationController("framework.StatelessSample");
+        
+        Map<String, String> response = send("Initiation", "*714#");
+        assertTrue(response.get("Message").startsWith("Welcome\n1. Greet me"));
+        send("Response", "1");
+        send("Response", "Kofi");
+        response = send("Response", "2");
+        assertEquals("Release", response.get("Type"));
+        assertEquals("Hello, Madam Kofi", response.get("Message"));
+        
+        send("Initiation", "*714#");
+        response = send("Response", "2");
+        assertEquals("Count is 1", response.get("Message"));
+        response = send("Response", "");
+        assertEquals("Count is 2", response.get("Message"));
+        assertEquals(1, StatelessSampleController.getInstanceCount());
+        
+        // Nothing of the last request is left on the shared instance, which
+        // has no context outside a call.
+        RouteCache.Route route = RouteCache.getInstance().resolve(
+                "framework.StatelessSample.start",
+                new String[]{ "com.smsgh.ussd" });
+        assertTrue(route.isStateless());
+        UssdController controller = RouteCache.getInstance()
+                .getSharedController(route.getDispatcher());
+        try {
+            controller.getRequest();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+        }
+        try {
+            controller.getDataBag();
+            fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException ex) {
+        }
+        assertEquals(1, StatelessSampleController.getInstanceCount());
+    }
+    
+    @Test
+    public void testRouteIdsAreStored() throws Exception {
+        RouteRegistry routeRegistry = new RouteRegistry();
+        ussd.routeRegistry(routeRegistry);
+        send("Initiation", "*714#");
+        String storedRoute = store.getDelegate().getValue(
+                "233244000111.NextRoute");
+        assertEquals(routeRegistry.getId(SampleController.class.getName() +
+                ".menuProcessor"), storedRoute);
+        
+        send("Response", "1");
+        send("Response", "Kofi");
+        Map<String, String> response = send("Response", "1");
+        assertEquals("Hello, Master Kofi", response.get("Message"));
+        assertFalse(store.getDelegate().valueExists(
+                "233244000111.NextRoute"));
+    }
+    
+    @Test
+    public void testUnknownRouteIdEndsSession() throws Exception {
+        ussd.routeRegistry(new RouteRegistry());
+        send("Initiation", "*714#");
+        store.getDelegate().setValue("233244000111.NextRoute",
+                RouteRegistry.idOf("framework.Removed.start"));
+        Map<String, String> response = send("Response", "1");
+        assertEquals("Release", response.get("Type"));
+        assertTrue(response.get("Message").contains(
+                SessionNotFoundException.class.getName()));
+        
+        // Full routes are still read.
+        send("Initiation", "*714#");
+        store.getDelegate().setValue("233244000111.NextRoute",
+                SampleController.class.getName() + ".count");
+        response = send("Response", "");
+        assertEquals("Count is 1", response.get("Message"));
+    }
+    
+    @Test
+    public void testLongRequestIsRejected() throws Exception {
+        byte[] body = new byte[UssdRequestParser.DEFAULT_MAX_LENGTH + 1];
+        Arrays.fill(body, (byte)' ');
+        try {
+            ussd.service(MockHttp.post(body),
+                    new MockHttp.Response().servletResponse);
+            fail("Expected IOException");
+        }
+        catch (IOException ex) {
+        }
+    }
+    
+    @Test
+    public void testDataBagPersistsAcrossRequests() throws Exception {
+        send("Initiation", "*714#");
+        Map<String, String> response = send("Response", "2");
+        assertEquals("Count is 1", response.get("Message"));
+        response = send("Response", "");
+        assertEquals("Count is 2", response.get("Message"));
+        response = send("Response", "");
+        assertEquals("Count is 3", response.get("Message"));
+    }
+    
+    @Test
+    public void testSessionNotFound() throws Exception {
+        Map<String, String> response = send("Response", "1");
+        assertEquals("Release", response.get("Type"));
+        assertTrue(response.get("Message").contains(
+                SessionNotFoundException.class.getName()));
+    }
+    
+    @Test
+    public void testAutoDial() throws Exception {
+        Map<String, String> response = send("Initiation", "*714*1*Ama*2#");
+        assertEquals("Release", response.get("Type"));
+        assertEquals("Hello, Madam Ama", response.get("Message"));
+    }
+    
+    /**
+     * Each hop (including redirects) must use at most one read batch and
+     * one write batch, and no individual store calls.
+     */
+    @Test
+    public void testStoreRoundTripsPerRequest() throws Exception {
+        send("Initiation", "*714#");
+        assertEquals(0, store.getSingleCalls());
+        assertEquals(0, store.getReadBatches());
+        assertEquals(1, store.getWriteBatches());
+        
+        // menuProcessor redirects to greetingForm: two hops, but still
+        // one read and one write per request.
+        store.reset();
+        send("Response", "1");
+        assertEquals(0, store.getSingleCalls());
+        assertEquals(1, store.getReadBatches());
+        assertEquals(1, store.getWriteBatches());
+        
+        store.reset();
+        send("Response", "Yaw");
+        assertEquals(0, store.getSingleCalls());
+        assertEquals(1, store.getReadBatches());
+        assertEquals(1, store.getWriteBatches());
+    }
+    
+    /**
+     * Redirects are followed in memory: the route a hop redirects to is
+     * never kept in the session, only the route of the final response.
+     */
+    @Test
+    public void testRedirectsAreFollowedInMemory() throws Exception {
+        send("Initiation", "*714#");
+        SessionCacheStatistics statistics = Ussd.getSessionCacheStatistics();
+        statistics.reset();
+        
+        // menuProcessor redirects to greetingForm, which renders a form:
+        // one next route write, and the menu and form processor data.
+        send("Response", "1");
+        assertEquals(1, statistics.getRequests());
+        assertEquals(3, statistics.getRequestedWrites());
+        assertEquals(SampleController.class.getName() + ".formProcessor",
+                store.getDelegate().getValue("233244000111.NextRoute"));
+    }
+    
+    @Test
+    public void testAutoDialWritesOnce() throws Exception {
+        send("Initiation", "*714*1*Ama*2#");
+        assertEquals(0, store.getSingleCalls());
+        assertEquals(0, store.getReadBatches());
+        assertEquals(1, store.getWriteBatches());
+    }
+    
+    @Test
+    public void testSessionCacheStatistics() throws Exception {
+        SessionCacheStatistics statistics = Ussd.getSessionCacheStatistics();
+        statistics.reset();
+        send("Initiation", "*714*1*Ama*2#");
+        send("Initiation", "*714#");
+        send("Response", "1");
+        assertEquals(3, statistics.getRequests());
+        assertTrue(statistics.getMemoryReads() > 0);
+        assertTrue(statistics.getSavedWrites() > 0);
+        assertEquals(4, statistics.getStoreRoundTrips());
+    }
+    
+    /**
+     * Requests against a lifecycle-aware store borrow and release a handle
+     * instead of closing the store, so its pooled connection is reused.
+     */
+    @Test
+    public void testLifecycleStoreIsNotClosedPerRequest() throws Exception {
+        EmbeddedRespServer server = new EmbeddedRespServer(Clock.SYSTEM);
+        RedisSessionStore redisStore = new RedisSessionStore("127.0.0.1",
+                server.getPort(), Ussd.SESSION_TIMEOUT_MILLIS);
+        redisStore.start();
+        try {
+            ussd.store(redisStore);
+            send("Initiation", "*714#");
+            send("Response", "2");
+            Map<String, String> response = send("Response", "");
+            assertEquals("Count is 2", response.get("Message"));
+            assertEquals(1, server.getConnectionCount());
+            assertEquals(1, redisStore.getIdleConnectionCount());
+        }
+        finally {
+            redisStore.stop();
+            server.stop();
+        }
+    }
+    
+    private ClientStateCodec newClientStateCodec(int maxLength) {
+        return new ClientStateCodec("0123456789abcdef".getBytes(),
+                maxLength, Ussd.SESSION_TIMEOUT_MILLIS, Clock.SYSTEM);
+    }
+    
+    /**
+     * Sessions kept in ClientState need no store calls at all.
+     */
+    @Test
+    public void testClientStateSessionsNeedNoStore() throws Exception {
+        ussd.clientStateCodec(newClientStateCodec(
+                ClientStateCodec.DEFAULT_MAX_LENGTH));
+        Map<String, String> response = send("Initiation", "*714#");
+        assertNotNull(response.get("ClientState"));
+        response = send("Response", "1");
+        assertEquals("Enter Name:\n", response.get("Message"));
+        response = send("Response", "Kofi");
+        assertEquals("Choose Gender:\n1. Male\n2. Female\n",
+                response.get("Message"));
+        response = send("Response", "1");
+        assertEquals("Release", response.get("Type"));
+        assertEquals("Hello, Master Kofi", response.get("Message"));
+        assertNull(response.get("ClientState"));
+        assertEquals(0, store.getSingleCalls());
+        assertEquals(0, store.getReadBatches());
+        assertEquals(0, store.getWriteBatches());
+        
+        send("Initiation", "*714#");
+        send("Response", "2");
+        response = send("Response", "");
+        assertEquals("Count is 2", response.get("Message"));
+        assertEquals(0, store.getReadBatches());
+        assertEquals(0, store.getWriteBatches());
+    }
+    
+    @Test
+    public void testAlteredClientStateIsRejected() throws Exception {
+        ussd.clientStateCodec(newClientStateCodec(
+                ClientStateCodec.DEFAULT_MAX_LENGTH));
+        send("Initiation", "*714#");
+        char last = clientState.charAt(clientState.length() - 1);
+        clientState = clientState.substring(0, clientState.length() - 1) +
+                (last == 'A' ? 'B' : 'A');
+        Map<String, String> response = send("Response", "1");
+        assertEquals("Release", response.get("Type"));
+        assertTrue(response.get("Message").contains(
+                SessionNotFoundException.class.getName()));
+    }
+    
+    /**
+     * Sessions which outgrow ClientState move to the store for good.
+     */
+    @Test
+    public void testLargeClientStateFallsBackToStore() throws Exception {
+        ussd.clientStateCodec(newClientStateCodec(40));
+        send("Initiation", "*714#");
+        assertEquals(1, store.getWriteBatches());
+        assertTrue(store.getDelegate().valueExists("233244000111.NextRoute"));
+        assertTrue(clientState.length() <= 40);
+        
+        Map<String, String> response = send("Response", "1");
+        assertEquals("Enter Name:\n", response.get("Message"));
+        response = send("Response", "Ama");
+        response = send("Response", "2");
+        assertEquals("Hello, Madam Ama", response.get("Message"));
+        assertFalse(store.getDelegate().valueExists(
+                "233244000111.NextRoute"));
+    }
+    
+    /**
+     * Sessions started before ClientState was enabled carry on from the
+     * store.
+     */
+    @Test
+    public void testSessionWithoutClientStateUsesStore() throws Exception {
+        send("Initiation", "*714#");
+        send("Response", "2");
+        ussd.clientStateCodec(newClientStateCodec(
+                ClientStateCodec.DEFAULT_MAX_LENGTH));
+        Map<String, String> response = send("Response", "");
+        assertEquals("Count is 2", response.get("Message"));
+        assertEquals(2, store.getReadBatches());
+    }
+    
+    private Ussd newWarmUpUssd() {
+        return new Ussd().store(store)
+                .controllerPackages(new String[]{
+                    "com.smsgh.ussd.framework.catalog.good" })
+                .initiationController("MainController")
+                .initiationAction("start")
+                .maxAutoDialDepth(5);
+    }
+    
+    @Test
+    public void testWarmUp() throws Exception {
+        final int[] listenerCalls = new int[1];
+        Ussd warmUpUssd = newWarmUpUssd()
+                .warmUpSession("*714#", "1")
+                .warmUpSession("*714*3#")
+                .warmUpRounds(2)
+                .requestListener(new UssdRequestListener() {
+                    @Override
+                    public void requestEntering(UssdRequest ussdRequest) {
+                        listenerCalls[0]++;
+                    }
+
+                    @Override
+                    public void responseLeaving(UssdRequest ussdRequest,
+                            UssdResponse ussdResponse) {
+                        listenerCalls[0]++;
+                    }
+                });
+        assertEquals(2, warmUpUssd.warmUp());
+        assertEquals(0, listenerCalls[0]);
+        assertTrue(store.getWriteBatches() > 0);
+        
+        // Warm-up sessions are closed, and their routes are cached.
+        for (int i = 0; i < 2; i++) {
+            String mobile = String.valueOf(Ussd.WARM_UP_MOBILE + i);
+            assertFalse(store.valueExists(mobile +
+                    UssdContext.NEXT_ROUTE_KEY_SUFFIX));
+            assertFalse(store.hashExists(mobile +
+                    UssdContext.DATA_BAG_KEY_SUFFIX));
+        }
+        RouteCache routeCache = RouteCache.getInstance();
+        int size = routeCache.size();
+        routeCache.resolve("MainController.start", new String[]{
+            "com.smsgh.ussd.framework.catalog.good" });
+        assertEquals(size, routeCache.size());
+    }
+    
+    @Test
+    public void testWarmUpReportsAllProblems() {
+        Ussd warmUpUssd = newWarmUpUssd()
+                .controllerPackages(new String[]{
+                    "com.smsgh.ussd.framework.catalog.broken" })
+                .initiationController("Missing");
+        try {
+            warmUpUssd.warmUp();
+            fail("Expected FrameworkException");
+        }
+        catch (FrameworkException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(
+                    "ArgsController\" cannot be created"));
+            assertTrue(ex.getMessage(), ex.getMessage().contains(
+                    "Class \"Missing\" could not be found"));
+        }
+    }
+    
+    @Test
+    public void testFailedWarmUpSession() {
+        Ussd warmUpUssd = newWarmUpUssd()
+                .warmUpSession("*714#", "1")
+                .warmUpSession("*714#", "2");
+        try {
+            warmUpUssd.warmUp();
+            fail("Expected FrameworkException");
+        }
+        catch (FrameworkException ex) {
+            assertEquals("Warm-up failed:\nWarm-up session 2 failed at "
+                    + "message 2 (\"2\"): java.lang.IllegalStateException: "
+                    + "Failed on purpose", ex.getMessage());
+        }
+        assertFalse(store.valueExists((Ussd.WARM_UP_MOBILE + 1) +
+                UssdContext.NEXT_ROUTE_KEY_SUFFIX));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyWarmUpSession() {
+        new Ussd().warmUpSession();
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.catalog.broken;
+
+import com.smsgh.ussd.framework.UssdController;
+import com.smsgh.ussd.framework.UssdResponse;
+
+/**
+ * Controller which the framework cannot create, since it has no no-arg
+ * constructor.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ArgsController extends UssdController {
+    private final String greeting;
+
+    public ArgsController(String greeting) {
+        this.greeting = greeting;
+    }
+
+    public UssdResponse start() {
+        return render(greeting);
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.catalog.good;
+
+import com.smsgh.ussd.framework.UssdController;
+import com.smsgh.ussd.framework.UssdResponse;
+
+/**
+ * Abstract controller, which controller discovery must skip.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public abstract class BaseController extends UssdController {
+
+    public abstract UssdResponse start();
+}
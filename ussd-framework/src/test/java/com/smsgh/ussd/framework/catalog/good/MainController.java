@@ -0,0 +1,46 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.catalog.good;
+
+import com.smsgh.ussd.framework.UssdController;
+import com.smsgh.ussd.framework.UssdMenu;
+import com.smsgh.ussd.framework.UssdResponse;
+
+/**
+ * Controller found by controller discovery tests.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MainController extends UssdController {
+
+    public UssdResponse start() {
+        UssdMenu menu = new UssdMenu().header("Welcome")
+                .addItem("Next", "next")
+                .addItem("Fail", "fail")
+                .addItem("Nested", "hello", "good.MainController$Nested");
+        return renderMenu(menu);
+    }
+
+    public UssdResponse next() {
+        return render("Bye");
+    }
+
+    public UssdResponse fail() {
+        throw new IllegalStateException("Failed on purpose");
+    }
+
+    /**
+     * Not an action, because it takes an argument.
+     */
+    public UssdResponse greet(String name) {
+        return render("Hello " + name);
+    }
+
+    public static class Nested extends UssdController {
+
+        public UssdResponse hello() {
+            return render("Hello");
+        }
+    }
+}
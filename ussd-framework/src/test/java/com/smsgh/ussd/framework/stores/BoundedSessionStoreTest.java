@@ -0,0 +1,237 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.ManualClock;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class BoundedSessionStoreTest {
+
+    private final ManualClock clock = new ManualClock(1000000);
+
+    private BoundedSessionStore newStore(int maxSessions, long maxBytes) {
+        return new BoundedSessionStore(70000, maxSessions, maxBytes, clock);
+    }
+
+    private static String mobile(int i) {
+        return String.valueOf(233244000000L + i);
+    }
+
+    /**
+     * Writes a session the way an initiation request does.
+     */
+    private static void initiate(SessionStore store, int i) {
+        store.setHashValue(mobile(i) + ".DataBag", "count", "1");
+        store.setValue(mobile(i) + ".NextRoute", "Main.menuProcessor");
+    }
+
+    /**
+     * Reads a session back the way the next request of a session does.
+     */
+    private static String respond(SessionStore store, int i) {
+        String route = store.getValue(mobile(i) + ".NextRoute");
+        store.getHashValue(mobile(i) + ".DataBag", "count");
+        return route;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveMaxSessions() {
+        newStore(0, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveMaxBytes() {
+        newStore(10, 0);
+    }
+
+    @Test
+    public void testOperations() {
+        BoundedSessionStore store = newStore(10, 1L << 20);
+        store.setValue("a.b", "c");
+        assertEquals("c", store.getValue("a.b"));
+        assertTrue(store.valueExists("a.b"));
+        store.setValue("a.b", null);
+        assertTrue(store.valueExists("a.b"));
+        assertNull(store.getValue("a.b"));
+        store.deleteValue("a.b");
+        assertFalse(store.valueExists("a.b"));
+
+        store.setHashValue("a.h", "k", "v");
+        assertTrue(store.hashExists("a.h"));
+        assertTrue(store.hashValueExists("a.h", "k"));
+        assertFalse(store.hashValueExists("a.h", "x"));
+        assertEquals("v", store.getHashValue("a.h", "k"));
+        store.deleteHashValue("a.h", "k");
+        assertFalse(store.hashValueExists("a.h", "k"));
+        store.deleteHash("a.h");
+        assertFalse(store.hashExists("a.h"));
+        assertEquals(0, store.getSessionCount());
+        assertEquals(0, store.getEstimatedBytes());
+    }
+
+    @Test
+    public void testEstimatedBytesFollowWrites() {
+        BoundedSessionStore store = newStore(10, 1L << 20);
+        initiate(store, 0);
+        long size = store.getEstimatedBytes();
+        assertTrue(size > 2 * 12 + 2 * 18);
+        store.setValue(mobile(0) + ".NextRoute", "Main.menuProcessor");
+        store.setHashValue(mobile(0) + ".DataBag", "count", "2");
+        assertEquals(size, store.getEstimatedBytes());
+        store.setHashValue(mobile(0) + ".DataBag", "count", "1000");
+        assertEquals(size + 6, store.getEstimatedBytes());
+        initiate(store, 1);
+        assertEquals(2 * size + 6, store.getEstimatedBytes());
+        store.deleteHash(mobile(1) + ".DataBag");
+        store.deleteValue(mobile(1) + ".NextRoute");
+        assertEquals(size + 6, store.getEstimatedBytes());
+    }
+
+    @Test
+    public void testSessionBound() {
+        BoundedSessionStore store = newStore(10, 1L << 20);
+        for (int i = 0; i < 15; i++) {
+            initiate(store, i);
+        }
+        assertEquals(10, store.getSessionCount());
+        assertEquals(5, store.getEvictionCount());
+        assertNull(respond(store, 4));
+        assertEquals("Main.menuProcessor", respond(store, 5));
+    }
+
+    @Test
+    public void testByteBound() {
+        BoundedSessionStore probe = newStore(10, 1L << 20);
+        initiate(probe, 0);
+        long size = probe.getEstimatedBytes();
+
+        BoundedSessionStore store = newStore(100, size * 5);
+        for (int i = 0; i < 20; i++) {
+            initiate(store, i);
+            assertTrue(store.getEstimatedBytes() <= store.getMaxBytes());
+        }
+        assertEquals(5, store.getSessionCount());
+        assertEquals(15, store.getEvictionCount());
+    }
+
+    @Test
+    public void testMidFlowSessionsSurviveFlood() {
+        BoundedSessionStore store = newStore(100, 1L << 20);
+        for (int i = 0; i < 50; i++) {
+            initiate(store, i);
+            respond(store, i);
+        }
+        assertEquals(50, store.getMidFlowSessionCount());
+
+        // Dials which are never answered only displace each other.
+        for (int i = 1000; i < 11000; i++) {
+            initiate(store, i);
+        }
+        assertEquals(100, store.getSessionCount());
+        assertEquals(0, store.getMidFlowEvictionCount());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Main.menuProcessor", respond(store, i));
+        }
+    }
+
+    /**
+     * A session on probation which outgrows the bounds while no other
+     * session is on probation should be evicted itself, rather than a
+     * mid-flow session. A protected session which does so displaces other
+     * protected sessions only then.
+     */
+    @Test
+    public void testWrittenSessionIsNotProtectedAtMidFlowExpense() {
+        BoundedSessionStore probe = newStore(10, 1L << 20);
+        initiate(probe, 0);
+        long size = probe.getEstimatedBytes();
+
+        BoundedSessionStore store = newStore(10, size * 4);
+        for (int i = 0; i < 2; i++) {
+            initiate(store, i);
+            respond(store, i);
+        }
+        initiate(store, 2);
+        assertEquals(2, store.getMidFlowSessionCount());
+
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 2 * size; i++) {
+            big.append('x');
+        }
+        store.setHashValue(mobile(2) + ".DataBag", "big", big.toString());
+        assertEquals(1, store.getEvictionCount());
+        assertEquals(0, store.getMidFlowEvictionCount());
+        assertNull(respond(store, 2));
+        assertEquals("Main.menuProcessor", respond(store, 0));
+        assertEquals("Main.menuProcessor", respond(store, 1));
+
+        store.setHashValue(mobile(1) + ".DataBag", "big", big.substring(
+                0, (int)(size * 9 / 8)));
+        assertEquals(2, store.getEvictionCount());
+        assertEquals(1, store.getMidFlowEvictionCount());
+        assertNull(respond(store, 0));
+        assertEquals("Main.menuProcessor", respond(store, 1));
+    }
+
+    @Test
+    public void testProtectedSegmentIsLimited() {
+        BoundedSessionStore store = newStore(10, 1L << 20);
+        for (int i = 0; i < 10; i++) {
+            initiate(store, i);
+            respond(store, i);
+        }
+        assertEquals(8, store.getMidFlowSessionCount());
+
+        // The least recently used mid-flow sessions went back to
+        // probation, and are evicted before the others.
+        initiate(store, 100);
+        initiate(store, 101);
+        initiate(store, 102);
+        assertEquals(3, store.getEvictionCount());
+        assertEquals(0, store.getMidFlowEvictionCount());
+        assertNull(respond(store, 0));
+        assertNull(respond(store, 1));
+        assertEquals("Main.menuProcessor", respond(store, 9));
+    }
+
+    @Test
+    public void testSlidingExpiry() {
+        BoundedSessionStore store = newStore(10, 1L << 20);
+        initiate(store, 0);
+        initiate(store, 1);
+        respond(store, 1);
+        clock.advance(60000);
+        respond(store, 0);
+        clock.advance(20000);
+        assertEquals("Main.menuProcessor", respond(store, 0));
+        assertNull(respond(store, 1));
+        assertEquals(1, store.getSessionCount());
+        assertEquals(1, store.getExpiredCount());
+
+        clock.advance(70000);
+        store.cleanUp();
+        assertEquals(0, store.getSessionCount());
+        assertEquals(0, store.getEstimatedBytes());
+    }
+
+    @Test
+    public void testCleanUp() {
+        BoundedSessionStore store = newStore(5, 1L << 20);
+        for (int i = 0; i < 5; i++) {
+            initiate(store, i);
+            respond(store, i);
+            clock.advance(10000);
+        }
+        initiate(store, 5);
+        clock.advance(40000);
+        store.cleanUp();
+        assertEquals(3, store.getSessionCount());
+        assertEquals(2, store.getExpiredCount());
+    }
+}
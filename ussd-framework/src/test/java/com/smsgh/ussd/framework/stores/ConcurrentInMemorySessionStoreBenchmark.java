@@ -0,0 +1,68 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+/**
+ * Measures the throughput of simulated ussd hops with one thread and with
+ * as many threads as there are processors, for both the single-monitor
+ * {@link InMemorySessionStore} and the lock-striped
+ * {@link ConcurrentInMemorySessionStore}. Not run as part of the test
+ * suite, since timings depend on the load of the machine; run its main
+ * method, e.g.
+ * <pre>
+ * java \
+ *     com.smsgh.ussd.framework.stores.ConcurrentInMemorySessionStoreBenchmark \
+ *     20000
+ * </pre>
+ * The argument is the number of hops per thread (default 20000). On
+ * machines with at least four processors, the lock-striped store should
+ * do better with all processors busy than with one, and better than the
+ * single-monitor store.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ConcurrentInMemorySessionStoreBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        int hops = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        // Warm up both stores so the JIT does not skew the first run.
+        ConcurrentInMemorySessionStoreTest.runHops(
+                new InMemorySessionStore(TIMEOUT_MILLIS), processors, hops);
+        ConcurrentInMemorySessionStoreTest.runHops(
+                new ConcurrentInMemorySessionStore(TIMEOUT_MILLIS),
+                processors, hops);
+
+        double lockedSingle = measure(
+                new InMemorySessionStore(TIMEOUT_MILLIS), 1, hops);
+        double lockedAll = measure(
+                new InMemorySessionStore(TIMEOUT_MILLIS), processors, hops);
+        double stripedSingle = measure(
+                new ConcurrentInMemorySessionStore(TIMEOUT_MILLIS), 1, hops);
+        double stripedAll = measure(
+                new ConcurrentInMemorySessionStore(TIMEOUT_MILLIS),
+                processors, hops);
+
+        System.out.println(String.format("Hops/sec with %d processor(s): "
+                + "single-monitor 1 thread=%.0f, %d threads=%.0f; "
+                + "lock-striped 1 thread=%.0f, %d threads=%.0f",
+                processors, lockedSingle, processors, lockedAll,
+                stripedSingle, processors, stripedAll));
+    }
+
+    private static double measure(SessionStore store, int threadCount,
+            int hops) throws Exception {
+        long start = System.nanoTime();
+        int errors = ConcurrentInMemorySessionStoreTest.runHops(store,
+                threadCount, hops).get();
+        long elapsed = System.nanoTime() - start;
+        if (errors != 0) {
+            throw new AssertionError(errors + " hops saw wrong values");
+        }
+        return threadCount * (double)hops * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.ManualClock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ConcurrentInMemorySessionStoreTest {
+
+    // Number of simulated hops each thread runs in the stress tests.
+    private final static int HOPS_PER_THREAD = 20000;
+
+    @Test
+    public void testSegmentCountIsPowerOfTwo() {
+        assertEquals(1, new ConcurrentInMemorySessionStore(1000, 1)
+                .getSegmentCount());
+        assertEquals(8, new ConcurrentInMemorySessionStore(1000, 5)
+                .getSegmentCount());
+        assertEquals(64, new ConcurrentInMemorySessionStore(1000, 64)
+                .getSegmentCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveTimeout() {
+        new ConcurrentInMemorySessionStore(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveSegmentCount() {
+        new ConcurrentInMemorySessionStore(1000, 0);
+    }
+
+    @Test
+    public void testValueOperations() {
+        SessionStore store = new ConcurrentInMemorySessionStore(60000);
+        assertFalse(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+        store.setValue("a", "b");
+        assertTrue(store.valueExists("a"));
+        assertEquals("b", store.getValue("a"));
+        store.setValue("a", "c");
+        assertEquals("c", store.getValue("a"));
+        store.deleteValue("a");
+        assertFalse(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+    }
+
+    @Test
+    public void testHashOperations() {
+        SessionStore store = new ConcurrentInMemorySessionStore(60000);
+        assertFalse(store.hashExists("h"));
+        assertFalse(store.hashValueExists("h", "k"));
+        assertNull(store.getHashValue("h", "k"));
+        store.setHashValue("h", "k", "v");
+        store.setHashValue("h", "k2", "v2");
+        assertTrue(store.hashExists("h"));
+        assertTrue(store.hashValueExists("h", "k"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        assertEquals("v2", store.getHashValue("h", "k2"));
+        store.deleteHashValue("h", "k");
+        assertFalse(store.hashValueExists("h", "k"));
+        assertTrue(store.hashValueExists("h", "k2"));
+        store.deleteHash("h");
+        assertFalse(store.hashExists("h"));
+        assertNull(store.getHashValue("h", "k2"));
+    }
+
+    @Test
+    public void testSlidingExpiration() {
+        ManualClock clock = new ManualClock(1000000);
+        SessionStore store = new ConcurrentInMemorySessionStore(30, 4, clock);
+        store.setValue("a", "b");
+        store.setHashValue("h", "k", "v");
+        clock.advance(20);
+        assertEquals("b", store.getValue("a"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        clock.advance(20);
+        assertEquals("b", store.getValue("a"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        clock.advance(30);
+        assertFalse(store.valueExists("a"));
+        assertFalse(store.hashExists("h"));
+    }
+
+    @Test
+    public void testSessionEntriesExpireTogether() {
+        ManualClock clock = new ManualClock(1000000);
+        SessionStore store = new ConcurrentInMemorySessionStore(30, 4, clock);
+        store.setValue("233244000001.NextRoute", "Main.form");
+        store.setHashValue("233244000001.DataBag", "FormData", "{}");
+        store.setValue("233244000002.NextRoute", "Main.form");
+        clock.advance(20);
+
+        // Reading the next route alone renews the data bag too.
+        assertEquals("Main.form", store.getValue("233244000001.NextRoute"));
+        clock.advance(20);
+        assertEquals("{}", store.getHashValue("233244000001.DataBag",
+                "FormData"));
+        assertFalse(store.valueExists("233244000002.NextRoute"));
+        clock.advance(30);
+        assertFalse(store.valueExists("233244000001.NextRoute"));
+        assertFalse(store.hashExists("233244000001.DataBag"));
+    }
+
+    @Test
+    public void testBatchAcrossSessions() {
+        ConcurrentInMemorySessionStore store =
+                new ConcurrentInMemorySessionStore(60000);
+        SessionBatch batch = new SessionBatch();
+        batch.setHashValue("1.DataBag", "k", "a");
+        batch.setValue("1.NextRoute", "r1");
+        batch.getValue("2.NextRoute");
+        batch.setValue("2.NextRoute", "r2");
+        batch.deleteValue("3.NextRoute");
+        batch.getHashValue("1.DataBag", "k");
+        store.execute(batch);
+        assertNull(batch.getString(2));
+        assertEquals("a", batch.getString(5));
+        assertEquals("r1", store.getValue("1.NextRoute"));
+        assertEquals("r2", store.getValue("2.NextRoute"));
+
+        batch = new SessionBatch();
+        batch.deleteValue("1.NextRoute");
+        batch.deleteHash("1.DataBag");
+        batch.valueExists("1.NextRoute");
+        store.execute(batch);
+        assertFalse(batch.getBoolean(2));
+        assertFalse(store.hashExists("1.DataBag"));
+    }
+
+    @Test
+    public void testDeletingLastHashValueRemovesSession() {
+        ConcurrentInMemorySessionStore store =
+                new ConcurrentInMemorySessionStore(60000);
+        store.setHashValue("1.DataBag", "k", "v");
+        store.setHashValue("1.DataBag", "k2", "v2");
+        store.deleteHashValue("1.DataBag", "k");
+        assertTrue(store.hashExists("1.DataBag"));
+        assertEquals(1, store.getSessionCount());
+        store.deleteHashValue("1.DataBag", "k2");
+        assertFalse(store.hashExists("1.DataBag"));
+        assertEquals(0, store.getSessionCount());
+
+        SessionBatch batch = new SessionBatch();
+        batch.setHashValue("2.DataBag", "k", "v");
+        batch.deleteHashValue("2.DataBag", "k");
+        store.execute(batch);
+        assertEquals(0, store.getSessionCount());
+
+        InMemorySessionStore locked = new InMemorySessionStore(60000);
+        locked.setHashValue("1.DataBag", "k", "v");
+        locked.deleteHashValue("1.DataBag", "k");
+        assertFalse(locked.hashExists("1.DataBag"));
+    }
+
+    @Test
+    public void testSessionRecordVersion() {
+        SessionRecord record = new SessionRecord();
+        record.setValue("a.NextRoute", "x");
+        record.setHashValue("a.DataBag", "k", "v");
+        record.deleteValue("a.Missing");
+        record.deleteHashValue("a.DataBag", "missing");
+        assertEquals(2, record.getVersion());
+        record.deleteHash("a.DataBag");
+        record.deleteValue("a.NextRoute");
+        assertEquals(4, record.getVersion());
+        assertTrue(record.isEmpty());
+    }
+
+    /**
+     * Runs many threads, each simulating ussd hops for its own set of
+     * mobile numbers, and checks that no thread ever observes another
+     * thread's writes or loses its own.
+     */
+    @Test
+    public void testConcurrentSessionsAreIsolated() throws Exception {
+        SessionStore store = new ConcurrentInMemorySessionStore(60000);
+        int threadCount = Math.max(4,
+                2 * Runtime.getRuntime().availableProcessors());
+        AtomicInteger errors = runHops(store, threadCount, HOPS_PER_THREAD);
+        assertEquals(0, errors.get());
+    }
+
+    /**
+     * Runs the hops of {@link #testConcurrentSessionsAreIsolated()} on
+     * stores with one and two segments, so that threads keep contending
+     * for the same segment locks, and batches of several sessions at
+     * once alongside them.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentHopsOnSharedSegments() throws Exception {
+        int threadCount = Math.max(4,
+                2 * Runtime.getRuntime().availableProcessors());
+        for (int segmentCount = 1; segmentCount <= 2; segmentCount++) {
+            final ConcurrentInMemorySessionStore store =
+                    new ConcurrentInMemorySessionStore(60000, segmentCount);
+            final AtomicInteger batchErrors = new AtomicInteger();
+            final int hops = HOPS_PER_THREAD / 4;
+            Thread batcher = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < hops; i++) {
+                        String expected = String.valueOf(i);
+                        SessionBatch batch = new SessionBatch();
+                        for (int m = 0; m < 4; m++) {
+                            batch.setValue("batch" + m + ".NextRoute",
+                                    expected);
+                            batch.setHashValue("batch" + m + ".DataBag",
+                                    "step", expected);
+                        }
+                        for (int m = 0; m < 4; m++) {
+                            batch.getValue("batch" + m + ".NextRoute");
+                            batch.getHashValue("batch" + m + ".DataBag",
+                                    "step");
+                        }
+                        store.execute(batch);
+                        for (int j = 8; j < 16; j++) {
+                            if (!expected.equals(batch.getString(j))) {
+                                batchErrors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            batcher.start();
+            AtomicInteger errors = runHops(store, threadCount, hops);
+            batcher.join();
+            assertEquals(0, errors.get());
+            assertEquals(0, batchErrors.get());
+            String last = String.valueOf(hops - 1);
+            for (int m = 0; m < 4; m++) {
+                assertEquals(last, store.getValue("batch" + m +
+                        ".NextRoute"));
+                assertEquals(last, store.getHashValue("batch" + m +
+                        ".DataBag", "step"));
+            }
+        }
+    }
+
+    /**
+     * Runs threads which each simulate ussd hops for their own set of
+     * mobile numbers. Also used by
+     * {@link ConcurrentInMemorySessionStoreBenchmark}.
+     *
+     * @return number of reads which did not see a thread's own writes.
+     */
+    static AtomicInteger runHops(final SessionStore store,
+            int threadCount, final int hops) throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final String prefix = "23324" + t + "-";
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < hops; i++) {
+                        // Mirror the store calls of one ussd hop.
+                        String mobile = prefix + (i % 64);
+                        String routeKey = mobile + ".NextRoute";
+                        String bagKey = mobile + ".DataBag";
+                        String expected = String.valueOf(i);
+                        store.setValue(routeKey, expected);
+                        store.setHashValue(bagKey, "step", expected);
+                        if (!store.valueExists(routeKey) ||
+                                !expected.equals(store.getValue(routeKey)) ||
+                                !expected.equals(store.getHashValue(
+                                        bagKey, "step"))) {
+                            errors.incrementAndGet();
+                        }
+                        if (i % 8 == 7) {
+                            store.deleteValue(routeKey);
+                            store.deleteHash(bagKey);
+                            if (store.valueExists(routeKey) ||
+                                    store.hashExists(bagKey)) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return errors;
+    }
+}
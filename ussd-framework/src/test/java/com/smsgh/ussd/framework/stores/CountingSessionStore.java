@@ -0,0 +1,151 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+/**
+ * Session store for tests, which counts the calls and batches it
+ * receives before passing them on to an in-memory store.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class CountingSessionStore implements BatchSessionStore {
+    private final SessionStore delegate;
+    private int singleCalls;
+    private int readBatches;
+    private int writeBatches;
+    private int closeCalls;
+
+    public CountingSessionStore() {
+        this(new InMemorySessionStore(60000));
+    }
+
+    public CountingSessionStore(SessionStore delegate) {
+        this.delegate = delegate;
+    }
+
+    public SessionStore getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Gets the number of store methods called outside of batches.
+     * @return single call count.
+     */
+    public int getSingleCalls() {
+        return singleCalls;
+    }
+
+    /**
+     * Gets the number of batches received with at least one read.
+     * @return read batch count.
+     */
+    public int getReadBatches() {
+        return readBatches;
+    }
+
+    /**
+     * Gets the number of batches received with at least one write.
+     * @return write batch count.
+     */
+    public int getWriteBatches() {
+        return writeBatches;
+    }
+
+    public int getCloseCalls() {
+        return closeCalls;
+    }
+
+    public void reset() {
+        singleCalls = 0;
+        readBatches = 0;
+        writeBatches = 0;
+        closeCalls = 0;
+    }
+
+    @Override
+    public void execute(SessionBatch batch) {
+        boolean hasRead = false, hasWrite = false;
+        for (SessionBatch.Operation operation : batch.getOperations()) {
+            if (operation.getType().isRead()) {
+                hasRead = true;
+            }
+            else {
+                hasWrite = true;
+            }
+        }
+        if (hasRead) {
+            readBatches++;
+        }
+        if (hasWrite) {
+            writeBatches++;
+        }
+        batch.executeEach(delegate);
+    }
+
+    @Override
+    public String getHashValue(String name, String key) {
+        singleCalls++;
+        return delegate.getHashValue(name, key);
+    }
+
+    @Override
+    public void setHashValue(String name, String key, String value) {
+        singleCalls++;
+        delegate.setHashValue(name, key, value);
+    }
+
+    @Override
+    public boolean hashExists(String name) {
+        singleCalls++;
+        return delegate.hashExists(name);
+    }
+
+    @Override
+    public boolean hashValueExists(String name, String key) {
+        singleCalls++;
+        return delegate.hashValueExists(name, key);
+    }
+
+    @Override
+    public void deleteHash(String name) {
+        singleCalls++;
+        delegate.deleteHash(name);
+    }
+
+    @Override
+    public void deleteHashValue(String name, String key) {
+        singleCalls++;
+        delegate.deleteHashValue(name, key);
+    }
+
+    @Override
+    public void setValue(String key, String value) {
+        singleCalls++;
+        delegate.setValue(key, value);
+    }
+
+    @Override
+    public String getValue(String key) {
+        singleCalls++;
+        return delegate.getValue(key);
+    }
+
+    @Override
+    public boolean valueExists(String key) {
+        singleCalls++;
+        return delegate.valueExists(key);
+    }
+
+    @Override
+    public void deleteValue(String key) {
+        singleCalls++;
+        delegate.deleteValue(key);
+    }
+
+    @Override
+    public void close() {
+        closeCalls++;
+        delegate.close();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for a Redis server, for testing
+ * {@link RedisSessionStore} offline. Speaks just enough of RESP for the
+ * commands the store sends, and serves each connection on its own thread.
+ * <p>
+ * Replies are flushed only when no more input is waiting, like a real
+ * server handling a pipeline, so the flush count tells how many round
+ * trips clients made.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class EmbeddedRespServer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        Object value;
+        long deadline = Long.MAX_VALUE;
+    }
+
+    private final Clock clock;
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final Map<String, Entry> data = new HashMap<String, Entry>();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger commandCount = new AtomicInteger();
+    private final AtomicInteger flushCount = new AtomicInteger();
+
+    public EmbeddedRespServer(Clock clock) throws IOException {
+        this.clock = clock;
+        this.serverSocket = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread("resp-acceptor") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public int getCommandCount() {
+        return commandCount.get();
+    }
+
+    public int getFlushCount() {
+        return flushCount.get();
+    }
+
+    public void resetCounts() {
+        connectionCount.set(0);
+        commandCount.set(0);
+        flushCount.set(0);
+    }
+
+    /**
+     * Gets the Redis type of a key, as the TYPE command would.
+     * @param key
+     * @return "string", "hash" or "none".
+     */
+    public synchronized String typeOf(String key) {
+        Entry entry = live(key);
+        if (entry == null) {
+            return "none";
+        }
+        return entry.value instanceof String ? "string" : "hash";
+    }
+
+    /**
+     * Gets the time left for a key, as the PTTL command would.
+     * @param key
+     * @return milliseconds left, -1 if key never expires, or -2 if key
+     * does not exist.
+     */
+    public synchronized long timeToLive(String key) {
+        Entry entry = live(key);
+        if (entry == null) {
+            return -2;
+        }
+        if (entry.deadline == Long.MAX_VALUE) {
+            return -1;
+        }
+        return entry.deadline - clock.currentTimeMillis();
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+
+        // The listening socket may only be released once the acceptor is
+        // out of accept(), until which connections could still succeed.
+        try {
+            acceptor.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            }
+            catch (IOException ex) {
+                return;
+            }
+            connectionCount.incrementAndGet();
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            Thread handler = new Thread("resp-connection") {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            };
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(
+                    socket.getOutputStream());
+            while (true) {
+                List<String> command = readCommand(in);
+                if (command == null) {
+                    break;
+                }
+                commandCount.incrementAndGet();
+                out.write(process(command).getBytes(UTF8));
+                if (in.available() == 0) {
+                    out.flush();
+                    flushCount.incrementAndGet();
+                }
+            }
+        }
+        catch (IOException ex) {
+            // Connection closed.
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+            }
+        }
+    }
+
+    private List<String> readCommand(InputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("Expected array, got " + (char)type);
+        }
+        int count = Integer.parseInt(readLine(in));
+        List<String> command = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Expected bulk string");
+            }
+            int length = Integer.parseInt(readLine(in));
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int read = in.read(bytes, offset, length - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            readLine(in);
+            command.add(new String(bytes, UTF8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            line.write(b);
+        }
+        in.read();
+        return new String(line.toByteArray(), UTF8);
+    }
+
+    private Entry live(String key) {
+        Entry entry = data.get(key);
+        if (entry != null && entry.deadline <= clock.currentTimeMillis()) {
+            data.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private Map<String, String> hash(String key, boolean create) {
+        Entry entry = live(key);
+        if (entry == null) {
+            if (!create) {
+                return null;
+            }
+            entry = new Entry();
+            entry.value = new HashMap<String, String>();
+            data.put(key, entry);
+        }
+        return (Map<String, String>)entry.value;
+    }
+
+    private synchronized String process(List<String> command) {
+        String name = command.get(0).toUpperCase();
+        try {
+            if (name.equals("PING")) {
+                return "+PONG\r\n";
+            }
+            if (name.equals("GET")) {
+                Entry entry = live(command.get(1));
+                return bulk(entry == null ? null : (String)entry.value);
+            }
+            if (name.equals("SET")) {
+                Entry entry = new Entry();
+                entry.value = command.get(2);
+                if (command.size() == 5 &&
+                        command.get(3).equalsIgnoreCase("PX")) {
+                    entry.deadline = clock.currentTimeMillis() +
+                            Long.parseLong(command.get(4));
+                }
+                data.put(command.get(1), entry);
+                return "+OK\r\n";
+            }
+            if (name.equals("DEL") || name.equals("EXISTS")) {
+                int count = 0;
+                for (String key : command.subList(1, command.size())) {
+                    if (live(key) != null) {
+                        count++;
+                        if (name.equals("DEL")) {
+                            data.remove(key);
+                        }
+                    }
+                }
+                return ":" + count + "\r\n";
+            }
+            if (name.equals("PEXPIRE")) {
+                Entry entry = live(command.get(1));
+                if (entry == null) {
+                    return ":0\r\n";
+                }
+                entry.deadline = clock.currentTimeMillis() +
+                        Long.parseLong(command.get(2));
+                return ":1\r\n";
+            }
+            if (name.equals("HGET")) {
+                Map<String, String> hash = hash(command.get(1), false);
+                return bulk(hash == null ? null : hash.get(command.get(2)));
+            }
+            if (name.equals("HSET")) {
+                Map<String, String> hash = hash(command.get(1), true);
+                int added = 0;
+                for (int i = 2; i + 1 < command.size(); i += 2) {
+                    if (hash.put(command.get(i), command.get(i + 1)) == null) {
+                        added++;
+                    }
+                }
+                return ":" + added + "\r\n";
+            }
+            if (name.equals("HEXISTS")) {
+                Map<String, String> hash = hash(command.get(1), false);
+                return hash != null && hash.containsKey(command.get(2)) ?
+                        ":1\r\n" : ":0\r\n";
+            }
+            if (name.equals("HDEL")) {
+                Map<String, String> hash = hash(command.get(1), false);
+                int removed = 0;
+                if (hash != null) {
+                    for (String key : command.subList(2, command.size())) {
+                        if (hash.remove(key) != null) {
+                            removed++;
+                        }
+                    }
+                    if (hash.isEmpty()) {
+                        data.remove(command.get(1));
+                    }
+                }
+                return ":" + removed + "\r\n";
+            }
+            return "-ERR unknown command '" + command.get(0) + "'\r\n";
+        }
+        catch (ClassCastException ex) {
+            return "-WRONGTYPE Operation against a key holding the wrong "
+                    + "kind of value\r\n";
+        }
+    }
+
+    private static String bulk(String value) {
+        if (value == null) {
+            return "$-1\r\n";
+        }
+        return "$" + value.getBytes(UTF8).length + "\r\n" + value + "\r\n";
+    }
+}
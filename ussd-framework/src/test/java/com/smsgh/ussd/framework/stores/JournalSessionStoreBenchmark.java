@@ -0,0 +1,120 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import java.io.File;
+
+/**
+ * Measures the time {@link JournalSessionStore} takes to recover its
+ * sessions on startup, together with the cost of a hop at each durability
+ * level. Not run as part of the test suite; run its main method, e.g.
+ * <pre>
+ * java com.smsgh.ussd.framework.stores.JournalSessionStoreBenchmark 100000
+ * </pre>
+ * Arguments are the number of sessions (default 100000), and the number of
+ * hops made at each durability level (default 2000).
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class JournalSessionStoreBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 70000;
+    private static final int JOURNAL_SIZE = 256 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int hops = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        File directory = File.createTempFile("journal", "");
+        directory.delete();
+        try {
+            for (JournalSessionStore.DurabilityLevel durability :
+                    JournalSessionStore.DurabilityLevel.values()) {
+                JournalSessionStore store = newStore(directory, durability);
+                long start = System.nanoTime();
+                for (int i = 0; i < hops; i++) {
+                    hop(store, mobile(i), i);
+                }
+                long elapsed = System.nanoTime() - start;
+                store.stop();
+                clear(directory);
+                System.out.println(String.format("%s: %d us/hop, %d forces",
+                        durability, elapsed / 1000 / hops,
+                        store.getForceCount()));
+            }
+
+            JournalSessionStore store = newStore(directory,
+                    JournalSessionStore.DurabilityLevel.NONE);
+            for (int i = 0; i < sessions; i++) {
+                hop(store, mobile(i), i);
+            }
+            // A second hop for half of the sessions, so that replay has
+            // superseded records to go through.
+            for (int i = 0; i < sessions; i += 2) {
+                hop(store, mobile(i), i);
+            }
+            int journalBytes = store.getJournalBytesUsed();
+            store.stop();
+
+            for (int round = 0; round < 3; round++) {
+                JournalSessionStore recovered = new JournalSessionStore(
+                        directory, TIMEOUT_MILLIS,
+                        JournalSessionStore.DurabilityLevel.NONE,
+                        JOURNAL_SIZE, TIMEOUT_MILLIS,
+                        Clock.SYSTEM);
+                long start = System.nanoTime();
+                recovered.start();
+                long elapsed = System.nanoTime() - start;
+                System.out.println(String.format("Recovered %d entries from "
+                        + "%d MB of journal in %d ms",
+                        recovered.getRecoveredEntryCount(),
+                        journalBytes >> 20, elapsed / 1000000));
+                recovered.stop();
+            }
+        }
+        finally {
+            clear(directory);
+            directory.delete();
+        }
+    }
+
+    private static JournalSessionStore newStore(File directory,
+            JournalSessionStore.DurabilityLevel durability) {
+        JournalSessionStore store = new JournalSessionStore(directory,
+                TIMEOUT_MILLIS, durability, JOURNAL_SIZE, TIMEOUT_MILLIS,
+                Clock.SYSTEM);
+        store.start();
+        return store;
+    }
+
+    private static void clear(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String mobile(int i) {
+        return String.valueOf(233240000000L + i);
+    }
+
+    /**
+     * Mirrors the store calls of a ussd hop which moves from a menu to a
+     * form, as a single batch.
+     */
+    private static void hop(BatchSessionStore store, String mobile, int i) {
+        SessionBatch batch = new SessionBatch();
+        String bagKey = mobile + ".DataBag";
+        batch.setHashValue(bagKey, "FormProcessorData",
+                "{\"header\":\"Enter Name\",\"action\":\"greeting\"," +
+                "\"inputs\":[{\"name\":\"Name\"}]}");
+        batch.setHashValue(bagKey, "FormData", "{\"Name\":\"Kofi" + i +
+                "\"}");
+        batch.setValue(mobile + ".NextRoute", "Main.formProcessor");
+        store.execute(batch);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.ManualClock;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class JournalSessionStoreTest {
+
+    private static final int JOURNAL_SIZE = 1024 * 1024;
+
+    private final ManualClock clock = new ManualClock(1000000);
+    private final List<JournalSessionStore> stores =
+            new ArrayList<JournalSessionStore>();
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (JournalSessionStore store : stores) {
+            store.stop();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private JournalSessionStore newStore(int timeoutInMillis,
+            JournalSessionStore.DurabilityLevel durability, int journalSize) {
+        JournalSessionStore store = new JournalSessionStore(directory,
+                timeoutInMillis, durability, journalSize, 3600000, clock);
+        stores.add(store);
+        store.start();
+        return store;
+    }
+
+    private JournalSessionStore newStore(int timeoutInMillis) {
+        return newStore(timeoutInMillis,
+                JournalSessionStore.DurabilityLevel.NONE, JOURNAL_SIZE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSmallJournal() {
+        new JournalSessionStore(directory, 1000,
+                JournalSessionStore.DurabilityLevel.NONE, 1024, 1000, clock);
+    }
+
+    @Test(expected = FrameworkException.class)
+    public void testUseBeforeStart() {
+        new JournalSessionStore(directory, 1000).getValue("a");
+    }
+
+    @Test
+    public void testOperations() {
+        SessionStore store = newStore(60000);
+        store.setValue("a", "b");
+        assertEquals("b", store.getValue("a"));
+        store.setValue("a", null);
+        assertTrue(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+        store.deleteValue("a");
+        assertFalse(store.valueExists("a"));
+
+        store.setHashValue("h", "k", "v");
+        store.setHashValue("h", "k2", null);
+        assertTrue(store.hashExists("h"));
+        assertTrue(store.hashValueExists("h", "k2"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        store.deleteHashValue("h", "k");
+        assertFalse(store.hashValueExists("h", "k"));
+        store.deleteHash("h");
+        assertFalse(store.hashExists("h"));
+
+        SessionBatch batch = new SessionBatch();
+        batch.setValue("r", "Main.start");
+        batch.setHashValue("d", "x", "\u025b");
+        int route = batch.getValue("r");
+        int bag = batch.getHashValue("d", "x");
+        ((BatchSessionStore)store).execute(batch);
+        assertEquals("Main.start", batch.getString(route));
+        assertEquals("\u025b", batch.getString(bag));
+    }
+
+    @Test
+    public void testRecoveryAfterRestart() {
+        JournalSessionStore store = newStore(60000);
+        store.setValue("233244000001.NextRoute", "Main.form");
+        store.setHashValue("233244000001.DataBag", "Name", "Kofi \u0254");
+        store.setHashValue("233244000001.DataBag", "Age", "20");
+        store.deleteHashValue("233244000001.DataBag", "Age");
+        store.setValue("233244000002.NextRoute", "Main.start");
+        store.deleteValue("233244000002.NextRoute");
+        store.stop();
+
+        JournalSessionStore recovered = newStore(60000);
+        assertEquals(2, recovered.getRecoveredEntryCount());
+        assertEquals("Main.form",
+                recovered.getValue("233244000001.NextRoute"));
+        assertEquals("Kofi \u0254",
+                recovered.getHashValue("233244000001.DataBag", "Name"));
+        assertFalse(recovered.hashValueExists("233244000001.DataBag", "Age"));
+        assertFalse(recovered.valueExists("233244000002.NextRoute"));
+    }
+
+    @Test
+    public void testRecoveryWithoutStop() {
+        JournalSessionStore store = newStore(60000);
+        store.setValue("a", "b");
+
+        // Another store reading the same files sees what a restart after
+        // a crash would see.
+        JournalSessionStore recovered = newStore(60000);
+        assertEquals("b", recovered.getValue("a"));
+    }
+
+    @Test
+    public void testRecoveryKeepsOnlyLiveSessions() {
+        JournalSessionStore store = newStore(70000);
+        store.setValue("old", "x");
+        clock.advance(50000);
+        store.setValue("new", "y");
+        clock.advance(30000);
+        store.stop();
+
+        JournalSessionStore recovered = newStore(70000);
+        assertEquals(1, recovered.getRecoveredEntryCount());
+        assertFalse(recovered.valueExists("old"));
+
+        // What remained of the timeout carries over.
+        clock.advance(39000);
+        assertTrue(recovered.valueExists("new"));
+        clock.advance(1000);
+        assertFalse(recovered.valueExists("new"));
+    }
+
+    @Test
+    public void testReadsKeepSessionsAliveAcrossRestart() {
+        JournalSessionStore store = newStore(70000);
+        store.setValue("route", "Main.start");
+        store.setHashValue("bag", "k", "v");
+        clock.advance(60000);
+        assertEquals("Main.start", store.getValue("route"));
+        assertEquals("v", store.getHashValue("bag", "k"));
+        clock.advance(60000);
+        store.stop();
+
+        JournalSessionStore recovered = newStore(70000);
+        assertEquals("Main.start", recovered.getValue("route"));
+        assertEquals("v", recovered.getHashValue("bag", "k"));
+    }
+
+    @Test
+    public void testTornRecordEndsReplay() throws IOException {
+        JournalSessionStore store = newStore(60000);
+        store.setValue("a", "1");
+        int end = store.getJournalBytesUsed();
+        store.setValue("b", "2");
+        store.stop();
+
+        RandomAccessFile raf = new RandomAccessFile(new File(directory,
+                JournalSessionStore.JOURNAL_FILE_NAME + ".0"), "rw");
+        try {
+            raf.seek(store.getJournalBytesUsed() - 1);
+            raf.write('X');
+        }
+        finally {
+            raf.close();
+        }
+
+        JournalSessionStore recovered = newStore(60000);
+        assertEquals("1", recovered.getValue("a"));
+        assertFalse(recovered.valueExists("b"));
+        assertEquals(end, recovered.getJournalBytesUsed());
+
+        // The torn record is overwritten by the next one.
+        recovered.setValue("c", "3");
+        recovered.stop();
+        JournalSessionStore again = newStore(60000);
+        assertEquals("1", again.getValue("a"));
+        assertEquals("3", again.getValue("c"));
+    }
+
+    @Test
+    public void testCompaction() {
+        JournalSessionStore store = newStore(70000,
+                JournalSessionStore.DurabilityLevel.NONE, 64 * 1024);
+        for (int i = 0; i < 5000; i++) {
+            String mobile = "2332440" + (i % 100);
+            store.setValue(mobile + ".NextRoute", "Main.step" + i);
+            store.setHashValue(mobile + ".DataBag", "step", "" + i);
+            if (i == 2000) {
+                clock.advance(70000);
+            }
+        }
+        assertTrue(store.getCompactionCount() > 0);
+        assertTrue(store.getJournalBytesUsed() < 64 * 1024);
+        store.stop();
+
+        JournalSessionStore recovered = newStore(70000,
+                JournalSessionStore.DurabilityLevel.NONE, 64 * 1024);
+        assertEquals(200, recovered.getRecoveredEntryCount());
+        for (int i = 4900; i < 5000; i++) {
+            String mobile = "2332440" + (i % 100);
+            assertEquals("Main.step" + i,
+                    recovered.getValue(mobile + ".NextRoute"));
+            assertEquals("" + i,
+                    recovered.getHashValue(mobile + ".DataBag", "step"));
+        }
+    }
+
+    @Test
+    public void testJournalFullOfLiveEntries() {
+        JournalSessionStore store = newStore(70000,
+                JournalSessionStore.DurabilityLevel.NONE, 4096);
+        int i = 0;
+        try {
+            while (i < 1000) {
+                store.setValue("key" + i, "value" + i);
+                i++;
+            }
+            fail("Expected journal to fill up.");
+        }
+        catch (FrameworkException ex) {
+            // Expected.
+        }
+        assertEquals("value0", store.getValue("key0"));
+        assertEquals("value" + (i - 1), store.getValue("key" + (i - 1)));
+    }
+
+    @Test
+    public void testDurabilityLevels() throws Exception {
+        JournalSessionStore sync = newStore(60000,
+                JournalSessionStore.DurabilityLevel.SYNC, JOURNAL_SIZE);
+        sync.setValue("a", "b");
+        sync.setHashValue("h", "k", "v");
+        sync.getValue("a");
+        sync.deleteValue("missing");
+        assertEquals(2, sync.getForceCount());
+        sync.stop();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+
+        final JournalSessionStore group = newStore(60000,
+                JournalSessionStore.DurabilityLevel.GROUP_COMMIT,
+                JOURNAL_SIZE);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final String prefix = "23324" + t + "-";
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        group.setValue(prefix + i, "v" + i);
+                        if (!("v" + i).equals(group.getValue(prefix + i))) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertTrue(group.getForceCount() > 0);
+        assertTrue(group.getForceCount() <= 200);
+    }
+}
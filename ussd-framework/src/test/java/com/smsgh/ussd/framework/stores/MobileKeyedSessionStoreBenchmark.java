@@ -0,0 +1,105 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import java.util.Random;
+
+/**
+ * Compares the heap held per session and the cost of looking up a
+ * session's next route in {@link ConcurrentInMemorySessionStore} and
+ * {@link MobileKeyedSessionStore}. Not run as part of the test suite; run
+ * its main method with a heap big enough for the sessions, e.g.
+ * <pre>
+ * java -Xmx2g \
+ *     com.smsgh.ussd.framework.stores.MobileKeyedSessionStoreBenchmark 1000000
+ * </pre>
+ * Arguments are the number of sessions (default 1000000) and the number of
+ * timed lookups per round (default 5000000). Lookups are timed over
+ * several rounds after a warm-up round, so that the figures reported are
+ * for compiled code.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MobileKeyedSessionStoreBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 3600 * 1000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+
+        String[] routeKeys = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            routeKeys[i] = mobile(i) + ".NextRoute";
+        }
+        int[] order = new int[lookups];
+        Random random = new Random(7);
+        for (int i = 0; i < lookups; i++) {
+            order[i] = random.nextInt(sessions);
+        }
+
+        System.out.println(String.format("%d sessions, %d lookups per round",
+                sessions, lookups));
+        run("ConcurrentInMemorySessionStore", sessions, routeKeys, order,
+                new ConcurrentInMemorySessionStore(TIMEOUT_MILLIS));
+        run("MobileKeyedSessionStore", sessions, routeKeys, order,
+                new MobileKeyedSessionStore(TIMEOUT_MILLIS));
+    }
+
+    private static void run(String name, int sessions, String[] routeKeys,
+            int[] order, SessionStore store) {
+        long heapBefore = usedHeap();
+        for (int i = 0; i < sessions; i++) {
+            String mobile = mobile(i);
+            store.setHashValue(mobile + ".DataBag", "count", "1");
+            store.setValue(mobile + ".NextRoute", "Main.menuProcessor");
+        }
+        long heapAfter = usedHeap();
+
+        // Looks up with keys built beforehand, to time the store alone.
+        long best = Long.MAX_VALUE;
+        int found = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i : order) {
+                if (store.getValue(routeKeys[i]) != null) {
+                    found++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        if (found != order.length * (ROUNDS + 1)) {
+            throw new AssertionError("Missing sessions: " + found);
+        }
+
+        System.out.println(String.format("%s: heap %d bytes/session; "
+                + "lookup %d ns/op", name,
+                (heapAfter - heapBefore) / sessions,
+                best / order.length));
+        store = null;
+        usedHeap();
+    }
+
+    private static String mobile(int i) {
+        return String.valueOf(233240000000L + i);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.ManualClock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class MobileKeyedSessionStoreTest {
+
+    private static final String ROUTE = "233244000001.NextRoute";
+    private static final String BAG = "233244000001.DataBag";
+
+    private final ManualClock clock = new ManualClock(1000000);
+    private final MobileKeyedSessionStore store =
+            new MobileKeyedSessionStore(70000, clock);
+
+    @Test
+    public void testMobileOf() {
+        assertEquals(233244000001L,
+                MobileKeyedSessionStore.mobileOf(ROUTE));
+        assertEquals(0, MobileKeyedSessionStore.mobileOf("0.NextRoute"));
+        assertEquals(-1, MobileKeyedSessionStore.mobileOf("0244.NextRoute"));
+        assertEquals(-1, MobileKeyedSessionStore.mobileOf("+233.NextRoute"));
+        assertEquals(-1, MobileKeyedSessionStore.mobileOf(".NextRoute"));
+        assertEquals(-1, MobileKeyedSessionStore.mobileOf("NextRoute"));
+        assertEquals(999999999999999999L, MobileKeyedSessionStore.mobileOf(
+                "999999999999999999.DataBag"));
+        assertEquals(-1, MobileKeyedSessionStore.mobileOf(
+                "9999999999999999999.DataBag"));
+    }
+
+    @Test
+    public void testOperations() {
+        store.setValue(ROUTE, "Main.start");
+        assertEquals("Main.start", store.getValue(ROUTE));
+        assertTrue(store.valueExists(ROUTE));
+        store.setValue(ROUTE, null);
+        assertTrue(store.valueExists(ROUTE));
+        assertNull(store.getValue(ROUTE));
+
+        assertFalse(store.hashExists(BAG));
+        store.setHashValue(BAG, "k", "v");
+        assertTrue(store.hashExists(BAG));
+        assertTrue(store.hashValueExists(BAG, "k"));
+        assertFalse(store.hashValueExists(BAG, "x"));
+        assertEquals("v", store.getHashValue(BAG, "k"));
+        store.deleteHashValue(BAG, "k");
+        assertFalse(store.hashValueExists(BAG, "k"));
+        assertTrue(store.hashExists(BAG));
+        assertEquals(1, store.getSessionCount());
+
+        store.deleteHash(BAG);
+        assertFalse(store.hashExists(BAG));
+        store.deleteValue(ROUTE);
+        assertFalse(store.valueExists(ROUTE));
+        assertEquals(0, store.getSessionCount());
+    }
+
+    @Test
+    public void testOtherKeys() {
+        store.setValue("0244000001.NextRoute", "a");
+        store.setValue("233244000001.Other", "b");
+        store.setHashValue("plain", "k", "c");
+        assertEquals("a", store.getValue("0244000001.NextRoute"));
+        assertEquals("b", store.getValue("233244000001.Other"));
+        assertEquals("c", store.getHashValue("plain", "k"));
+        assertNull(store.getValue("244000001.NextRoute"));
+        assertNull(store.getValue(ROUTE));
+        assertEquals(0, store.getSessionCount());
+    }
+
+    @Test
+    public void testSlidingExpiry() {
+        store.setValue(ROUTE, "Main.start");
+        store.setHashValue("233244000002.DataBag", "k", "v");
+        clock.advance(60000);
+        store.setHashValue(BAG, "k", "v");
+        clock.advance(60000);
+
+        // Renewing the data bag renewed the next route as well.
+        assertEquals("Main.start", store.getValue(ROUTE));
+        assertFalse(store.hashExists("233244000002.DataBag"));
+        store.cleanUp();
+        assertEquals(1, store.getSessionCount());
+        clock.advance(70000);
+        assertNull(store.getValue(ROUTE));
+        assertEquals(0, store.getSessionCount());
+    }
+
+    @Test
+    public void testSegmentCountIsPowerOfTwo() {
+        assertEquals(1, new MobileKeyedSessionStore(1000, 1, clock)
+                .getSegmentCount());
+        assertEquals(8, new MobileKeyedSessionStore(1000, 5, clock)
+                .getSegmentCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveSegmentCount() {
+        new MobileKeyedSessionStore(1000, 0, clock);
+    }
+
+    /**
+     * Operations should reclaim expired sessions of their segment a
+     * bounded number at a time, without cleanUp being called.
+     */
+    @Test
+    public void testOperationsReclaimExpiredSessions() {
+        MobileKeyedSessionStore single = new MobileKeyedSessionStore(70000,
+                1, clock);
+        for (int i = 0; i < 1000; i++) {
+            single.setValue((233244000000L + i) + ".NextRoute", "Main.start");
+        }
+        clock.advance(70000);
+        single.setValue(ROUTE, "Main.start");
+        int count = single.getSessionCount();
+        assertTrue(count > 1 && count < 1000);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Main.start", single.getValue(ROUTE));
+        }
+        assertEquals(1, single.getSessionCount());
+    }
+
+    /**
+     * Runs threads which each simulate ussd hops for their own mobile
+     * numbers, on a store with few segments, and checks that no thread
+     * observes another thread's writes or loses its own.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentSessionsAreIsolated() throws Exception {
+        final MobileKeyedSessionStore shared = new MobileKeyedSessionStore(
+                70000, 2, clock);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final long base = 233240000000L + t * 1000;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        long mobile = base + i % 64;
+                        String expected = String.valueOf(i);
+                        SessionBatch batch = new SessionBatch();
+                        batch.setHashValue(mobile + ".DataBag", "step",
+                                expected);
+                        batch.setValue(mobile + ".NextRoute", expected);
+                        batch.getValue(mobile + ".NextRoute");
+                        batch.getHashValue(mobile + ".DataBag", "step");
+                        shared.execute(batch);
+                        if (!expected.equals(batch.getString(2)) ||
+                                !expected.equals(batch.getString(3))) {
+                            errors.incrementAndGet();
+                        }
+                        if (i % 8 == 7) {
+                            shared.deleteValue(mobile + ".NextRoute");
+                            shared.deleteHash(mobile + ".DataBag");
+                            if (shared.valueExists(mobile + ".NextRoute")) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(8 * 64 - 8 * 8, shared.getSessionCount());
+    }
+
+    @Test
+    public void testBatch() {
+        SessionBatch batch = new SessionBatch();
+        batch.setHashValue(BAG, "FormData", "{}");
+        batch.setValue(ROUTE, "Main.form");
+        batch.getValue(ROUTE);
+        batch.getHashValue(BAG, "FormData");
+        store.execute(batch);
+        assertEquals("Main.form", batch.getString(2));
+        assertEquals("{}", batch.getString(3));
+    }
+}
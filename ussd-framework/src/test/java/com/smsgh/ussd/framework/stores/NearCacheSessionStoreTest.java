@@ -0,0 +1,249 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.utils.Clock;
+import com.smsgh.ussd.framework.utils.ManualClock;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class NearCacheSessionStoreTest {
+
+    private static final String ROUTE = "233244000001.NextRoute";
+    private static final String BAG = "233244000001.DataBag";
+
+    private final ManualClock clock = new ManualClock(1000000);
+    private final CountingSessionStore remote = new CountingSessionStore();
+
+    private NearCacheSessionStore newStore(long validationIntervalMillis) {
+        return new NearCacheSessionStore(remote, 70000, 100,
+                validationIntervalMillis, clock);
+    }
+
+    /**
+     * Reads a session the way a ussd request starts.
+     */
+    private static SessionBatch load(NearCacheSessionStore store) {
+        SessionBatch batch = new SessionBatch();
+        batch.getValue(ROUTE);
+        batch.getHashValue(BAG, "MenuProcessorData");
+        batch.getHashValue(BAG, "FormData");
+        store.execute(batch);
+        return batch;
+    }
+
+    private static void save(NearCacheSessionStore store, String route,
+            String formData) {
+        SessionBatch batch = new SessionBatch();
+        batch.setHashValue(BAG, "FormData", formData);
+        batch.setValue(ROUTE, route);
+        store.execute(batch);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValidationInterval() {
+        newStore(-1);
+    }
+
+    @Test
+    public void testOperations() {
+        NearCacheSessionStore store = newStore(0);
+        store.setValue("a.b", "c");
+        assertEquals("c", store.getValue("a.b"));
+        assertTrue(store.valueExists("a.b"));
+        store.setValue("a.b", null);
+        assertTrue(store.valueExists("a.b"));
+        assertNull(store.getValue("a.b"));
+        store.deleteValue("a.b");
+        assertFalse(store.valueExists("a.b"));
+        assertNull(store.getValue("a.b"));
+
+        store.setHashValue("a.h", "k", "v");
+        assertTrue(store.hashExists("a.h"));
+        assertTrue(store.hashValueExists("a.h", "k"));
+        assertFalse(store.hashValueExists("a.h", "x"));
+        assertEquals("v", store.getHashValue("a.h", "k"));
+        store.deleteHashValue("a.h", "k");
+        assertFalse(store.hashValueExists("a.h", "k"));
+        assertNull(store.getHashValue("a.h", "k"));
+        store.setHashValue("a.h", "k", "w");
+        store.deleteHash("a.h");
+        assertFalse(store.hashExists("a.h"));
+        assertNull(store.getHashValue("a.h", "k"));
+        assertFalse(remote.getDelegate().hashExists("a.h"));
+    }
+
+    @Test
+    public void testRepeatedReadsSkipRemoteWithinValidationInterval() {
+        NearCacheSessionStore store = newStore(5000);
+        save(store, "Main.form", "{}");
+        remote.reset();
+
+        // Only the field which was never written needs the remote store,
+        // after which it is known to be absent.
+        load(store);
+        assertEquals(1, remote.getReadBatches());
+        clock.advance(4000);
+        SessionBatch batch = load(store);
+        assertEquals(1, remote.getReadBatches());
+        assertEquals("Main.form", batch.getString(0));
+        assertNull(batch.getString(1));
+        assertEquals("{}", batch.getString(2));
+        assertEquals(5, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(5.0 / 6, store.getHitRatio(), 1e-9);
+        assertEquals(1.0 / 6, store.getMissRatio(), 1e-9);
+
+        // Past the validation interval, the version stamp is read again.
+        clock.advance(1000);
+        load(store);
+        assertEquals(2, remote.getReadBatches());
+        assertEquals(1, store.getValidationCount());
+    }
+
+    @Test
+    public void testValidationReadsOnlyVersionStamp() {
+        NearCacheSessionStore store = newStore(0);
+        save(store, "Main.form", "{}");
+        load(store);
+        remote.reset();
+        store.resetStatistics();
+
+        SessionBatch batch = load(store);
+        assertEquals(1, remote.getReadBatches());
+        assertEquals(3, store.getHitCount());
+        assertEquals(0, store.getMissCount());
+        assertEquals(1, store.getValidationCount());
+        assertEquals("Main.form", batch.getString(0));
+    }
+
+    @Test
+    public void testWriteFromOtherNodeInvalidates() {
+        NearCacheSessionStore node1 = newStore(0);
+        NearCacheSessionStore node2 = newStore(0);
+        save(node1, "Main.form", "{\"Name\":\"Ama\"}");
+        load(node1);
+
+        load(node2);
+        save(node2, "Main.done", "{\"Name\":\"Kofi\"}");
+
+        SessionBatch batch = load(node1);
+        assertEquals(1, node1.getInvalidationCount());
+        assertEquals("Main.done", batch.getString(0));
+        assertEquals("{\"Name\":\"Kofi\"}", batch.getString(2));
+
+        // Writing under a stale stamp drops the other cached entries too.
+        save(node2, "Main.form", "{\"Name\":\"Yaw\"}");
+        SessionBatch write = new SessionBatch();
+        write.setHashValue(BAG, "Other", "x");
+        node1.execute(write);
+        assertEquals(2, node1.getInvalidationCount());
+        assertEquals("{\"Name\":\"Yaw\"}", node1.getHashValue(BAG,
+                "FormData"));
+    }
+
+    @Test
+    public void testWritesKeepCacheWarm() {
+        NearCacheSessionStore store = newStore(5000);
+        save(store, "Main.start", "{}");
+        save(store, "Main.form", "{\"a\":1}");
+        remote.reset();
+        assertEquals("Main.form", store.getValue(ROUTE));
+        assertEquals("{\"a\":1}", store.getHashValue(BAG, "FormData"));
+        assertEquals(0, remote.getReadBatches());
+    }
+
+    @Test
+    public void testEntriesDoNotOutliveRemoteTimeout() {
+        NearCacheSessionStore store = new NearCacheSessionStore(remote,
+                70000, 100, 1000000, clock);
+        save(store, "Main.form", "{}");
+        remote.reset();
+        clock.advance(69999);
+        assertEquals("Main.form", store.getValue(ROUTE));
+        assertEquals(0, remote.getReadBatches());
+
+        // Serving it locally did not renew it.
+        clock.advance(1);
+        assertEquals("Main.form", store.getValue(ROUTE));
+        assertEquals(1, remote.getReadBatches());
+    }
+
+    /**
+     * A session read only through the cache, for longer than the timeout,
+     * should stay alive in a remote store whose keys expire separately.
+     */
+    @Test
+    public void testReadsThroughCacheRenewRemoteEntries() throws Exception {
+        EmbeddedRespServer server = new EmbeddedRespServer(clock);
+        RedisSessionStore redis = new RedisSessionStore("localhost",
+                server.getPort(), 70000);
+        redis.start();
+        try {
+            NearCacheSessionStore store = new NearCacheSessionStore(redis,
+                    70000, 100, 5000, clock);
+            save(store, "Main.form", "{}");
+            load(store);
+            store.resetStatistics();
+            for (int i = 0; i < 10; i++) {
+                clock.advance(20000);
+                SessionBatch batch = load(store);
+                assertEquals("Main.form", batch.getString(0));
+                assertEquals("{}", batch.getString(2));
+            }
+            assertEquals(0, store.getMissCount());
+            assertEquals(70000, server.timeToLive(ROUTE));
+            assertEquals(70000, server.timeToLive(BAG));
+            assertEquals("Main.form", redis.getValue(ROUTE));
+            assertEquals("{}", redis.getHashValue(BAG, "FormData"));
+        }
+        finally {
+            redis.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        NearCacheSessionStore store = new NearCacheSessionStore(remote,
+                70000, 2, 1000000, clock);
+        store.setValue("1.NextRoute", "a");
+        store.setValue("2.NextRoute", "b");
+        store.getValue("1.NextRoute");
+        store.setValue("3.NextRoute", "c");
+        assertEquals(2, store.getCachedSessionCount());
+        remote.reset();
+        store.getValue("1.NextRoute");
+        store.getValue("3.NextRoute");
+        assertEquals(0, remote.getReadBatches());
+        assertEquals("b", store.getValue("2.NextRoute"));
+        assertEquals(1, remote.getReadBatches());
+    }
+
+    @Test
+    public void testLifecycleRemote() throws Exception {
+        EmbeddedRespServer server = new EmbeddedRespServer(
+                Clock.SYSTEM);
+        try {
+            NearCacheSessionStore store = new NearCacheSessionStore(
+                    new RedisSessionStore("localhost", server.getPort(),
+                            70000), 70000);
+            store.start();
+            SessionStore handle = store.borrow();
+            handle.setValue(ROUTE, "Main.form");
+            assertEquals("Main.form", handle.getValue(ROUTE));
+            store.release(handle);
+            assertEquals("Main.form", store.getValue(ROUTE));
+            assertEquals(1, server.getConnectionCount());
+            store.stop();
+        }
+        finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the heap footprint and hop latency of the in-memory session
+ * stores with those of {@link OffHeapSessionStore}, with a large number of
+ * sessions held at once. Not run as part of the test suite; run its main
+ * method with a heap big enough for the in-memory stores, e.g.
+ * <pre>
+ * java -Xmx4g -XX:MaxDirectMemorySize=2g \
+ *     com.smsgh.ussd.framework.stores.OffHeapSessionStoreBenchmark 1000000
+ * </pre>
+ * Arguments are the number of sessions (default 1000000) and the number of
+ * timed hops (default 1000000).
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class OffHeapSessionStoreBenchmark {
+
+    private static final int TIMEOUT_MILLIS = 3600 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int hops = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        System.out.println(String.format("%d sessions, %d timed hops",
+                sessions, hops));
+        run("InMemorySessionStore", sessions, hops,
+                new InMemorySessionStore(TIMEOUT_MILLIS));
+        run("ConcurrentInMemorySessionStore", sessions, hops,
+                new ConcurrentInMemorySessionStore(TIMEOUT_MILLIS));
+        run("OffHeapSessionStore", sessions, hops,
+                new OffHeapSessionStore(TIMEOUT_MILLIS,
+                        (long)sessions * 6 * OffHeapSessionStore.BLOCK_SIZE));
+    }
+
+    private static void run(String name, int sessions, int hops,
+            SessionStore store) {
+        long heapBefore = usedHeap();
+        for (int i = 0; i < sessions; i++) {
+            hop(store, mobile(i), i);
+        }
+        long heapAfter = usedHeap();
+
+        Random random = new Random(7);
+        long[] latencies = new long[hops];
+        for (int i = 0; i < hops; i++) {
+            String mobile = mobile(random.nextInt(sessions));
+            long start = System.nanoTime();
+            hop(store, mobile, i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        String offHeap = "";
+        if (store instanceof OffHeapSessionStore) {
+            offHeap = String.format(", off-heap %d MB",
+                    ((OffHeapSessionStore)store).getAllocatedBytes() >> 20);
+        }
+        System.out.println(String.format("%s: heap %d bytes/session%s; "
+                + "hop latency p50=%d us, p99=%d us, p99.9=%d us, max=%d us",
+                name, (heapAfter - heapBefore) / sessions, offHeap,
+                latencies[hops / 2] / 1000,
+                latencies[(int)(hops * 0.99)] / 1000,
+                latencies[(int)(hops * 0.999)] / 1000,
+                latencies[hops - 1] / 1000));
+        store = null;
+        usedHeap();
+    }
+
+    private static String mobile(int i) {
+        return String.valueOf(233240000000L + i);
+    }
+
+    /**
+     * Mirrors the store calls of a ussd hop which moves from a menu to a
+     * form.
+     */
+    private static void hop(SessionStore store, String mobile, int i) {
+        String routeKey = mobile + ".NextRoute";
+        String bagKey = mobile + ".DataBag";
+        store.getValue(routeKey);
+        store.getHashValue(bagKey, "MenuProcessorData");
+        store.setHashValue(bagKey, "FormProcessorData",
+                "{\"header\":\"Enter Name\",\"action\":\"greeting\"," +
+                "\"inputs\":[{\"name\":\"Name\"}]}");
+        store.setHashValue(bagKey, "FormData", "{\"Name\":\"Kofi" + i +
+                "\"}");
+        store.setValue(routeKey, "Main.formProcessor");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.ManualClock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class OffHeapSessionStoreTest {
+
+    private final ManualClock clock = new ManualClock(1000000);
+
+    private OffHeapSessionStore newStore(int timeoutInMillis) {
+        return new OffHeapSessionStore(timeoutInMillis,
+                4L * OffHeapSessionStore.SLAB_SIZE, 4, clock);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveCapacity() {
+        new OffHeapSessionStore(1000, 0);
+    }
+
+    @Test
+    public void testValueOperations() {
+        SessionStore store = newStore(60000);
+        assertFalse(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+        store.setValue("a", "b");
+        assertTrue(store.valueExists("a"));
+        assertEquals("b", store.getValue("a"));
+        store.setValue("a", "c");
+        assertEquals("c", store.getValue("a"));
+        store.setValue("a", null);
+        assertTrue(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+        store.deleteValue("a");
+        assertFalse(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+    }
+
+    @Test
+    public void testHashOperations() {
+        SessionStore store = newStore(60000);
+        assertFalse(store.hashExists("h"));
+        assertFalse(store.hashValueExists("h", "k"));
+        assertNull(store.getHashValue("h", "k"));
+        store.setHashValue("h", "k", "v");
+        store.setHashValue("h", "k2", "v2");
+        store.setHashValue("h", "k3", null);
+        assertTrue(store.hashExists("h"));
+        assertTrue(store.hashValueExists("h", "k"));
+        assertTrue(store.hashValueExists("h", "k3"));
+        assertNull(store.getHashValue("h", "k3"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        assertEquals("v2", store.getHashValue("h", "k2"));
+        store.setHashValue("h", "k", "changed");
+        assertEquals("changed", store.getHashValue("h", "k"));
+        assertEquals("v2", store.getHashValue("h", "k2"));
+        store.deleteHashValue("h", "k");
+        assertFalse(store.hashValueExists("h", "k"));
+        assertTrue(store.hashValueExists("h", "k2"));
+        store.deleteHash("h");
+        assertFalse(store.hashExists("h"));
+        assertNull(store.getHashValue("h", "k2"));
+    }
+
+    @Test
+    public void testLargeAndNonAsciiRecords() {
+        OffHeapSessionStore store = newStore(60000);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            large.append("\u025b\u0254").append(i);
+        }
+        store.setValue("a", large.toString());
+        store.setHashValue("h", "form", large.toString());
+        store.setHashValue("h", "x", "y");
+        assertEquals(large.toString(), store.getValue("a"));
+        assertEquals(large.toString(), store.getHashValue("h", "form"));
+        assertEquals("y", store.getHashValue("h", "x"));
+
+        // Shrinking a record gives its surplus blocks back.
+        long used = store.getUsedBlockCount();
+        store.setValue("a", "short");
+        assertEquals("short", store.getValue("a"));
+        assertTrue(store.getUsedBlockCount() < used);
+    }
+
+    @Test
+    public void testBlocksAreReused() {
+        OffHeapSessionStore store = newStore(60000);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 1000; i++) {
+                store.setValue("23324400" + i + ".NextRoute", "Main.start");
+                store.setHashValue("23324400" + i + ".DataBag", "k", "v");
+            }
+            for (int i = 0; i < 1000; i++) {
+                store.deleteValue("23324400" + i + ".NextRoute");
+                store.deleteHash("23324400" + i + ".DataBag");
+            }
+        }
+        assertEquals(0, store.getUsedBlockCount());
+        assertEquals(0, store.getRecordCount());
+        assertEquals(4L * OffHeapSessionStore.SLAB_SIZE,
+                store.getAllocatedBytes());
+    }
+
+    @Test
+    public void testIndexGrowth() {
+        OffHeapSessionStore store = newStore(60000);
+        for (int i = 0; i < 20000; i++) {
+            store.setValue("key" + i, "value" + i);
+        }
+        assertEquals(20000, store.getRecordCount());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals("value" + i, store.getValue("key" + i));
+        }
+    }
+
+    @Test
+    public void testSlidingExpiration() {
+        SessionStore store = newStore(30);
+        store.setValue("a", "b");
+        store.setHashValue("h", "k", "v");
+        clock.advance(20);
+        assertEquals("b", store.getValue("a"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        clock.advance(20);
+        assertEquals("b", store.getValue("a"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        clock.advance(30);
+        assertFalse(store.valueExists("a"));
+        assertFalse(store.hashExists("h"));
+    }
+
+    @Test
+    public void testCleanUpReclaimsExpiredRecords() {
+        OffHeapSessionStore store = newStore(30);
+        for (int i = 0; i < 100; i++) {
+            store.setValue("key" + i, "value");
+        }
+        clock.advance(30);
+        store.cleanUp();
+        assertEquals(0, store.getRecordCount());
+        assertEquals(0, store.getUsedBlockCount());
+    }
+
+    @Test
+    public void testFullStore() {
+        OffHeapSessionStore store = new OffHeapSessionStore(30,
+                OffHeapSessionStore.SLAB_SIZE, 1, clock);
+        int i = 0;
+        try {
+            while (true) {
+                store.setValue("key" + i, "value");
+                i++;
+            }
+        }
+        catch (FrameworkException ex) {
+            // Expected once slab is used up.
+        }
+        assertEquals(OffHeapSessionStore.BLOCKS_PER_SLAB, i);
+
+        // Expired records make room again.
+        clock.advance(30);
+        store.setValue("another", "value");
+        assertEquals("value", store.getValue("another"));
+        assertNull(store.getValue("key0"));
+        store.cleanUp();
+        assertEquals(1, store.getRecordCount());
+    }
+
+    @Test
+    public void testConcurrentSessionsAreIsolated() throws Exception {
+        final SessionStore store = new OffHeapSessionStore(60000,
+                16L * OffHeapSessionStore.SLAB_SIZE);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final String prefix = "23324" + t + "-";
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        String mobile = prefix + (i % 64);
+                        String expected = String.valueOf(i);
+                        store.setValue(mobile + ".NextRoute", expected);
+                        store.setHashValue(mobile + ".DataBag", "step",
+                                expected);
+                        if (!expected.equals(store.getValue(
+                                mobile + ".NextRoute")) ||
+                                !expected.equals(store.getHashValue(
+                                        mobile + ".DataBag", "step"))) {
+                            errors.incrementAndGet();
+                        }
+                        if (i % 8 == 7) {
+                            store.deleteValue(mobile + ".NextRoute");
+                            store.deleteHash(mobile + ".DataBag");
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.ManualClock;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class RedisSessionStoreTest {
+    private ManualClock clock;
+    private EmbeddedRespServer server;
+    private RedisSessionStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new ManualClock(1000000);
+        server = new EmbeddedRespServer(clock);
+        store = new RedisSessionStore("127.0.0.1", server.getPort(), 30);
+        store.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.stop();
+        server.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullHost() {
+        new RedisSessionStore(null, 6379, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveTimeout() {
+        new RedisSessionStore("localhost", 6379, 0);
+    }
+
+    @Test
+    public void testValueOperations() {
+        assertFalse(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+        store.setValue("a", "b");
+        assertTrue(store.valueExists("a"));
+        assertEquals("b", store.getValue("a"));
+        assertEquals("string", server.typeOf("a"));
+        store.setValue("a", "c");
+        assertEquals("c", store.getValue("a"));
+        store.deleteValue("a");
+        assertFalse(store.valueExists("a"));
+        assertNull(store.getValue("a"));
+    }
+
+    @Test
+    public void testHashOperations() {
+        assertFalse(store.hashExists("h"));
+        assertFalse(store.hashValueExists("h", "k"));
+        assertNull(store.getHashValue("h", "k"));
+        store.setHashValue("h", "k", "v");
+        store.setHashValue("h", "k2", "v2");
+        assertEquals("hash", server.typeOf("h"));
+        assertTrue(store.hashExists("h"));
+        assertTrue(store.hashValueExists("h", "k"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        assertEquals("v2", store.getHashValue("h", "k2"));
+        store.deleteHashValue("h", "k");
+        assertFalse(store.hashValueExists("h", "k"));
+        assertTrue(store.hashValueExists("h", "k2"));
+        store.deleteHash("h");
+        assertFalse(store.hashExists("h"));
+        assertNull(store.getHashValue("h", "k2"));
+    }
+
+    @Test
+    public void testNonAsciiValues() {
+        String value = "Akwaaba \u025b\u0254 \u20b5 \ud83d\ude00";
+        store.setValue("a", value);
+        store.setHashValue("h", "\u0254", value);
+        assertEquals(value, store.getValue("a"));
+        assertEquals(value, store.getHashValue("h", "\u0254"));
+    }
+
+    @Test
+    public void testSlidingExpiration() {
+        store.setValue("a", "b");
+        store.setHashValue("h", "k", "v");
+        assertEquals(30, server.timeToLive("a"));
+        assertEquals(30, server.timeToLive("h"));
+        clock.advance(20);
+        assertEquals("b", store.getValue("a"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        clock.advance(20);
+        assertEquals("b", store.getValue("a"));
+        assertEquals("v", store.getHashValue("h", "k"));
+        clock.advance(30);
+        assertFalse(store.valueExists("a"));
+        assertFalse(store.hashExists("h"));
+    }
+
+    @Test
+    public void testExistenceChecksRenewTimeout() {
+        store.setValue("a", "b");
+        store.setHashValue("h", "k", "v");
+        clock.advance(20);
+        assertTrue(store.valueExists("a"));
+        assertTrue(store.hashExists("h"));
+        clock.advance(20);
+        assertTrue(store.hashValueExists("h", "k"));
+        assertEquals(30, server.timeToLive("h"));
+        assertEquals(10, server.timeToLive("a"));
+        clock.advance(15);
+        assertEquals("v", store.getHashValue("h", "k"));
+        assertNull(store.getValue("a"));
+    }
+
+    @Test
+    public void testKeyPrefix() {
+        RedisSessionStore prefixed = new RedisSessionStore("127.0.0.1",
+                server.getPort(), 30, "app1:", 2, 1000);
+        prefixed.start();
+        try {
+            prefixed.setValue("a", "b");
+            prefixed.setHashValue("h", "k", "v");
+            assertEquals("string", server.typeOf("app1:a"));
+            assertEquals("hash", server.typeOf("app1:h"));
+            assertFalse(store.valueExists("a"));
+            assertEquals("b", prefixed.getValue("a"));
+        }
+        finally {
+            prefixed.stop();
+        }
+    }
+
+    @Test
+    public void testBatchIsPipelined() {
+        store.setValue("233244000111.NextRoute", "Main.start");
+        server.resetCounts();
+
+        SessionBatch batch = new SessionBatch();
+        int route = batch.getValue("233244000111.NextRoute");
+        batch.setHashValue("233244000111.DataBag", "a", "1");
+        batch.setHashValue("233244000111.DataBag", "b", "2");
+        int a = batch.getHashValue("233244000111.DataBag", "a");
+        int exists = batch.hashValueExists("233244000111.DataBag", "b");
+        int missing = batch.valueExists("233244000222.NextRoute");
+        batch.execute(store);
+
+        assertEquals("Main.start", batch.getString(route));
+        assertEquals("1", batch.getString(a));
+        assertTrue(batch.getBoolean(exists));
+        assertFalse(batch.getBoolean(missing));
+        assertEquals(12, server.getCommandCount());
+        assertTrue(server.getFlushCount() < server.getCommandCount());
+    }
+
+    @Test
+    public void testConnectionsArePooled() {
+        for (int i = 0; i < 100; i++) {
+            store.setValue("a", String.valueOf(i));
+            assertEquals(String.valueOf(i), store.getValue("a"));
+            store.close();
+        }
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1, store.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testHandleKeepsConnectionUntilReleased() {
+        SessionStore first = store.borrow();
+        SessionStore second = store.borrow();
+        first.setValue("a", "1");
+        second.setValue("b", "2");
+        assertEquals("2", first.getValue("b"));
+        assertEquals("1", second.getValue("a"));
+        assertEquals(2, server.getConnectionCount());
+        assertEquals(0, store.getIdleConnectionCount());
+        store.release(first);
+        store.release(second);
+        assertEquals(2, store.getIdleConnectionCount());
+
+        // Later handles reuse pooled connections.
+        for (int i = 0; i < 10; i++) {
+            SessionStore handle = store.borrow();
+            assertEquals("1", handle.getValue("a"));
+            store.release(handle);
+        }
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleasedHandleCannotBeUsed() {
+        SessionStore handle = store.borrow();
+        store.release(handle);
+        handle.getValue("a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignHandle() {
+        store.release(new InMemorySessionStore(1000));
+    }
+
+    @Test(expected = FrameworkException.class)
+    public void testUseBeforeStart() {
+        new RedisSessionStore("127.0.0.1", server.getPort(), 30)
+                .getValue("a");
+    }
+
+    @Test
+    public void testStopClosesConnectionOfReleasedHandle() {
+        SessionStore handle = store.borrow();
+        handle.setValue("a", "b");
+        store.stop();
+        store.release(handle);
+        assertEquals(0, store.getIdleConnectionCount());
+    }
+
+    @Test
+    public void testErrorReplyKeepsConnectionUsable() {
+        store.setValue("a", "b");
+        try {
+            store.getHashValue("a", "k");
+            fail("Expected FrameworkException");
+        }
+        catch (FrameworkException ex) {
+            assertTrue(ex.getMessage().contains("WRONGTYPE"));
+        }
+        assertEquals("b", store.getValue("a"));
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test(expected = FrameworkException.class)
+    public void testUnreachableServerFailsStart() throws Exception {
+        int port = server.getPort();
+        store.stop();
+        server.stop();
+        new RedisSessionStore("127.0.0.1", port, 30).start();
+    }
+
+    @Test(expected = FrameworkException.class)
+    public void testUseAfterStop() {
+        store.stop();
+        store.getValue("a");
+    }
+
+    @Test
+    public void testConcurrentClients() throws Exception {
+        final int threadCount = 8;
+        final int callCount = 200;
+        final boolean[] failed = new boolean[1];
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final String key = "23324" + t + ".NextRoute";
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < callCount; i++) {
+                        String value = String.valueOf(i);
+                        store.setValue(key, value);
+                        if (!value.equals(store.getValue(key))) {
+                            synchronized (failed) {
+                                failed[0] = true;
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        synchronized (failed) {
+            assertFalse(failed[0]);
+        }
+        assertTrue(server.getConnectionCount() <= threadCount);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.stores;
+
+import com.smsgh.ussd.framework.FrameworkException;
+import com.smsgh.ussd.framework.utils.ManualClock;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ShardedSessionStoreTest {
+
+    private final ManualClock clock = new ManualClock(1000000);
+
+    private ShardedSessionStore newStore(int shardCount) {
+        ShardedSessionStore store = new ShardedSessionStore(
+                ShardedSessionStore.DEFAULT_VIRTUAL_NODES, 2, 1000, clock);
+        for (int i = 0; i < shardCount; i++) {
+            store.addShard("shard" + i, new InMemorySessionStore(60000));
+        }
+        return store;
+    }
+
+    private static String mobile(int i) {
+        return String.valueOf(233244000000L + i * 7919L);
+    }
+
+    /**
+     * Session store which fails every operation while switched off.
+     */
+    private static class FlakySessionStore extends AbstractBatchSessionStore {
+        private final SessionStore delegate = new InMemorySessionStore(
+                60000);
+        volatile boolean down;
+
+        @Override
+        public void execute(SessionBatch batch) {
+            if (down) {
+                throw new FrameworkException("Shard is down.");
+            }
+            batch.executeEach(delegate);
+        }
+    }
+
+    /**
+     * Lifecycle store which counts its calls.
+     */
+    private static class CountingLifecycleStore extends FlakySessionStore
+            implements LifecycleSessionStore {
+        int starts, stops, borrows, releases;
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public SessionStore borrow() {
+            borrows++;
+            return this;
+        }
+
+        @Override
+        public void release(SessionStore handle) {
+            releases++;
+        }
+    }
+
+    @Test(expected = FrameworkException.class)
+    public void testNoShards() {
+        new ShardedSessionStore().getValue("a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateShardName() {
+        newStore(1).addShard("shard0", new InMemorySessionStore(1000));
+    }
+
+    @Test
+    public void testShardKey() {
+        ShardedSessionStore store = newStore(0);
+        assertEquals("233244123456",
+                store.getShardKey("233244123456.NextRoute"));
+        assertEquals("a.b", store.getShardKey("a.b.c"));
+        assertEquals("plain", store.getShardKey("plain"));
+        assertEquals(".x", store.getShardKey(".x"));
+    }
+
+    @Test
+    public void testSessionKeysShareShard() {
+        ShardedSessionStore store = newStore(4);
+        for (int i = 0; i < 1000; i++) {
+            String mobile = mobile(i);
+            store.setValue(mobile + ".NextRoute", "Main.start");
+            store.setHashValue(mobile + ".DataBag", "k", "v" + i);
+            assertEquals(store.getShardName(mobile + ".NextRoute"),
+                    store.getShardName(mobile + ".DataBag"));
+            assertEquals("v" + i, store.getHashValue(mobile + ".DataBag",
+                    "k"));
+        }
+    }
+
+    @Test
+    public void testEvenSpread() {
+        ShardedSessionStore store = newStore(4);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        int sessions = 20000;
+        for (int i = 0; i < sessions; i++) {
+            String name = store.getShardName(mobile(i) + ".NextRoute");
+            Integer count = counts.get(name);
+            counts.put(name, count == null ? 1 : count + 1);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Uneven spread: " + counts,
+                    count > sessions / 4 * 0.75 &&
+                    count < sessions / 4 * 1.25);
+        }
+    }
+
+    @Test
+    public void testMinimalMovementWhenShardsChange() {
+        ShardedSessionStore store = newStore(4);
+        int sessions = 20000;
+        String[] before = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            before[i] = store.getShardName(mobile(i) + ".NextRoute");
+        }
+
+        store.addShard("shard4", new InMemorySessionStore(60000));
+        int moved = 0;
+        for (int i = 0; i < sessions; i++) {
+            String after = store.getShardName(mobile(i) + ".NextRoute");
+            if (!after.equals(before[i])) {
+                assertEquals("shard4", after);
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved, moved > sessions / 5 * 0.75 &&
+                moved < sessions / 5 * 1.25);
+
+        // Removing the new shard brings every session back.
+        store.removeShard("shard4");
+        for (int i = 0; i < sessions; i++) {
+            assertEquals(before[i],
+                    store.getShardName(mobile(i) + ".NextRoute"));
+        }
+    }
+
+    @Test
+    public void testBatchSplitAmongShards() {
+        ShardedSessionStore store = newStore(3);
+        SessionBatch batch = new SessionBatch();
+        int[] indices = new int[50];
+        for (int i = 0; i < 50; i++) {
+            batch.setValue(mobile(i) + ".NextRoute", "route" + i);
+            indices[i] = batch.getValue(mobile(i) + ".NextRoute");
+        }
+        batch.valueExists("missing");
+        store.execute(batch);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("route" + i, batch.getString(indices[i]));
+        }
+        assertFalse(batch.getBoolean(100));
+        long total = 0;
+        for (String name : store.getShardNames()) {
+            assertTrue(store.getShardOperationCount(name) > 0);
+            total += store.getShardOperationCount(name);
+        }
+        assertEquals(3, total);
+    }
+
+    @Test
+    public void testFailover() {
+        ShardedSessionStore store = new ShardedSessionStore(
+                ShardedSessionStore.DEFAULT_VIRTUAL_NODES, 2, 1000, clock);
+        FlakySessionStore flaky = new FlakySessionStore();
+        store.addShard("a", flaky);
+        store.addShard("b", new InMemorySessionStore(60000));
+        String key = null;
+        for (int i = 0; key == null; i++) {
+            if (store.getShardName(mobile(i) + ".NextRoute").equals("a")) {
+                key = mobile(i) + ".NextRoute";
+            }
+        }
+
+        flaky.down = true;
+        for (int i = 0; i < 2; i++) {
+            try {
+                store.setValue(key, "x");
+                fail("Expected failure");
+            }
+            catch (FrameworkException ex) {
+                // Expected.
+            }
+        }
+        assertFalse(store.isShardAvailable("a"));
+        assertEquals(2, store.getShardFailureCount("a"));
+        assertEquals("b", store.getShardName(key));
+        store.setValue(key, "y");
+        assertEquals("y", store.getValue(key));
+
+        // Shard is tried again after retry interval, and fails over again
+        // on its first failure.
+        clock.advance(1000);
+        assertTrue(store.isShardAvailable("a"));
+        try {
+            store.getValue(key);
+            fail("Expected failure");
+        }
+        catch (FrameworkException ex) {
+            // Expected.
+        }
+        assertFalse(store.isShardAvailable("a"));
+
+        clock.advance(1000);
+        flaky.down = false;
+        assertNull(store.getValue(key));
+        store.setValue(key, "z");
+        assertEquals("a", store.getShardName(key));
+        assertEquals("z", store.getValue(key));
+    }
+
+    @Test
+    public void testLifecycleShards() {
+        ShardedSessionStore store = new ShardedSessionStore();
+        CountingLifecycleStore a = new CountingLifecycleStore();
+        CountingLifecycleStore b = new CountingLifecycleStore();
+        store.addShard("a", a);
+        store.addShard("plain", new InMemorySessionStore(60000));
+        store.start();
+        assertEquals(1, a.starts);
+        store.addShard("b", b);
+        assertEquals(1, b.starts);
+
+        SessionStore handle = store.borrow();
+        for (int i = 0; i < 100; i++) {
+            handle.setValue(mobile(i) + ".NextRoute", "x");
+        }
+        assertEquals(1, a.borrows);
+        assertEquals(1, b.borrows);
+        store.release(handle);
+        assertEquals(1, a.releases);
+        assertEquals(1, b.releases);
+        try {
+            handle.getValue("x.NextRoute");
+            fail("Expected released handle to be rejected");
+        }
+        catch (IllegalStateException ex) {
+            // Expected.
+        }
+        try {
+            store.release(new ShardedSessionStore().borrow());
+            fail("Expected foreign handle to be rejected");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+
+        store.stop();
+        assertEquals(1, a.stops);
+        assertEquals(1, b.stops);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class LongKeyedMapTest {
+
+    @Test
+    public void basicTest() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(233244000111L, "a"));
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-1, "minus"));
+        assertEquals("a", map.put(233244000111L, "b"));
+        assertEquals(3, map.size());
+        assertEquals("b", map.get(233244000111L));
+        assertEquals("zero", map.get(0));
+        assertEquals("minus", map.get(-1));
+        assertTrue(map.containsKey(0));
+        assertFalse(map.containsKey(1));
+        assertNull(map.get(1));
+
+        assertEquals("zero", map.remove(0));
+        assertNull(map.remove(0));
+        assertFalse(map.containsKey(0));
+        assertEquals(2, map.size());
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertTrue(Arrays.equals(new long[]{ -1, 233244000111L }, keys));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValueTest() {
+        new LongKeyedMap<String>().put(1, null);
+    }
+
+    @Test
+    public void growthTest() {
+        LongKeyedMap<String> map = new LongKeyedMap<String>(10);
+        assertEquals(16, map.capacity());
+        for (long i = 0; i < 1000; i++) {
+            map.put(233244000000L + i, "v" + i);
+        }
+        assertEquals(1000, map.size());
+        assertTrue(map.capacity() * 2 / 3 >= 1000);
+        for (long i = 0; i < 1000; i++) {
+            assertEquals("v" + i, map.get(233244000000L + i));
+        }
+    }
+
+    /**
+     * Compares the map with a HashMap over random operations on a small
+     * key range, so that probe runs and removals from them are exercised.
+     */
+    @Test
+    public void randomOperationsTest() {
+        LongKeyedMap<Long> map = new LongKeyedMap<Long>(4);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(64) * 1024L;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(key, (long)i),
+                            map.put(key, (long)i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (long key : map.keys()) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.utils;
+
+/**
+ * Clock for tests, whose time only moves when told to.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class ManualClock implements Clock {
+    private long currentTimeMillis;
+
+    public ManualClock(long currentTimeMillis) {
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    public synchronized void advance(long millis) {
+        currentTimeMillis += millis;
+    }
+}
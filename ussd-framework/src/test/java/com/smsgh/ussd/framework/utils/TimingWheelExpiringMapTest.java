@@ -0,0 +1,211 @@
+/**
+ * (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.framework.utils;
+
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class TimingWheelExpiringMapTest {
+
+    private final ManualClock clock = new ManualClock(1000000);
+
+    @Test
+    public void basicGetTest() {
+        Map<String, String> map = new TimingWheelExpiringMap<String, String>(
+                20, clock);
+        map.put("a", "b");
+        clock.advance(10);
+        assertEquals("b", map.get("a"));
+    }
+
+    @Test
+    public void basicExpireTest() {
+        Map<String, String> map = new TimingWheelExpiringMap<String, String>(
+                20, clock);
+        map.put("a", "b");
+        clock.advance(20);
+        assertNull(map.get("a"));
+        assertFalse(map.containsKey("a"));
+    }
+
+    @Test
+    public void basicRenewTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(30, clock);
+        map.put("a", "b");
+        clock.advance(20);
+        assertTrue(map.renewKey("a"));
+        clock.advance(20);
+        assertEquals("b", map.get("a"));
+        clock.advance(30);
+        assertFalse(map.renewKey("a"));
+    }
+
+    @Test
+    public void getRenewTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(30, clock);
+        map.put("a", "b");
+        clock.advance(20);
+        assertEquals("b", map.get("a"));
+        clock.advance(20);
+        assertEquals("b", map.get("a"));
+    }
+
+    @Test
+    public void containsKeyDoesNotRenewTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(30, clock);
+        map.put("a", "b");
+        clock.advance(20);
+        assertTrue(map.containsKey("a"));
+        clock.advance(20);
+        assertFalse(map.containsKey("a"));
+    }
+
+    @Test
+    public void multiplePutThenRemoveTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(20, clock);
+        map.put("a", "b");
+        clock.advance(10);
+        map.put("a", "c", 20);
+        clock.advance(10);
+        map.put("a", "d", 4000);
+        clock.advance(20);
+        assertEquals("d", map.remove("a"));
+        assertNull(map.get("a"));
+    }
+
+    @Test
+    public void multiplePutThenGetTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(20, clock);
+        map.put("a", "b", 20);
+        clock.advance(10);
+        map.put("a", "c", 20);
+        clock.advance(10);
+        map.put("a", "d", 4000);
+        clock.advance(3000);
+        assertEquals("d", map.get("a"));
+    }
+
+    @Test
+    public void putReturnsOnlyLivePreviousValueTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(20, clock);
+        assertNull(map.put("a", "b"));
+        assertEquals("b", map.put("a", "c"));
+        clock.advance(20);
+        assertNull(map.put("a", "d"));
+    }
+
+    @Test
+    public void longerLifeTimeThanWheelSpanTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(100, 10, clock);
+        int span = map.getWheelSize() * 10;
+        map.put("a", "b", 5 * span);
+        for (int i = 0; i < 49; i++) {
+            clock.advance(span / 10);
+            map.cleanUp();
+        }
+        assertTrue(map.containsKey("a"));
+        clock.advance(span / 10);
+        map.cleanUp();
+        assertEquals(0, map.size());
+    }
+
+    /**
+     * An entry whose deadline falls in the middle of a tick should be
+     * reclaimed once that tick is over, even if the tick was being swept
+     * before the deadline.
+     */
+    @Test
+    public void midTickDeadlineTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(100, 10, clock);
+        clock.advance(5);
+        map.put("a", "b");
+        clock.advance(97);
+        map.cleanUp();
+        assertEquals(1, map.size());
+        clock.advance(18);
+        map.cleanUp();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void neverExpiringEntryTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(20, clock);
+        map.put("a", "b", Long.MAX_VALUE);
+        clock.advance(1000000);
+        assertEquals("b", map.get("a"));
+    }
+
+    /**
+     * Reads alone should reclaim expired entries, a bounded number
+     * at a time.
+     */
+    @Test
+    public void readsReclaimExpiredEntriesTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(1000, clock);
+        map.setCleanUpBudget(8);
+        for (int i = 0; i < 100; i++) {
+            map.put("k" + i, "v");
+        }
+        map.put("live", "v", 100000);
+        clock.advance(2000);
+        for (int i = 0; i < 1000; i++) {
+            map.get("live");
+        }
+        assertEquals("v", map.get("live"));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void cleanUpAfterLongIdlePeriodTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(70000, clock);
+        for (int i = 0; i < 1000; i++) {
+            map.put("k" + i, "v");
+            clock.advance(13);
+        }
+        clock.advance(24L * 3600 * 1000);
+        map.cleanUp();
+        assertTrue(map.isEmpty());
+        map.put("a", "b");
+        assertEquals("b", map.get("a"));
+    }
+
+    @Test
+    public void clearTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(20, clock);
+        map.put("a", "b");
+        map.put("c", "d");
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get("a"));
+        map.put("a", "e");
+        assertEquals("e", map.get("a"));
+    }
+
+    @Test
+    public void containsValueIgnoresExpiredEntriesTest() {
+        TimingWheelExpiringMap<String, String> map =
+                new TimingWheelExpiringMap<String, String>(20, clock);
+        map.put("a", "b");
+        assertTrue(map.containsValue("b"));
+        clock.advance(20);
+        assertFalse(map.containsValue("b"));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Answers the questions the processor asks about controllers, following
+ * the rules the framework applies at runtime: controllers are found by
+ * trying the same class names, in the same order, and an action is any
+ * public no-arg method.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class ControllerModel {
+
+    static final String CONTROLLER_CLASS_NAME =
+            "com.smsgh.ussd.framework.UssdController";
+    static final String RESPONSE_CLASS_NAME =
+            "com.smsgh.ussd.framework.UssdResponse";
+
+    private final Elements elements;
+    private final Types types;
+    private final TypeMirror controllerType;
+    private final TypeMirror responseType;
+    private final String[] controllerPackages;
+
+    /**
+     * Creates a model for the framework classes visible to a compilation.
+     *
+     * @param elements element utilities of compilation.
+     * @param types type utilities of compilation.
+     * @param controllerTypeElement UssdController class.
+     * @param responseTypeElement UssdResponse class.
+     * @param controllerPackages packages for qualifying controller names,
+     * as given to Ussd.controllerPackages(). May be null.
+     */
+    ControllerModel(Elements elements, Types types,
+            TypeElement controllerTypeElement,
+            TypeElement responseTypeElement, String[] controllerPackages) {
+        this.elements = elements;
+        this.types = types;
+        this.controllerType = types.erasure(controllerTypeElement.asType());
+        this.responseType = types.erasure(responseTypeElement.asType());
+        this.controllerPackages = controllerPackages;
+    }
+
+    /**
+     * Determines whether a class is a subclass of UssdController.
+     *
+     * @param type class to check.
+     *
+     * @return true if and only if type is UssdController or one of its
+     * subclasses.
+     */
+    boolean isSubclass(TypeElement type) {
+        return types.isSubtype(types.erasure(type.asType()), controllerType);
+    }
+
+    /**
+     * Determines whether the framework can create a class as a controller
+     * without reflection: it must be a concrete subclass of UssdController,
+     * which can be referred to from any package and has a public no-arg
+     * constructor.
+     *
+     * @param type class to check.
+     *
+     * @return true if and only if type belongs in a route table.
+     */
+    boolean isDispatchable(TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS ||
+                type.getModifiers().contains(Modifier.ABSTRACT) ||
+                !isSubclass(type) || getConstructor(type) == null) {
+            return false;
+        }
+        for (Element e = type; e instanceof TypeElement;
+                e = e.getEnclosingElement()) {
+            TypeElement enclosing = (TypeElement)e;
+            if (!enclosing.getModifiers().contains(Modifier.PUBLIC)) {
+                return false;
+            }
+            if (enclosing.getNestingKind() == NestingKind.MEMBER &&
+                    !enclosing.getModifiers().contains(Modifier.STATIC)) {
+                return false;
+            }
+            if (enclosing.getNestingKind() != NestingKind.TOP_LEVEL &&
+                    enclosing.getNestingKind() != NestingKind.MEMBER) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the public no-arg constructor of a class.
+     *
+     * @param type class whose constructor is required.
+     *
+     * @return constructor, or null if class does not have one.
+     */
+    ExecutableElement getConstructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(
+                type.getEnclosedElements())) {
+            if (constructor.getModifiers().contains(Modifier.PUBLIC) &&
+                    constructor.getParameters().isEmpty()) {
+                return constructor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the actions of a controller which can be dispatched without
+     * reflection: public no-arg methods, declared or inherited, whose
+     * return type is UssdResponse or a subclass of it.
+     *
+     * @param type controller class.
+     *
+     * @return actions, sorted by name.
+     */
+    List<ExecutableElement> getActions(TypeElement type) {
+        List<ExecutableElement> actions = new ArrayList<ExecutableElement>();
+        for (ExecutableElement method : getPublicNoArgMethods(type).values()) {
+            if (types.isAssignable(types.erasure(method.getReturnType()),
+                    responseType)) {
+                actions.add(method);
+            }
+        }
+        Collections.sort(actions, new Comparator<ExecutableElement>() {
+            @Override
+            public int compare(ExecutableElement a, ExecutableElement b) {
+                return a.getSimpleName().toString().compareTo(
+                        b.getSimpleName().toString());
+            }
+        });
+        return actions;
+    }
+
+    /**
+     * Determines whether a controller has an action, i.e. a public no-arg
+     * method of the given name, which is what Class.getMethod() finds at
+     * runtime.
+     *
+     * @param type controller class.
+     * @param actionName name of action.
+     *
+     * @return true if and only if controller has the action.
+     */
+    boolean hasAction(TypeElement type, String actionName) {
+        return getPublicNoArgMethods(type).containsKey(actionName);
+    }
+
+    private Map<String, ExecutableElement> getPublicNoArgMethods(
+            TypeElement type) {
+        Map<String, ExecutableElement> methods =
+                new LinkedHashMap<String, ExecutableElement>();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                elements.getAllMembers(type))) {
+            Set<Modifier> modifiers = method.getModifiers();
+            if (modifiers.contains(Modifier.PUBLIC) &&
+                    method.getParameters().isEmpty()) {
+                String name = method.getSimpleName().toString();
+                // Members of subclasses come before those they override.
+                if (!methods.containsKey(name)) {
+                    methods.put(name, method);
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Finds a controller class by the name routes refer to it with.
+     *
+     * @param controllerName controller name, possibly without its package
+     * or its "Controller" suffix.
+     * @param attemptedClasses receives the class names tried, if no class
+     * is found.
+     *
+     * @return controller class, or null if no class could be found.
+     */
+    TypeElement findController(String controllerName,
+            List<String> attemptedClasses) {
+        List<String> candidates = new ArrayList<String>();
+        candidates.add(controllerName);
+        if (controllerPackages != null) {
+            for (String controllerPackage : controllerPackages) {
+                String fullControllerName = controllerPackage + '.' +
+                        controllerName;
+                candidates.add(fullControllerName);
+                if (!fullControllerName.endsWith("Controller")) {
+                    candidates.add(fullControllerName + "Controller");
+                }
+            }
+        }
+        for (String candidate : candidates) {
+            // Binary names of nested classes use '$' where source uses '.'.
+            TypeElement type = elements.getTypeElement(
+                    candidate.replace('$', '.'));
+            if (type != null) {
+                return type;
+            }
+        }
+        attemptedClasses.addAll(candidates);
+        return null;
+    }
+
+    /**
+     * Gets the name the framework loads a class by.
+     *
+     * @param type class.
+     *
+     * @return binary name of class.
+     */
+    String getBinaryName(TypeElement type) {
+        return elements.getBinaryName(type).toString();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor which generates a {@link RouteTableWriter route
+ * table} for the controllers of each package being compiled, and reports
+ * routes which the framework would fail to resolve as compile errors.
+ * <p>
+ * The processor needs no annotations: it looks at every class compiled,
+ * and is run by javac whenever the ussd-processor jar is on the
+ * compilation classpath (or processor path). Generated tables are listed
+ * in META-INF/services/com.smsgh.ussd.framework.RouteTable, from where
+ * the framework loads them at runtime to dispatch actions without
+ * reflection.
+ * <p>
+ * Controller names in routes are resolved as the framework resolves them
+ * at runtime, so the packages given to Ussd.controllerPackages() must also
+ * be given to the processor, as a comma-separated list in the
+ * {@value #CONTROLLER_PACKAGES_OPTION} option, e.g.
+ * -Aussd.controllerPackages=com.example.ussd
+ *
+ * @author Aaron Baffour-Awuah
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(RouteTableProcessor.CONTROLLER_PACKAGES_OPTION)
+public class RouteTableProcessor extends AbstractProcessor {
+
+    /**
+     * The name of the option listing controller packages.
+     */
+    public static final String CONTROLLER_PACKAGES_OPTION =
+            "ussd.controllerPackages";
+
+    static final String ROUTE_TABLE_SERVICE =
+            "META-INF/services/com.smsgh.ussd.framework.RouteTable";
+
+    private final Set<String> writtenPackages = new HashSet<String>();
+    private final Set<String> tableNames = new TreeSet<String>();
+    private ControllerModel model;
+    private RouteValidator validator;
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        TypeElement controllerType = processingEnv.getElementUtils()
+                .getTypeElement(ControllerModel.CONTROLLER_CLASS_NAME);
+        TypeElement responseType = processingEnv.getElementUtils()
+                .getTypeElement(ControllerModel.RESPONSE_CLASS_NAME);
+        if (controllerType == null || responseType == null) {
+            // Framework is not on classpath, so there is nothing to do.
+            return;
+        }
+        String packagesOption = processingEnv.getOptions().get(
+                CONTROLLER_PACKAGES_OPTION);
+        String[] controllerPackages = null;
+        if (packagesOption != null && packagesOption.trim().length() > 0) {
+            controllerPackages = packagesOption.trim().split("\\s*,\\s*");
+        }
+        model = new ControllerModel(processingEnv.getElementUtils(),
+                processingEnv.getTypeUtils(), controllerType, responseType,
+                controllerPackages);
+        try {
+            validator = new RouteValidator(processingEnv, model,
+                    controllerPackages != null);
+        }
+        catch (IllegalArgumentException ex) {
+            noteValidationUnavailable();
+        }
+        catch (LinkageError ex) {
+            noteValidationUnavailable();
+        }
+    }
+
+    private void noteValidationUnavailable() {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                "Ussd routes will not be checked, because the compiler " +
+                "tree API is not available.");
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     *{@inheritDoc}
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        if (model == null) {
+            return false;
+        }
+        if (roundEnv.processingOver()) {
+            writeServiceFile();
+            return false;
+        }
+
+        // Group controllers by package, in a stable order so that
+        // generated sources do not change between builds.
+        Map<String, List<TypeElement>> controllersByPackage =
+                new TreeMap<String, List<TypeElement>>();
+        Set<TypeElement> topLevelTypes = ElementFilter.typesIn(
+                roundEnv.getRootElements());
+        for (TypeElement type : topLevelTypes) {
+            collectControllers(type, controllersByPackage);
+        }
+        for (Map.Entry<String, List<TypeElement>> entry :
+                controllersByPackage.entrySet()) {
+            writeTable(entry.getKey(), entry.getValue());
+        }
+
+        if (validator != null) {
+            for (TypeElement type : topLevelTypes) {
+                validator.validate(type);
+            }
+        }
+        return false;
+    }
+
+    private void collectControllers(TypeElement type,
+            Map<String, List<TypeElement>> controllersByPackage) {
+        if (model.isDispatchable(type)) {
+            String packageName = processingEnv.getElementUtils()
+                    .getPackageOf(type).getQualifiedName().toString();
+            List<TypeElement> controllers = controllersByPackage.get(
+                    packageName);
+            if (controllers == null) {
+                controllers = new ArrayList<TypeElement>();
+                controllersByPackage.put(packageName, controllers);
+            }
+            controllers.add(type);
+        }
+        for (TypeElement nested : ElementFilter.typesIn(
+                type.getEnclosedElements())) {
+            collectControllers(nested, controllersByPackage);
+        }
+    }
+
+    private void writeTable(String packageName,
+            List<TypeElement> controllers) {
+        if (!writtenPackages.add(packageName)) {
+            // Sources can only be generated once per compilation.
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Route table of package " + packageName + " has already "
+                    + "been generated. Controllers generated by other "
+                    + "processors will be dispatched through reflection.",
+                    controllers.get(0));
+            return;
+        }
+        String tableName = RouteTableWriter.tableNameOf(packageName);
+        Collections.sort(controllers, new Comparator<TypeElement>() {
+            @Override
+            public int compare(TypeElement a, TypeElement b) {
+                return a.getQualifiedName().toString().compareTo(
+                        b.getQualifiedName().toString());
+            }
+        });
+        try {
+            JavaFileObject source = processingEnv.getFiler().createSourceFile(
+                    tableName, controllers.toArray(new Element[0]));
+            PrintWriter out = new PrintWriter(source.openWriter());
+            try {
+                new RouteTableWriter(model).write(out, packageName,
+                        controllers);
+            }
+            finally {
+                out.close();
+            }
+            tableNames.add(tableName);
+        }
+        catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write route table " + tableName + ": " + ex);
+        }
+    }
+
+    private void writeServiceFile() {
+        if (tableNames.isEmpty()) {
+            return;
+        }
+        Filer filer = processingEnv.getFiler();
+        try {
+            FileObject file = filer.createResource(
+                    StandardLocation.CLASS_OUTPUT, "", ROUTE_TABLE_SERVICE);
+            PrintWriter out = new PrintWriter(file.openWriter());
+            try {
+                for (String tableName : tableNames) {
+                    out.println(tableName);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write " + ROUTE_TABLE_SERVICE + ": " + ex);
+        }
+    }
+}
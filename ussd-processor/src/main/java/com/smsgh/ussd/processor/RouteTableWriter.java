@@ -0,0 +1,224 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.processor;
+
+import java.io.PrintWriter;
+import java.util.List;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Writes the source of the route table of the controllers of a package.
+ * <p>
+ * Each controller gets a dispatcher class which creates it with its
+ * constructor and calls its actions directly, selecting the action by
+ * index, so that no reflection happens at runtime and a controller costs
+ * one class however many actions it has. Checked exceptions thrown by
+ * constructors and actions are wrapped in RuntimeException, as the
+ * framework does when it dispatches through reflection.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class RouteTableWriter {
+
+    /**
+     * The simple name of generated route table classes.
+     */
+    static final String TABLE_CLASS_NAME = "UssdRouteTable";
+
+    private static final String INDENT = "    ";
+
+    private final ControllerModel model;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param model model of the controllers to write tables for.
+     */
+    RouteTableWriter(ControllerModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Gets the fully qualified name of the route table of a package.
+     *
+     * @param packageName package name, which is empty for the unnamed
+     * package.
+     *
+     * @return class name of route table.
+     */
+    static String tableNameOf(String packageName) {
+        return packageName.length() == 0 ? TABLE_CLASS_NAME :
+                packageName + '.' + TABLE_CLASS_NAME;
+    }
+
+    /**
+     * Writes the source of a route table.
+     *
+     * @param out destination of source.
+     * @param packageName package of controllers and route table.
+     * @param controllers controllers to include in table, which must all
+     * satisfy {@link ControllerModel#isDispatchable(TypeElement)}.
+     */
+    void write(PrintWriter out, String packageName,
+            List<TypeElement> controllers) {
+        out.println("// Generated by " + RouteTableProcessor.class.getName() +
+                ". Do not edit.");
+        if (packageName.length() > 0) {
+            out.println("package " + packageName + ";");
+        }
+        out.println();
+        out.println("import com.smsgh.ussd.framework.ActionDispatcher;");
+        out.println("import com.smsgh.ussd.framework.RouteTable;");
+        out.println("import com.smsgh.ussd.framework.UssdController;");
+        out.println("import java.util.Collections;");
+        out.println("import java.util.HashMap;");
+        out.println("import java.util.Map;");
+        out.println("import java.util.Set;");
+        out.println();
+        out.println("public final class " + TABLE_CLASS_NAME +
+                " implements RouteTable {");
+        out.println();
+        out.println(INDENT + "private final Map<String, " +
+                "Map<String, ActionDispatcher>> controllers =");
+        out.println(INDENT + INDENT + INDENT + "new HashMap<String, " +
+                "Map<String, ActionDispatcher>>();");
+        out.println();
+        out.println(INDENT + "public " + TABLE_CLASS_NAME + "() {");
+        out.println(INDENT + INDENT + "Map<String, ActionDispatcher> actions;");
+        for (int i = 0; i < controllers.size(); i++) {
+            TypeElement controller = controllers.get(i);
+            List<ExecutableElement> actions = model.getActions(controller);
+            out.println();
+            out.println(INDENT + INDENT + "actions = new HashMap<String, " +
+                    "ActionDispatcher>();");
+            for (int j = 0; j < actions.size(); j++) {
+                out.println(INDENT + INDENT + "actions.put(" +
+                        quote(actions.get(j).getSimpleName().toString()) +
+                        ", new Dispatcher" + i + "(" + j + "));");
+            }
+            out.println(INDENT + INDENT + "controllers.put(" +
+                    quote(model.getBinaryName(controller)) +
+                    ", Collections.unmodifiableMap(actions));");
+        }
+        out.println(INDENT + "}");
+        out.println();
+        out.println(INDENT + "@Override");
+        out.println(INDENT + "public Set<String> getControllerNames() {");
+        out.println(INDENT + INDENT +
+                "return Collections.unmodifiableSet(controllers.keySet());");
+        out.println(INDENT + "}");
+        out.println();
+        out.println(INDENT + "@Override");
+        out.println(INDENT + "public Map<String, ActionDispatcher> " +
+                "getActions(String controllerName) {");
+        out.println(INDENT + INDENT + "return controllers.get(controllerName);");
+        out.println(INDENT + "}");
+        for (int i = 0; i < controllers.size(); i++) {
+            out.println();
+            writeDispatcher(out, "Dispatcher" + i, controllers.get(i));
+        }
+        out.println("}");
+    }
+
+    private void writeDispatcher(PrintWriter out, String className,
+            TypeElement controller) {
+        String controllerName = controller.getQualifiedName().toString();
+        List<ExecutableElement> actions = model.getActions(controller);
+        ExecutableElement constructor = model.getConstructor(controller);
+        String indent = INDENT + INDENT;
+
+        out.println(INDENT + "private static final class " + className +
+                " extends ActionDispatcher {");
+        out.println(indent + "private final int action;");
+        out.println();
+        out.println(indent + className + "(int action) {");
+        out.println(indent + INDENT + "super(" + controllerName + ".class);");
+        out.println(indent + INDENT + "this.action = action;");
+        out.println(indent + "}");
+        out.println();
+        out.println(indent + "@Override");
+        out.println(indent + "public UssdController newController() {");
+        writeBody(out, indent + INDENT, "return new " + controllerName + "();",
+                !constructor.getThrownTypes().isEmpty());
+        out.println(indent + "}");
+        out.println();
+
+        boolean throwsExceptions = false;
+        for (ExecutableElement action : actions) {
+            throwsExceptions |= !action.getThrownTypes().isEmpty();
+        }
+        StringBuilder body = new StringBuilder();
+        for (ExecutableElement action : actions) {
+            if (!action.getModifiers().contains(Modifier.STATIC)) {
+                body.append(controllerName).append(" c = (")
+                        .append(controllerName).append(")controller;\n");
+                break;
+            }
+        }
+        body.append("switch (action) {\n");
+        for (int j = 0; j < actions.size(); j++) {
+            ExecutableElement action = actions.get(j);
+            String receiver = action.getModifiers().contains(Modifier.STATIC)
+                    ? controllerName : "c";
+            body.append(INDENT).append("case ").append(j).append(": return ")
+                    .append(receiver).append('.')
+                    .append(action.getSimpleName()).append("();\n");
+        }
+        body.append(INDENT).append("default: throw new ")
+                .append("IllegalStateException(\"Unknown action: \" + action);\n");
+        body.append("}");
+        out.println(indent + "@Override");
+        out.println(indent + "public Object invoke(UssdController controller) {");
+        writeBody(out, indent + INDENT, body.toString(), throwsExceptions);
+        out.println(indent + "}");
+        out.println(INDENT + "}");
+    }
+
+    private static void writeBody(PrintWriter out, String indent,
+            String body, boolean wrapExceptions) {
+        if (wrapExceptions) {
+            out.println(indent + "try {");
+            printLines(out, indent + INDENT, body);
+            out.println(indent + "}");
+            out.println(indent + "catch (RuntimeException ex) {");
+            out.println(indent + INDENT + "throw ex;");
+            out.println(indent + "}");
+            out.println(indent + "catch (Error ex) {");
+            out.println(indent + INDENT + "throw ex;");
+            out.println(indent + "}");
+            out.println(indent + "catch (Throwable ex) {");
+            out.println(indent + INDENT + "throw new RuntimeException(ex);");
+            out.println(indent + "}");
+        }
+        else {
+            printLines(out, indent, body);
+        }
+    }
+
+    private static void printLines(PrintWriter out, String indent,
+            String lines) {
+        for (String line : lines.split("\n")) {
+            out.println(indent + line);
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < ' ' || c > '~') {
+                quoted.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.processor;
+
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.ExpressionTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.LiteralTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.MethodInvocationTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Checks the routes passed to the framework as compile-time constants,
+ * and reports those the framework would fail to resolve at runtime as
+ * compile errors. The checked calls are the redirect() and render()
+ * methods of UssdController, UssdMenu.addItem(), the constructors of
+ * UssdMenuItem and UssdForm, and the redirect() and render() factory
+ * methods of UssdResponse.
+ * <p>
+ * An action without a controller refers to the controller containing the
+ * call. Such actions are only checked when that controller is a concrete
+ * class, since an abstract controller leaves its actions to subclasses.
+ * Routes which are not constants are not checked.
+ * <p>
+ * This class uses the compiler tree API, and so only works with javac.
+ *
+ * @author Aaron Baffour-Awuah
+ */
+class RouteValidator {
+
+    private static final String FRAMEWORK_PACKAGE =
+            "com.smsgh.ussd.framework.";
+
+    // Index of action argument of calls taking an action, optionally
+    // followed by a controller argument.
+    private static final Map<String, Integer> ACTION_ARGUMENTS =
+            new HashMap<String, Integer>();
+
+    // Index of route argument of calls taking a whole route.
+    private static final Map<String, Integer> ROUTE_ARGUMENTS =
+            new HashMap<String, Integer>();
+
+    static {
+        ACTION_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdController.redirect", 0);
+        ACTION_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdController.render", 1);
+        ACTION_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdMenu.addItem", 1);
+        ACTION_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdMenuItem.<init>", 2);
+        ACTION_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdForm.<init>", 0);
+        ROUTE_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdResponse.redirect", 0);
+        ROUTE_ARGUMENTS.put(FRAMEWORK_PACKAGE + "UssdResponse.render", 1);
+    }
+
+    private final Trees trees;
+    private final ControllerModel model;
+    private final boolean controllerPackagesGiven;
+
+    /**
+     * Creates a new validator.
+     *
+     * @param processingEnv environment of processor.
+     * @param model model of controllers visible to compilation.
+     * @param controllerPackagesGiven true if controller packages were
+     * given to the processor, for error messages.
+     *
+     * @exception java.lang.IllegalArgumentException if processingEnv is not
+     * that of javac.
+     */
+    RouteValidator(ProcessingEnvironment processingEnv,
+            ControllerModel model, boolean controllerPackagesGiven) {
+        this.trees = Trees.instance(processingEnv);
+        this.model = model;
+        this.controllerPackagesGiven = controllerPackagesGiven;
+    }
+
+    /**
+     * Checks the routes used in the source of a class.
+     *
+     * @param type top-level class from a source file.
+     */
+    void validate(TypeElement type) {
+        TreePath path = trees.getPath(type);
+        if (path != null) {
+            new Scanner(path.getCompilationUnit()).scan(path, null);
+        }
+    }
+
+    private class Scanner extends TreePathScanner<Void, Void> {
+        private final CompilationUnitTree compilationUnit;
+
+        Scanner(CompilationUnitTree compilationUnit) {
+            this.compilationUnit = compilationUnit;
+        }
+
+        @Override
+        public Void visitMethodInvocation(MethodInvocationTree node,
+                Void p) {
+            ExpressionTree select = node.getMethodSelect();
+            boolean implicitReceiver = select.getKind() ==
+                    Tree.Kind.IDENTIFIER || (select.getKind() ==
+                    Tree.Kind.MEMBER_SELECT && ((MemberSelectTree)select)
+                    .getExpression().toString().equals("this"));
+            check(node.getArguments(), implicitReceiver);
+            return super.visitMethodInvocation(node, p);
+        }
+
+        @Override
+        public Void visitNewClass(NewClassTree node, Void p) {
+            check(node.getArguments(), true);
+            return super.visitNewClass(node, p);
+        }
+
+        private void check(List<? extends ExpressionTree> arguments,
+                boolean implicitReceiver) {
+            Element element = trees.getElement(getCurrentPath());
+            if (!(element instanceof ExecutableElement)) {
+                return;
+            }
+            ExecutableElement method = (ExecutableElement)element;
+            String key = ((TypeElement)method.getEnclosingElement())
+                    .getQualifiedName() + "." + method.getSimpleName();
+            Integer index = ROUTE_ARGUMENTS.get(key);
+            if (index != null && isStringParameter(method, index)) {
+                checkRoute(arguments.get(index));
+                return;
+            }
+            index = ACTION_ARGUMENTS.get(key);
+            if (index == null || !isStringParameter(method, index)) {
+                return;
+            }
+            ExpressionTree controllerArgument = null;
+            if (isStringParameter(method, index + 1)) {
+                controllerArgument = arguments.get(index + 1);
+            }
+            // Controller methods default to the controller they are called
+            // on, which is only known when it is the calling one.
+            if (!implicitReceiver && key.startsWith(
+                    ControllerModel.CONTROLLER_CLASS_NAME)) {
+                if (controllerArgument == null ||
+                        constantOf(controllerArgument) == null) {
+                    return;
+                }
+            }
+            checkAction(arguments.get(index), controllerArgument);
+        }
+
+        private void checkRoute(ExpressionTree routeArgument) {
+            String route = constantOf(routeArgument);
+            if (route == null) {
+                return;
+            }
+            int periodIndex = route.lastIndexOf('.');
+            if (periodIndex == -1) {
+                error(routeArgument, "Invalid route format. Must be " +
+                        "\"SomeController.action\". Current route is: " +
+                        route);
+                return;
+            }
+            TypeElement controller = findController(routeArgument,
+                    route.substring(0, periodIndex));
+            if (controller != null) {
+                checkAction(routeArgument, controller,
+                        route.substring(periodIndex + 1));
+            }
+        }
+
+        private void checkAction(ExpressionTree actionArgument,
+                ExpressionTree controllerArgument) {
+            String action = constantOf(actionArgument);
+            if (action == null) {
+                return;
+            }
+            TypeElement controller;
+            String controllerName = controllerArgument != null ?
+                    constantOf(controllerArgument) : null;
+            if (controllerName != null) {
+                controller = findController(controllerArgument,
+                        controllerName);
+            }
+            else if (controllerArgument != null &&
+                    controllerArgument.getKind() != Tree.Kind.NULL_LITERAL) {
+                // Controller is only known at runtime.
+                return;
+            }
+            else {
+                controller = getEnclosingController();
+                if (controller == null || controller.getModifiers()
+                        .contains(Modifier.ABSTRACT)) {
+                    return;
+                }
+            }
+            if (controller != null) {
+                checkAction(actionArgument, controller, action);
+            }
+        }
+
+        private void checkAction(ExpressionTree argument,
+                TypeElement controller, String action) {
+            if (!model.hasAction(controller, action)) {
+                error(argument, String.format("Class \"%s\" does not have " +
+                        "a public no-arg action named \"%s\".",
+                        model.getBinaryName(controller), action));
+            }
+        }
+
+        private TypeElement findController(ExpressionTree argument,
+                String controllerName) {
+            List<String> attemptedClasses = new ArrayList<String>();
+            TypeElement controller = model.findController(controllerName,
+                    attemptedClasses);
+            if (controller == null) {
+                StringBuilder message = new StringBuilder(String.format(
+                        "Class \"%s\" could not be found. Tried to load " +
+                        "the following classes: ", controllerName));
+                for (int i = 0; i < attemptedClasses.size(); i++) {
+                    message.append(i > 0 ? ", " : "");
+                    message.append(attemptedClasses.get(i));
+                }
+                if (!controllerPackagesGiven) {
+                    message.append(". Controller packages are given with " +
+                            "the -A" +
+                            RouteTableProcessor.CONTROLLER_PACKAGES_OPTION +
+                            " option.");
+                }
+                error(argument, message.toString());
+                return null;
+            }
+            if (!model.isSubclass(controller)) {
+                error(argument, String.format("Class \"%s\" does not " +
+                        "subclass \"%s\"", model.getBinaryName(controller),
+                        ControllerModel.CONTROLLER_CLASS_NAME));
+                return null;
+            }
+            return controller;
+        }
+
+        private TypeElement getEnclosingController() {
+            for (TreePath path = getCurrentPath(); path != null;
+                    path = path.getParentPath()) {
+                if (path.getLeaf() instanceof ClassTree) {
+                    Element element = trees.getElement(path);
+                    if (element instanceof TypeElement &&
+                            model.isSubclass((TypeElement)element)) {
+                        return (TypeElement)element;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Gets the value of an argument if it is a string constant.
+         *
+         * @return constant value, or null if argument is not a string
+         * constant.
+         */
+        private String constantOf(ExpressionTree argument) {
+            if (argument.getKind() == Tree.Kind.STRING_LITERAL) {
+                return (String)((LiteralTree)argument).getValue();
+            }
+            if (argument instanceof IdentifierTree ||
+                    argument instanceof MemberSelectTree) {
+                Element element = trees.getElement(new TreePath(
+                        getCurrentPath(), argument));
+                if (element instanceof VariableElement) {
+                    Object value = ((VariableElement)element)
+                            .getConstantValue();
+                    if (value instanceof String) {
+                        return (String)value;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void error(Tree tree, String message) {
+            trees.printMessage(Diagnostic.Kind.ERROR, message, tree,
+                    compilationUnit);
+        }
+    }
+
+    private static boolean isStringParameter(ExecutableElement method,
+            int index) {
+        if (index >= method.getParameters().size()) {
+            return false;
+        }
+        TypeMirror type = method.getParameters().get(index).asType();
+        return type.getKind() == TypeKind.DECLARED &&
+                type.toString().equals("java.lang.String");
+    }
+}
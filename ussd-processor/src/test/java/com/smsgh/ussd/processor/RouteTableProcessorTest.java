@@ -0,0 +1,256 @@
+/*
+ *  (c) 2016. SMSGH
+ */
+package com.smsgh.ussd.processor;
+
+import com.smsgh.ussd.framework.ActionDispatcher;
+import com.smsgh.ussd.framework.RouteTable;
+import com.smsgh.ussd.framework.UssdController;
+import com.smsgh.ussd.framework.UssdResponse;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeSet;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Aaron Baffour-Awuah
+ */
+public class RouteTableProcessorTest {
+
+    private File outputDir;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String className, String... lines) {
+            super(URI.create("string:///" + className.replace('.', '/') +
+                    Kind.SOURCE.extension), Kind.SOURCE);
+            StringBuilder code = new StringBuilder();
+            for (String line : lines) {
+                code.append(line).append('\n');
+            }
+            this.code = code.toString();
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        outputDir = File.createTempFile("ussd-processor", "");
+        assertTrue(outputDir.delete());
+        assertTrue(outputDir.mkdir());
+        diagnostics = new DiagnosticCollector<JavaFileObject>();
+    }
+
+    @After
+    public void tearDown() {
+        delete(outputDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private boolean compile(String controllerPackages, Source... sources) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        List<String> options = new ArrayList<String>(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-d", outputDir.getPath(), "-s", outputDir.getPath()));
+        if (controllerPackages != null) {
+            options.add("-A" + RouteTableProcessor.CONTROLLER_PACKAGES_OPTION +
+                    "=" + controllerPackages);
+        }
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null,
+                diagnostics, options, null, Arrays.asList(sources));
+        task.setProcessors(Collections.singleton(new RouteTableProcessor()));
+        return task.call();
+    }
+
+    private List<String> getErrors() {
+        List<String> errors = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic :
+                diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        return errors;
+    }
+
+    private List<RouteTable> loadRouteTables() throws Exception {
+        ClassLoader classLoader = new URLClassLoader(
+                new URL[]{ outputDir.toURI().toURL() },
+                getClass().getClassLoader());
+        List<RouteTable> routeTables = new ArrayList<RouteTable>();
+        Iterator<RouteTable> it = ServiceLoader.load(RouteTable.class,
+                classLoader).iterator();
+        while (it.hasNext()) {
+            routeTables.add(it.next());
+        }
+        return routeTables;
+    }
+
+    private static Source mainController(String... actionLines) {
+        List<String> lines = new ArrayList<String>(Arrays.asList(
+                "package com.example.controllers;",
+                "import com.smsgh.ussd.framework.*;",
+                "public class MainController extends UssdController {",
+                "    public UssdResponse start() {",
+                "        return render(\"Welcome\", \"next\");",
+                "    }",
+                "    public UssdResponse next() throws java.io.IOException {",
+                "        throw new java.io.IOException(\"io\");",
+                "    }",
+                "    public String notAnAction() {",
+                "        return null;",
+                "    }"));
+        lines.addAll(Arrays.asList(actionLines));
+        lines.add("}");
+        return new Source("com.example.controllers.MainController",
+                lines.toArray(new String[0]));
+    }
+
+    @Test
+    public void testRouteTableIsGenerated() throws Exception {
+        Source helper = new Source("com.example.controllers.Helper",
+                "package com.example.controllers;",
+                "import com.smsgh.ussd.framework.*;",
+                "public abstract class Helper extends UssdController {",
+                "    public UssdResponse back() {",
+                "        return redirect(\"undefinedHere\");",
+                "    }",
+                "}");
+        assertTrue(getErrors().toString(), compile(null, mainController(),
+                helper));
+
+        List<RouteTable> routeTables = loadRouteTables();
+        assertEquals(1, routeTables.size());
+        RouteTable routeTable = routeTables.get(0);
+        assertEquals("com.example.controllers.UssdRouteTable",
+                routeTable.getClass().getName());
+        assertEquals(Collections.singleton(
+                "com.example.controllers.MainController"),
+                routeTable.getControllerNames());
+        assertNull(routeTable.getActions(
+                "com.example.controllers.Helper"));
+
+        Map<String, ActionDispatcher> actions = routeTable.getActions(
+                "com.example.controllers.MainController");
+        assertEquals(Arrays.asList("formProcessor", "menuProcessor", "next",
+                "start"), new ArrayList<String>(new TreeSet<String>(
+                        actions.keySet())));
+
+        ActionDispatcher start = actions.get("start");
+        assertEquals("com.example.controllers.MainController",
+                start.getControllerClass().getName());
+        UssdController controller = start.newController();
+        assertSame(start.getControllerClass(), controller.getClass());
+        UssdResponse response = (UssdResponse)start.invoke(controller);
+        assertEquals("Welcome", response.getMessage());
+        assertEquals("com.example.controllers.MainController.next",
+                response.getNextRoute());
+
+        // Checked exceptions are wrapped, as by reflective dispatch.
+        try {
+            actions.get("next").invoke(controller);
+            fail("Expected RuntimeException");
+        }
+        catch (RuntimeException ex) {
+            assertEquals("io", ex.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testUnknownActionsAreRejected() {
+        assertFalse(compile(null, mainController(
+                "    public UssdResponse menu() {",
+                "        UssdMenu menu = new UssdMenu()",
+                "                .addItem(\"Start\", \"strat\")",
+                "                .addItem(new UssdMenuItem(\"0\", \"Exit\", " +
+                        "\"exit\"));",
+                "        return renderMenu(menu);",
+                "    }",
+                "    public UssdResponse form() {",
+                "        return renderForm(new UssdForm(\"notAnAction\"));",
+                "    }",
+                "    public UssdResponse dynamic(String action) {",
+                "        return redirect(action);",
+                "    }")));
+        assertEquals(Arrays.asList(
+                "Class \"com.example.controllers.MainController\" does not " +
+                "have a public no-arg action named \"strat\".",
+                "Class \"com.example.controllers.MainController\" does not " +
+                "have a public no-arg action named \"exit\"."),
+                getErrors());
+    }
+
+    @Test
+    public void testUnknownControllersAreRejected() {
+        assertFalse(compile("com.example", mainController(
+                "    public UssdResponse a() {",
+                "        return redirect(\"start\", \"controllers.Main\");",
+                "    }",
+                "    public UssdResponse b() {",
+                "        return redirect(\"start\", \"controllers.Mian\");",
+                "    }",
+                "    public UssdResponse c() {",
+                "        return render(\"Bye\", \"length\", " +
+                        "\"java.lang.String\");",
+                "    }",
+                "    public UssdResponse d() {",
+                "        return UssdResponse.redirect(" +
+                        "\"controllers.Main.gone\");",
+                "    }")));
+        assertEquals(Arrays.asList(
+                "Class \"controllers.Mian\" could not be found. Tried to " +
+                "load the following classes: controllers.Mian, " +
+                "com.example.controllers.Mian, " +
+                "com.example.controllers.MianController",
+                "Class \"java.lang.String\" does not subclass " +
+                "\"com.smsgh.ussd.framework.UssdController\"",
+                "Class \"com.example.controllers.MainController\" does not " +
+                "have a public no-arg action named \"gone\"."),
+                getErrors());
+    }
+
+    @Test
+    public void testNoTableWithoutControllers() throws Exception {
+        assertTrue(compile(null, new Source("com.example.Plain",
+                "package com.example;",
+                "public class Plain {",
+                "}")));
+        assertTrue(loadRouteTables().isEmpty());
+        assertFalse(new File(outputDir,
+                RouteTableProcessor.ROUTE_TABLE_SERVICE).exists());
+    }
+}